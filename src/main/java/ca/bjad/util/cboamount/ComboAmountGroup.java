@@ -0,0 +1,72 @@
+package ca.bjad.util.cboamount;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One amount of a {@link GroupedComboResult}: how many elements of that
+ * amount the combination takes, and every element with that amount it
+ * can take them from.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class ComboAmountGroup
+{
+   private final BigDecimal               amount;
+   private final int                      count;
+   private final List<ComboFinderElement> elements;
+
+   /**
+    * Constructor, setting the amount and the elements having it.
+    *
+    * @param amount
+    *    The amount shared by the elements.
+    * @param count
+    *    The number of elements the combination takes.
+    * @param elements
+    *    Every element with the amount, in the order the finder sorted
+    *    them.
+    */
+   ComboAmountGroup(BigDecimal amount, int count, List<ComboFinderElement> elements)
+   {
+      this.amount = amount;
+      this.count = count;
+      this.elements = Collections.unmodifiableList(elements);
+   }
+
+   /**
+    * Gets the amount shared by the group's elements.
+    *
+    * @return
+    *    The amount.
+    */
+   public BigDecimal getAmount()
+   {
+      return amount;
+   }
+
+   /**
+    * Gets the number of elements of this amount the combination takes.
+    *
+    * @return
+    *    The number of elements, at least 1.
+    */
+   public int getCount()
+   {
+      return count;
+   }
+
+   /**
+    * Gets every element with the group's amount, any count of which can
+    * be taken.
+    *
+    * @return
+    *    The elements, unmodifiable.
+    */
+   public List<ComboFinderElement> getElements()
+   {
+      return elements;
+   }
+}
@@ -3,10 +3,21 @@ package ca.bjad.util.cboamount;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Utility class for finding which combination within a
@@ -20,8 +31,31 @@ import java.util.List;
  */
 public final class ComboFinder
 {
+   /**
+    * Default limit, in bytes, on the memory the dynamic programming 
+    * table may use before the finder falls back to searching without it. 
+    */
+   public static final long DEFAULT_MAX_TABLE_BYTES = 32L * 1024 * 1024;
+   
+   /**
+    * The most bits the target, the tolerance and every amount may take 
+    * up together as whole numbers, so no total the searches work out, 
+    * or a total plus every amount still to come, can overflow a long.
+    */
+   private static final int MAX_SCALED_BITS = 61;
+   
    private Collection<ComboFinderElement> elements;
    private BigDecimal amountToFind; 
+   private BigDecimal tolerance = BigDecimal.ZERO;
+   private boolean netting = false;
+   private int minElements = 1;
+   private int maxElements = Integer.MAX_VALUE;
+   private long maxTableBytes = DEFAULT_MAX_TABLE_BYTES;
+   private ComboFinderStrategy strategy = ComboFinderStrategy.AUTOMATIC;
+   private ForkJoinPool parallelPool;
+   private int maxResults = Integer.MAX_VALUE;
+   private long timeLimitNanos = 0;
+   private volatile boolean cancelled = false;
    
    /**
     * Constructor, setting the list of elements to search through and 
@@ -38,9 +72,202 @@ public final class ComboFinder
       this.amountToFind = amountToFind;
    }
    
+   /**
+    * Sets the most memory the finder may use for its tables. When every 
+    * amount is positive, the finder records which totals up to the target 
+    * each tail of the sorted elements can make, using one bit per total 
+    * per element (about elements * target in cents / 8 bytes), which lets 
+    * it answer whether a combination exists, count the combinations, and 
+    * walk straight to the first few combinations without searching dead 
+    * ends. When the table would be larger than this limit, or an amount 
+    * is negative, the finder searches without it. The limit also caps the
+    * sorted subset sums held by the meet in the middle strategy.
+    * 
+    * @param maxTableBytes
+    *    The memory limit in bytes, 0 to never use the dynamic 
+    *    programming table.
+    */
+   public void setMaxTableBytes(long maxTableBytes)
+   {
+      this.maxTableBytes = Math.max(0, maxTableBytes);
+   }
+   
+   /**
+    * Sets how the finder searches for combinations. 
+    * 
+    * @param strategy
+    *    The strategy, {@link ComboFinderStrategy#AUTOMATIC} by default.
+    */
+   public void setStrategy(ComboFinderStrategy strategy)
+   {
+      this.strategy = strategy;
+   }
+   
+   /**
+    * Sets whether the depth first search, with or without the dynamic 
+    * programming table, is split across the threads of the common fork 
+    * join pool. The include or exclude choices for the first (largest) 
+    * elements are fixed to split the search into subtrees, which the 
+    * pool's threads search at the same time, and the combinations found
+    * are merged back into the same order a single threaded search 
+    * returns them. The combinations are gathered before the first is 
+    * returned, but no more are kept than the results asked for, and once
+    * the subtrees searched so far hold that many the later subtrees are
+    * stopped. 
+    * 
+    * @param parallel
+    *    True to search on the common pool, false (the default) to search 
+    *    on the calling thread.
+    */
+   public void setParallel(boolean parallel)
+   {
+      this.parallelPool = parallel ? ForkJoinPool.commonPool() : null;
+   }
+   
+   /**
+    * Sets the fork join pool to split the search across, as with 
+    * {@link #setParallel(boolean)} but on a pool of the caller's choosing.
+    * 
+    * @param pool
+    *    The pool to search on, or null to search on the calling thread.
+    */
+   public void setParallelPool(ForkJoinPool pool)
+   {
+      this.parallelPool = pool;
+   }
+   
+   /**
+    * Sets how far a combination's total may be from the amount to find 
+    * and still match, e.g. to allow for bank fees or rounding on foreign
+    * exchange. Every combination whose total is within the window from 
+    * the amount less the tolerance to the amount plus the tolerance 
+    * matches, and is found, counted and returned the same way exact 
+    * matches are. 
+    * 
+    * @param tolerance
+    *    The tolerance, 0 (the default) for exact matches only.
+    * @throws IllegalArgumentException
+    *    If the tolerance is negative.
+    */
+   public void setTolerance(BigDecimal tolerance)
+   {
+      if (tolerance != null && tolerance.signum() < 0)
+      {
+         throw new IllegalArgumentException("Tolerance cannot be negative: " + tolerance);
+      }
+      this.tolerance = tolerance == null ? BigDecimal.ZERO : tolerance;
+   }
+   
+   /**
+    * Sets whether credits and debits may offset each other. By default 
+    * elements are added largest first and an element is only added while
+    * the total stays at or under the amount being looked for, so elements
+    * larger than the amount are never used and a negative amount can only
+    * bring down a total that has not gone over. With netting, every 
+    * combination of positive and negative amounts whose total matches is
+    * found, whatever order they add up in. 
+    * 
+    * <br><br>
+    * The search bounds each branch by the positive amounts after it, 
+    * which are all it can still add, and the negative amounts after it, 
+    * which are all it can still take away, so branches are cut as soon 
+    * as neither can bring the total into range. 
+    * 
+    * @param netting
+    *    True to net credits against debits, false (the default) for the
+    *    original rule.
+    */
+   public void setNetting(boolean netting)
+   {
+      this.netting = netting;
+   }
+   
+   /**
+    * Limits the number of elements in the combinations found. Branches 
+    * of the search that cannot end up with a size in the limits are cut
+    * as soon as that is known, and the last element allowed is only 
+    * tried if it brings the total into range on its own. 
+    * 
+    * @param minElements
+    *    The fewest elements in a combination, 1 by default.
+    * @param maxElements
+    *    The most elements in a combination, no limit by default.
+    * @throws IllegalArgumentException
+    *    If the most elements is less than 1 or the fewest.
+    */
+   public void setCombinationSize(int minElements, int maxElements)
+   {
+      if (maxElements < 1 || maxElements < minElements)
+      {
+         throw new IllegalArgumentException("Invalid combination size limits: " + minElements + " to " + maxElements);
+      }
+      this.minElements = Math.max(1, minElements);
+      this.maxElements = maxElements;
+   }
+   
+   /**
+    * Sets the most combinations {@link #findCombinationsForAmount()}, 
+    * {@link #findCombinations(ComboResultConsumer)} and the iterator and
+    * stream of combinations return. The search stops once this many 
+    * have been returned and another match is found, and only then reports
+    * {@link ComboSearchOutcome#MAX_RESULTS}, so a search with exactly 
+    * this many matches completes. 
+    * 
+    * @param maxResults
+    *    The most combinations to return, all of them by default.
+    * @throws IllegalArgumentException
+    *    If the most combinations is less than 1.
+    */
+   public void setMaxResults(int maxResults)
+   {
+      if (maxResults < 1)
+      {
+         throw new IllegalArgumentException("Invalid most results: " + maxResults);
+      }
+      this.maxResults = maxResults;
+   }
+   
+   /**
+    * Sets how long a search may take, from when it is started, before it
+    * stops and returns the combinations found up to then. Applies to the
+    * methods that find the combinations themselves, not to 
+    * {@link #hasCombination()} or {@link #countCombinations()}.
+    * 
+    * @param timeLimit
+    *    The time allowed, 0 for no limit (the default).
+    * @param unit
+    *    The unit of the time allowed.
+    */
+   public void setTimeLimit(long timeLimit, TimeUnit unit)
+   {
+      this.timeLimitNanos = Math.max(0, unit.toNanos(timeLimit));
+   }
+   
+   /**
+    * Cancels any search running on the finder, from any thread. The 
+    * search stops within a few thousand steps and returns the 
+    * combinations found up to then. The finder stays cancelled, so every
+    * later search stops before finding anything.
+    */
+   public void cancel()
+   {
+      cancelled = true;
+   }
+   
+   /**
+    * @return
+    *    True if the finder has been cancelled.
+    */
+   public boolean isCancelled()
+   {
+      return cancelled;
+   }
+   
    /**
     * Filters the list of elements to search for into a list with elements
-    * whoses amount is less than or equal to the amount being searched for.
+    * whoses amount is less than or equal to the amount being searched for,
+    * plus the tolerance. When netting, only elements whose amount is 0 
+    * are left out, as any other amount can be netted into a combination.
     * 
     * @return
     *    The list of elements whose amounts are less than or equal to 
@@ -48,18 +275,19 @@ public final class ComboFinder
     */
    private ArrayList<ComboFinderElement> filterListOfElements()
    {
+      BigDecimal highestTotal = amountToFind.add(tolerance);
       ArrayList<ComboFinderElement> filteredResults = new ArrayList<>();
       for (ComboFinderElement element : elements)
       {
-         if (element.getComboAmount().compareTo(amountToFind) < 1 && element.getComboAmount().compareTo(BigDecimal.ZERO) != 0)
+         if ((netting || element.getComboAmount().compareTo(highestTotal) < 1) && element.getComboAmount().compareTo(BigDecimal.ZERO) != 0)
          {
             filteredResults.add(element);
          }
       }
       
-      // Sort the list by largest amount first to take advantage of the logic
-      // in the verify logic to stop adding once the amount is greater than 
-      // the amount we are searching for.
+      // Sort the list by largest amount first, which the search relies on
+      // to stop adding once the amount is greater than the amount we are 
+      // searching for.
       Collections.sort(filteredResults, new Comparator<ComboFinderElement>()
          {
             @Override
@@ -73,121 +301,1000 @@ public final class ComboFinder
    }
    
    /**
-    * Converts the big integer number to be a binary string whose length
-    * padded to the number of elements to search for. 
-    *  
-    * @param val
-    *    The value to convert into the binary string.
-    * @param paddingCount
-    *    The number of characters to pad the string to.
+    * Finds the number of decimal places needed to hold the target, the 
+    * tolerance and every element's amount exactly, ignoring trailing 
+    * zeros, so 1.000 needs none.
+    * 
+    * @param filteredResults
+    *    The filtered set of elements.
+    * @return
+    *    The scale, less than 0 when every amount is a whole number of 
+    *    tens, hundreds and so on, e.g. -3 when all are thousands.
+    */
+   private int commonScale(List<ComboFinderElement> filteredResults)
+   {
+      int scale = Math.max(significantScale(amountToFind), significantScale(tolerance));
+      for (ComboFinderElement element : filteredResults)
+      {
+         scale = Math.max(scale, significantScale(element.getComboAmount()));
+      }
+      return scale;
+   }
+   
+   /**
+    * @param amount
+    *    An amount.
+    * @return
+    *    The number of decimal places the amount needs, ignoring trailing
+    *    zeros. Zero needs none, whatever its scale.
+    */
+   private static int significantScale(BigDecimal amount)
+   {
+      return amount.signum() == 0 ? Integer.MIN_VALUE : amount.stripTrailingZeros().scale();
+   }
+   
+   /**
+    * Converts an amount into a whole number of the smallest unit at the 
+    * scale passed, e.g. 12.34 at a scale of 2 becomes 1234. 
+    * 
+    * @param amount
+    *    The amount to convert, with no more significant decimal places
+    *    than the scale.
+    * @param scale
+    *    The number of decimal places to keep.
+    * @return
+    *    The scaled amount.
+    */
+   private static BigInteger toScaled(BigDecimal amount, int scale)
+   {
+      return amount.setScale(scale).unscaledValue();
+   }
+   
+   /**
+    * Determines all the possible combinations of elements will result in the 
+    * amount being looked for. 
+    * 
+    * @return
+    *    The list of found combination results from the list of elements
+    *    that add up to the amount we are looking for.  Empty list is returned
+    *    if no combinations are found.
+    */
+   public List<FoundComboResultList> findCombinationsForAmount()
+   {
+      return findCombinationsForAmount(maxResults);
+   }
+   
+   /**
+    * Determines the first combinations of elements that result in the 
+    * amount being looked for, in the same order 
+    * {@link #findCombinationsForAmount()} returns them.
+    * 
+    * @param maxResults
+    *    The most combinations to return.
     * @return
-    *    The padded binary string.
+    *    The list of found combination results, at most maxResults long.
+    *    Empty list is returned if no combinations are found.
     */
-   private String getBinaryString(BigInteger val, int paddingCount)
+   public List<FoundComboResultList> findCombinationsForAmount(int maxResults)
    {
-      String returnVal = val.toString(2);
-      while (returnVal.length() < paddingCount)
+      List<FoundComboResultList> results = new ArrayList<>();
+      if (maxResults > 0)
       {
-         returnVal = "0" + returnVal;
-      }      
-      return returnVal;
+         findCombinations(maxResults, results::add);
+      }
+      return results;
    }
    
    /**
-    * Checks to see if the amount summed up by the indexes of "1"s in the 
-    * binary string equals the amount being searched for. 
+    * Hands each combination of elements that results in the amount being
+    * looked for to the consumer passed as soon as it is found, in the 
+    * same order {@link #findCombinationsForAmount()} returns them, until 
+    * the search runs to the end, the consumer says it has enough, or the 
+    * finder's most results, time limit or cancellation stops it.
     * 
-    * @param results
-    *    The filtered set of results.
-    * @param possibilityBString
-    *    The binary string to determine which indexes needs to be added 
-    *    together. 
+    * @param consumer
+    *    The consumer receiving the combinations.
     * @return
-    *    Null if the sum of the 1s in the binary string does not 
-    *    equal the amount being searched for. If the amount matches, the
-    *    FoundComboResultList is returned with the list of elements
-    *    that added up to the total.
+    *    How the search ended.
     */
-   private FoundComboResultList verifyPossiblility(List<ComboFinderElement> results, String possibilityBString)
+   public ComboSearchOutcome findCombinations(ComboResultConsumer consumer)
    {
-      FoundComboResultList result = new FoundComboResultList();
-      BigDecimal total = BigDecimal.ZERO;
-      // Go through all the characters in the binary string.
-      for (int charIndex = 0; charIndex != possibilityBString.length(); ++charIndex)
+      return findCombinations(maxResults, consumer);
+   }
+   
+   /**
+    * Creates an iterator that finds each combination of elements that 
+    * results in the amount being looked for as it is asked for, in the 
+    * same order {@link #findCombinationsForAmount()} returns them. The 
+    * finder's most results, time limit and cancellation all apply, the 
+    * time limit counting from when the iterator is created. 
+    * 
+    * <br><br>
+    * <i>Note: with the meet in the middle strategy, or when searching in 
+    * parallel, every combination is found when the first is asked for, 
+    * and handed out one at a time from there.</i>
+    * 
+    * @return
+    *    The iterator.
+    */
+   public ComboResultIterator iterateCombinations()
+   {
+      SearchLimits limits = newLimits(maxResults);
+      return new ComboResultIterator(resultSource(scaleElements(), limits), limits);
+   }
+   
+   /**
+    * Creates a stream over the combinations of elements that result in
+    * the amount being looked for, as described for 
+    * {@link #iterateCombinations()}. Short circuiting operations such 
+    * as limit() or findFirst() stop the search as soon as they have what
+    * they need. 
+    * 
+    * @return
+    *    Stream over the combinations.
+    */
+   public Stream<FoundComboResultList> streamCombinations()
+   {
+      return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(iterateCombinations(), Spliterator.ORDERED | Spliterator.NONNULL), false);
+   }
+   
+   /**
+    * Runs the search, handing each combination to the consumer passed.
+    * 
+    * @param maxResults
+    *    The most combinations to hand out, at least 1.
+    * @param consumer
+    *    The consumer receiving the combinations.
+    * @return
+    *    How the search ended.
+    */
+   private ComboSearchOutcome findCombinations(int maxResults, ComboResultConsumer consumer)
+   {
+      SearchLimits limits = newLimits(maxResults);
+      ScaledElements scaled = scaleElements();
+      if (scaled == null || limits.shouldStop())
       {
-         // If the current character equals 1, count the amount towards the total.
-         if (possibilityBString.charAt(charIndex) == '1')
+         return limits.getOutcome();
+      }
+      
+      search(scaled, limits::shouldStop, limits.getMatchesNeeded(), (indexes, count) ->
          {
-            ComboFinderElement ele = results.get(charIndex);
-            
-            result.comboElements.add(ele);
-            total = total.add(ele.getComboAmount());
+            if (!limits.admitResult())
+            {
+               return false;
+            }
+            if (!consumer.accept(scaled.toResult(indexes, count)))
+            {
+               limits.consumerStopped();
+               return false;
+            }
+            return true;
+         });
+      return limits.getOutcome();
+   }
+   
+   /**
+    * Creates the source of combinations for an iterator: a walk of the 
+    * depth first search that stops at each match, or, for the searches 
+    * that find every match at once, a buffer filled when the first 
+    * combination is asked for.
+    * 
+    * @param scaled
+    *    The scaled elements, or null if there are none.
+    * @param limits
+    *    The limits of the search.
+    * @return
+    *    The source, returning null once there are no more combinations.
+    */
+   private Supplier<FoundComboResultList> resultSource(ScaledElements scaled, SearchLimits limits)
+   {
+      if (scaled == null)
+      {
+         return () -> null;
+      }
+      
+      if (scaled.isExact())
+      {
+         ExactSubsetSumSearch.Walk walk = createExactSearch(scaled, limits::shouldStop).walk();
+         return () -> 
+            {
+               int count = walk.nextMatch();
+               return count < 0 ? null : scaled.toResult(walk.indexes(), count);
+            };
+      }
+      
+      if (parallelPool == null && !usesMeetInTheMiddle(scaled))
+      {
+         SubsetSumSearch search = createSearch(scaled);
+         search.setStopCheck(limits::shouldStop);
+         SubsetSumSearch.Walk walk = search.walk();
+         return () -> 
+            {
+               int count = walk.nextMatch();
+               return count < 0 ? null : scaled.toResult(walk.indexes(), count);
+            };
+      }
+      
+      return new Supplier<FoundComboResultList>()
+         {
+            private Iterator<FoundComboResultList> found;
             
-            // The total is greater than the amount to find, no need to keep looking 
-            // at the number. 
-            if (total.compareTo(amountToFind) == 1)
+            @Override
+            public FoundComboResultList get()
             {
-               result = null;
-               break;
+               if (found == null)
+               {
+                  List<FoundComboResultList> results = new ArrayList<>();
+                  search(scaled, limits::shouldStop, limits.getMatchesNeeded(), 
+                        (indexes, count) -> results.add(scaled.toResult(indexes, count)));
+                  found = results.iterator();
+               }
+               return found.hasNext() ? found.next() : null;
             }
-         }
+         };
+   }
+   
+   /**
+    * Creates the limits for a search, starting the clock on the time 
+    * limit.
+    * 
+    * @param maxResults
+    *    The most combinations to hand out.
+    * @return
+    *    The limits.
+    */
+   private SearchLimits newLimits(int maxResults)
+   {
+      return new SearchLimits(maxResults, timeLimitNanos, () -> cancelled);
+   }
+   
+   /**
+    * Finds the combinations of elements whose totals are closest to the 
+    * amount being looked for, within the tolerance. The combinations are
+    * ranked by how far their total is from the amount, then by the 
+    * fewest elements, then in the order 
+    * {@link #findCombinationsForAmount()} returns them. 
+    * 
+    * <br><br>
+    * The best combinations so far are kept in a heap bounded to the 
+    * number asked for, and once it is full the search narrows its window
+    * to the distance of the worst of them, so branches that cannot beat 
+    * it are cut the same way branches that miss an exact amount are. The 
+    * window is not narrowed with the meet in the middle strategy or when 
+    * searching in parallel. The finder's time limit and cancellation 
+    * apply, returning the best found up to then. 
+    * 
+    * @param count
+    *    The number of combinations to return.
+    * @return
+    *    The closest combinations, closest first, at most count long.
+    *    Empty list is returned if no combination is within the tolerance.
+    */
+   public List<FoundComboResultList> findClosestCombinations(int count)
+   {
+      List<FoundComboResultList> results = new ArrayList<>();
+      SearchLimits limits = newLimits(Integer.MAX_VALUE);
+      ScaledElements scaled = scaleElements();
+      if (scaled == null || count < 1 || limits.shouldStop())
+      {
+         return results;
       }
       
-      // Hey, a match, return the list generated when finding the total. 
-      if (total.compareTo(amountToFind) == 0)
+      ClosestCombinations closest;
+      if (parallelPool == null && !usesMeetInTheMiddle(scaled) && !scaled.isExact())
       {
-         return result;
+         SubsetSumSearch search = createSearch(scaled);
+         search.setStopCheck(limits::shouldStop);
+         closest = new ClosestCombinations(scaled, count, search);
+         search.search(closest);
       }
-      // No match, return null.
       else
       {
-         return null;
+         closest = new ClosestCombinations(scaled, count, null);
+         search(scaled, limits::shouldStop, Long.MAX_VALUE, closest);
+      }
+      
+      for (RankedCombination combination : closest.inOrder())
+      {
+         results.add(scaled.toResult(combination.indexes, combination.indexes.length));
       }
+      return results;
    }
    
    /**
-    * Determines all the possible combinations of elements will result in the 
-    * amount being looked for. 
+    * Determines the combinations of elements that result in the amount
+    * being looked for, finding each multiset of amounts only once rather
+    * than once for every choice among elements sharing an amount.
     * 
     * @return
-    *    The list of found combination results from the list of elements
-    *    that add up to the amount we are looking for.  Empty list is returned
-    *    if no combinations are found.
+    *    The grouped combinations, in the order described for
+    *    {@link #findGroupedCombinations(int)}.
     */
-   public List<FoundComboResultList> findCombinationsForAmount()
+   public List<GroupedComboResult> findGroupedCombinations()
    {
-      List<FoundComboResultList> results = new ArrayList<>();
+      return findGroupedCombinations(maxResults);
+   }
+   
+   /**
+    * Determines the first combinations of elements that result in the
+    * amount being looked for, grouping the elements with equal amounts
+    * into buckets and searching on the number of each bucket's elements
+    * taken. Each result stands for every combination
+    * {@link #findCombinationsForAmount()} would return that takes the
+    * same number of elements of each amount, so a list with many equal
+    * amounts, such as a run of identical fees, is searched in a fraction
+    * of the steps. The results come in the same order as the combinations
+    * they stand for, and each can be expanded into those combinations as
+    * needed.
+    * 
+    * <br><br>
+    * The tolerance, netting, combination size limits, time limit and
+    * cancellation all apply. The search always runs on the calling
+    * thread, whatever the strategy.
+    * 
+    * @param maxResults
+    *    The most grouped combinations to return.
+    * @return
+    *    The grouped combinations, at most maxResults long. Empty list is
+    *    returned if no combinations are found.
+    */
+   public List<GroupedComboResult> findGroupedCombinations(int maxResults)
+   {
+      List<GroupedComboResult> results = new ArrayList<>();
+      SearchLimits limits = newLimits(maxResults);
+      ScaledElements scaled = scaleElements();
+      if (scaled == null || maxResults < 1 || limits.shouldStop())
+      {
+         return results;
+      }
+   
+      // Sorted largest first, so equal amounts sit next to each other.
+      int n = scaled.elements.size();
+      int[] starts = new int[n + 1];
+      int[] bucketOf = new int[n];
+      int buckets = 0;
+      for (int i = 0; i != n; ++i)
+      {
+         if (i == 0 || !scaled.sameAmount(i, i - 1))
+         {
+            starts[buckets++] = i;
+         }
+         bucketOf[i] = buckets - 1;
+      }
+      starts[buckets] = n;
+      
+      MultisetSearch.MultisetVisitor visitor = (bucketIndexes, copies, count) ->
+         {
+            if (!limits.admitResult())
+            {
+               return false;
+            }
+            List<ComboAmountGroup> groups = new ArrayList<>(count);
+            for (int i = 0; i != count; ++i)
+            {
+               int b = bucketIndexes[i];
+               List<ComboFinderElement> elements = scaled.elements.subList(starts[b], starts[b + 1]);
+               groups.add(new ComboAmountGroup(elements.get(0).getComboAmount(), copies[i], elements));
+            }
+            results.add(new GroupedComboResult(groups));
+            return true;
+         };
+      
+      if (scaled.isExact())
+      {
+         // Amounts too far apart in size for the multiset search: each 
+         // multiset is the combination taking the first elements of each
+         // bucket it uses.
+         int[] bucketIndexes = new int[n];
+         int[] copies = new int[n];
+         search(scaled, limits::shouldStop, Long.MAX_VALUE, (indexes, count) ->
+            {
+               int groups = 0;
+               for (int i = 0; i != count; ++i)
+               {
+                  int b = bucketOf[indexes[i]];
+                  if (groups > 0 && bucketIndexes[groups - 1] == b)
+                  {
+                     if (indexes[i] != indexes[i - 1] + 1)
+                     {
+                        return true;
+                     }
+                     ++copies[groups - 1];
+                  }
+                  else if (indexes[i] != starts[b])
+                  {
+                     return true;
+                  }
+                  else
+                  {
+                     bucketIndexes[groups] = b;
+                     copies[groups++] = 1;
+                  }
+               }
+               return visitor.found(bucketIndexes, copies, groups);
+            });
+         return results;
+      }
+   
+      long[] amounts = new long[buckets];
+      int[] available = new int[buckets];
+      for (int b = 0; b != buckets; ++b)
+      {
+         amounts[b] = scaled.amounts[starts[b]];
+         available[b] = starts[b + 1] - starts[b];
+      }
+   
+      MultisetSearch search = new MultisetSearch(amounts, available, scaled.minTotal, scaled.maxTotal);
+      search.setStopCheck(limits::shouldStop);
+      search.setSizeLimits(minElements, maxElements);
+      if (netting)
+      {
+         search.allowNetting();
+      }
+      search.search(visitor);
+      return results;
+   }
+   
+   /**
+    * Checks whether any combination of elements results in the amount 
+    * being looked for. 
+    * 
+    * @return
+    *    True if at least one combination adds up to the amount.
+    */
+   public boolean hasCombination()
+   {
+      ScaledElements scaled = scaleElements();
+      if (scaled == null)
+      {
+         return false;
+      }
+      if (scaled.isExact())
+      {
+         return !search(scaled, null, 1, (indexes, count) -> false);
+      }
+      
+      if (answersFromTable() 
+            && canUseTable(scaled, ReachabilityTable.estimateBytes(scaled.amounts.length, scaled.maxTotal)))
+      {
+         return ReachabilityTable.build(scaled.amounts, scaled.maxTotal).canReachAny(0, scaled.minTotal, scaled.maxTotal);
+      }
+      
+      // Stops at the first match, so gains nothing from gathering every 
+      // combination in parallel.
+      if (!usesMeetInTheMiddle(scaled))
+      {
+         return !createSearch(scaled).search((indexes, count) -> false);
+      }
+      return !search(scaled, null, 1, (indexes, count) -> false);
+   }
+   
+   /**
+    * Counts the combinations of elements that result in the amount being 
+    * looked for, without building each combination. 
+    * 
+    * @return
+    *    The number of combinations, the same as the size of the list 
+    *    {@link #findCombinationsForAmount()} would return, or 
+    *    Long.MAX_VALUE if there are at least that many.
+    */
+   public long countCombinations()
+   {
+      ScaledElements scaled = scaleElements();
+      if (scaled == null)
+      {
+         return 0;
+      }
+      
+      if (!scaled.isExact() && answersFromTable() 
+            && canUseTable(scaled, ReachabilityTable.estimateCountBytes(scaled.maxTotal)))
+      {
+         return ReachabilityTable.count(scaled.amounts, scaled.minTotal, scaled.maxTotal);
+      }
+      
+      if (usesMeetInTheMiddle(scaled))
+      {
+         return createMeetInTheMiddle(scaled, null).count();
+      }
+      if (parallelPool != null && !scaled.isExact())
+      {
+         return new ParallelSubsetSumSearch(createSearch(scaled), parallelPool).count();
+      }
+      
+      long[] count = { 0 };
+      search(scaled, null, Long.MAX_VALUE, (indexes, size) ->
+         {
+            count[0] = SubsetSumSearch.saturatedAdd(count[0], 1);
+            return true;
+         });
+      return count[0];
+   }
+   
+   /**
+    * Runs the search with the finder's strategy, reporting each 
+    * combination found to the visitor passed. 
+    * 
+    * @param scaled
+    *    The scaled elements.
+    * @param stopCheck
+    *    Called every so often to see if the search should stop, or null
+    *    to never stop early.
+    * @param maxMatches
+    *    The most matches the visitor can take, so the searches that find 
+    *    every match at once keep no more than that many.
+    * @param visitor
+    *    The visitor receiving the matches.
+    * @return
+    *    True if the search ran to the end, false if the visitor or the 
+    *    stop check stopped it.
+    */
+   private boolean search(ScaledElements scaled, BooleanSupplier stopCheck, long maxMatches, 
+         SubsetSumSearch.MatchVisitor visitor)
+   {
+      if (scaled.isExact())
+      {
+         return createExactSearch(scaled, stopCheck).search(visitor);
+      }
       
+      int n = scaled.amounts.length;
+      if (usesMeetInTheMiddle(scaled))
+      {
+         long[] masks = createMeetInTheMiddle(scaled, stopCheck).findMasks((int) Math.min(maxMatches, Integer.MAX_VALUE));
+         int[] indexes = new int[n];
+         for (long mask : masks)
+         {
+            int count = 0;
+            for (int i = 0; i != n; ++i)
+            {
+               if ((mask & (1L << (n - 1 - i))) != 0)
+               {
+                  indexes[count++] = i;
+               }
+            }
+            if (!visitor.found(indexes, count))
+            {
+               return false;
+            }
+         }
+         return true;
+      }
+      
+      SubsetSumSearch search = createSearch(scaled);
+      search.setStopCheck(stopCheck);
+      if (parallelPool != null)
+      {
+         for (int[] combination : new ParallelSubsetSumSearch(search, parallelPool).collect(maxMatches))
+         {
+            if (!visitor.found(combination, combination.length))
+            {
+               return false;
+            }
+         }
+         return true;
+      }
+      return search.search(visitor);
+   }
+   
+   /**
+    * Creates the search over the elements' amounts as they are, for 
+    * amounts that cannot be held as longs.
+    * 
+    * @param scaled
+    *    The elements, held as they are.
+    * @param stopCheck
+    *    Called every so often to see if the search should stop, or null
+    *    to never stop early.
+    * @return
+    *    The search.
+    */
+   private ExactSubsetSumSearch createExactSearch(ScaledElements scaled, BooleanSupplier stopCheck)
+   {
+      ExactSubsetSumSearch search = new ExactSubsetSumSearch(scaled.exactAmounts, 
+            scaled.exactTarget.subtract(scaled.exactTolerance), scaled.exactTarget.add(scaled.exactTolerance));
+      search.setStopCheck(stopCheck);
+      search.setSizeLimits(minElements, maxElements);
+      if (netting)
+      {
+         search.allowNetting();
+      }
+      return search;
+   }
+   
+   /**
+    * Creates the meet in the middle search for the scaled elements.
+    * 
+    * @param scaled
+    *    The scaled elements, at most 
+    *    {@link MeetInTheMiddleSearch#MAX_ELEMENTS} of them.
+    * @param stopCheck
+    *    Called every so often to see if the search should stop, or null
+    *    to never stop early.
+    * @return
+    *    The search.
+    */
+   private MeetInTheMiddleSearch createMeetInTheMiddle(ScaledElements scaled, BooleanSupplier stopCheck)
+   {
+      MeetInTheMiddleSearch meetInTheMiddle = new MeetInTheMiddleSearch(scaled.amounts, scaled.minTotal, scaled.maxTotal, 
+            maxTableBytes);
+      meetInTheMiddle.setStopCheck(stopCheck);
+      meetInTheMiddle.setSizeLimits(minElements, maxElements);
+      if (netting)
+      {
+         meetInTheMiddle.allowNetting();
+      }
+      return meetInTheMiddle;
+   }
+   
+   /**
+    * Creates the depth first search for the scaled elements, steered by
+    * the dynamic programming table when the strategy allows it and it 
+    * fits in the memory limit.
+    * 
+    * @param scaled
+    *    The scaled elements.
+    * @return
+    *    The search.
+    */
+   private SubsetSumSearch createSearch(ScaledElements scaled)
+   {
+      ReachabilityTable table = null;
+      if (usesTable() && canUseTable(scaled, ReachabilityTable.estimateBytes(scaled.amounts.length, scaled.maxTotal)))
+      {
+         table = ReachabilityTable.build(scaled.amounts, scaled.maxTotal);
+      }
+      SubsetSumSearch search = new SubsetSumSearch(scaled.amounts, scaled.minTotal, scaled.maxTotal, table);
+      search.setSizeLimits(minElements, maxElements);
+      if (netting)
+      {
+         search.allowNetting();
+      }
+      return search;
+   }
+   
+   /**
+    * @param scaled
+    *    The scaled elements.
+    * @return
+    *    True if the meet in the middle search is used for the elements.
+    */
+   private boolean usesMeetInTheMiddle(ScaledElements scaled)
+   {
+      return strategy == ComboFinderStrategy.MEET_IN_THE_MIDDLE && !scaled.isExact()
+            && scaled.amounts.length <= MeetInTheMiddleSearch.MAX_ELEMENTS;
+   }
+   
+   /**
+    * @return
+    *    True if whether a combination exists and how many there are can 
+    *    be read straight from the dynamic programming table, which only 
+    *    records totals, so there must be no size limits.
+    */
+   private boolean answersFromTable()
+   {
+      return usesTable() && minElements == 1 && maxElements == Integer.MAX_VALUE;
+   }
+   
+   /**
+    * @return
+    *    True if the strategy allows the dynamic programming table.
+    */
+   private boolean usesTable()
+   {
+      return strategy == ComboFinderStrategy.AUTOMATIC || strategy == ComboFinderStrategy.DYNAMIC_TABLE;
+   }
+   
+   /**
+    * Filters and sorts the elements, and converts their amounts and the
+    * amount to find into whole numbers at a common scale. 
+    * 
+    * @return
+    *    The scaled elements, or null if no element could be part of a 
+    *    combination.
+    */
+   private ScaledElements scaleElements()
+   {
       // Filter out any elements whose amount is higher than the amount we are looking for
       List<ComboFinderElement> filteredResults = filterListOfElements();
       
-      // If there is nothing to access, return the empty result set.
+      // If there is nothing to access, there is nothing to search.
       if (filteredResults.isEmpty())
       {
-         return results;
+         return null;
+      }
+      
+      // Convert everything to whole numbers once, so the search itself
+      // only ever adds and compares primitive longs.
+      int scale = commonScale(filteredResults);
+      if (scale == Integer.MIN_VALUE)
+      {
+         // Every amount is zero.
+         scale = 0;
+      }
+      BigInteger target = toScaled(amountToFind, scale);
+      BigInteger scaledTolerance = toScaled(tolerance, scale);
+      BigInteger bound = target.abs().add(scaledTolerance);
+      long[] amounts = new long[filteredResults.size()];
+      for (int i = 0; i != amounts.length; ++i)
+      {
+         BigInteger amount = toScaled(filteredResults.get(i).getComboAmount(), scale);
+         bound = bound.add(amount.abs());
+         if (bound.bitLength() > MAX_SCALED_BITS)
+         {
+            // Too far apart in size to hold as longs, search them as they are.
+            return new ScaledElements(filteredResults, amountToFind, tolerance);
+         }
+         amounts[i] = amount.longValue();
+      }
+      return new ScaledElements(filteredResults, amounts, target.longValue(), scaledTolerance.longValue());
+   }
+   
+   /**
+    * Checks whether the dynamic programming table can be used: every 
+    * amount, and the whole window of totals, must be positive, and the 
+    * memory needed must be within the limit. 
+    * 
+    * @param scaled
+    *    The scaled elements.
+    * @param bytesNeeded
+    *    The memory the table would use.
+    * @return
+    *    True if the table can be used.
+    */
+   private boolean canUseTable(ScaledElements scaled, long bytesNeeded)
+   {
+      // Sorted largest first, so the last amount is the smallest.
+      return scaled.amounts[scaled.amounts.length - 1] > 0 && scaled.minTotal > 0 && bytesNeeded <= maxTableBytes;
+   }
+   
+   /**
+    * The filtered, sorted elements along with their amounts, and the 
+    * amount to find and the window of totals that match, as whole 
+    * numbers at a common scale. When the amounts cannot be held as longs
+    * at a common scale they are held as they are instead, and searched
+    * with the {@link ExactSubsetSumSearch}.
+    */
+   private static final class ScaledElements
+   {
+      private final List<ComboFinderElement> elements;
+      private final long[] amounts;
+      private final long target;
+      private final long minTotal;
+      private final long maxTotal;
+      private final BigDecimal[] exactAmounts;
+      private final BigDecimal exactTarget;
+      private final BigDecimal exactTolerance;
+      
+      /**
+       * Constructor, setting the scaled elements.
+       * 
+       * @param elements
+       *    The filtered, sorted elements.
+       * @param amounts
+       *    The scaled amount of each element.
+       * @param target
+       *    The scaled amount to find.
+       * @param tolerance
+       *    The scaled tolerance.
+       */
+      private ScaledElements(List<ComboFinderElement> elements, long[] amounts, long target, long tolerance)
+      {
+         this.elements = elements;
+         this.amounts = amounts;
+         this.target = target;
+         this.minTotal = target - tolerance;
+         this.maxTotal = target + tolerance;
+         this.exactAmounts = null;
+         this.exactTarget = null;
+         this.exactTolerance = null;
+      }
+      
+      /**
+       * Constructor, holding the elements' amounts as they are.
+       * 
+       * @param elements
+       *    The filtered, sorted elements.
+       * @param target
+       *    The amount to find.
+       * @param tolerance
+       *    The tolerance.
+       */
+      private ScaledElements(List<ComboFinderElement> elements, BigDecimal target, BigDecimal tolerance)
+      {
+         this.elements = elements;
+         this.amounts = null;
+         this.target = 0;
+         this.minTotal = 0;
+         this.maxTotal = 0;
+         this.exactAmounts = new BigDecimal[elements.size()];
+         for (int i = 0; i != exactAmounts.length; ++i)
+         {
+            exactAmounts[i] = elements.get(i).getComboAmount();
+         }
+         this.exactTarget = target;
+         this.exactTolerance = tolerance;
       }
       
-      // Determine the number of combination possibilities that need to be looked at (2 to 
-      // the power of the filtered element count.
-      BigInteger possibilityCount = new BigInteger("2").pow(filteredResults.size());
+      /**
+       * @return
+       *    True if the amounts are held as they are rather than as longs.
+       */
+      private boolean isExact()
+      {
+         return exactAmounts != null;
+      }
       
-      // Start at 1, as 0 will never match.
-      BigInteger possibilityIndex = new BigInteger("1");
+      /**
+       * @param first
+       *    An element's index.
+       * @param second
+       *    Another element's index.
+       * @return
+       *    True if the two elements' amounts are equal.
+       */
+      private boolean sameAmount(int first, int second)
+      {
+         return isExact() ? exactAmounts[first].compareTo(exactAmounts[second]) == 0 
+               : amounts[first] == amounts[second];
+      }
       
-      while (possibilityIndex.compareTo(possibilityCount) < 0)
+      /**
+       * @param indexes
+       *    The indexes of a combination's elements.
+       * @param count
+       *    The number of elements in the combination.
+       * @return
+       *    How far the combination's total is from the amount to find, 
+       *    at the common scale unless the amounts are held as they are.
+       */
+      private BigDecimal distance(int[] indexes, int count)
       {
-         String bString = getBinaryString(possibilityIndex, filteredResults.size());
-         FoundComboResultList result = verifyPossiblility(filteredResults, bString);
+         if (isExact())
+         {
+            BigDecimal total = BigDecimal.ZERO;
+            for (int i = 0; i != count; ++i)
+            {
+               total = total.add(exactAmounts[indexes[i]]);
+            }
+            return total.subtract(exactTarget).abs();
+         }
+         long total = 0;
+         for (int i = 0; i != count; ++i)
+         {
+            total += amounts[indexes[i]];
+         }
+         return BigDecimal.valueOf(Math.abs(total - target));
+      }
+      
+      /**
+       * Creates the result for a combination found by the search. 
+       * 
+       * @param indexes
+       *    The indexes of the combination's elements.
+       * @param count
+       *    The number of elements in the combination.
+       * @return
+       *    The result.
+       */
+      private FoundComboResultList toResult(int[] indexes, int count)
+      {
+         FoundComboResultList result = new FoundComboResultList();
+         for (int i = 0; i != count; ++i)
+         {
+            result.comboElements.add(elements.get(indexes[i]));
+         }
+         return result;
+      }
+   }
+   
+   /**
+    * A combination found by the search for the closest combinations, with
+    * what it is ranked on, best first.
+    */
+   private static final class RankedCombination implements Comparable<RankedCombination>
+   {
+      private final int[] indexes;
+      private final BigDecimal distance;
+      private final long sequence;
+      
+      /**
+       * Constructor, setting the combination and its rank.
+       * 
+       * @param indexes
+       *    The indexes of the combination's elements.
+       * @param distance
+       *    How far the combination's total is from the target.
+       * @param sequence
+       *    The position the search found the combination in.
+       */
+      private RankedCombination(int[] indexes, BigDecimal distance, long sequence)
+      {
+         this.indexes = indexes;
+         this.distance = distance;
+         this.sequence = sequence;
+      }
+      
+      @Override
+      public int compareTo(RankedCombination other)
+      {
+         int byDistance = distance.compareTo(other.distance);
+         if (byDistance != 0)
+         {
+            return byDistance;
+         }
+         if (indexes.length != other.indexes.length)
+         {
+            return Integer.compare(indexes.length, other.indexes.length);
+         }
+         return Long.compare(sequence, other.sequence);
+      }
+   }
+   
+   /**
+    * Keeps the best combinations found by a search in a heap bounded to 
+    * the number wanted, worst at the head so it can be replaced, and 
+    * narrows the search's window to the worst of them once the heap is 
+    * full.
+    */
+   private static final class ClosestCombinations implements SubsetSumSearch.MatchVisitor
+   {
+      private final ScaledElements scaled;
+      private final int count;
+      private final SubsetSumSearch search;
+      private final PriorityQueue<RankedCombination> best;
+      private long found = 0;
+      
+      /**
+       * Constructor, setting the number of combinations to keep.
+       * 
+       * @param scaled
+       *    The scaled elements.
+       * @param count
+       *    The number of combinations to keep.
+       * @param search
+       *    The search to narrow, or null to leave the window as it is.
+       */
+      private ClosestCombinations(ScaledElements scaled, int count, SubsetSumSearch search)
+      {
+         this.scaled = scaled;
+         this.count = count;
+         this.search = search;
+         this.best = new PriorityQueue<>(Math.min(count, 1024) + 1, Collections.reverseOrder());
+      }
+      
+      @Override
+      public boolean found(int[] indexes, int size)
+      {
+         RankedCombination combination = new RankedCombination(Arrays.copyOf(indexes, size), 
+               scaled.distance(indexes, size), found++);
          
-         if (result != null)
+         if (best.size() < count)
          {
-            results.add(result);
+            best.add(combination);
+         }
+         else if (combination.compareTo(best.peek()) < 0)
+         {
+            best.poll();
+            best.add(combination);
          }
          
-         // Increment the index by one. 
-         possibilityIndex = possibilityIndex.add(BigInteger.ONE);
+         if (search != null && best.size() == count)
+         {
+            long worst = best.peek().distance.longValue();
+            search.narrow(scaled.target - worst, scaled.target + worst);
+         }
+         return true;
       }
       
-      return results;
+      /**
+       * @return
+       *    The combinations kept, best first.
+       */
+      private List<RankedCombination> inOrder()
+      {
+         List<RankedCombination> ranked = new ArrayList<>(best);
+         Collections.sort(ranked);
+         return ranked;
+      }
    }
 }
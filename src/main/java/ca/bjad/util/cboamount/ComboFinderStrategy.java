@@ -0,0 +1,45 @@
+package ca.bjad.util.cboamount;
+
+/**
+ * The ways the ComboFinder can search for combinations. Every strategy
+ * finds the same combinations in the same order, they only differ in
+ * how long they take and how much memory they use on a given input.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public enum ComboFinderStrategy
+{
+   /**
+    * Uses the dynamic programming table when every amount is positive
+    * and the table fits in the memory limit, otherwise the depth first
+    * search.
+    */
+   AUTOMATIC,
+
+   /**
+    * Depth first search over the sorted amounts, cutting branches that
+    * go over or can no longer reach the target. Best when the target is
+    * small next to the amounts, so few elements fit in a combination.
+    */
+   DEPTH_FIRST,
+
+   /**
+    * Depth first search steered by a table of the totals each tail of
+    * the sorted amounts can make, so no dead branch is visited. Needs
+    * every amount to be positive and memory in proportion to the number
+    * of elements times the target in its smallest unit; falls back to
+    * the depth first search when either is not the case.
+    */
+   DYNAMIC_TABLE,
+
+   /**
+    * Meet in the middle: the sorted subset sums of two halves of the
+    * elements are joined to find the pairs that make the target, taking
+    * time and memory in proportion to 2 to the power of half the number
+    * of elements, whatever the target. For 40 to 60 elements with a
+    * large target. Limited to 62 elements; falls back to the depth
+    * first search beyond that.
+    */
+   MEET_IN_THE_MIDDLE
+}
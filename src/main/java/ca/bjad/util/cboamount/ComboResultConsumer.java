@@ -0,0 +1,25 @@
+package ca.bjad.util.cboamount;
+
+/**
+ * Receives each combination from
+ * {@link ComboFinder#findCombinations(ComboResultConsumer)} as soon as
+ * it is found, so the combinations never have to be held in a list.
+ *
+ * @author
+ *    Ben Dougall
+ */
+@FunctionalInterface
+public interface ComboResultConsumer
+{
+   /**
+    * Called for each combination found, in the order
+    * {@link ComboFinder#findCombinationsForAmount()} returns them.
+    *
+    * @param result
+    *    The combination.
+    * @return
+    *    True to keep searching, false once the consumer has enough,
+    *    which stops the search straight away.
+    */
+   public boolean accept(FoundComboResultList result);
+}
@@ -0,0 +1,92 @@
+package ca.bjad.util.cboamount;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+/**
+ * Iterator that runs a ComboFinder search a step at a time, finding
+ * each combination as it is asked for rather than finding them all up
+ * front, so only the combinations read are ever built and a caller
+ * that stops reading stops the search.
+ *
+ * <br><br>
+ * Once the iterator has run out, {@link #getOutcome()} tells whether
+ * the search went through every combination or was cut short by the
+ * finder's most results, time limit or cancellation.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class ComboResultIterator implements Iterator<FoundComboResultList>
+{
+   private final Supplier<FoundComboResultList> source;
+   private final SearchLimits                   limits;
+
+   private FoundComboResultList nextResult = null;
+   private boolean              finished   = false;
+
+   /**
+    * Constructor, setting where the combinations come from and the
+    * limits of the search.
+    *
+    * @param source
+    *    Finds the next combination each time it is called, returning
+    *    null when there are no more or a limit stopped the search.
+    * @param limits
+    *    The limits of the search.
+    */
+   ComboResultIterator(Supplier<FoundComboResultList> source, SearchLimits limits)
+   {
+      this.source = source;
+      this.limits = limits;
+   }
+
+   /**
+    * Runs the search on to the next combination if the current one has
+    * already been handed out.
+    */
+   @Override
+   public boolean hasNext()
+   {
+      if (nextResult == null && !finished)
+      {
+         nextResult = limits.shouldStop() ? null : source.get();
+         if (nextResult != null && !limits.admitResult())
+         {
+            nextResult = null;
+         }
+         finished = nextResult == null;
+      }
+      return nextResult != null;
+   }
+
+   /**
+    * Hands out the current combination.
+    */
+   @Override
+   public FoundComboResultList next()
+   {
+      if (!hasNext())
+      {
+         throw new NoSuchElementException();
+      }
+
+      FoundComboResultList result = nextResult;
+      nextResult = null;
+      return result;
+   }
+
+   /**
+    * Gets how the search ended. Until the iterator has run out, the
+    * caller has stopped reading before the end, which is reported as
+    * {@link ComboSearchOutcome#STOPPED_BY_CONSUMER}.
+    *
+    * @return
+    *    How the search ended.
+    */
+   public ComboSearchOutcome getOutcome()
+   {
+      return finished ? limits.getOutcome() : ComboSearchOutcome.STOPPED_BY_CONSUMER;
+   }
+}
@@ -0,0 +1,48 @@
+package ca.bjad.util.cboamount;
+
+/**
+ * How a search for combinations ended: either it ran through every
+ * combination, or it was cut short and there may be more matches than
+ * were returned.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public enum ComboSearchOutcome
+{
+   /**
+    * The search ran to the end, every match was returned.
+    */
+   COMPLETED,
+
+   /**
+    * The most results asked for were returned and the search found
+    * another match past them.
+    */
+   MAX_RESULTS,
+
+   /**
+    * The consumer of the results said it had enough, or stopped reading
+    * them.
+    */
+   STOPPED_BY_CONSUMER,
+
+   /**
+    * The search's time limit passed.
+    */
+   TIME_LIMIT,
+
+   /**
+    * The search was cancelled with {@link ComboFinder#cancel()}.
+    */
+   CANCELLED;
+
+   /**
+    * @return
+    *    True if the search ran to the end, false if it was cut short.
+    */
+   public boolean isComplete()
+   {
+      return this == COMPLETED;
+   }
+}
@@ -0,0 +1,269 @@
+package ca.bjad.util.cboamount;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Depth first subset sum search over the amounts as they are, used by
+ * the ComboFinder when the amounts cannot be held as longs at a common
+ * scale, e.g. an amount with dozens of decimal places next to one with
+ * thirty digits before the point.
+ *
+ * <br><br>
+ * Finds the same combinations in the same order as the
+ * {@link SubsetSumSearch}, following the same rules: the amounts are
+ * sorted largest first, the running total must stay at or under the top
+ * of the window unless netting, and a combination matches once its
+ * total is in the window and its size within the limits. Each element
+ * is tried in turn rather than found with a binary search, and a branch
+ * is cut once the positive amounts after it cannot bring the total up
+ * to the window, or the negative amounts after it cannot bring it back
+ * down into it.
+ *
+ * @author
+ *    Ben Dougall
+ */
+final class ExactSubsetSumSearch
+{
+   private final BigDecimal[] amounts;
+   private final BigDecimal   minTotal;
+   private final BigDecimal   maxTotal;
+
+   /**
+    * Sum of every positive amount from each index on, with one more
+    * entry for the empty end.
+    */
+   private final BigDecimal[] positiveFrom;
+
+   /**
+    * Sum of every negative amount from each index on, with one more
+    * entry for the empty end.
+    */
+   private final BigDecimal[] negativeFrom;
+
+   private BooleanSupplier stopCheck;
+   private boolean         netting = false;
+   private int             minSize = 1;
+   private int             maxSize = Integer.MAX_VALUE;
+
+   /**
+    * Constructor, setting the amounts to search through and the window
+    * of totals to find.
+    *
+    * @param amounts
+    *    The amounts, sorted largest first.
+    * @param minTotal
+    *    The lowest total that matches.
+    * @param maxTotal
+    *    The highest total that matches.
+    */
+   ExactSubsetSumSearch(BigDecimal[] amounts, BigDecimal minTotal, BigDecimal maxTotal)
+   {
+      this.amounts = amounts;
+      this.minTotal = minTotal;
+      this.maxTotal = maxTotal;
+      this.positiveFrom = new BigDecimal[amounts.length + 1];
+      this.negativeFrom = new BigDecimal[amounts.length + 1];
+
+      positiveFrom[amounts.length] = BigDecimal.ZERO;
+      negativeFrom[amounts.length] = BigDecimal.ZERO;
+      for (int i = amounts.length - 1; i >= 0; --i)
+      {
+         boolean positive = amounts[i].signum() > 0;
+         positiveFrom[i] = positive ? positiveFrom[i + 1].add(amounts[i]) : positiveFrom[i + 1];
+         negativeFrom[i] = positive ? negativeFrom[i + 1] : negativeFrom[i + 1].add(amounts[i]);
+      }
+   }
+
+   /**
+    * Sets a check the search calls every so often, so a long search can
+    * be stopped from outside.
+    *
+    * @param stopCheck
+    *    Returns true when the search should stop, or null to never stop
+    *    early.
+    */
+   void setStopCheck(BooleanSupplier stopCheck)
+   {
+      this.stopCheck = stopCheck;
+   }
+
+   /**
+    * Lets the running total go over the top of the window while the
+    * negative amounts still to come can bring it back down.
+    */
+   void allowNetting()
+   {
+      this.netting = true;
+   }
+
+   /**
+    * Limits the number of elements in the combinations found.
+    *
+    * @param minSize
+    *    The fewest elements in a combination, at least 1.
+    * @param maxSize
+    *    The most elements in a combination.
+    */
+   void setSizeLimits(int minSize, int maxSize)
+   {
+      this.minSize = Math.max(1, minSize);
+      this.maxSize = maxSize;
+   }
+
+   /**
+    * Runs the search, reporting every matching combination to the
+    * visitor passed.
+    *
+    * @param visitor
+    *    The visitor receiving the matches.
+    * @return
+    *    True if the search ran to the end, false if the visitor or the
+    *    stop check stopped it.
+    */
+   boolean search(SubsetSumSearch.MatchVisitor visitor)
+   {
+      Walk walk = walk();
+      for (int count = walk.nextMatch(); count >= 0; count = walk.nextMatch())
+      {
+         if (!visitor.found(walk.indexes(), count))
+         {
+            return false;
+         }
+      }
+      return !walk.isStopped();
+   }
+
+   /**
+    * Starts a walk over the whole search tree.
+    *
+    * @return
+    *    The walk, positioned before the first match.
+    */
+   Walk walk()
+   {
+      return new Walk();
+   }
+
+   /**
+    * One run through the search tree, holding the depth first search's
+    * stack so it can stop at each match and carry on from there when
+    * asked for the next.
+    */
+   final class Walk
+   {
+      // One frame per element added: the total so far and the next index
+      // to try, tried from the highest index down to match the order of
+      // the scaled search.
+      private final int[]        chosen;
+      private final BigDecimal[] sums;
+      private final int[]        next;
+
+      private int     depth   = 0;
+      private boolean stopped = false;
+      private long    steps   = 0;
+
+      /**
+       * Constructor, positioning the walk before the first match.
+       */
+      private Walk()
+      {
+         final int n = amounts.length;
+         this.chosen = new int[n];
+         this.sums = new BigDecimal[n + 1];
+         this.next = new int[n + 1];
+         sums[0] = BigDecimal.ZERO;
+         next[0] = n - 1;
+      }
+
+      /**
+       * Moves on to the next match.
+       *
+       * @return
+       *    The number of elements in the match, their indexes held in
+       *    {@link #indexes()} until the next call, or -1 if there are no
+       *    more matches or the stop check stopped the walk.
+       */
+      int nextMatch()
+      {
+         while (depth >= 0)
+         {
+            if (stopCheck != null && (steps++ & SubsetSumSearch.STOP_CHECK_MASK) == 0 && stopCheck.getAsBoolean())
+            {
+               stopped = true;
+               depth = -1;
+               break;
+            }
+            int low = depth == 0 ? 0 : chosen[depth - 1] + 1;
+            if (depth >= maxSize || next[depth] < low)
+            {
+               --depth;
+               continue;
+            }
+
+            int index = next[depth]--;
+            BigDecimal sum = sums[depth].add(amounts[index]);
+            if (!canReach(index, sum, depth + 1))
+            {
+               continue;
+            }
+            chosen[depth] = index;
+            ++depth;
+
+            sums[depth] = sum;
+            next[depth] = amounts.length - 1;
+            if (depth >= minSize && sum.compareTo(minTotal) >= 0 && sum.compareTo(maxTotal) <= 0)
+            {
+               return depth;
+            }
+         }
+         return -1;
+      }
+
+      /**
+       * @return
+       *    The indexes of the last match, in ascending order. The array
+       *    is reused, only as many entries as the last call to
+       *    {@link #nextMatch()} returned belong to the match.
+       */
+      int[] indexes()
+      {
+         return chosen;
+      }
+
+      /**
+       * @return
+       *    True if the stop check ended the walk before it finished.
+       */
+      boolean isStopped()
+      {
+         return stopped;
+      }
+   }
+
+   /**
+    * Checks whether the branch that has just added the element at the
+    * index passed keeps to the running total rule and can still end in
+    * a match.
+    *
+    * @param index
+    *    The element's index.
+    * @param sum
+    *    The total with the element added.
+    * @param size
+    *    The number of elements with the element added.
+    * @return
+    *    True if the branch is worth walking.
+    */
+   private boolean canReach(int index, BigDecimal sum, int size)
+   {
+      if (!netting && sum.compareTo(maxTotal) > 0)
+      {
+         return false;
+      }
+      return sum.add(positiveFrom[index + 1]).compareTo(minTotal) >= 0
+            && sum.add(negativeFrom[index + 1]).compareTo(maxTotal) <= 0
+            && size - 1 + amounts.length - index >= minSize;
+   }
+}
@@ -0,0 +1,213 @@
+package ca.bjad.util.cboamount;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A combination found by {@link ComboFinder#findGroupedCombinations()}:
+ * a multiset of amounts standing for every combination that takes the
+ * same number of elements of each amount. The combination's elements
+ * are its canonical choice, the first elements of each amount in the
+ * order the finder sorted them, and {@link #expand()} goes through every
+ * concrete choice of elements as they are asked for.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class GroupedComboResult extends FoundComboResultList
+{
+   private static final BigInteger MAX_COUNT = BigInteger.valueOf(Long.MAX_VALUE);
+
+   private final List<ComboAmountGroup> groups;
+
+   /**
+    * Constructor, setting the amounts the combination takes.
+    *
+    * @param groups
+    *    Each amount, largest first, with the number of elements taken.
+    */
+   GroupedComboResult(List<ComboAmountGroup> groups)
+   {
+      this.groups = Collections.unmodifiableList(groups);
+      for (ComboAmountGroup group : groups)
+      {
+         comboElements.addAll(group.getElements().subList(0, group.getCount()));
+      }
+   }
+
+   /**
+    * Gets the amounts the combination takes.
+    *
+    * @return
+    *    Each amount, largest first, unmodifiable.
+    */
+   public List<ComboAmountGroup> getGroups()
+   {
+      return groups;
+   }
+
+   /**
+    * Counts the concrete combinations of elements this result stands
+    * for, the product over its amounts of the ways to choose the number
+    * of elements taken from those having the amount.
+    *
+    * @return
+    *    The number of combinations, or Long.MAX_VALUE if there are at
+    *    least that many.
+    */
+   public long getCombinationCount()
+   {
+      BigInteger count = BigInteger.ONE;
+      for (ComboAmountGroup group : groups)
+      {
+         count = count.multiply(choose(group.getElements().size(), group.getCount()));
+         if (count.compareTo(MAX_COUNT) >= 0)
+         {
+            return Long.MAX_VALUE;
+         }
+      }
+      return count.longValue();
+   }
+
+   /**
+    * Creates an iterator over every concrete combination of elements this
+    * result stands for, each built only when asked for. The first is the
+    * canonical choice, and from there the choice within the last amount
+    * changes fastest.
+    *
+    * @return
+    *    The iterator.
+    */
+   public Iterator<FoundComboResultList> expand()
+   {
+      return new Iterator<FoundComboResultList>()
+         {
+            // The positions chosen within each group, null once every
+            // choice has been handed out.
+            private int[][] picks = firstPicks();
+
+            @Override
+            public boolean hasNext()
+            {
+               return picks != null;
+            }
+
+            @Override
+            public FoundComboResultList next()
+            {
+               if (picks == null)
+               {
+                  throw new NoSuchElementException();
+               }
+
+               FoundComboResultList result = new FoundComboResultList();
+               for (int g = 0; g != picks.length; ++g)
+               {
+                  List<ComboFinderElement> elements = groups.get(g).getElements();
+                  for (int position : picks[g])
+                  {
+                     result.comboElements.add(elements.get(position));
+                  }
+               }
+               advance();
+               return result;
+            }
+
+            /**
+             * Moves on to the next choice, the last group's choice first,
+             * starting a group over when it has run through its choices.
+             */
+            private void advance()
+            {
+               for (int g = picks.length - 1; g >= 0; --g)
+               {
+                  if (nextChoice(picks[g], groups.get(g).getElements().size()))
+                  {
+                     return;
+                  }
+                  for (int i = 0; i != picks[g].length; ++i)
+                  {
+                     picks[g][i] = i;
+                  }
+               }
+               picks = null;
+            }
+         };
+   }
+
+   /**
+    * Creates the canonical choice of positions, the first ones of each
+    * group.
+    *
+    * @return
+    *    The positions chosen within each group.
+    */
+   private int[][] firstPicks()
+   {
+      int[][] picks = new int[groups.size()][];
+      for (int g = 0; g != picks.length; ++g)
+      {
+         picks[g] = new int[groups.get(g).getCount()];
+         for (int i = 0; i != picks[g].length; ++i)
+         {
+            picks[g][i] = i;
+         }
+      }
+      return picks;
+   }
+
+   /**
+    * Moves a choice of positions on to the next one in lexicographic
+    * order.
+    *
+    * @param pick
+    *    The ascending positions chosen, updated in place.
+    * @param size
+    *    The number of positions to choose from.
+    * @return
+    *    True if there was a next choice, false if the choice was the last.
+    */
+   private static boolean nextChoice(int[] pick, int size)
+   {
+      int k = pick.length;
+      int i = k - 1;
+      while (i >= 0 && pick[i] == size - k + i)
+      {
+         --i;
+      }
+      if (i < 0)
+      {
+         return false;
+      }
+
+      ++pick[i];
+      for (int j = i + 1; j != k; ++j)
+      {
+         pick[j] = pick[j - 1] + 1;
+      }
+      return true;
+   }
+
+   /**
+    * Calculates the number of ways to choose k of n.
+    *
+    * @param n
+    *    The number to choose from.
+    * @param k
+    *    The number chosen.
+    * @return
+    *    The binomial coefficient.
+    */
+   private static BigInteger choose(int n, int k)
+   {
+      BigInteger ways = BigInteger.ONE;
+      for (int i = 0; i != Math.min(k, n - k); ++i)
+      {
+         ways = ways.multiply(BigInteger.valueOf(n - i)).divide(BigInteger.valueOf(i + 1));
+      }
+      return ways;
+   }
+}
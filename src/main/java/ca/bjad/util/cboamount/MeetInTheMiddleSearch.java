@@ -0,0 +1,516 @@
+package ca.bjad.util.cboamount;
+
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+
+/**
+ * Meet in the middle subset sum search, for inputs with too many
+ * elements for the depth first search to finish and a target too
+ * large for the reachability table.
+ *
+ * <br><br>
+ * The amounts are split into three groups. The subset sums of the
+ * first two groups are built as sorted primitive arrays, each subset
+ * carrying its bit pattern, by merging the sums so far with the same
+ * sums plus the next amount, which keeps them sorted without a sort.
+ * The subsets of the third group are never stored: they are stepped
+ * through one at a time in Gray code order, and for each one the two
+ * sorted arrays are joined with a pair of pointers, one walking up the
+ * first array and one walking down the second, to find every pair
+ * that makes up the rest of the target, or falls in the rest of the
+ * window of totals when there is a tolerance. The third group is only used
+ * when the first two groups would not fit in the memory allowed, so
+ * memory stays bounded however many elements there are, at the cost
+ * of one join per subset of the third group.
+ *
+ * <br><br>
+ * Each combination is identified by a bit pattern with the first
+ * (largest) element as the most significant bit, so sorting the
+ * patterns puts the combinations in the order the depth first search
+ * returns them. Only the smallest patterns asked for are kept, in a heap
+ * bounded to that many, so the memory the matches use is bounded by
+ * the number of results wanted rather than the number of matches.
+ * Matches are checked as they are found against the same rule the
+ * search uses, that the running total in sorted order never goes over
+ * the target, so both return the same combinations.
+ *
+ * @author
+ *    Ben Dougall
+ */
+final class MeetInTheMiddleSearch
+{
+   /**
+    * The most elements that can be searched, as every combination is
+    * held as the bits of a positive long.
+    */
+   static final int MAX_ELEMENTS = 62;
+
+   /**
+    * Memory used per subset of a stored group: a sum and a bit pattern,
+    * each held twice while the group is built.
+    */
+   static final int BYTES_PER_SUBSET = 32;
+
+   /**
+    * Mask over the steps through the third group, the stop check being
+    * called once every (mask + 1) steps. Much finer than the depth first
+    * search's, as each step may join two large groups.
+    */
+   static final int STOP_CHECK_MASK = 63;
+
+   /**
+    * Mask over the units of work while a group is built or two groups
+    * are joined, the stop check being called once every (mask + 1).
+    */
+   static final int STOP_CHECK_WORK_MASK = 0xFFFF;
+
+   private final long[] amounts;
+   private final long   minTotal;
+   private final long   maxTotal;
+   private final int    firstCount;
+   private final int    secondCount;
+
+   private BooleanSupplier stopCheck;
+   private boolean         netting = false;
+   private int             minSize = 1;
+   private int             maxSize = Integer.MAX_VALUE;
+   private int             work    = 0;
+   private boolean         stopped = false;
+
+   /**
+    * Constructor, setting the amounts to search and splitting them into
+    * groups that fit in the memory allowed.
+    *
+    * @param amounts
+    *    The scaled amounts, sorted largest first, at most
+    *    {@link #MAX_ELEMENTS} of them.
+    * @param minTotal
+    *    The lowest scaled total that matches.
+    * @param maxTotal
+    *    The highest scaled total that matches, the same as the lowest
+    *    to find a single total.
+    * @param maxBytes
+    *    The memory the two stored groups may use.
+    */
+   MeetInTheMiddleSearch(long[] amounts, long minTotal, long maxTotal, long maxBytes)
+   {
+      if (amounts.length > MAX_ELEMENTS)
+      {
+         throw new IllegalArgumentException("Meet in the middle search is limited to " + MAX_ELEMENTS
+               + " elements, was given " + amounts.length);
+      }
+      this.amounts = amounts;
+      this.minTotal = minTotal;
+      this.maxTotal = maxTotal;
+
+      int maxStoredBits = 1;
+      while (maxStoredBits < 30 && (2L * BYTES_PER_SUBSET << (maxStoredBits + 1)) <= maxBytes)
+      {
+         ++maxStoredBits;
+      }
+      this.firstCount = Math.min((amounts.length + 1) / 2, maxStoredBits);
+      this.secondCount = Math.min(amounts.length - firstCount, maxStoredBits);
+   }
+
+   /**
+    * Sets a check called every so often while the groups are built and
+    * joined, so a long search can be stopped from outside.
+    *
+    * @param stopCheck
+    *    Returns true when the search should stop, or null to never stop
+    *    early.
+    */
+   void setStopCheck(BooleanSupplier stopCheck)
+   {
+      this.stopCheck = stopCheck;
+   }
+
+   /**
+    * Lets the running total go over the top of the window, so credits
+    * and debits can net out in any order; every combination whose total
+    * is in the window matches.
+    */
+   void allowNetting()
+   {
+      this.netting = true;
+   }
+
+   /**
+    * Limits the number of elements in the combinations found. The limits
+    * are checked against each match rather than cutting the groups
+    * short.
+    *
+    * @param minSize
+    *    The fewest elements in a combination, at least 1.
+    * @param maxSize
+    *    The most elements in a combination.
+    */
+   void setSizeLimits(int minSize, int maxSize)
+   {
+      this.minSize = Math.max(1, minSize);
+      this.maxSize = maxSize;
+   }
+
+   /**
+    * Runs the search, keeping the matches that come first in search
+    * order. When the stop check stops it, only the matches found up to
+    * then are considered.
+    *
+    * @param maxMasks
+    *    The most matches to return, at least 1.
+    * @return
+    *    The bit pattern of the first matching combinations, element i
+    *    held in bit (count - 1 - i), in ascending order.
+    */
+   long[] findMasks(int maxMasks)
+   {
+      SmallestMasks kept = new SmallestMasks(maxMasks);
+      run(kept);
+      return kept.toSortedArray();
+   }
+
+   /**
+    * Runs the search, counting the matches without keeping them.
+    *
+    * @return
+    *    The number of matching combinations, or Long.MAX_VALUE if there
+    *    are at least that many.
+    */
+   long count()
+   {
+      long[] count = { 0 };
+      run(mask -> count[0] = SubsetSumSearch.saturatedAdd(count[0], 1));
+      return count[0];
+   }
+
+   /**
+    * Runs the search, handing every match to the sink passed.
+    *
+    * @param sink
+    *    Receives the bit pattern of each matching combination.
+    */
+   private void run(LongConsumer sink)
+   {
+      final int n = amounts.length;
+      SubsetSums first = SubsetSums.build(amounts, 0, firstCount, n, this::pollStop);
+      SubsetSums second = first == null ? null : SubsetSums.build(amounts, firstCount, secondCount, n, this::pollStop);
+      if (second == null)
+      {
+         return;
+      }
+      long lowest = first.sums[0] + second.sums[0];
+      long highest = first.sums[first.size - 1] + second.sums[second.size - 1];
+
+      int streamFrom = firstCount + secondCount;
+      int streamCount = n - streamFrom;
+      long outerSum = 0;
+      long outerMask = 0;
+      for (long step = 0; step < (1L << streamCount) && !stopped; ++step)
+      {
+         if (stopCheck != null && (step & STOP_CHECK_MASK) == 0 && stopCheck.getAsBoolean())
+         {
+            break;
+         }
+         if (step > 0)
+         {
+            // Gray code: each step flips exactly one element in or out.
+            int flip = Long.numberOfTrailingZeros(step);
+            int index = streamFrom + flip;
+            long bit = 1L << (n - 1 - index);
+            outerMask ^= bit;
+            outerSum += (outerMask & bit) != 0 ? amounts[index] : -amounts[index];
+         }
+
+         long minNeeded = minTotal - outerSum;
+         long maxNeeded = maxTotal - outerSum;
+         if (maxNeeded >= lowest && minNeeded <= highest)
+         {
+            join(first, second, minNeeded, maxNeeded, outerMask, sink);
+         }
+      }
+   }
+
+   /**
+    * Counts a unit of work, calling the stop check once every 
+    * {@link #STOP_CHECK_WORK_MASK} + 1 units.
+    *
+    * @return
+    *    True if the search has been stopped.
+    */
+   private boolean pollStop()
+   {
+      if (!stopped && stopCheck != null && (++work & STOP_CHECK_WORK_MASK) == 0 && stopCheck.getAsBoolean())
+      {
+         stopped = true;
+      }
+      return stopped;
+   }
+
+   /**
+    * Finds every pair of subsets, one from each sorted group, whose sums
+    * add up to a total in the window passed. As the first group's sum
+    * goes up, the range of the second group's sums that pair with it
+    * moves down, so both ends of the range are walked down once.
+    *
+    * @param first
+    *    The first group's sums, ascending.
+    * @param second
+    *    The second group's sums, ascending.
+    * @param minNeeded
+    *    The lowest total the pair may make.
+    * @param maxNeeded
+    *    The highest total the pair may make.
+    * @param outerMask
+    *    The bit pattern of the streamed group's subset.
+    * @param sink
+    *    Receives the bit pattern of each match that keeps to the size
+    *    limits and the running total rule.
+    */
+   private void join(SubsetSums first, SubsetSums second, long minNeeded, long maxNeeded, long outerMask,
+         LongConsumer sink)
+   {
+      // The second group's sums from index lo up to index hi pair with
+      // the current sum of the first group.
+      int hi = second.size - 1;
+      int lo = second.size;
+      for (int i = 0; i != first.size && hi >= 0; ++i)
+      {
+         if (pollStop())
+         {
+            return;
+         }
+         long sum = first.sums[i];
+         while (hi >= 0 && sum + second.sums[hi] > maxNeeded)
+         {
+            --hi;
+         }
+         while (lo > 0 && sum + second.sums[lo - 1] >= minNeeded)
+         {
+            --lo;
+         }
+         for (int j = hi; j >= lo; --j)
+         {
+            long mask = first.masks[i] | second.masks[j] | outerMask;
+            if (mask != 0 && matches(mask))
+            {
+               sink.accept(mask);
+            }
+            if (pollStop())
+            {
+               return;
+            }
+         }
+      }
+   }
+
+   /**
+    * @param mask
+    *    A combination's bit pattern, whose total is in the window.
+    * @return
+    *    True if the combination keeps to the size limits and, without 
+    *    netting, the running total rule.
+    */
+   private boolean matches(long mask)
+   {
+      int size = Long.bitCount(mask);
+      return size >= minSize && size <= maxSize && (netting || staysUnderTarget(mask));
+   }
+
+   /**
+    * Checks a combination against the search's rule that the running
+    * total, adding the elements largest first, never goes over the
+    * top of the window. Only negative amounts can break the rule, by bringing an
+    * over target total back down.
+    *
+    * @param mask
+    *    The combination's bit pattern.
+    * @return
+    *    True if the combination keeps to the rule.
+    */
+   private boolean staysUnderTarget(long mask)
+   {
+      long running = 0;
+      for (int i = 0; i != amounts.length; ++i)
+      {
+         if ((mask & (1L << (amounts.length - 1 - i))) != 0)
+         {
+            running += amounts[i];
+            if (running > maxTotal)
+            {
+               return false;
+            }
+         }
+      }
+      return true;
+   }
+
+   /**
+    * The sums of every subset of a group of amounts, in ascending order,
+    * along with each subset's bit pattern.
+    */
+   private static final class SubsetSums
+   {
+      private final long[] sums;
+      private final long[] masks;
+      private final int    size;
+
+      /**
+       * Constructor, setting the sums and bit patterns.
+       *
+       * @param sums
+       *    The sums, ascending.
+       * @param masks
+       *    The bit pattern of the subset making each sum.
+       */
+      private SubsetSums(long[] sums, long[] masks)
+      {
+         this.sums = sums;
+         this.masks = masks;
+         this.size = sums.length;
+      }
+
+      /**
+       * Builds the sorted sums of a group by adding one amount at a time,
+       * merging the sums so far with those sums plus the new amount.
+       *
+       * @param amounts
+       *    All the scaled amounts.
+       * @param from
+       *    The index of the group's first amount.
+       * @param count
+       *    The number of amounts in the group.
+       * @param total
+       *    The total number of amounts, to place the bits.
+       * @param stop
+       *    Counts a unit of work, returning true if the search has been
+       *    stopped.
+       * @return
+       *    The group's sums, or null if the search was stopped.
+       */
+      private static SubsetSums build(long[] amounts, int from, int count, int total, BooleanSupplier stop)
+      {
+         int capacity = 1 << count;
+         long[] sums = new long[capacity];
+         long[] masks = new long[capacity];
+         long[] mergedSums = new long[capacity];
+         long[] mergedMasks = new long[capacity];
+         int size = 1;
+
+         for (int index = from; index != from + count; ++index)
+         {
+            long amount = amounts[index];
+            long bit = 1L << (total - 1 - index);
+            int a = 0;
+            int b = 0;
+            int out = 0;
+            while (a < size || b < size)
+            {
+               if (stop.getAsBoolean())
+               {
+                  return null;
+               }
+               if (b == size || (a < size && sums[a] <= sums[b] + amount))
+               {
+                  mergedSums[out] = sums[a];
+                  mergedMasks[out++] = masks[a++];
+               }
+               else
+               {
+                  mergedSums[out] = sums[b] + amount;
+                  mergedMasks[out++] = masks[b++] | bit;
+               }
+            }
+            long[] swap = sums;
+            sums = mergedSums;
+            mergedSums = swap;
+            swap = masks;
+            masks = mergedMasks;
+            mergedMasks = swap;
+            size <<= 1;
+         }
+         return new SubsetSums(sums, masks);
+      }
+   }
+
+   /**
+    * Bounded max-heap of primitive bit patterns, keeping the smallest
+    * patterns offered to it, which are the combinations that come first
+    * in search order.
+    */
+   private static final class SmallestMasks implements LongConsumer
+   {
+      private final int limit;
+      private long[]    heap = new long[16];
+      private int       size = 0;
+
+      /**
+       * @param limit
+       *    The most bit patterns to keep, at least 1.
+       */
+      private SmallestMasks(int limit)
+      {
+         this.limit = Math.max(1, limit);
+      }
+
+      /**
+       * Offers a bit pattern, kept if fewer than the limit are held or it
+       * is smaller than the largest held, which it then replaces.
+       *
+       * @param mask
+       *    The bit pattern.
+       */
+      @Override
+      public void accept(long mask)
+      {
+         if (size < limit)
+         {
+            if (size == heap.length)
+            {
+               heap = Arrays.copyOf(heap, (int) Math.min((long) size * 2, limit));
+            }
+            int child = size++;
+            while (child > 0 && heap[(child - 1) / 2] < mask)
+            {
+               heap[child] = heap[(child - 1) / 2];
+               child = (child - 1) / 2;
+            }
+            heap[child] = mask;
+         }
+         else if (mask < heap[0])
+         {
+            int parent = 0;
+            while (true)
+            {
+               int child = 2 * parent + 1;
+               if (child >= size)
+               {
+                  break;
+               }
+               if (child + 1 < size && heap[child + 1] > heap[child])
+               {
+                  ++child;
+               }
+               if (heap[child] <= mask)
+               {
+                  break;
+               }
+               heap[parent] = heap[child];
+               parent = child;
+            }
+            heap[parent] = mask;
+         }
+      }
+
+      /**
+       * @return
+       *    The bit patterns kept, in ascending order.
+       */
+      private long[] toSortedArray()
+      {
+         long[] sorted = Arrays.copyOf(heap, size);
+         Arrays.sort(sorted);
+         return sorted;
+      }
+   }
+}
@@ -0,0 +1,278 @@
+package ca.bjad.util.cboamount;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Subset sum search over buckets of equal amounts, for inputs where
+ * many elements share an amount. Rather than choosing each element in
+ * or out, the search chooses how many of each bucket's amount to take,
+ * so the combinations that only differ in which of a bucket's elements
+ * they use are found once, as one multiset of amounts.
+ *
+ * <br><br>
+ * The buckets must be sorted largest amount first. Multisets are found
+ * in the same order the depth first search over the single elements
+ * finds their combinations in: a bucket's copies are tried from one up,
+ * and the buckets from the smallest amount to the largest, each multiset
+ * being reported before the ones that add smaller amounts to it. The
+ * same rules apply:
+ * the running total stays at or under the top of the window unless
+ * netting, a branch is cut as soon as the amounts after it can no longer
+ * bring the total into the window, and the number of elements is kept
+ * in the size limits.
+ *
+ * @author
+ *    Ben Dougall
+ */
+final class MultisetSearch
+{
+   /**
+    * Receives each multiset found by the search.
+    */
+   interface MultisetVisitor
+   {
+      /**
+       * Called for each matching multiset.
+       *
+       * @param buckets
+       *    The indexes of the buckets used, in ascending order. The array
+       *    is reused, only the first count entries belong to the match.
+       * @param copies
+       *    The number of each bucket's amount taken. The array is reused
+       *    in the same way.
+       * @param count
+       *    The number of buckets used.
+       * @return
+       *    True to keep searching, false to stop.
+       */
+      boolean found(int[] buckets, int[] copies, int count);
+   }
+
+   private final long[] amounts;
+   private final int[]  available;
+   private final long   minTotal;
+   private final long   maxTotal;
+
+   /**
+    * Totals of every bucket from each index on: the sum of the positive
+    * amounts, the sum of the negative amounts, and the number of
+    * elements. One longer than the buckets, the last entries being 0.
+    */
+   private final long[] positiveAfter;
+   private final long[] negativeAfter;
+   private final int[]  elementsAfter;
+
+   private BooleanSupplier stopCheck;
+   private boolean         netting = false;
+   private int             minSize = 1;
+   private int             maxSize = Integer.MAX_VALUE;
+
+   /**
+    * Constructor, setting the buckets to search through and the window
+    * of totals to find.
+    *
+    * @param amounts
+    *    The scaled amount of each bucket, sorted largest first, with no
+    *    two the same.
+    * @param available
+    *    The number of elements in each bucket.
+    * @param minTotal
+    *    The lowest scaled total that matches.
+    * @param maxTotal
+    *    The highest scaled total that matches.
+    */
+   MultisetSearch(long[] amounts, int[] available, long minTotal, long maxTotal)
+   {
+      final int n = amounts.length;
+      this.amounts = amounts;
+      this.available = available;
+      this.minTotal = minTotal;
+      this.maxTotal = maxTotal;
+      this.positiveAfter = new long[n + 1];
+      this.negativeAfter = new long[n + 1];
+      this.elementsAfter = new int[n + 1];
+
+      for (int i = n - 1; i >= 0; --i)
+      {
+         long all = Math.multiplyExact(amounts[i], (long) available[i]);
+         positiveAfter[i] = SubsetSumSearch.saturatedAdd(positiveAfter[i + 1], Math.max(0, all));
+         negativeAfter[i] = SubsetSumSearch.saturatedAdd(negativeAfter[i + 1], Math.min(0, all));
+         elementsAfter[i] = elementsAfter[i + 1] + available[i];
+      }
+   }
+
+   /**
+    * Sets a check the search calls every so often, so a long search can
+    * be stopped from outside.
+    *
+    * @param stopCheck
+    *    Returns true when the search should stop, or null to never stop
+    *    early.
+    */
+   void setStopCheck(BooleanSupplier stopCheck)
+   {
+      this.stopCheck = stopCheck;
+   }
+
+   /**
+    * Lets the running total go over the top of the window while the
+    * negative amounts still to come can bring it back down.
+    */
+   void allowNetting()
+   {
+      this.netting = true;
+   }
+
+   /**
+    * Limits the number of elements in the combinations found.
+    *
+    * @param minSize
+    *    The fewest elements in a combination, at least 1.
+    * @param maxSize
+    *    The most elements in a combination.
+    */
+   void setSizeLimits(int minSize, int maxSize)
+   {
+      this.minSize = Math.max(1, minSize);
+      this.maxSize = maxSize;
+   }
+
+   /**
+    * Runs the search, reporting every matching multiset to the visitor
+    * passed.
+    *
+    * @param visitor
+    *    The visitor receiving the matches.
+    * @return
+    *    True if the search ran to the end, false if the visitor or the
+    *    stop check stopped it.
+    */
+   boolean search(MultisetVisitor visitor)
+   {
+      final int n = amounts.length;
+
+      // One frame per bucket taken: the total and size so far, the lowest
+      // bucket still allowed, and the bucket and number of copies being
+      // tried, buckets tried from the highest index down.
+      int[] buckets = new int[n];
+      int[] copies = new int[n];
+      long[] sums = new long[n + 1];
+      int[] sizes = new int[n + 1];
+      int[] low = new int[n + 1];
+      int[] bucket = new int[n + 1];
+      int[] taken = new int[n + 1];
+
+      int depth = 0;
+      low[0] = 0;
+      bucket[0] = lastReaching(0, 0);
+      long steps = 0;
+
+      while (depth >= 0)
+      {
+         if (stopCheck != null && (steps++ & SubsetSumSearch.STOP_CHECK_MASK) == 0 && stopCheck.getAsBoolean())
+         {
+            return false;
+         }
+
+         int b = bucket[depth];
+         if (b < low[depth])
+         {
+            --depth;
+            continue;
+         }
+
+         int copiesTaken = ++taken[depth];
+         if (copiesTaken > available[b])
+         {
+            nextBucket(bucket, taken, depth);
+            continue;
+         }
+
+         long amount = amounts[b];
+         long sum = sums[depth] + copiesTaken * amount;
+         int size = sizes[depth] + copiesTaken;
+         // Without netting, the running total peaks after the last copy of
+         // a positive amount, or the first copy of a negative one.
+         long lowest = netting ? sum + negativeAfter[b + 1] : Math.max(sum, sums[depth] + amount);
+         long highest = sum + positiveAfter[b + 1];
+
+         // Checks that only get worse with more copies move on to the
+         // next bucket, those that may get better try another copy.
+         if (size > maxSize || (amount > 0 ? lowest > maxTotal : highest < minTotal))
+         {
+            nextBucket(bucket, taken, depth);
+            continue;
+         }
+         if (lowest > maxTotal || highest < minTotal || size + elementsAfter[b + 1] < minSize)
+         {
+            continue;
+         }
+
+         buckets[depth] = b;
+         copies[depth] = copiesTaken;
+         ++depth;
+
+         sums[depth] = sum;
+         sizes[depth] = size;
+         low[depth] = b + 1;
+         bucket[depth] = size < maxSize ? lastReaching(b + 1, sum) : b;
+         taken[depth] = 0;
+
+         if (sum >= minTotal && sum <= maxTotal && size >= minSize && !visitor.found(buckets, copies, depth))
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Moves a frame on to the next bucket down.
+    *
+    * @param bucket
+    *    The frames' buckets being tried.
+    * @param taken
+    *    The frames' copies being tried.
+    * @param depth
+    *    The frame to move on.
+    */
+   private static void nextBucket(int[] bucket, int[] taken, int depth)
+   {
+      --bucket[depth];
+      taken[depth] = 0;
+   }
+
+   /**
+    * Finds the last bucket, from the index passed on, that can still
+    * bring the total up into the window if used. The most a bucket can
+    * add with the buckets after it never increases from one bucket to
+    * the next, so it can be binary searched.
+    *
+    * @param from
+    *    The first bucket to consider.
+    * @param sum
+    *    The total so far.
+    * @return
+    *    The bucket, or one less than the index passed if none can.
+    */
+   private int lastReaching(int from, long sum)
+   {
+      long needed = minTotal - sum;
+      int lo = from;
+      int hi = amounts.length;
+      while (lo < hi)
+      {
+         int mid = (lo + hi) >>> 1;
+         long best = amounts[mid] > 0 ? positiveAfter[mid] : amounts[mid];
+         if (best >= needed)
+         {
+            lo = mid + 1;
+         }
+         else
+         {
+            hi = mid;
+         }
+      }
+      return lo - 1;
+   }
+}
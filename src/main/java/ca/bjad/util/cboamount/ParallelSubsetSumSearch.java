@@ -0,0 +1,284 @@
+package ca.bjad.util.cboamount;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a {@link SubsetSumSearch} across the threads of a fork join
+ * pool. The include or exclude decisions for the first few (largest)
+ * elements are fixed to split the search tree into subtrees, each
+ * fork of the decision tree being a task the pool's idle threads can
+ * steal, and each subtree is then searched on its own thread.
+ *
+ * <br><br>
+ * Every task gathers its matches in its own buffer, and a task joining
+ * its two halves puts the exclude half's buffer ahead of the include
+ * half's, which is the order the sequential search visits them in, so
+ * the merged results are the same combinations in the same order as a
+ * sequential run.
+ *
+ * <br><br>
+ * When only the first few matches are wanted, no buffer holds more than
+ * that many. Each subtree is keyed by its include or exclude decisions,
+ * which sort in search order, and once the matches of a subtree and the
+ * subtrees before it fill the number wanted, its last key is shared
+ * with the other tasks, so every subtree after it stops or is never
+ * started.
+ *
+ * @author
+ *    Ben Dougall
+ */
+final class ParallelSubsetSumSearch
+{
+   /**
+    * Number of extra levels of decisions fixed beyond what is needed
+    * for one subtree per thread, so threads that finish early have
+    * other subtrees to steal.
+    */
+   static final int EXTRA_SPLIT_LEVELS = 6;
+
+   private final SubsetSumSearch search;
+   private final ForkJoinPool    pool;
+   private final int             splitDepth;
+
+   /**
+    * Constructor, setting the search to split and the pool to run it on.
+    *
+    * @param search
+    *    The search.
+    * @param pool
+    *    The pool to run the subtrees on.
+    */
+   ParallelSubsetSumSearch(SubsetSumSearch search, ForkJoinPool pool)
+   {
+      this.search = search;
+      this.pool = pool;
+
+      int threadLevels = 32 - Integer.numberOfLeadingZeros(Math.max(1, pool.getParallelism() - 1));
+      this.splitDepth = Math.min(search.getAmounts().length, threadLevels + EXTRA_SPLIT_LEVELS);
+   }
+
+   /**
+    * Runs the search, collecting the first matches in search order.
+    *
+    * @param maxMatches
+    *    The most matches to collect, at least 1.
+    * @return
+    *    The indexes of each matching combination, in the order the
+    *    sequential search finds them.
+    */
+   List<int[]> collect(long maxMatches)
+   {
+      return pool.invoke(new PrefixTask(new int[0], 0, 0, new Budget(Math.max(1, maxMatches)))).combinations;
+   }
+
+   /**
+    * Runs the search, counting the matches without keeping them.
+    *
+    * @return
+    *    The number of matching combinations, or Long.MAX_VALUE if there
+    *    are at least that many.
+    */
+   long count()
+   {
+      return pool.invoke(new PrefixTask(new int[0], 0, 0, null)).count;
+   }
+
+   /**
+    * The number of matches wanted, shared by the tasks of a search along
+    * with the key of the subtree that ends the matches needed.
+    */
+   private static final class Budget
+   {
+      private final long       maxMatches;
+      private final AtomicLong lastNeeded = new AtomicLong(Long.MAX_VALUE);
+
+      /**
+       * Constructor, setting the number of matches wanted.
+       *
+       * @param maxMatches
+       *    The most matches wanted, at least 1.
+       */
+      private Budget(long maxMatches)
+      {
+         this.maxMatches = maxMatches;
+      }
+
+      /**
+       * @param key
+       *    The first key of a subtree.
+       * @return
+       *    True if the subtree comes after the matches needed, so need not
+       *    be searched.
+       */
+      private boolean isSpent(long key)
+      {
+         return key > lastNeeded.get();
+      }
+
+      /**
+       * Records that the subtrees up to the key passed hold every match
+       * needed.
+       *
+       * @param key
+       *    The last key of the subtree whose matches filled the budget.
+       */
+      private void filledBy(long key)
+      {
+         lastNeeded.accumulateAndGet(key, Math::min);
+      }
+   }
+
+   /**
+    * The matches found by a task.
+    */
+   private static final class Partial
+   {
+      private final List<int[]> combinations;
+      private long              count;
+
+      /**
+       * Constructor, creating an empty buffer.
+       *
+       * @param countOnly
+       *    True to count matches without keeping them.
+       */
+      private Partial(boolean countOnly)
+      {
+         this.combinations = countOnly ? null : new ArrayList<>();
+      }
+
+      /**
+       * Adds the matches of the task that comes after this one in search
+       * order.
+       *
+       * @param later
+       *    The later task's matches.
+       * @param maxMatches
+       *    The most matches to keep.
+       * @return
+       *    This buffer.
+       */
+      private Partial append(Partial later, long maxMatches)
+      {
+         count = SubsetSumSearch.saturatedAdd(count, later.count);
+         if (combinations != null)
+         {
+            int room = (int) Math.min(maxMatches - combinations.size(), later.combinations.size());
+            if (room > 0)
+            {
+               combinations.addAll(later.combinations.subList(0, room));
+            }
+         }
+         return this;
+      }
+   }
+
+   /**
+    * Decides whether the next element is in or out of the combination,
+    * forking a task for each choice until the split depth is reached,
+    * then searches the subtree below the decisions made.
+    */
+   private final class PrefixTask extends RecursiveTask<Partial>
+   {
+      private static final long serialVersionUID = 1L;
+
+      private final int[]  chosen;
+      private final long   sum;
+      private final long   key;
+      private final Budget budget;
+
+      /**
+       * Constructor, setting the decisions made so far.
+       *
+       * @param chosen
+       *    The indexes of the elements included so far.
+       * @param sum
+       *    The total of the elements included so far.
+       * @param key
+       *    The decisions made so far, a bit set for each element included,
+       *    the first element in the highest of the split depth's bits.
+       * @param budget
+       *    The matches wanted, or null to count matches without keeping 
+       *    them.
+       */
+      private PrefixTask(int[] chosen, long sum, long key, Budget budget)
+      {
+         this.chosen = chosen;
+         this.sum = sum;
+         this.key = key;
+         this.budget = budget;
+      }
+
+      @Override
+      protected Partial compute()
+      {
+         int depth = chosen.length == 0 ? 0 : chosen[chosen.length - 1] + 1;
+         return compute(depth);
+      }
+
+      /**
+       * Works through the decisions from the depth passed.
+       *
+       * @param depth
+       *    The index of the next element to decide.
+       * @return
+       *    The matches below the decisions made.
+       */
+      private Partial compute(int depth)
+      {
+         Partial partial = new Partial(budget == null);
+         if (budget != null && budget.isSpent(key))
+         {
+            return partial;
+         }
+
+         if (depth >= splitDepth)
+         {
+            search.searchFrom(chosen, depth, sum, (indexes, count) ->
+               {
+                  partial.count = SubsetSumSearch.saturatedAdd(partial.count, 1);
+                  if (budget == null)
+                  {
+                     return true;
+                  }
+                  partial.combinations.add(Arrays.copyOf(indexes, count));
+                  if (partial.combinations.size() >= budget.maxMatches)
+                  {
+                     budget.filledBy(key);
+                     return false;
+                  }
+                  return !budget.isSpent(key);
+               });
+            return partial;
+         }
+
+         if (!search.canAdd(depth, sum, chosen.length))
+         {
+            return compute(depth + 1);
+         }
+
+         int[] withElement = Arrays.copyOf(chosen, chosen.length + 1);
+         withElement[chosen.length] = depth;
+         PrefixTask include = new PrefixTask(withElement, sum + search.getAmounts()[depth], 
+               key | (1L << (splitDepth - 1 - depth)), budget);
+         include.fork();
+         Partial excluded = compute(depth + 1);
+         if (budget == null)
+         {
+            return excluded.append(include.join(), Long.MAX_VALUE);
+         }
+         
+         Partial merged = excluded.append(include.join(), budget.maxMatches);
+         if (merged.combinations.size() >= budget.maxMatches)
+         {
+            budget.filledBy(key | ((1L << (splitDepth - depth)) - 1));
+         }
+         return merged;
+      }
+   }
+}
@@ -0,0 +1,286 @@
+package ca.bjad.util.cboamount;
+
+/**
+ * Dynamic programming table recording, for every suffix of a list of
+ * positive scaled amounts, which totals from 0 up to the target can be
+ * made from the amounts in that suffix. Each row is a bitset with one
+ * bit per total, built from the row after it with a shift and an or,
+ * so the table costs (amounts + 1) * (target + 1) bits.
+ *
+ * <br><br>
+ * With the table to hand, the subset sum search only steps into a
+ * branch when the rest of the target can still be made from the
+ * amounts after it, so every branch it visits ends in a match and
+ * the first few combinations come back without searching the dead
+ * parts of the tree.
+ *
+ * @author
+ *    Ben Dougall
+ */
+final class ReachabilityTable
+{
+   private final long   target;
+   private final int    wordsPerRow;
+   private final long[] bits;
+
+   /**
+    * Constructor, setting the table's size. The rows are filled in
+    * by {@link #build(long[], long)}.
+    *
+    * @param rows
+    *    The number of rows.
+    * @param target
+    *    The highest total recorded.
+    */
+   private ReachabilityTable(int rows, long target)
+   {
+      this.target = target;
+      this.wordsPerRow = (int) wordsPerRow(target);
+      this.bits = new long[rows * wordsPerRow];
+   }
+
+   /**
+    * Estimates the memory a table would use.
+    *
+    * @param amountCount
+    *    The number of amounts.
+    * @param target
+    *    The scaled target.
+    * @return
+    *    The size of the table in bytes, or Long.MAX_VALUE if it could
+    *    not be built at all.
+    */
+   static long estimateBytes(int amountCount, long target)
+   {
+      if (target < 0)
+      {
+         return Long.MAX_VALUE;
+      }
+      long words = wordsPerRow(target);
+      if (words > Integer.MAX_VALUE / (amountCount + 1))
+      {
+         return Long.MAX_VALUE;
+      }
+      return words * (amountCount + 1) * 8;
+   }
+
+   /**
+    * Estimates the memory {@link #count(long[], long)} would use.
+    *
+    * @param target
+    *    The scaled target.
+    * @return
+    *    The size of the counts in bytes, or Long.MAX_VALUE if they
+    *    could not be counted at all.
+    */
+   static long estimateCountBytes(long target)
+   {
+      return target < 0 || target >= Integer.MAX_VALUE - 8 ? Long.MAX_VALUE : (target + 1) * 8;
+   }
+
+   /**
+    * Builds the table for the amounts passed.
+    *
+    * @param amounts
+    *    The scaled amounts, all greater than 0.
+    * @param target
+    *    The scaled target.
+    * @return
+    *    The table.
+    */
+   static ReachabilityTable build(long[] amounts, long target)
+   {
+      ReachabilityTable table = new ReachabilityTable(amounts.length + 1, target);
+      int words = table.wordsPerRow;
+      long[] bits = table.bits;
+
+      // The empty suffix can only make a total of 0.
+      bits[amounts.length * words] = 1L;
+      for (int i = amounts.length - 1; i >= 0; --i)
+      {
+         int from = (i + 1) * words;
+         int to = i * words;
+         System.arraycopy(bits, from, bits, to, words);
+         if (amounts[i] <= target)
+         {
+            shiftOr(bits, from, to, words, (int) amounts[i]);
+         }
+         table.clearAboveTarget(to);
+      }
+      return table;
+   }
+
+   /**
+    * Counts the combinations of the amounts passed that add up to the
+    * target.
+    *
+    * @param amounts
+    *    The scaled amounts, all greater than 0.
+    * @param target
+    *    The scaled target, greater than 0.
+    * @return
+    *    The number of combinations, or Long.MAX_VALUE if there are at
+    *    least that many.
+    */
+   static long count(long[] amounts, long target)
+   {
+      return count(amounts, target, target);
+   }
+
+   /**
+    * Counts the combinations of the amounts passed whose total is in a
+    * window.
+    *
+    * @param amounts
+    *    The scaled amounts, all greater than 0.
+    * @param minTotal
+    *    The lowest total counted, greater than 0.
+    * @param maxTotal
+    *    The highest total counted.
+    * @return
+    *    The number of combinations, or Long.MAX_VALUE if there are at
+    *    least that many.
+    */
+   static long count(long[] amounts, long minTotal, long maxTotal)
+   {
+      long[] ways = new long[(int) maxTotal + 1];
+      ways[0] = 1;
+      for (long amount : amounts)
+      {
+         for (int total = (int) maxTotal; total >= amount; --total)
+         {
+            ways[total] = SubsetSumSearch.saturatedAdd(ways[total], ways[total - (int) amount]);
+         }
+      }
+
+      long count = 0;
+      for (int total = (int) minTotal; total <= maxTotal; ++total)
+      {
+         count = SubsetSumSearch.saturatedAdd(count, ways[total]);
+      }
+      return count;
+   }
+
+   /**
+    * Checks whether a total can be made from the amounts from the index
+    * passed on.
+    *
+    * @param from
+    *    The index of the first amount that may be used.
+    * @param total
+    *    The total to make.
+    * @return
+    *    True if some combination of those amounts, possibly none of
+    *    them, adds up to the total.
+    */
+   boolean canReach(int from, long total)
+   {
+      if (total < 0 || total > target)
+      {
+         return false;
+      }
+      return (bits[from * wordsPerRow + (int) (total >>> 6)] & (1L << total)) != 0;
+   }
+
+   /**
+    * Checks whether any total in a window can be made from the amounts
+    * from the index passed on.
+    *
+    * @param from
+    *    The index of the first amount that may be used.
+    * @param minTotal
+    *    The lowest total in the window.
+    * @param maxTotal
+    *    The highest total in the window.
+    * @return
+    *    True if some combination of those amounts, possibly none of
+    *    them, adds up to a total in the window.
+    */
+   boolean canReachAny(int from, long minTotal, long maxTotal)
+   {
+      long lowest = Math.max(0, minTotal);
+      long highest = Math.min(target, maxTotal);
+      if (lowest > highest)
+      {
+         return false;
+      }
+
+      int row = from * wordsPerRow;
+      int firstWord = (int) (lowest >>> 6);
+      int lastWord = (int) (highest >>> 6);
+      for (int w = firstWord; w <= lastWord; ++w)
+      {
+         long word = bits[row + w];
+         if (w == firstWord)
+         {
+            word &= -1L << lowest;
+         }
+         if (w == lastWord)
+         {
+            word &= -1L >>> (63 - (highest & 63));
+         }
+         if (word != 0)
+         {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Ors a row, shifted up by the number of bits passed, into another.
+    *
+    * @param bits
+    *    The table's bits.
+    * @param from
+    *    The offset of the row to shift.
+    * @param to
+    *    The offset of the row to or into.
+    * @param words
+    *    The number of words per row.
+    * @param shift
+    *    The number of bits to shift by.
+    */
+   private static void shiftOr(long[] bits, int from, int to, int words, int shift)
+   {
+      int wordShift = shift >>> 6;
+      int bitShift = shift & 63;
+      for (int w = words - 1; w >= wordShift; --w)
+      {
+         int source = w - wordShift;
+         long shifted = bits[from + source] << bitShift;
+         if (bitShift != 0 && source > 0)
+         {
+            shifted |= bits[from + source - 1] >>> (64 - bitShift);
+         }
+         bits[to + w] |= shifted;
+      }
+   }
+
+   /**
+    * Clears the bits past the target in the last word of a row.
+    *
+    * @param row
+    *    The offset of the row.
+    */
+   private void clearAboveTarget(int row)
+   {
+      int used = (int) ((target + 1) & 63);
+      if (used != 0)
+      {
+         bits[row + wordsPerRow - 1] &= (1L << used) - 1;
+      }
+   }
+
+   /**
+    * @param target
+    *    The scaled target.
+    * @return
+    *    The number of longs needed for one bit per total from 0 to the
+    *    target.
+    */
+   private static long wordsPerRow(long target)
+   {
+      return (target >>> 6) + 1;
+   }
+}
@@ -0,0 +1,118 @@
+package ca.bjad.util.cboamount;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * The limits of one search for combinations, the most results to
+ * return, the time allowed and the finder's cancel flag, along with
+ * which of them, if any, ended the search.
+ *
+ * @author
+ *    Ben Dougall
+ */
+final class SearchLimits
+{
+   private final long            maxResults;
+   private final boolean         hasDeadline;
+   private final long            deadlineNanos;
+   private final BooleanSupplier cancelled;
+
+   private volatile ComboSearchOutcome stoppedBy;
+   private long                        resultCount = 0;
+
+   /**
+    * Constructor, setting the limits and starting the clock on the time
+    * limit.
+    *
+    * @param maxResults
+    *    The most results to return, at least 1.
+    * @param timeLimitNanos
+    *    The time the search may take, 0 for no limit.
+    * @param cancelled
+    *    Returns true once the search has been cancelled.
+    */
+   SearchLimits(long maxResults, long timeLimitNanos, BooleanSupplier cancelled)
+   {
+      this.maxResults = maxResults;
+      this.hasDeadline = timeLimitNanos > 0;
+      this.deadlineNanos = System.nanoTime() + timeLimitNanos;
+      this.cancelled = cancelled;
+   }
+
+   /**
+    * Checks whether the search should stop, either because a limit has
+    * already ended it, or it has been cancelled or run out of time. Safe
+    * to call from several threads at once.
+    *
+    * @return
+    *    True if the search should stop.
+    */
+   boolean shouldStop()
+   {
+      if (stoppedBy != null)
+      {
+         return true;
+      }
+      if (cancelled.getAsBoolean())
+      {
+         stoppedBy = ComboSearchOutcome.CANCELLED;
+         return true;
+      }
+      if (hasDeadline && System.nanoTime() - deadlineNanos >= 0)
+      {
+         stoppedBy = ComboSearchOutcome.TIME_LIMIT;
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * Counts a result about to be handed to the caller, unless the most
+    * results allowed have already been handed out. Only then is the
+    * search reported as stopped by the most results, so a search with
+    * exactly that many matches still completes.
+    *
+    * @return
+    *    True if the result may be handed out, false if the most results
+    *    allowed have already been and the search should stop.
+    */
+   boolean admitResult()
+   {
+      if (resultCount >= maxResults)
+      {
+         stoppedBy = ComboSearchOutcome.MAX_RESULTS;
+         return false;
+      }
+      ++resultCount;
+      return true;
+   }
+
+   /**
+    * @return
+    *    The most matches a search needs to find to hand out the most
+    *    results allowed and tell whether there were any more.
+    */
+   long getMatchesNeeded()
+   {
+      return maxResults == Long.MAX_VALUE ? maxResults : maxResults + 1;
+   }
+
+   /**
+    * Records that the consumer of the results stopped the search.
+    */
+   void consumerStopped()
+   {
+      stoppedBy = ComboSearchOutcome.STOPPED_BY_CONSUMER;
+   }
+
+   /**
+    * @return
+    *    The limit that ended the search, or
+    *    {@link ComboSearchOutcome#COMPLETED} if none did.
+    */
+   ComboSearchOutcome getOutcome()
+   {
+      ComboSearchOutcome outcome = stoppedBy;
+      return outcome == null ? ComboSearchOutcome.COMPLETED : outcome;
+   }
+}
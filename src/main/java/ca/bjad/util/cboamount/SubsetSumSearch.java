@@ -0,0 +1,695 @@
+package ca.bjad.util.cboamount;
+
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Depth first subset sum search over amounts held as scaled longs,
+ * used by the ComboFinder in place of enumerating every bit pattern.
+ *
+ * <br><br>
+ * The amounts must be sorted largest first. Matches are reported in
+ * the same order the original enumeration found them: the order of
+ * the bit patterns counting up from 1, with the first (largest)
+ * element as the most significant bit. An element is only added when
+ * the running total stays at or under the target, as the original
+ * check stopped adding once the total went over, and a branch is cut
+ * as soon as the amounts left to it can no longer bring the total up
+ * to the target. Both limits are found with a binary search over the
+ * sorted amounts and their suffix sums rather than by trying each
+ * element in turn.
+ *
+ * <br><br>
+ * The target may be a window of totals rather than a single total, in
+ * which case the running total must stay at or under the top of the
+ * window, and a combination matches once its total is anywhere in the
+ * window. The window can be narrowed while the search runs, and the
+ * rest of the search only reports totals in the narrower window. The
+ * running total still only has to stay under the top of the window the
+ * search started with, as negative amounts still to come can bring a 
+ * total over the narrower window back into it; branches are cut once 
+ * every negative amount left could not.
+ *
+ * <br><br>
+ * With netting, the running total may go over the top of the window
+ * as long as the negative amounts still to come can bring it back
+ * down. The lowest total a branch can reach is then the amount it adds
+ * plus every negative amount after it, which falls through the
+ * positive amounts and rises again through the negative ones, so the
+ * elements that can be added are still one run of indexes, found with
+ * a binary search either side of the first negative amount.
+ *
+ * <br><br>
+ * The number of elements in a combination can be limited too. Once
+ * only one more element may be added, it must bring the total into the
+ * window on its own, so the run of indexes to try is narrowed to the
+ * amounts that do.
+ *
+ * <br><br>
+ * The search is held in a {@link Walk}, which stops at each match and
+ * picks up where it left off when asked for the next, so matches can
+ * be pulled one at a time as well as pushed to a visitor.
+ *
+ * @author
+ *    Ben Dougall
+ */
+final class SubsetSumSearch
+{
+   /**
+    * Receives each combination found by the search.
+    */
+   interface MatchVisitor
+   {
+      /**
+       * Called for each matching combination.
+       *
+       * @param indexes
+       *    The indexes of the combination's amounts, in ascending
+       *    order. The array is reused, only the first count entries
+       *    belong to the combination.
+       * @param count
+       *    The number of amounts in the combination.
+       * @return
+       *    True to keep searching, false to stop.
+       */
+      boolean found(int[] indexes, int count);
+   }
+
+   /**
+    * Mask over the steps of a walk, the stop check being called once
+    * every (mask + 1) steps so checking a clock or flag costs next to
+    * nothing next to the search itself.
+    */
+   static final int STOP_CHECK_MASK = 4095;
+
+   private final long[]            amounts;
+   private long                    minTotal;
+   private long                    maxTotal;
+   private final long              cap;
+   private final ReachabilityTable table;
+
+   /**
+    * Best total reachable by a branch that adds the amount at each
+    * index: the amount plus every positive amount after it. Never
+    * increases from one index to the next, so it can be binary searched.
+    */
+   private final long[]            reach;
+
+   /**
+    * Lowest total reachable by a branch that adds the amount at each
+    * index, less the amount: nothing unless netting, when it is the sum
+    * of every negative amount after the index.
+    */
+   private final long[]            floor;
+
+   /**
+    * Sum of every negative amount after each index, the lowest a branch
+    * that adds the amount at the index can take its total, less the 
+    * amount, whether or not it may net.
+    */
+   private final long[]            lowest;
+
+   /**
+    * First index whose lowest reachable total no longer falls: the first
+    * negative amount when netting, otherwise the number of amounts.
+    */
+   private int                     valley;
+
+   private BooleanSupplier stopCheck;
+   private int             minSize = 1;
+   private int             maxSize = Integer.MAX_VALUE;
+
+   /**
+    * Constructor, setting the amounts to search through and the total
+    * to find.
+    *
+    * @param amounts
+    *    The scaled amounts, sorted largest first.
+    * @param target
+    *    The scaled total to find.
+    */
+   SubsetSumSearch(long[] amounts, long target)
+   {
+      this(amounts, target, null);
+   }
+
+   /**
+    * Constructor, setting the amounts to search through, the total to
+    * find and the reachability table to steer the search with.
+    *
+    * @param amounts
+    *    The scaled amounts, sorted largest first.
+    * @param target
+    *    The scaled total to find.
+    * @param table
+    *    The reachability table built for the amounts and target, so 
+    *    only branches that end in a match are visited, or null to 
+    *    search without one.
+    */
+   SubsetSumSearch(long[] amounts, long target, ReachabilityTable table)
+   {
+      this(amounts, target, target, table);
+   }
+
+   /**
+    * Constructor, setting the amounts to search through, the window of
+    * totals to find and the reachability table to steer the search with.
+    *
+    * @param amounts
+    *    The scaled amounts, sorted largest first.
+    * @param minTotal
+    *    The lowest scaled total that matches.
+    * @param maxTotal
+    *    The highest scaled total that matches.
+    * @param table
+    *    The reachability table built for the amounts and highest total,
+    *    or null to search without one.
+    */
+   SubsetSumSearch(long[] amounts, long minTotal, long maxTotal, ReachabilityTable table)
+   {
+      this.amounts = amounts;
+      this.minTotal = minTotal;
+      this.maxTotal = maxTotal;
+      this.cap = maxTotal;
+      this.table = table;
+      this.reach = new long[amounts.length];
+      this.floor = new long[amounts.length];
+      this.lowest = new long[amounts.length];
+      this.valley = amounts.length;
+
+      long positiveSuffix = 0;
+      long negativeSuffix = 0;
+      for (int i = amounts.length - 1; i >= 0; --i)
+      {
+         reach[i] = saturatedAdd(amounts[i], positiveSuffix);
+         lowest[i] = negativeSuffix;
+         if (amounts[i] > 0)
+         {
+            positiveSuffix = saturatedAdd(positiveSuffix, amounts[i]);
+         }
+         else
+         {
+            negativeSuffix = saturatedAdd(negativeSuffix, amounts[i]);
+         }
+      }
+   }
+
+   /**
+    * Sets a check the search calls every so often, so a long search can
+    * be stopped from outside, e.g. when a deadline passes. Set before
+    * the search starts; the check may be called from several threads at
+    * once when the search is run in parallel.
+    *
+    * @param stopCheck
+    *    Returns true when the search should stop, or null to never stop
+    *    early.
+    */
+   void setStopCheck(BooleanSupplier stopCheck)
+   {
+      this.stopCheck = stopCheck;
+   }
+
+   /**
+    * Lets the running total go over the top of the window while the
+    * negative amounts still to come can bring it back down, so credits
+    * and debits can net out in any order. Set before the search starts.
+    */
+   void allowNetting()
+   {
+      long negativeSuffix = 0;
+      valley = amounts.length;
+      for (int i = amounts.length - 1; i >= 0; --i)
+      {
+         floor[i] = negativeSuffix;
+         if (amounts[i] < 0)
+         {
+            negativeSuffix = saturatedAdd(negativeSuffix, amounts[i]);
+            valley = i;
+         }
+      }
+   }
+
+   /**
+    * Limits the number of elements in the combinations found. Set before
+    * the search starts.
+    *
+    * @param minSize
+    *    The fewest elements in a combination, at least 1.
+    * @param maxSize
+    *    The most elements in a combination.
+    */
+   void setSizeLimits(int minSize, int maxSize)
+   {
+      this.minSize = Math.max(1, minSize);
+      this.maxSize = maxSize;
+   }
+
+   /**
+    * Narrows the window of totals that match, e.g. from a visitor once a
+    * better bound is known. The window is only ever narrowed, bounds
+    * outside the current window are ignored. The running total may 
+    * still go up to the top of the window the search started with. Only
+    * for a search running on one thread.
+    *
+    * @param minTotal
+    *    The new lowest total that matches.
+    * @param maxTotal
+    *    The new highest total that matches.
+    */
+   void narrow(long minTotal, long maxTotal)
+   {
+      this.minTotal = Math.max(this.minTotal, minTotal);
+      this.maxTotal = Math.min(this.maxTotal, maxTotal);
+   }
+
+   /**
+    * Runs the search, reporting every matching combination to the
+    * visitor passed.
+    *
+    * @param visitor
+    *    The visitor receiving the matches.
+    * @return
+    *    True if the search ran to the end, false if the visitor or the
+    *    stop check stopped it.
+    */
+   boolean search(MatchVisitor visitor)
+   {
+      return searchFrom(new int[0], 0, 0, visitor);
+   }
+
+   /**
+    * Searches the part of the tree below a prefix: the elements before
+    * the index passed have already been decided, and those chosen are
+    * passed in. The prefix is reported first if it matches on its own,
+    * followed by every match that adds elements from the index on, in
+    * the same order the full search would report them.
+    *
+    * @param prefix
+    *    The indexes already chosen, in ascending order, each one allowed
+    *    by {@link #canAdd(int, long, int)} when it was chosen.
+    * @param from
+    *    The index of the first element still to decide.
+    * @param prefixSum
+    *    The total of the chosen elements.
+    * @param visitor
+    *    The visitor receiving the matches.
+    * @return
+    *    True if the search ran to the end, false if the visitor or the
+    *    stop check stopped it.
+    */
+   boolean searchFrom(int[] prefix, int from, long prefixSum, MatchVisitor visitor)
+   {
+      Walk walk = new Walk(prefix, from, prefixSum);
+      for (int count = walk.nextMatch(); count >= 0; count = walk.nextMatch())
+      {
+         if (!visitor.found(walk.indexes(), count))
+         {
+            return false;
+         }
+      }
+      return !walk.isStopped();
+   }
+
+   /**
+    * Starts a walk over the whole search tree.
+    *
+    * @return
+    *    The walk, positioned before the first match.
+    */
+   Walk walk()
+   {
+      return new Walk(new int[0], 0, 0);
+   }
+
+   /**
+    * Checks whether the search would step into the branch that adds the
+    * element at the index passed to a total.
+    *
+    * @param index
+    *    The element's index.
+    * @param sum
+    *    The total so far.
+    * @param size
+    *    The number of elements chosen so far.
+    * @return
+    *    True if the element can be added without going over the top of
+    *    the window and the branch can still reach the window and the
+    *    size limits.
+    */
+   boolean canAdd(int index, long sum, int size)
+   {
+      long after = sum + amounts[index];
+      return after + floor[index] <= cap && after + lowest[index] <= maxTotal && reach[index] >= minTotal - sum
+            && size < maxSize && (size + 1 < maxSize || (after >= minTotal && after <= maxTotal))
+            && size + amounts.length - index >= minSize
+            && (table == null || table.canReachAny(index + 1, minTotal - after, maxTotal - after));
+   }
+
+   /**
+    * @return
+    *    The scaled amounts being searched.
+    */
+   long[] getAmounts()
+   {
+      return amounts;
+   }
+
+   /**
+    * Finds the first index, from the index passed on, whose amount can
+    * be added without taking the total over the top of the starting 
+    * window, or past what the negative amounts after it can bring back 
+    * down.
+    *
+    * @param from
+    *    The first index to consider.
+    * @param sum
+    *    The total so far.
+    * @return
+    *    The index, or the first index after the fall in the lowest
+    *    reachable totals if none before it can be added.
+    */
+   private int firstAddable(int from, long sum)
+   {
+      long room = cap - sum;
+      int lo = from;
+      int hi = Math.max(from, valley);
+      while (lo < hi)
+      {
+         int mid = (lo + hi) >>> 1;
+         if (amounts[mid] + floor[mid] > room)
+         {
+            lo = mid + 1;
+         }
+         else
+         {
+            hi = mid;
+         }
+      }
+      return lo;
+   }
+
+   /**
+    * Finds the last index that can be added without taking the total
+    * past what the negative amounts after it can bring back down. Only
+    * differs from the last index when netting, as the lowest reachable
+    * totals rise again through the negative amounts.
+    *
+    * @param from
+    *    The first index to consider.
+    * @param sum
+    *    The total so far.
+    * @return
+    *    The index, or one less than the first index after the fall in
+    *    the lowest reachable totals if none from there on can.
+    */
+   private int lastAddable(int from, long sum)
+   {
+      long room = cap - sum;
+      int lo = Math.max(from, valley);
+      int hi = amounts.length;
+      while (lo < hi)
+      {
+         int mid = (lo + hi) >>> 1;
+         if (amounts[mid] + floor[mid] <= room)
+         {
+            lo = mid + 1;
+         }
+         else
+         {
+            hi = mid;
+         }
+      }
+      return lo - 1;
+   }
+
+   /**
+    * Finds the first index, from the index passed on, whose amount is at
+    * most the amount passed.
+    *
+    * @param from
+    *    The first index to consider.
+    * @param room
+    *    The largest amount allowed.
+    * @return
+    *    The index, or the number of amounts if none is.
+    */
+   private int firstAtMost(int from, long room)
+   {
+      int lo = from;
+      int hi = amounts.length;
+      while (lo < hi)
+      {
+         int mid = (lo + hi) >>> 1;
+         if (amounts[mid] > room)
+         {
+            lo = mid + 1;
+         }
+         else
+         {
+            hi = mid;
+         }
+      }
+      return lo;
+   }
+
+   /**
+    * Finds the last index, from the index passed on, whose amount is at
+    * least the amount passed.
+    *
+    * @param from
+    *    The first index to consider.
+    * @param needed
+    *    The amount needed.
+    * @return
+    *    The index, or one less than the index passed if none is.
+    */
+   private int lastAtLeast(int from, long needed)
+   {
+      int lo = from;
+      int hi = amounts.length;
+      while (lo < hi)
+      {
+         int mid = (lo + hi) >>> 1;
+         if (amounts[mid] >= needed)
+         {
+            lo = mid + 1;
+         }
+         else
+         {
+            hi = mid;
+         }
+      }
+      return lo - 1;
+   }
+
+   /**
+    * Sets a frame's range of indexes to try as the next element: those
+    * that fit under the top of the window, can still reach the window,
+    * and leave enough elements after them for the fewest allowed, or
+    * none at all once the most elements allowed have been chosen.
+    *
+    * @param from
+    *    The first index to consider.
+    * @param sum
+    *    The total so far.
+    * @param size
+    *    The number of elements chosen so far.
+    * @param low
+    *    The frames' lowest indexes, set at the size passed.
+    * @param next
+    *    The frames' highest indexes, set at the size passed.
+    */
+   private void setRange(int from, long sum, int size, int[] low, int[] next)
+   {
+      low[size] = firstAddable(from, sum);
+      if (size >= maxSize)
+      {
+         next[size] = low[size] - 1;
+         return;
+      }
+
+      int last = Math.min(lastAddable(from, sum), lastReaching(low[size], sum));
+      if (size + 1 == maxSize)
+      {
+         // The last element allowed must bring the total into the window.
+         low[size] = Math.max(low[size], firstAtMost(from, maxTotal - sum));
+         last = Math.min(last, lastAtLeast(low[size], minTotal - sum));
+      }
+      next[size] = Math.min(last, amounts.length - minSize + size);
+   }
+
+   /**
+    * Finds the last index, from the index passed on, that can still
+    * bring the total up into the window if added.
+    *
+    * @param from
+    *    The first index to consider.
+    * @param sum
+    *    The total so far.
+    * @return
+    *    The index, or one less than the index passed if none can.
+    */
+   private int lastReaching(int from, long sum)
+   {
+      long needed = minTotal - sum;
+      int lo = from;
+      int hi = amounts.length;
+      while (lo < hi)
+      {
+         int mid = (lo + hi) >>> 1;
+         if (reach[mid] >= needed)
+         {
+            lo = mid + 1;
+         }
+         else
+         {
+            hi = mid;
+         }
+      }
+      return lo - 1;
+   }
+
+   /**
+    * One run through the search tree, holding the depth first search's
+    * stack so it can stop at each match and carry on from there when
+    * asked for the next.
+    */
+   final class Walk
+   {
+      // One frame per element added: the total so far and the range of
+      // indexes still to try as the next element, tried from the
+      // highest index down to match the original bit pattern order.
+      private final int[]  chosen;
+      private final long[] sums;
+      private final int[]  next;
+      private final int[]  low;
+      private final int    base;
+
+      private int     depth;
+      private boolean prefixPending;
+      private boolean stopped = false;
+      private long    steps   = 0;
+
+      /**
+       * Constructor, positioning the walk before the first match below
+       * a prefix, as described for
+       * {@link SubsetSumSearch#searchFrom(int[], int, long, MatchVisitor)}.
+       *
+       * @param prefix
+       *    The indexes already chosen, in ascending order.
+       * @param from
+       *    The index of the first element still to decide.
+       * @param prefixSum
+       *    The total of the chosen elements.
+       */
+      private Walk(int[] prefix, int from, long prefixSum)
+      {
+         final int n = amounts.length;
+         this.base = prefix.length;
+         this.chosen = Arrays.copyOf(prefix, n);
+         this.sums = new long[n + 1];
+         this.next = new int[n + 1];
+         this.low = new int[n + 1];
+         this.prefixPending = base > 0 && base >= minSize && prefixSum >= minTotal && prefixSum <= maxTotal;
+
+         depth = base;
+         sums[depth] = prefixSum;
+         setRange(from, prefixSum, depth, low, next);
+      }
+
+      /**
+       * Moves on to the next match.
+       *
+       * @return
+       *    The number of elements in the match, their indexes held in
+       *    {@link #indexes()} until the next call, or -1 if there are no
+       *    more matches or the stop check stopped the walk.
+       */
+      int nextMatch()
+      {
+         if (prefixPending)
+         {
+            prefixPending = false;
+            return base;
+         }
+
+         while (depth >= base)
+         {
+            if (stopCheck != null && (steps++ & STOP_CHECK_MASK) == 0 && stopCheck.getAsBoolean())
+            {
+               stopped = true;
+               depth = base - 1;
+               break;
+            }
+            if (next[depth] < low[depth])
+            {
+               --depth;
+               continue;
+            }
+
+            int index = next[depth]--;
+            long sum = sums[depth] + amounts[index];
+            if (sum + lowest[index] > maxTotal)
+            {
+               // Only once the window has been narrowed: not even every
+               // negative amount left brings the total back into it.
+               continue;
+            }
+            if (table != null && !table.canReachAny(index + 1, minTotal - sum, maxTotal - sum))
+            {
+               continue;
+            }
+            chosen[depth] = index;
+            ++depth;
+
+            sums[depth] = sum;
+            setRange(index + 1, sum, depth, low, next);
+            if (sum >= minTotal && sum <= maxTotal && depth >= minSize)
+            {
+               return depth;
+            }
+         }
+         return -1;
+      }
+
+      /**
+       * @return
+       *    The indexes of the last match, in ascending order. The array
+       *    is reused, only as many entries as the last call to
+       *    {@link #nextMatch()} returned belong to the match.
+       */
+      int[] indexes()
+      {
+         return chosen;
+      }
+
+      /**
+       * @return
+       *    True if the stop check ended the walk before it finished.
+       */
+      boolean isStopped()
+      {
+         return stopped;
+      }
+   }
+
+   /**
+    * Adds two longs, sticking at the long limits instead of wrapping.
+    *
+    * @param a
+    *    The first value.
+    * @param b
+    *    The second value.
+    * @return
+    *    The sum.
+    */
+   static long saturatedAdd(long a, long b)
+   {
+      long sum = a + b;
+      if (((a ^ sum) & (b ^ sum)) < 0)
+      {
+         return a < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+      }
+      return sum;
+   }
+}
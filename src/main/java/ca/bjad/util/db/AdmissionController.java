@@ -0,0 +1,662 @@
+package ca.bjad.util.db;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control for the commands run against a single connection
+ * string. Once a controller has been created for a connection string
+ * through {@link #getController(String)}, every database wrapper
+ * created for that connection string must be admitted before it
+ * borrows a connection, and gives its permit back when it is closed.
+ * When traffic spikes, callers queue here in arrival order instead of
+ * all piling onto the database at once, and callers that would queue
+ * for too long are turned away with a SQLTransientException.
+ *
+ * <br><br>
+ * Three limits can be combined:
+ * <ul>
+ *    <li>A concurrency limit, the number of wrappers open at once.</li>
+ *    <li>An optional rate limit, a token bucket capping the number of
+ *        wrappers admitted per second with a set burst size.</li>
+ *    <li>An optional adaptive limit, which moves the concurrency limit
+ *        between a floor and a ceiling based on the latency of the 
+ *        commands run under its permits. The limit grows by one after a
+ *        full limit's worth of commands finish within the latency 
+ *        tolerance of the best latency seen recently, and is cut by the
+ *        backoff ratio when one finishes slower than that (AIMD).</li>
+ * </ul>
+ *
+ * Database wrappers report the time each command takes to execute 
+ * (and fetch, for queries read by the wrapper) through 
+ * {@link Permit#recordLatency(long)}, so time the caller spends between
+ * commands while holding the wrapper open does not count as latency.
+ *
+ * A permit is held from wrapper construction until close, so a thread
+ * that opens a second wrapper while holding the first needs two
+ * permits; keep the concurrency limit above the deepest nesting used
+ * by any one thread.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class AdmissionController
+{
+   /**
+    * Default number of permits handed out at once.
+    */
+   public static final int DEFAULT_MAX_CONCURRENT = ConnectionPool.DEFAULT_MAX_SIZE;
+
+   /**
+    * Default number of milliseconds a caller will queue for a permit
+    * before giving up.
+    */
+   public static final long DEFAULT_MAX_QUEUE_WAIT_MILLIS = 30000L;
+
+   /**
+    * Default ratio the adaptive limit is multiplied by when a command
+    * comes back slower than the latency tolerance allows.
+    */
+   public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+
+   /**
+    * Default multiple of the best recent latency a command can take
+    * before the adaptive limit is cut.
+    */
+   public static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+
+   /**
+    * Number of completed commands after which the best recent latency
+    * is recalculated, so the baseline follows a database whose normal
+    * speed changes over time.
+    */
+   static final int BASELINE_WINDOW = 1000;
+
+   /**
+    * Latency above the baseline that is always tolerated, so timer
+    * jitter on very fast commands is not mistaken for overload.
+    */
+   static final long LATENCY_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+   private static final ConcurrentHashMap<String, AdmissionController> CONTROLLERS = new ConcurrentHashMap<>();
+
+   /**
+    * Gets the admission controller for the connection string passed,
+    * creating it with the default settings if it does not exist yet.
+    * From then on every wrapper created for the connection string
+    * goes through the controller.
+    *
+    * @param connectionString
+    *    The connection string to control.
+    * @return
+    *    The controller for the connection string.
+    */
+   public static AdmissionController getController(String connectionString)
+   {
+      AdmissionController controller = CONTROLLERS.get(connectionString);
+      if (controller == null)
+      {
+         controller = new AdmissionController(connectionString);
+         AdmissionController existing = CONTROLLERS.putIfAbsent(connectionString, controller);
+         if (existing != null)
+         {
+            controller = existing;
+         }
+      }
+      return controller;
+   }
+
+   /**
+    * Removes the admission controller for the connection string passed,
+    * so wrappers created afterwards are no longer throttled. Permits
+    * already handed out are still returned to the removed controller.
+    *
+    * @param connectionString
+    *    The connection string.
+    */
+   public static void removeController(String connectionString)
+   {
+      CONTROLLERS.remove(connectionString);
+   }
+
+   /**
+    * Looks up the controller for a connection string without creating
+    * one.
+    *
+    * @param connectionString
+    *    The connection string.
+    * @return
+    *    The controller, or null if the connection string is not
+    *    throttled.
+    */
+   static AdmissionController lookup(String connectionString)
+   {
+      return CONTROLLERS.isEmpty() ? null : CONTROLLERS.get(connectionString);
+   }
+
+   private final String             connectionString;
+
+   private final ReentrantLock      lock               = new ReentrantLock(true);
+   private final Condition          admissionChanged   = lock.newCondition();
+   private final ArrayDeque<Object> waiters            = new ArrayDeque<>();
+
+   private int                      limit              = DEFAULT_MAX_CONCURRENT;
+   private int                      inFlight           = 0;
+   private long                     maxQueueWaitMillis = DEFAULT_MAX_QUEUE_WAIT_MILLIS;
+   private int                      maxQueueLength     = Integer.MAX_VALUE;
+
+   private double                   permitsPerSecond   = 0;
+   private double                   burstSize          = 0;
+   private double                   tokens             = 0;
+   private long                     lastRefillNanos    = 0;
+
+   private volatile boolean         adaptive           = false;
+   private int                      minLimit           = 1;
+   private int                      maxLimit           = DEFAULT_MAX_CONCURRENT;
+   private double                   latencyTolerance   = DEFAULT_LATENCY_TOLERANCE;
+   private double                   backoffRatio       = DEFAULT_BACKOFF_RATIO;
+   private long                     baselineNanos      = Long.MAX_VALUE;
+   private long                     windowMinNanos     = Long.MAX_VALUE;
+   private int                      windowSamples      = 0;
+   private int                      goodSamples        = 0;
+   private int                      samplesSinceCut    = 0;
+
+   private long                     admittedCount      = 0;
+   private long                     rejectedCount      = 0;
+   private long                     timeoutCount       = 0;
+   private long                     totalQueueNanos    = 0;
+   private long                     maxQueueNanos      = 0;
+   private long                     limitIncreases     = 0;
+   private long                     limitDecreases     = 0;
+
+   /**
+    * Constructor, setting the connection string the controller
+    * admits commands for.
+    *
+    * @param connectionString
+    *    The connection string.
+    */
+   private AdmissionController(String connectionString)
+   {
+      this.connectionString = connectionString;
+   }
+
+   /**
+    * @return
+    *    The connection string the controller admits commands for.
+    */
+   public String getConnectionString()
+   {
+      return connectionString;
+   }
+
+   /**
+    * Sets the number of permits handed out at once. Turns the adaptive
+    * limit off.
+    *
+    * @param maxConcurrent
+    *    The concurrency limit, must be at least 1.
+    */
+   public void setMaxConcurrent(int maxConcurrent)
+   {
+      if (maxConcurrent < 1)
+      {
+         throw new IllegalArgumentException("Concurrency limit must be at least 1, was " + maxConcurrent);
+      }
+      lock.lock();
+      try
+      {
+         adaptive = false;
+         limit = maxConcurrent;
+         admissionChanged.signalAll();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Turns on the adaptive concurrency limit, which starts at the
+    * current limit (clamped to the range passed) and moves between
+    * the floor and ceiling based on the command latencies recorded 
+    * through the permits handed out.
+    *
+    * @param minConcurrent
+    *    The lowest the limit will be cut to, must be at least 1.
+    * @param maxConcurrent
+    *    The highest the limit will grow to.
+    * @param latencyTolerance
+    *    The multiple of the best recent latency a command can take
+    *    before the limit is cut, must be greater than 1.
+    * @param backoffRatio
+    *    The ratio the limit is multiplied by when it is cut, between
+    *    0 and 1.
+    */
+   public void setAdaptiveLimit(int minConcurrent, int maxConcurrent, double latencyTolerance, double backoffRatio)
+   {
+      if (minConcurrent < 1 || maxConcurrent < minConcurrent)
+      {
+         throw new IllegalArgumentException("Invalid adaptive limit range " + minConcurrent + " to " + maxConcurrent);
+      }
+      if (!(latencyTolerance > 1))
+      {
+         throw new IllegalArgumentException("Latency tolerance must be greater than 1, was " + latencyTolerance);
+      }
+      if (!(backoffRatio > 0 && backoffRatio < 1))
+      {
+         throw new IllegalArgumentException("Backoff ratio must be between 0 and 1, was " + backoffRatio);
+      }
+      lock.lock();
+      try
+      {
+         adaptive = true;
+         minLimit = minConcurrent;
+         maxLimit = maxConcurrent;
+         this.latencyTolerance = latencyTolerance;
+         this.backoffRatio = backoffRatio;
+         limit = Math.max(minConcurrent, Math.min(maxConcurrent, limit));
+         baselineNanos = Long.MAX_VALUE;
+         windowMinNanos = Long.MAX_VALUE;
+         windowSamples = 0;
+         goodSamples = 0;
+         samplesSinceCut = 0;
+         admissionChanged.signalAll();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Sets the rate limit, a token bucket that admits up to the burst
+    * size at once and refills at the rate passed.
+    *
+    * @param permitsPerSecond
+    *    The number of permits handed out per second, 0 or less to turn
+    *    the rate limit off.
+    * @param burstSize
+    *    The number of permits that can be handed out back to back
+    *    after a quiet period, at least 1.
+    */
+   public void setRateLimit(double permitsPerSecond, int burstSize)
+   {
+      lock.lock();
+      try
+      {
+         this.permitsPerSecond = Math.max(0, permitsPerSecond);
+         this.burstSize = Math.max(1, burstSize);
+         this.tokens = this.burstSize;
+         this.lastRefillNanos = System.nanoTime();
+         admissionChanged.signalAll();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Sets the number of milliseconds a caller will queue for a permit
+    * before a SQLTransientException is thrown.
+    *
+    * @param maxQueueWaitMillis
+    *    The max wait time, 0 to fail immediately when no permit is free.
+    */
+   public void setMaxQueueWaitMillis(long maxQueueWaitMillis)
+   {
+      lock.lock();
+      try
+      {
+         this.maxQueueWaitMillis = Math.max(0, maxQueueWaitMillis);
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Sets the number of callers that can be queued at once. Callers
+    * arriving when the queue is full are rejected straight away.
+    *
+    * @param maxQueueLength
+    *    The queue length, 0 to reject whenever no permit is free.
+    */
+   public void setMaxQueueLength(int maxQueueLength)
+   {
+      lock.lock();
+      try
+      {
+         this.maxQueueLength = Math.max(0, maxQueueLength);
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return
+    *    The current concurrency limit.
+    */
+   public int getLimit()
+   {
+      lock.lock();
+      try
+      {
+         return limit;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Waits for a permit, in arrival order, up to the max queue wait
+    * time.
+    *
+    * @return
+    *    The permit, which must be closed once the work is done.
+    * @throws SQLException
+    *    SQLTransientException if the queue is full or no permit became
+    *    free in time.
+    */
+   public Permit acquire() throws SQLException
+   {
+      final long start = System.nanoTime();
+      lock.lock();
+      try
+      {
+         if (waiters.isEmpty() && tryAdmit(start))
+         {
+            recordAdmit(0);
+            return new Permit(this);
+         }
+         if (waiters.size() >= maxQueueLength)
+         {
+            rejectedCount++;
+            throw new SQLTransientException("Admission queue for " + connectionString + " is full ("
+                  + waiters.size() + " waiting)");
+         }
+
+         final long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis);
+         Object ticket = new Object();
+         waiters.addLast(ticket);
+         try
+         {
+            while (true)
+            {
+               long now = System.nanoTime();
+               if (waiters.peekFirst() == ticket && tryAdmit(now))
+               {
+                  recordAdmit(now - start);
+                  return new Permit(this);
+               }
+
+               long remaining = deadline - now;
+               if (remaining <= 0)
+               {
+                  timeoutCount++;
+                  throw new SQLTransientException("Timed out after " + maxQueueWaitMillis
+                        + "ms waiting for admission to " + connectionString);
+               }
+               long wait = remaining;
+               if (waiters.peekFirst() == ticket && inFlight < limit)
+               {
+                  // Only the rate limit is holding this caller back.
+                  wait = Math.min(wait, nanosUntilToken());
+               }
+               admissionChanged.awaitNanos(wait);
+            }
+         }
+         catch (InterruptedException ex)
+         {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientException("Interrupted waiting for admission to " + connectionString, ex);
+         }
+         finally
+         {
+            waiters.remove(ticket);
+            admissionChanged.signalAll();
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return
+    *    Snapshot of the controller's statistics.
+    */
+   public AdmissionStats getStats()
+   {
+      lock.lock();
+      try
+      {
+         return new AdmissionStats(limit, inFlight, waiters.size(), admittedCount, rejectedCount,
+               timeoutCount, totalQueueNanos, maxQueueNanos, limitIncreases, limitDecreases);
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Takes a concurrency slot, and a token if the rate limit is on, if
+    * both are free. Must be called holding the lock.
+    *
+    * @param now
+    *    The current nano time.
+    * @return
+    *    True if the caller was admitted.
+    */
+   private boolean tryAdmit(long now)
+   {
+      if (inFlight >= limit)
+      {
+         return false;
+      }
+      if (permitsPerSecond > 0)
+      {
+         refill(now);
+         if (tokens < 1)
+         {
+            return false;
+         }
+         tokens -= 1;
+      }
+      inFlight++;
+      return true;
+   }
+
+   /**
+    * Adds the tokens earned since the last refill, up to the burst
+    * size. Must be called holding the lock.
+    *
+    * @param now
+    *    The current nano time.
+    */
+   private void refill(long now)
+   {
+      tokens = Math.min(burstSize, tokens + (now - lastRefillNanos) * permitsPerSecond / 1e9);
+      lastRefillNanos = now;
+   }
+
+   /**
+    * @return
+    *    The nanoseconds until the next token is earned. Must be called
+    *    holding the lock.
+    */
+   private long nanosUntilToken()
+   {
+      return Math.max(1, (long) Math.ceil((1 - tokens) * 1e9 / permitsPerSecond));
+   }
+
+   /**
+    * Records an admission. Must be called holding the lock.
+    *
+    * @param queueNanos
+    *    The time the caller spent queued.
+    */
+   private void recordAdmit(long queueNanos)
+   {
+      admittedCount++;
+      totalQueueNanos += queueNanos;
+      maxQueueNanos = Math.max(maxQueueNanos, queueNanos);
+   }
+
+   /**
+    * Hands a permit back.
+    */
+   private void release()
+   {
+      lock.lock();
+      try
+      {
+         inFlight--;
+         admissionChanged.signalAll();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Feeds the latency of a command to the adaptive limit, if it is on.
+    *
+    * @param latencyNanos
+    *    The time the command took.
+    */
+   private void recordLatency(long latencyNanos)
+   {
+      lock.lock();
+      try
+      {
+         if (adaptive)
+         {
+            adjustLimit(latencyNanos);
+            admissionChanged.signalAll();
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Moves the adaptive limit based on a latency sample. Must be
+    * called holding the lock.
+    *
+    * @param latencyNanos
+    *    The time a command took.
+    */
+   private void adjustLimit(long latencyNanos)
+   {
+      windowMinNanos = Math.min(windowMinNanos, latencyNanos);
+      baselineNanos = Math.min(baselineNanos, latencyNanos);
+      if (++windowSamples >= BASELINE_WINDOW)
+      {
+         baselineNanos = windowMinNanos;
+         windowMinNanos = Long.MAX_VALUE;
+         windowSamples = 0;
+      }
+      samplesSinceCut++;
+
+      double tolerated = Math.max(baselineNanos * latencyTolerance, baselineNanos + LATENCY_SLACK_NANOS);
+      if (latencyNanos > tolerated)
+      {
+         goodSamples = 0;
+         // Cut at most once per limit's worth of commands, so one slow
+         // burst does not collapse the limit to the floor.
+         if (samplesSinceCut >= limit)
+         {
+            int cut = Math.max(minLimit, (int) (limit * backoffRatio));
+            if (cut < limit)
+            {
+               limit = cut;
+               limitDecreases++;
+            }
+            samplesSinceCut = 0;
+         }
+      }
+      else if (++goodSamples >= limit)
+      {
+         goodSamples = 0;
+         if (limit < maxLimit)
+         {
+            limit++;
+            limitIncreases++;
+         }
+      }
+   }
+
+   /**
+    * Permit handed out by {@link AdmissionController#acquire()}. Closing
+    * it more than once has no further effect.
+    */
+   public static final class Permit implements AutoCloseable
+   {
+      private final AdmissionController controller;
+      private boolean                   released = false;
+
+      /**
+       * Constructor, setting the controller the permit belongs to.
+       *
+       * @param controller
+       *    The controller.
+       */
+      private Permit(AdmissionController controller)
+      {
+         this.controller = controller;
+      }
+
+      /**
+       * @return
+       *    True if the controller's adaptive limit is on, so command
+       *    latencies should be recorded.
+       */
+      public boolean isAdaptive()
+      {
+         return controller.adaptive;
+      }
+
+      /**
+       * Feeds the time one command run under the permit took to the 
+       * controller's adaptive limit. Does nothing if the adaptive limit
+       * is off.
+       *
+       * @param latencyNanos
+       *    The time the command took, in nanoseconds.
+       */
+      public void recordLatency(long latencyNanos)
+      {
+         controller.recordLatency(latencyNanos);
+      }
+
+      /**
+       * Hands the permit back to the controller.
+       */
+      @Override
+      public void close()
+      {
+         if (!released)
+         {
+            released = true;
+            controller.release();
+         }
+      }
+   }
+}
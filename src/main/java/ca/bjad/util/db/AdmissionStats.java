@@ -0,0 +1,173 @@
+package ca.bjad.util.db;
+
+/**
+ * Point in time snapshot of the statistics gathered by an
+ * {@link AdmissionController}.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class AdmissionStats
+{
+   private final int  limit;
+   private final int  inFlight;
+   private final int  queued;
+   private final long admittedCount;
+   private final long rejectedCount;
+   private final long timeoutCount;
+   private final long totalQueueNanos;
+   private final long maxQueueNanos;
+   private final long limitIncreases;
+   private final long limitDecreases;
+
+   /**
+    * Constructor, setting all the values of the snapshot.
+    *
+    * @param limit
+    *    The concurrency limit in effect.
+    * @param inFlight
+    *    Permits currently handed out.
+    * @param queued
+    *    Callers currently waiting for a permit.
+    * @param admittedCount
+    *    Number of permits handed out.
+    * @param rejectedCount
+    *    Number of callers turned away because the queue was full.
+    * @param timeoutCount
+    *    Number of callers that gave up after the max queue wait time.
+    * @param totalQueueNanos
+    *    Total time admitted callers spent queued.
+    * @param maxQueueNanos
+    *    Longest time a single admitted caller spent queued.
+    * @param limitIncreases
+    *    Number of times the adaptive limit was raised.
+    * @param limitDecreases
+    *    Number of times the adaptive limit was cut.
+    */
+   AdmissionStats(int limit, int inFlight, int queued, long admittedCount, long rejectedCount,
+         long timeoutCount, long totalQueueNanos, long maxQueueNanos, long limitIncreases,
+         long limitDecreases)
+   {
+      this.limit = limit;
+      this.inFlight = inFlight;
+      this.queued = queued;
+      this.admittedCount = admittedCount;
+      this.rejectedCount = rejectedCount;
+      this.timeoutCount = timeoutCount;
+      this.totalQueueNanos = totalQueueNanos;
+      this.maxQueueNanos = maxQueueNanos;
+      this.limitIncreases = limitIncreases;
+      this.limitDecreases = limitDecreases;
+   }
+
+   /**
+    * @return
+    *    The concurrency limit in effect.
+    */
+   public int getLimit()
+   {
+      return limit;
+   }
+
+   /**
+    * @return
+    *    Permits currently handed out.
+    */
+   public int getInFlight()
+   {
+      return inFlight;
+   }
+
+   /**
+    * @return
+    *    Callers currently waiting for a permit.
+    */
+   public int getQueued()
+   {
+      return queued;
+   }
+
+   /**
+    * @return
+    *    Number of permits handed out.
+    */
+   public long getAdmittedCount()
+   {
+      return admittedCount;
+   }
+
+   /**
+    * @return
+    *    Number of callers turned away because the queue was full.
+    */
+   public long getRejectedCount()
+   {
+      return rejectedCount;
+   }
+
+   /**
+    * @return
+    *    Number of callers that gave up after the max queue wait time.
+    */
+   public long getTimeoutCount()
+   {
+      return timeoutCount;
+   }
+
+   /**
+    * @return
+    *    Total time, in nanoseconds, admitted callers spent queued.
+    */
+   public long getTotalQueueNanos()
+   {
+      return totalQueueNanos;
+   }
+
+   /**
+    * @return
+    *    Longest time, in nanoseconds, a single admitted caller spent
+    *    queued.
+    */
+   public long getMaxQueueNanos()
+   {
+      return maxQueueNanos;
+   }
+
+   /**
+    * @return
+    *    Average time, in nanoseconds, admitted callers spent queued,
+    *    or 0 if nothing has been admitted yet.
+    */
+   public long getAverageQueueNanos()
+   {
+      return admittedCount == 0 ? 0 : totalQueueNanos / admittedCount;
+   }
+
+   /**
+    * @return
+    *    Number of times the adaptive limit was raised.
+    */
+   public long getLimitIncreases()
+   {
+      return limitIncreases;
+   }
+
+   /**
+    * @return
+    *    Number of times the adaptive limit was cut.
+    */
+   public long getLimitDecreases()
+   {
+      return limitDecreases;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "AdmissionStats [limit=" + limit + ", inFlight=" + inFlight + ", queued=" + queued
+            + ", admitted=" + admittedCount + ", rejected=" + rejectedCount
+            + ", timeouts=" + timeoutCount + ", avgQueueNanos=" + getAverageQueueNanos()
+            + ", maxQueueNanos=" + maxQueueNanos + ", limitIncreases=" + limitIncreases
+            + ", limitDecreases=" + limitDecreases + "]";
+   }
+}
@@ -0,0 +1,414 @@
+package ca.bjad.util.db;
+
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous facade over the database wrapper, running each command
+ * on an executor and handing back a CompletableFuture, so independent
+ * queries can be fanned out and run at the same time rather than one
+ * after another.
+ *
+ * <br><br>
+ * Each command borrows its own wrapper (and so its own pooled
+ * connection) for the time it runs. The number of commands running at
+ * once is capped, by default at the size of the connection pool, so
+ * commands queue for a permit instead of timing out waiting for a
+ * connection. Cancelling a returned future cancels that command's
+ * statement if it has already started, and stops it from starting if
+ * it has not; a cancel that arrives after the command has finished
+ * does nothing.
+ *
+ * <pre>
+ * try (AsyncDatabaseExecutor async = new AsyncDatabaseExecutor(connectionString))
+ * {
+ *    CompletableFuture&lt;List&lt;Person&gt;&gt; people = async.executeQuery("SELECT * FROM person", mapper);
+ *    CompletableFuture&lt;Integer&gt; updated = async.executeNonQuery("UPDATE account SET flag = ?", 1);
+ *    CompletableFuture.allOf(people, updated).join();
+ * }
+ * </pre>
+ *
+ * @author
+ *    Ben Dougall
+ */
+public class AsyncDatabaseExecutor implements AutoCloseable
+{
+   private final String          connectionString;
+   private final Executor        executor;
+   private final ExecutorService ownedExecutor;
+   private final Semaphore       permits;
+   private final AtomicInteger   inFlight            = new AtomicInteger();
+   private volatile int          queryTimeoutSeconds = 0;
+
+   /**
+    * Constructor, running commands against the connection string passed
+    * on the default executor, with concurrency capped at the size of
+    * the connection string's pool.
+    *
+    * @param connectionString
+    *    The connection string, null to use the global connection string.
+    */
+   public AsyncDatabaseExecutor(String connectionString)
+   {
+      this.connectionString = connectionString;
+      int maxConcurrency = ConnectionPool.getPool(resolveConnectionString()).getMaxSize();
+      this.ownedExecutor = newDefaultExecutor(maxConcurrency);
+      this.executor = ownedExecutor;
+      this.permits = new Semaphore(maxConcurrency, true);
+   }
+
+   /**
+    * Constructor, running commands against the connection string passed
+    * on the executor passed, with concurrency capped at the size of the
+    * connection string's pool.
+    *
+    * @param connectionString
+    *    The connection string, null to use the global connection string.
+    * @param executor
+    *    The executor to run commands on, which is not shut down by
+    *    {@link #close()}.
+    */
+   public AsyncDatabaseExecutor(String connectionString, Executor executor)
+   {
+      this(connectionString, executor, ConnectionPool.getPool(
+            connectionString == null ? DatabaseWrapper.globalConnectionString : connectionString).getMaxSize());
+   }
+
+   /**
+    * Constructor, running commands against the connection string passed
+    * on the executor passed, with concurrency capped at the number passed.
+    *
+    * @param connectionString
+    *    The connection string, null to use the global connection string.
+    * @param executor
+    *    The executor to run commands on, which is not shut down by
+    *    {@link #close()}.
+    * @param maxConcurrency
+    *    The most commands that will run at once.
+    */
+   public AsyncDatabaseExecutor(String connectionString, Executor executor, int maxConcurrency)
+   {
+      if (maxConcurrency < 1)
+      {
+         throw new IllegalArgumentException("Concurrency must be at least 1, was " + maxConcurrency);
+      }
+      this.connectionString = connectionString;
+      this.ownedExecutor = null;
+      this.executor = executor;
+      this.permits = new Semaphore(maxConcurrency, true);
+   }
+
+   /**
+    * Creates the default executor: one virtual thread per command when
+    * running on a JDK with virtual threads, otherwise a fixed pool of
+    * daemon platform threads.
+    *
+    * @param maxPlatformThreads
+    *    The number of threads in the platform thread pool.
+    * @return
+    *    The executor.
+    */
+   public static ExecutorService newDefaultExecutor(int maxPlatformThreads)
+   {
+      try
+      {
+         Method virtualThreads = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService) virtualThreads.invoke(null);
+      }
+      catch (ReflectiveOperationException ex)
+      {
+         final AtomicInteger threadNumber = new AtomicInteger();
+         ThreadFactory factory = runnable ->
+            {
+               Thread thread = new Thread(runnable, "bjad-db-async-" + threadNumber.incrementAndGet());
+               thread.setDaemon(true);
+               return thread;
+            };
+         return Executors.newFixedThreadPool(maxPlatformThreads, factory);
+      }
+   }
+
+   /**
+    * Sets the query timeout applied to every command run after the
+    * call, see {@link DatabaseWrapper#setQueryTimeout(int)}.
+    *
+    * @param seconds
+    *    The timeout in seconds, 0 for no timeout.
+    */
+   public void setQueryTimeout(int seconds)
+   {
+      if (seconds < 0)
+      {
+         throw new IllegalArgumentException("Query timeout cannot be negative, was " + seconds);
+      }
+      this.queryTimeoutSeconds = seconds;
+   }
+
+   /**
+    * Runs a query, mapping each row with the mapper passed.
+    *
+    * @param sqlString
+    *    The SQL statement to execute.
+    * @param mapper
+    *    The mapper creating an object for each row.
+    * @param arguments
+    *    The parameters for the sql statement.
+    * @param <T>
+    *    The type of object the row mapper will create.
+    * @return
+    *    Future completed with the mapped rows.
+    */
+   public <T> CompletableFuture<List<T>> executeQuery(String sqlString, ResultSetMapper<T> mapper, Object... arguments)
+   {
+      return submit(sqlString, arguments, db -> db.executeQuery(mapper));
+   }
+
+   /**
+    * Runs a query, sending each row to the processor passed. The
+    * processor is called on the executor's thread. Named apart from 
+    * executeQuery() so lambdas passed as the processor need no cast.
+    *
+    * @param sqlString
+    *    The SQL statement to execute.
+    * @param processor
+    *    The processor handling each row.
+    * @param arguments
+    *    The parameters for the sql statement.
+    * @return
+    *    Future completed with the number of rows processed.
+    */
+   public CompletableFuture<Integer> processQuery(String sqlString, ResultSetProcessor processor, Object... arguments)
+   {
+      return submit(sqlString, arguments, db -> db.executeQuery(processor));
+   }
+
+   /**
+    * Runs a non-query command.
+    *
+    * @param sqlString
+    *    The SQL statement to execute.
+    * @param arguments
+    *    The parameters for the sql statement.
+    * @return
+    *    Future completed with the number of rows affected.
+    */
+   public CompletableFuture<Integer> executeNonQuery(String sqlString, Object... arguments)
+   {
+      return submit(sqlString, arguments, db -> db.executeNonQuery());
+   }
+
+   /**
+    * @return
+    *    The number of commands currently running.
+    */
+   public int getInFlightCount()
+   {
+      return inFlight.get();
+   }
+
+   /**
+    * @return
+    *    The number of commands waiting for a permit to run.
+    */
+   public int getQueuedCount()
+   {
+      return permits.getQueueLength();
+   }
+
+   /**
+    * Shuts down the default executor, if this object created it. Commands
+    * already submitted are allowed to finish.
+    */
+   @Override
+   public void close()
+   {
+      if (ownedExecutor != null)
+      {
+         ownedExecutor.shutdown();
+      }
+   }
+
+   /**
+    * Submits a command to the executor.
+    *
+    * @param sqlString
+    *    The SQL statement to execute.
+    * @param arguments
+    *    The parameters for the sql statement.
+    * @param work
+    *    The work to perform with the wrapper.
+    * @param <R>
+    *    The type of result.
+    * @return
+    *    The future for the command.
+    */
+   private <R> CompletableFuture<R> submit(String sqlString, Object[] arguments, WrapperWork<R> work)
+   {
+      QueryFuture<R> future = new QueryFuture<>();
+      try
+      {
+         executor.execute(() -> run(future, sqlString, arguments, work));
+      }
+      catch (RejectedExecutionException ex)
+      {
+         future.completeExceptionally(ex);
+      }
+      return future;
+   }
+
+   /**
+    * Runs a command on the executor's thread, once a permit is free.
+    *
+    * @param future
+    *    The future to complete.
+    * @param sqlString
+    *    The SQL statement to execute.
+    * @param arguments
+    *    The parameters for the sql statement.
+    * @param work
+    *    The work to perform with the wrapper.
+    * @param <R>
+    *    The type of result.
+    */
+   private <R> void run(QueryFuture<R> future, String sqlString, Object[] arguments, WrapperWork<R> work)
+   {
+      if (future.isDone())
+      {
+         return;
+      }
+      try
+      {
+         permits.acquire();
+      }
+      catch (InterruptedException ex)
+      {
+         Thread.currentThread().interrupt();
+         future.completeExceptionally(ex);
+         return;
+      }
+
+      // The future is completed only after the wrapper is closed and the
+      // permit returned, so dependants see the connection back in the pool.
+      R result = null;
+      Throwable failure = null;
+      inFlight.incrementAndGet();
+      try (DatabaseWrapper db = new DatabaseWrapper(resolveConnectionString(), sqlString, arguments))
+      {
+         db.setQueryTimeout(queryTimeoutSeconds);
+         if (future.attach(db))
+         {
+            result = work.execute(db);
+         }
+      }
+      catch (Throwable ex)
+      {
+         failure = ex;
+      }
+      finally
+      {
+         future.detach();
+         inFlight.decrementAndGet();
+         permits.release();
+      }
+
+      if (failure != null)
+      {
+         future.completeExceptionally(failure);
+      }
+      else
+      {
+         future.complete(result);
+      }
+   }
+
+   /**
+    * @return
+    *    The connection string commands run against.
+    */
+   private String resolveConnectionString()
+   {
+      return connectionString == null ? DatabaseWrapper.globalConnectionString : connectionString;
+   }
+
+   /**
+    * Work performed with the wrapper created for a command.
+    *
+    * @param <R>
+    *    The type of result.
+    */
+   @FunctionalInterface
+   private interface WrapperWork<R>
+   {
+      /**
+       * @param db
+       *    The wrapper for the command.
+       * @return
+       *    The result of the command.
+       * @throws SQLException
+       *    Any exception running the command.
+       */
+      R execute(DatabaseWrapper db) throws SQLException;
+   }
+
+   /**
+    * Future that cancels the running statement when it is cancelled.
+    *
+    * @param <R>
+    *    The type of result.
+    */
+   private static final class QueryFuture<R> extends CompletableFuture<R>
+   {
+      private DatabaseWrapper running  = null;
+      private long            runToken = 0;
+
+      /**
+       * Records the wrapper running the command, and the token of the
+       * command's execution on it.
+       *
+       * @param db
+       *    The wrapper.
+       * @return
+       *    False if the future was cancelled before the command started.
+       */
+      private synchronized boolean attach(DatabaseWrapper db)
+      {
+         running = db;
+         runToken = db.nextRunToken();
+         return !isDone();
+      }
+
+      /**
+       * Clears the wrapper once the command has finished.
+       */
+      private synchronized void detach()
+      {
+         running = null;
+      }
+
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning)
+      {
+         boolean cancelled = super.cancel(mayInterruptIfRunning);
+         if (cancelled)
+         {
+            synchronized (this)
+            {
+               if (running != null)
+               {
+                  try { running.cancel(runToken); } catch (Exception ex) { ; }
+               }
+            }
+         }
+         return cancelled;
+      }
+   }
+}
@@ -0,0 +1,94 @@
+package ca.bjad.util.db;
+
+/**
+ * Summary of one chunk of rows flushed to the database by a
+ * {@link BatchWriter}.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class BatchChunkResult
+{
+   private final int  chunkNumber;
+   private final int  rowCount;
+   private final int  affectedRows;
+   private final long estimatedBytes;
+   private final long elapsedNanos;
+
+   /**
+    * Constructor, setting all the values of the chunk summary.
+    *
+    * @param chunkNumber
+    *    The position of the chunk, starting at 1.
+    * @param rowCount
+    *    The number of rows sent in the chunk.
+    * @param affectedRows
+    *    The number of rows the database reported as affected.
+    * @param estimatedBytes
+    *    The estimated size of the parameter data in the chunk.
+    * @param elapsedNanos
+    *    The time taken to execute (and commit) the chunk.
+    */
+   BatchChunkResult(int chunkNumber, int rowCount, int affectedRows, long estimatedBytes, long elapsedNanos)
+   {
+      this.chunkNumber = chunkNumber;
+      this.rowCount = rowCount;
+      this.affectedRows = affectedRows;
+      this.estimatedBytes = estimatedBytes;
+      this.elapsedNanos = elapsedNanos;
+   }
+
+   /**
+    * @return
+    *    The position of the chunk, starting at 1.
+    */
+   public int getChunkNumber()
+   {
+      return chunkNumber;
+   }
+
+   /**
+    * @return
+    *    The number of rows sent in the chunk.
+    */
+   public int getRowCount()
+   {
+      return rowCount;
+   }
+
+   /**
+    * @return
+    *    The number of rows the database reported as affected.
+    */
+   public int getAffectedRows()
+   {
+      return affectedRows;
+   }
+
+   /**
+    * @return
+    *    The estimated size, in bytes, of the parameter data in
+    *    the chunk.
+    */
+   public long getEstimatedBytes()
+   {
+      return estimatedBytes;
+   }
+
+   /**
+    * @return
+    *    The time, in nanoseconds, taken to execute (and commit)
+    *    the chunk.
+    */
+   public long getElapsedNanos()
+   {
+      return elapsedNanos;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "BatchChunkResult [chunk=" + chunkNumber + ", rows=" + rowCount + ", affected=" + affectedRows
+            + ", bytes=" + estimatedBytes + ", elapsedNanos=" + elapsedNanos + "]";
+   }
+}
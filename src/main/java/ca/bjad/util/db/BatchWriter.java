@@ -0,0 +1,230 @@
+package ca.bjad.util.db;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Bulk insert/update helper built on top of a database wrapper's
+ * batch support. Rows are added to the wrapper's batch and the batch
+ * is sent to the database automatically once it reaches a set number
+ * of rows or an estimated number of bytes of parameter data, so large
+ * loads never build up one giant batch in driver memory.
+ *
+ * <br><br>
+ * The wrapper should be created (or moved to the command with
+ * newCommand()) without arguments; every row is then supplied through
+ * {@link #add(Object...)}. The writer does not close the wrapper.
+ *
+ * <pre>
+ * try (DatabaseWrapper db = new DatabaseWrapper("INSERT INTO person VALUES (?, ?)");
+ *      BatchWriter writer = new BatchWriter(db, 1000, 1024 * 1024))
+ * {
+ *    for (Person p : people)
+ *    {
+ *       writer.add(p.id, p.name);
+ *    }
+ * }
+ * </pre>
+ *
+ * @author
+ *    Ben Dougall
+ */
+public class BatchWriter implements AutoCloseable
+{
+   private final DatabaseWrapper db;
+   private final int             maxRowsPerChunk;
+   private final long            maxBytesPerChunk;
+
+   private boolean               commitPerChunk   = false;
+
+   private int                   chunkRows        = 0;
+   private long                  chunkBytes       = 0;
+   private long                  totalRows        = 0;
+   private long                  totalAffected    = 0;
+
+   private final List<BatchChunkResult> chunkResults = new ArrayList<>();
+
+   /**
+    * Constructor, setting the wrapper to batch rows into and the limits
+    * that cause a chunk of rows to be sent.
+    *
+    * @param db
+    *    The wrapper, already set up with the insert/update command.
+    * @param maxRowsPerChunk
+    *    The number of rows sent per chunk.
+    * @param maxBytesPerChunk
+    *    The estimated parameter bytes that will cause a chunk to be
+    *    sent early, 0 or less to only flush by row count.
+    */
+   public BatchWriter(DatabaseWrapper db, int maxRowsPerChunk, long maxBytesPerChunk)
+   {
+      if (maxRowsPerChunk < 1)
+      {
+         throw new IllegalArgumentException("Rows per chunk must be at least 1, was " + maxRowsPerChunk);
+      }
+      this.db = db;
+      this.maxRowsPerChunk = maxRowsPerChunk;
+      this.maxBytesPerChunk = maxBytesPerChunk <= 0 ? Long.MAX_VALUE : maxBytesPerChunk;
+   }
+
+   /**
+    * Sets whether each chunk is committed in its own transaction, 
+    * started and committed through the wrapper's transaction support.
+    * A chunk that fails is rolled back. If the wrapper already has a 
+    * transaction open, each chunk runs within a savepoint of that 
+    * transaction instead and is committed along with it.
+    *
+    * @param commitPerChunk
+    *    True to commit each chunk on its own.
+    */
+   public void setCommitPerChunk(boolean commitPerChunk)
+   {
+      this.commitPerChunk = commitPerChunk;
+   }
+
+   /**
+    * Adds a row to the current chunk, sending the chunk to the database
+    * if it has reached the row or byte limit.
+    *
+    * @param args
+    *    The arguments for the row.
+    * @throws SQLException
+    *    Any exception adding the row or sending the chunk.
+    */
+   public void add(Object... args) throws SQLException
+   {
+      db.addToBatch(args);
+      chunkRows++;
+      for (Object arg : args)
+      {
+         chunkBytes += estimateSize(arg);
+      }
+
+      if (chunkRows >= maxRowsPerChunk || chunkBytes >= maxBytesPerChunk)
+      {
+         flush();
+      }
+   }
+
+   /**
+    * Sends any rows waiting in the current chunk to the database,
+    * committing them if commit per chunk is turned on.
+    *
+    * @return
+    *    The number of rows the database reported as affected.
+    * @throws SQLException
+    *    Any exception sending or committing the chunk.
+    */
+   public int flush() throws SQLException
+   {
+      if (chunkRows == 0)
+      {
+         return 0;
+      }
+
+      int rows = chunkRows;
+      long bytes = chunkBytes;
+      long start = System.nanoTime();
+      int affected;
+      try
+      {
+         if (commitPerChunk)
+         {
+            affected = db.inTransaction(tx -> tx.executeNonQuery());
+         }
+         else
+         {
+            affected = db.executeNonQuery();
+         }
+      }
+      finally
+      {
+         chunkRows = 0;
+         chunkBytes = 0;
+      }
+
+      chunkResults.add(new BatchChunkResult(chunkResults.size() + 1, rows, affected,
+            bytes, System.nanoTime() - start));
+      totalRows += rows;
+      totalAffected += affected;
+      return affected;
+   }
+
+   /**
+    * @return
+    *    The summary of each chunk sent so far, in the order they
+    *    were sent.
+    */
+   public List<BatchChunkResult> getChunkResults()
+   {
+      return Collections.unmodifiableList(chunkResults);
+   }
+
+   /**
+    * @return
+    *    The number of rows sent to the database so far.
+    */
+   public long getTotalRows()
+   {
+      return totalRows;
+   }
+
+   /**
+    * @return
+    *    The number of rows the database reported as affected so far.
+    */
+   public long getTotalAffected()
+   {
+      return totalAffected;
+   }
+
+   /**
+    * Sends any remaining rows. The wrapper is left open.
+    */
+   @Override
+   public void close() throws SQLException
+   {
+      flush();
+   }
+
+   /**
+    * Estimates the number of bytes a parameter value takes up when
+    * sent to the database.
+    *
+    * @param value
+    *    The parameter value.
+    * @return
+    *    The estimated size in bytes.
+    */
+   static long estimateSize(Object value)
+   {
+      if (value == null || value instanceof Boolean)
+      {
+         return 1;
+      }
+      else if (value instanceof Integer)
+      {
+         return 4;
+      }
+      else if (value instanceof Long || value instanceof java.util.Date)
+      {
+         return 8;
+      }
+      else if (value instanceof String)
+      {
+         return 2L * ((String) value).length();
+      }
+      else if (value instanceof BigDecimal)
+      {
+         return 4 + ((BigDecimal) value).unscaledValue().bitLength() / 8 + 1;
+      }
+      else if (value instanceof byte[])
+      {
+         return ((byte[]) value).length;
+      }
+      return 16;
+   }
+}
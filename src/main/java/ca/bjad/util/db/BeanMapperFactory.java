@@ -0,0 +1,865 @@
+package ca.bjad.util.db;
+
+import java.beans.ConstructorProperties;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Factory creating result set mappers for plain java objects, so callers
+ * do not need to hand write a {@link ResultSetMapper} for every class.
+ *
+ * <br><br>
+ * Columns are matched to properties by name, ignoring case and
+ * underscores, so a column labelled <code>first_name</code> is mapped
+ * to a <code>setFirstName(..)</code> setter or a public
+ * <code>firstName</code> field. Classes without a no argument
+ * constructor are built through a constructor annotated with
+ * {@link ConstructorProperties}, or the canonical constructor of a
+ * record when running on a JDK with record support.
+ *
+ * <br><br>
+ * Column indexes are resolved once per result set, and the binding of
+ * columns to setters or constructor parameters is compiled once per
+ * class and column layout, using method handles (and
+ * {@link LambdaMetafactory} where the class is accessible), so mapping a
+ * row does no reflection and no column lookups by name.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class BeanMapperFactory
+{
+   private static final ConcurrentHashMap<BindingKey, RowBinding<?>> BINDINGS = new ConcurrentHashMap<>();
+
+   private static final Map<Class<?>, Class<?>> BOXED_TYPES = new HashMap<>();
+
+   static
+   {
+      BOXED_TYPES.put(int.class, Integer.class);
+      BOXED_TYPES.put(long.class, Long.class);
+      BOXED_TYPES.put(double.class, Double.class);
+      BOXED_TYPES.put(float.class, Float.class);
+      BOXED_TYPES.put(short.class, Short.class);
+      BOXED_TYPES.put(byte.class, Byte.class);
+      BOXED_TYPES.put(boolean.class, Boolean.class);
+      BOXED_TYPES.put(char.class, Character.class);
+   }
+
+   /**
+    * Private constructor, the factory only has static methods.
+    */
+   private BeanMapperFactory()
+   {
+   }
+
+   /**
+    * Creates a mapper that builds an instance of the class passed for
+    * each row of a result set. The mapper can be reused across queries
+    * and shared between threads.
+    *
+    * @param type
+    *    The class to create for each row.
+    * @param <T>
+    *    The type of object the mapper will create.
+    * @return
+    *    The mapper for the class.
+    */
+   public static <T> ResultSetMapper<T> forClass(Class<T> type)
+   {
+      return new BeanResultSetMapper<>(type);
+   }
+
+   /**
+    * @return
+    *    The number of compiled class and column layout bindings cached.
+    */
+   static int cachedBindingCount()
+   {
+      return BINDINGS.size();
+   }
+
+   /**
+    * Gets the compiled binding for the class and the column layout of
+    * the result set, compiling and caching it the first time the
+    * pairing is seen.
+    *
+    * @param type
+    *    The class being mapped.
+    * @param metaData
+    *    The meta data of the result set being mapped.
+    * @param <T>
+    *    The type being mapped.
+    * @return
+    *    The compiled binding.
+    * @throws SQLException
+    *    Any exception reading the meta data.
+    */
+   @SuppressWarnings("unchecked")
+   static <T> RowBinding<T> bindingFor(Class<T> type, ResultSetMetaData metaData) throws SQLException
+   {
+      int columnCount = metaData.getColumnCount();
+      String[] labels = new String[columnCount];
+      for (int i = 0; i < columnCount; i++)
+      {
+         labels[i] = normalize(metaData.getColumnLabel(i + 1));
+      }
+
+      BindingKey key = new BindingKey(type, labels);
+      RowBinding<?> binding = BINDINGS.get(key);
+      if (binding == null)
+      {
+         binding = compile(type, labels);
+         RowBinding<?> existing = BINDINGS.putIfAbsent(key, binding);
+         if (existing != null)
+         {
+            binding = existing;
+         }
+      }
+      return (RowBinding<T>) binding;
+   }
+
+   /**
+    * Compiles the binding of the columns passed to the class's
+    * constructor and properties.
+    *
+    * @param type
+    *    The class being mapped.
+    * @param labels
+    *    The normalized column labels, in column order.
+    * @param <T>
+    *    The type being mapped.
+    * @return
+    *    The compiled binding.
+    */
+   private static <T> RowBinding<T> compile(Class<T> type, String[] labels)
+   {
+      Map<String, Integer> columnIndexes = new HashMap<>();
+      for (int i = labels.length - 1; i >= 0; i--)
+      {
+         columnIndexes.put(labels[i], i + 1);
+      }
+
+      try
+      {
+         String[] recordComponents = recordComponentNames(type);
+         if (recordComponents != null)
+         {
+            return compileConstructorBinding(type, canonicalConstructor(type), recordComponents, columnIndexes);
+         }
+
+         for (Constructor<?> ctor : type.getDeclaredConstructors())
+         {
+            ConstructorProperties properties = ctor.getAnnotation(ConstructorProperties.class);
+            if (properties != null)
+            {
+               return compileConstructorBinding(type, ctor, properties.value(), columnIndexes);
+            }
+         }
+
+         return compileSetterBinding(type, columnIndexes);
+      }
+      catch (ReflectiveOperationException ex)
+      {
+         throw new IllegalArgumentException("Cannot create a result set mapper for " + type.getName(), ex);
+      }
+   }
+
+   /**
+    * Compiles a binding that creates the object with its no argument
+    * constructor and then sets each matched property.
+    *
+    * @param type
+    *    The class being mapped.
+    * @param columnIndexes
+    *    Column index by normalized label.
+    * @param <T>
+    *    The type being mapped.
+    * @return
+    *    The compiled binding.
+    * @throws ReflectiveOperationException
+    *    If the class has no usable constructor.
+    */
+   private static <T> RowBinding<T> compileSetterBinding(Class<T> type, Map<String, Integer> columnIndexes)
+         throws ReflectiveOperationException
+   {
+      Constructor<T> ctor = type.getDeclaredConstructor();
+      Supplier<Object> factory = constructorSupplier(type, ctor);
+
+      List<PropertyBinding> properties = new ArrayList<>();
+      Map<String, Boolean> bound = new HashMap<>();
+
+      for (Method method : type.getMethods())
+      {
+         String name = method.getName();
+         if (name.length() > 3 && name.startsWith("set") && method.getParameterCount() == 1
+               && !Modifier.isStatic(method.getModifiers()))
+         {
+            String property = normalize(name.substring(3));
+            Integer column = columnIndexes.get(property);
+            if (column != null && !bound.containsKey(property))
+            {
+               Class<?> propertyType = method.getParameterTypes()[0];
+               properties.add(new PropertyBinding(column, columnReader(propertyType),
+                     setter(type, method), propertyType.isPrimitive()));
+               bound.put(property, Boolean.TRUE);
+            }
+         }
+      }
+
+      for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass())
+      {
+         for (Field field : current.getDeclaredFields())
+         {
+            String property = normalize(field.getName());
+            Integer column = columnIndexes.get(property);
+            int modifiers = field.getModifiers();
+            if (column != null && !bound.containsKey(property) && Modifier.isPublic(modifiers)
+                  && !Modifier.isStatic(modifiers) && !Modifier.isFinal(modifiers))
+            {
+               field.setAccessible(true);
+               final MethodHandle handle = MethodHandles.lookup().unreflectSetter(field)
+                     .asType(MethodType.methodType(void.class, Object.class, Object.class));
+               properties.add(new PropertyBinding(column, columnReader(field.getType()),
+                     (target, value) -> invokeSetter(handle, target, value), field.getType().isPrimitive()));
+               bound.put(property, Boolean.TRUE);
+            }
+         }
+      }
+
+      return new SetterBinding<>(factory, properties.toArray(new PropertyBinding[properties.size()]));
+   }
+
+   /**
+    * Compiles a binding that passes the matched columns to a
+    * constructor, in the order of the property names passed.
+    *
+    * @param type
+    *    The class being mapped.
+    * @param ctor
+    *    The constructor to call.
+    * @param propertyNames
+    *    The property each constructor parameter represents.
+    * @param columnIndexes
+    *    Column index by normalized label.
+    * @param <T>
+    *    The type being mapped.
+    * @return
+    *    The compiled binding.
+    * @throws ReflectiveOperationException
+    *    If the constructor cannot be accessed.
+    */
+   private static <T> RowBinding<T> compileConstructorBinding(Class<T> type, Constructor<?> ctor,
+         String[] propertyNames, Map<String, Integer> columnIndexes) throws ReflectiveOperationException
+   {
+      Class<?>[] parameterTypes = ctor.getParameterTypes();
+      if (parameterTypes.length != propertyNames.length)
+      {
+         throw new IllegalArgumentException("Constructor of " + type.getName()
+               + " does not have one parameter per property name.");
+      }
+
+      int[] columns = new int[parameterTypes.length];
+      ColumnReader[] readers = new ColumnReader[parameterTypes.length];
+      Object[] defaults = new Object[parameterTypes.length];
+      for (int i = 0; i < parameterTypes.length; i++)
+      {
+         Integer column = columnIndexes.get(normalize(propertyNames[i]));
+         columns[i] = column == null ? 0 : column;
+         readers[i] = columnReader(parameterTypes[i]);
+         defaults[i] = defaultValue(parameterTypes[i]);
+      }
+
+      ctor.setAccessible(true);
+      MethodHandle handle = MethodHandles.lookup().unreflectConstructor(ctor)
+            .asType(MethodType.methodType(Object.class, parameterTypes))
+            .asSpreader(Object[].class, parameterTypes.length)
+            .asType(MethodType.methodType(Object.class, Object[].class));
+      return new ConstructorBinding<>(handle, columns, readers, defaults);
+   }
+
+   /**
+    * Creates a supplier calling the constructor passed, generated through
+    * the lambda meta factory when the class is accessible, falling back
+    * to a method handle otherwise.
+    *
+    * @param type
+    *    The class being mapped.
+    * @param ctor
+    *    The no argument constructor.
+    * @return
+    *    The supplier creating new instances.
+    * @throws ReflectiveOperationException
+    *    If the constructor cannot be accessed at all.
+    */
+   @SuppressWarnings("unchecked")
+   private static Supplier<Object> constructorSupplier(Class<?> type, Constructor<?> ctor)
+         throws ReflectiveOperationException
+   {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      try
+      {
+         MethodHandle handle = lookup.unreflectConstructor(ctor);
+         CallSite site = LambdaMetafactory.metafactory(lookup, "get",
+               MethodType.methodType(Supplier.class), MethodType.methodType(Object.class),
+               handle, MethodType.methodType(type));
+         return (Supplier<Object>) site.getTarget().invoke();
+      }
+      catch (Throwable ex)
+      {
+         ctor.setAccessible(true);
+         final MethodHandle handle = lookup.unreflectConstructor(ctor).asType(MethodType.methodType(Object.class));
+         return () -> invokeConstructor(handle);
+      }
+   }
+
+   /**
+    * Creates a consumer calling the setter passed, generated through the
+    * lambda meta factory when the class is accessible, falling back to a
+    * method handle otherwise.
+    *
+    * @param type
+    *    The class being mapped.
+    * @param method
+    *    The setter method.
+    * @return
+    *    The consumer accepting the object and the value to set.
+    * @throws ReflectiveOperationException
+    *    If the setter cannot be accessed at all.
+    */
+   @SuppressWarnings("unchecked")
+   private static BiConsumer<Object, Object> setter(Class<?> type, Method method)
+         throws ReflectiveOperationException
+   {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      Class<?> parameterType = method.getParameterTypes()[0];
+      try
+      {
+         MethodHandle handle = lookup.unreflect(method);
+         CallSite site = LambdaMetafactory.metafactory(lookup, "accept",
+               MethodType.methodType(BiConsumer.class),
+               MethodType.methodType(void.class, Object.class, Object.class), handle,
+               MethodType.methodType(void.class, type, boxed(parameterType)));
+         return (BiConsumer<Object, Object>) site.getTarget().invoke();
+      }
+      catch (Throwable ex)
+      {
+         method.setAccessible(true);
+         final MethodHandle handle = lookup.unreflect(method)
+               .asType(MethodType.methodType(void.class, Object.class, Object.class));
+         return (target, value) -> invokeSetter(handle, target, value);
+      }
+   }
+
+   /**
+    * Creates the reader pulling a column value out of the result set in
+    * the form the property type expects.
+    *
+    * @param propertyType
+    *    The type of the property or constructor parameter.
+    * @return
+    *    The column reader, returning null for SQL NULL values.
+    */
+   @SuppressWarnings({ "unchecked", "rawtypes" })
+   static ColumnReader columnReader(Class<?> propertyType)
+   {
+      Class<?> type = boxed(propertyType);
+      if (type == Integer.class)
+      {
+         return (rs, i) -> { int v = rs.getInt(i); return rs.wasNull() ? null : v; };
+      }
+      else if (type == Long.class)
+      {
+         return (rs, i) -> { long v = rs.getLong(i); return rs.wasNull() ? null : v; };
+      }
+      else if (type == Double.class)
+      {
+         return (rs, i) -> { double v = rs.getDouble(i); return rs.wasNull() ? null : v; };
+      }
+      else if (type == Float.class)
+      {
+         return (rs, i) -> { float v = rs.getFloat(i); return rs.wasNull() ? null : v; };
+      }
+      else if (type == Short.class)
+      {
+         return (rs, i) -> { short v = rs.getShort(i); return rs.wasNull() ? null : v; };
+      }
+      else if (type == Byte.class)
+      {
+         return (rs, i) -> { byte v = rs.getByte(i); return rs.wasNull() ? null : v; };
+      }
+      else if (type == Boolean.class)
+      {
+         return (rs, i) -> { boolean v = rs.getBoolean(i); return rs.wasNull() ? null : v; };
+      }
+      else if (type == String.class)
+      {
+         return (rs, i) -> rs.getString(i);
+      }
+      else if (type == BigDecimal.class)
+      {
+         return (rs, i) -> rs.getBigDecimal(i);
+      }
+      else if (type == byte[].class)
+      {
+         return (rs, i) -> rs.getBytes(i);
+      }
+      else if (type == java.sql.Date.class)
+      {
+         return (rs, i) -> rs.getDate(i);
+      }
+      else if (type == Timestamp.class || type == java.util.Date.class)
+      {
+         return (rs, i) -> rs.getTimestamp(i);
+      }
+      else if (type == java.time.LocalDate.class)
+      {
+         return (rs, i) -> { java.sql.Date v = rs.getDate(i); return v == null ? null : v.toLocalDate(); };
+      }
+      else if (type == java.time.LocalDateTime.class)
+      {
+         return (rs, i) -> { Timestamp v = rs.getTimestamp(i); return v == null ? null : v.toLocalDateTime(); };
+      }
+      else if (type.isEnum())
+      {
+         final Class<? extends Enum> enumType = (Class<? extends Enum>) type;
+         return (rs, i) -> { String v = rs.getString(i); return v == null ? null : Enum.valueOf(enumType, v); };
+      }
+      return (rs, i) -> rs.getObject(i);
+   }
+
+   /**
+    * Normalizes a column label or property name for matching, dropping
+    * underscores and case.
+    *
+    * @param name
+    *    The label or name.
+    * @return
+    *    The normalized name.
+    */
+   private static String normalize(String name)
+   {
+      return name.replace("_", "").toLowerCase(Locale.ROOT);
+   }
+
+   /**
+    * @param type
+    *    A class, possibly primitive.
+    * @return
+    *    The boxed class for primitives, otherwise the class passed.
+    */
+   private static Class<?> boxed(Class<?> type)
+   {
+      Class<?> boxed = BOXED_TYPES.get(type);
+      return boxed == null ? type : boxed;
+   }
+
+   /**
+    * @param type
+    *    A class, possibly primitive.
+    * @return
+    *    The value a constructor parameter of the type gets when
+    *    there is no column (or a NULL column) for it.
+    */
+   private static Object defaultValue(Class<?> type)
+   {
+      if (!type.isPrimitive())
+      {
+         return null;
+      }
+      return Array.get(Array.newInstance(type, 1), 0);
+   }
+
+   /**
+    * Gets the names of a record's components, through reflection so the
+    * library still runs on JDKs without records.
+    *
+    * @param type
+    *    The class being mapped.
+    * @return
+    *    The component names, or null if the class is not a record.
+    */
+   private static String[] recordComponentNames(Class<?> type)
+   {
+      try
+      {
+         Method getRecordComponents = Class.class.getMethod("getRecordComponents");
+         Object[] components = (Object[]) getRecordComponents.invoke(type);
+         if (components == null)
+         {
+            return null;
+         }
+         String[] names = new String[components.length];
+         for (int i = 0; i < components.length; i++)
+         {
+            names[i] = (String) components[i].getClass().getMethod("getName").invoke(components[i]);
+         }
+         return names;
+      }
+      catch (ReflectiveOperationException ex)
+      {
+         return null;
+      }
+   }
+
+   /**
+    * Finds the canonical constructor of a record, whose parameters match
+    * the record components in order.
+    *
+    * @param type
+    *    The record class.
+    * @return
+    *    The canonical constructor.
+    * @throws ReflectiveOperationException
+    *    If the constructor cannot be found.
+    */
+   private static Constructor<?> canonicalConstructor(Class<?> type) throws ReflectiveOperationException
+   {
+      Method getRecordComponents = Class.class.getMethod("getRecordComponents");
+      Object[] components = (Object[]) getRecordComponents.invoke(type);
+      Class<?>[] types = new Class<?>[components.length];
+      for (int i = 0; i < components.length; i++)
+      {
+         types[i] = (Class<?>) components[i].getClass().getMethod("getType").invoke(components[i]);
+      }
+      return type.getDeclaredConstructor(types);
+   }
+
+   /**
+    * Calls a no argument constructor handle, rethrowing anything it
+    * throws unchecked.
+    *
+    * @param handle
+    *    The constructor handle.
+    * @return
+    *    The new object.
+    */
+   private static Object invokeConstructor(MethodHandle handle)
+   {
+      try
+      {
+         return handle.invoke();
+      }
+      catch (Throwable ex)
+      {
+         throw new IllegalStateException("Constructor failed", ex);
+      }
+   }
+
+   /**
+    * Calls a setter handle, rethrowing anything it throws unchecked.
+    *
+    * @param handle
+    *    The setter handle.
+    * @param target
+    *    The object to set the value on.
+    * @param value
+    *    The value to set.
+    */
+   private static void invokeSetter(MethodHandle handle, Object target, Object value)
+   {
+      try
+      {
+         handle.invoke(target, value);
+      }
+      catch (Throwable ex)
+      {
+         throw new IllegalStateException("Setter failed", ex);
+      }
+   }
+
+   /**
+    * Reads a single column value in the form a property expects.
+    */
+   @FunctionalInterface
+   interface ColumnReader
+   {
+      /**
+       * @param rs
+       *    The result set, positioned on the row to read.
+       * @param columnIndex
+       *    The index of the column to read.
+       * @return
+       *    The column value, null for SQL NULL.
+       * @throws SQLException
+       *    Any exception reading the column.
+       */
+      Object read(ResultSet rs, int columnIndex) throws SQLException;
+   }
+
+   /**
+    * Compiled binding of a column layout to a class, mapping one row.
+    *
+    * @param <T>
+    *    The type being mapped.
+    */
+   interface RowBinding<T>
+   {
+      /**
+       * @param rs
+       *    The result set, positioned on the row to map.
+       * @return
+       *    The mapped object.
+       * @throws SQLException
+       *    Any exception reading the row.
+       */
+      T map(ResultSet rs) throws SQLException;
+   }
+
+   /**
+    * Binding of one column to one settable property.
+    */
+   private static final class PropertyBinding
+   {
+      private final int                        columnIndex;
+      private final ColumnReader               reader;
+      private final BiConsumer<Object, Object> setter;
+      private final boolean                    primitive;
+
+      /**
+       * @param columnIndex
+       *    The column holding the property's value.
+       * @param reader
+       *    The reader for the column.
+       * @param setter
+       *    The setter for the property.
+       * @param primitive
+       *    True if the property is primitive, so NULL values are skipped.
+       */
+      private PropertyBinding(int columnIndex, ColumnReader reader, BiConsumer<Object, Object> setter, boolean primitive)
+      {
+         this.columnIndex = columnIndex;
+         this.reader = reader;
+         this.setter = setter;
+         this.primitive = primitive;
+      }
+   }
+
+   /**
+    * Binding creating the object with its no argument constructor and
+    * calling a setter per column.
+    *
+    * @param <T>
+    *    The type being mapped.
+    */
+   private static final class SetterBinding<T> implements RowBinding<T>
+   {
+      private final Supplier<Object>  factory;
+      private final PropertyBinding[] properties;
+
+      /**
+       * @param factory
+       *    Creates new instances.
+       * @param properties
+       *    The column to property bindings.
+       */
+      private SetterBinding(Supplier<Object> factory, PropertyBinding[] properties)
+      {
+         this.factory = factory;
+         this.properties = properties;
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public T map(ResultSet rs) throws SQLException
+      {
+         Object target = factory.get();
+         for (PropertyBinding property : properties)
+         {
+            Object value = property.reader.read(rs, property.columnIndex);
+            if (value != null || !property.primitive)
+            {
+               property.setter.accept(target, value);
+            }
+         }
+         return (T) target;
+      }
+   }
+
+   /**
+    * Binding passing every column to a constructor.
+    *
+    * @param <T>
+    *    The type being mapped.
+    */
+   private static final class ConstructorBinding<T> implements RowBinding<T>
+   {
+      private final MethodHandle   ctor;
+      private final int[]          columns;
+      private final ColumnReader[] readers;
+      private final Object[]       defaults;
+
+      /**
+       * @param ctor
+       *    Constructor handle taking the arguments as an Object[].
+       * @param columns
+       *    The column for each parameter, 0 if there is no column.
+       * @param readers
+       *    The reader for each parameter.
+       * @param defaults
+       *    The value used for each parameter with no value.
+       */
+      private ConstructorBinding(MethodHandle ctor, int[] columns, ColumnReader[] readers, Object[] defaults)
+      {
+         this.ctor = ctor;
+         this.columns = columns;
+         this.readers = readers;
+         this.defaults = defaults;
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public T map(ResultSet rs) throws SQLException
+      {
+         Object[] args = new Object[columns.length];
+         for (int i = 0; i < columns.length; i++)
+         {
+            Object value = columns[i] == 0 ? null : readers[i].read(rs, columns[i]);
+            args[i] = value == null ? defaults[i] : value;
+         }
+         try
+         {
+            return (T) ctor.invokeExact(args);
+         }
+         catch (SQLException | RuntimeException ex)
+         {
+            throw ex;
+         }
+         catch (Throwable ex)
+         {
+            throw new IllegalStateException("Constructor failed", ex);
+         }
+      }
+   }
+
+   /**
+    * Cache key pairing a class with a column layout.
+    */
+   private static final class BindingKey
+   {
+      private final Class<?> type;
+      private final String[] labels;
+      private final int      hash;
+
+      /**
+       * @param type
+       *    The class being mapped.
+       * @param labels
+       *    The normalized column labels.
+       */
+      private BindingKey(Class<?> type, String[] labels)
+      {
+         this.type = type;
+         this.labels = labels;
+         this.hash = 31 * type.hashCode() + Arrays.hashCode(labels);
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return hash;
+      }
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         if (!(obj instanceof BindingKey))
+         {
+            return false;
+         }
+         BindingKey other = (BindingKey) obj;
+         return type == other.type && Arrays.equals(labels, other.labels);
+      }
+   }
+
+   /**
+    * Mapper resolving the binding once per result set, then handing
+    * each row to the compiled binding.
+    *
+    * @param <T>
+    *    The type being mapped.
+    */
+   private static final class BeanResultSetMapper<T> implements ResultSetMapper<T>
+   {
+      private final Class<T>              type;
+      private volatile ResolvedBinding<T> resolved = null;
+
+      /**
+       * @param type
+       *    The class to create for each row.
+       */
+      private BeanResultSetMapper(Class<T> type)
+      {
+         this.type = type;
+      }
+
+      @Override
+      public T processRow(ResultSet rs) throws SQLException
+      {
+         ResolvedBinding<T> current = resolved;
+         if (current == null || current.resultSet != rs)
+         {
+            current = new ResolvedBinding<>(rs, bindingFor(type, rs.getMetaData()));
+            resolved = current;
+         }
+         return current.binding.map(rs);
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return type.hashCode();
+      }
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         return obj instanceof BeanResultSetMapper && type == ((BeanResultSetMapper<?>) obj).type;
+      }
+   }
+
+   /**
+    * The binding resolved for a particular result set.
+    *
+    * @param <T>
+    *    The type being mapped.
+    */
+   private static final class ResolvedBinding<T>
+   {
+      private final ResultSet     resultSet;
+      private final RowBinding<T> binding;
+
+      /**
+       * @param resultSet
+       *    The result set the binding was resolved for.
+       * @param binding
+       *    The binding.
+       */
+      private ResolvedBinding(ResultSet resultSet, RowBinding<T> binding)
+      {
+         this.resultSet = resultSet;
+         this.binding = binding;
+      }
+   }
+}
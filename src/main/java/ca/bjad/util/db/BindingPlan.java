@@ -0,0 +1,149 @@
+package ca.bjad.util.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * The parameter binders for each position of a command's parameters,
+ * worked out once rather than for every row. A plan can be declared up
+ * front with {@link #of(Class...)}, which also types nulls for drivers 
+ * that need a type for them, and set on a wrapper with 
+ * {@link DatabaseWrapper#setBindingPlan(BindingPlan)}. Otherwise the 
+ * wrapper learns a plan from the first row of arguments it is given.
+ *
+ * <br><br>
+ * A value whose class does not match the plan's type for its position 
+ * is still bound, by looking its binder up by class. Plans are 
+ * immutable and can be shared between threads.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class BindingPlan
+{
+   private final Class<?>[]        types;
+   private final ParameterBinder[] binders;
+
+   /**
+    * Constructor, setting the class and binder for each position.
+    *
+    * @param types
+    *    The class values must have to use the position's binder.
+    * @param binders
+    *    The binders, null for positions with no known type.
+    */
+   private BindingPlan(Class<?>[] types, ParameterBinder[] binders)
+   {
+      this.types = types;
+      this.binders = binders;
+   }
+
+   /**
+    * Creates a plan for parameters of the types passed, in order.
+    * Primitive types are treated as their wrappers.
+    *
+    * @param parameterTypes
+    *    The type of each parameter.
+    * @return
+    *    The plan.
+    * @throws IllegalArgumentException
+    *    If a type is not supported.
+    */
+   public static BindingPlan of(Class<?>... parameterTypes)
+   {
+      Class<?>[] types = new Class<?>[parameterTypes.length];
+      ParameterBinder[] binders = new ParameterBinder[parameterTypes.length];
+      for (int i = 0; i < parameterTypes.length; i++)
+      {
+         binders[i] = ParameterBinder.forClass(parameterTypes[i]);
+         if (binders[i] == null)
+         {
+            throw ParameterBinder.unsupported(i, parameterTypes[i]);
+         }
+         types[i] = parameterTypes[i].isPrimitive() ? binders[i].getType() : parameterTypes[i];
+      }
+      return new BindingPlan(types, binders);
+   }
+
+   /**
+    * Creates a plan from the classes of a row of values.
+    *
+    * @param values
+    *    The values.
+    * @return
+    *    The plan.
+    */
+   static BindingPlan forValues(Object[] values)
+   {
+      Class<?>[] types = new Class<?>[values.length];
+      ParameterBinder[] binders = new ParameterBinder[values.length];
+      for (int i = 0; i < values.length; i++)
+      {
+         if (values[i] != null)
+         {
+            types[i] = values[i].getClass();
+            binders[i] = ParameterBinder.forClass(types[i]);
+         }
+      }
+      return new BindingPlan(types, binders);
+   }
+
+   /**
+    * @return
+    *    The number of parameters the plan covers.
+    */
+   public int getParameterCount()
+   {
+      return binders.length;
+   }
+
+   /**
+    * Binds a row of values to the statement.
+    *
+    * @param statement
+    *    The statement.
+    * @param values
+    *    The values, in parameter order.
+    * @throws SQLException
+    *    Any exception setting the values.
+    */
+   void bind(PreparedStatement statement, Object[] values) throws SQLException
+   {
+      bind(statement, values, 1);
+   }
+
+   /**
+    * Binds a row of values to the statement, starting at the parameter
+    * index passed, for statements that hold more than one row.
+    *
+    * @param statement
+    *    The statement.
+    * @param values
+    *    The values, in parameter order.
+    * @param firstIndex
+    *    The statement parameter index of the first value, starting at 1.
+    * @throws SQLException
+    *    Any exception setting the values.
+    */
+   void bind(PreparedStatement statement, Object[] values, int firstIndex) throws SQLException
+   {
+      for (int index = 0; index != values.length; ++index)
+      {
+         Object value = values[index];
+         ParameterBinder binder = index < binders.length ? binders[index] : null;
+         if (value == null)
+         {
+            statement.setNull(firstIndex + index, binder == null ? Types.NULL : binder.getSqlType());
+         }
+         else if (binder != null && value.getClass() == types[index])
+         {
+            binder.set(statement, firstIndex + index, value);
+         }
+         else
+         {
+            ParameterBinder.bind(statement, firstIndex + index, value);
+         }
+      }
+   }
+}
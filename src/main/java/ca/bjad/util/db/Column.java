@@ -0,0 +1,230 @@
+package ca.bjad.util.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Base class for a single column of a {@link ColumnarResult}. Values are
+ * stored in primitive arrays that grow in fixed size chunks, so adding
+ * rows never copies the values already read, and NULL values are
+ * tracked in a bitmap that is only allocated once a NULL is seen.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public abstract class Column
+{
+   /**
+    * Number of bits to shift a row number by to get its chunk.
+    */
+   static final int CHUNK_SHIFT = 12;
+
+   /**
+    * Number of rows held by each chunk.
+    */
+   static final int CHUNK_SIZE  = 1 << CHUNK_SHIFT;
+
+   /**
+    * Mask applied to a row number to get its offset in its chunk.
+    */
+   static final int CHUNK_MASK  = CHUNK_SIZE - 1;
+
+   private final String name;
+   private final int    sqlType;
+
+   /**
+    * The number of rows in the column.
+    */
+   protected int        size      = 0;
+
+   private long[][]     nullChunks = null;
+   private int          nullCount  = 0;
+
+   /**
+    * Constructor, setting the column's label and SQL type.
+    *
+    * @param name
+    *    The column label.
+    * @param sqlType
+    *    The java.sql.Types value reported for the column.
+    */
+   protected Column(String name, int sqlType)
+   {
+      this.name = name;
+      this.sqlType = sqlType;
+   }
+
+   /**
+    * @return
+    *    The column label.
+    */
+   public String getName()
+   {
+      return name;
+   }
+
+   /**
+    * @return
+    *    The java.sql.Types value reported for the column.
+    */
+   public int getSqlType()
+   {
+      return sqlType;
+   }
+
+   /**
+    * @return
+    *    The number of rows in the column.
+    */
+   public int size()
+   {
+      return size;
+   }
+
+   /**
+    * @param row
+    *    The row number, starting at 0.
+    * @return
+    *    True if the column is NULL in the row.
+    */
+   public boolean isNull(int row)
+   {
+      checkRow(row);
+      if (nullChunks == null)
+      {
+         return false;
+      }
+      long[] bits = nullChunks[row >>> CHUNK_SHIFT];
+      int offset = row & CHUNK_MASK;
+      return bits != null && (bits[offset >>> 6] & (1L << offset)) != 0;
+   }
+
+   /**
+    * @return
+    *    The number of NULL values in the column.
+    */
+   public int getNullCount()
+   {
+      return nullCount;
+   }
+
+   /**
+    * Gets the value of a row as an object, boxing primitive values.
+    * Use the typed accessors of the column classes to avoid boxing.
+    *
+    * @param row
+    *    The row number, starting at 0.
+    * @return
+    *    The value, null if the column is NULL in the row.
+    */
+   public abstract Object getObject(int row);
+
+   /**
+    * @return
+    *    The estimated number of bytes of heap used by the column.
+    */
+   public long getEstimatedBytes()
+   {
+      long bytes = 64;
+      if (nullChunks != null)
+      {
+         bytes += 16 + 8L * nullChunks.length;
+         for (long[] bits : nullChunks)
+         {
+            if (bits != null)
+            {
+               bytes += 16 + 8L * bits.length;
+            }
+         }
+      }
+      return bytes;
+   }
+
+   /**
+    * Reads the column's value from the current row of the result set
+    * and adds it to the end of the column.
+    *
+    * @param rs
+    *    The result set, positioned on the row to read.
+    * @param columnIndex
+    *    The index of the column in the result set.
+    * @throws SQLException
+    *    Any exception reading the value.
+    */
+   abstract void append(ResultSet rs, int columnIndex) throws SQLException;
+
+   /**
+    * Marks the row passed as NULL.
+    *
+    * @param row
+    *    The row number, starting at 0.
+    */
+   protected void markNull(int row)
+   {
+      int chunk = row >>> CHUNK_SHIFT;
+      if (nullChunks == null)
+      {
+         nullChunks = new long[chunk + 1][];
+      }
+      else if (chunk >= nullChunks.length)
+      {
+         nullChunks = Arrays.copyOf(nullChunks, Math.max(chunk + 1, nullChunks.length * 2));
+      }
+      if (nullChunks[chunk] == null)
+      {
+         nullChunks[chunk] = new long[CHUNK_SIZE >>> 6];
+      }
+      int offset = row & CHUNK_MASK;
+      nullChunks[chunk][offset >>> 6] |= 1L << offset;
+      nullCount++;
+   }
+
+   /**
+    * Throws an IndexOutOfBoundsException if the row is not in the column.
+    *
+    * @param row
+    *    The row number, starting at 0.
+    */
+   protected void checkRow(int row)
+   {
+      if (row < 0 || row >= size)
+      {
+         throw new IndexOutOfBoundsException("Row " + row + " is outside of column " + name + " (size " + size + ")");
+      }
+   }
+
+   /**
+    * Grows the outer array of chunks so it can hold the chunk passed.
+    *
+    * @param chunks
+    *    The current outer array.
+    * @param chunk
+    *    The chunk number that needs to fit.
+    * @param <A>
+    *    The type of each chunk array.
+    * @return
+    *    The outer array, grown if needed.
+    */
+   protected static <A> A[] ensureChunks(A[] chunks, int chunk)
+   {
+      return chunk < chunks.length ? chunks : Arrays.copyOf(chunks, Math.max(chunk + 1, chunks.length * 2));
+   }
+
+   /**
+    * Estimates the heap used by the outer array and the chunks
+    * allocated so far.
+    *
+    * @param chunkCount
+    *    The length of the outer array.
+    * @param bytesPerValue
+    *    The size of each value.
+    * @return
+    *    The estimated bytes.
+    */
+   protected long chunkBytes(int chunkCount, int bytesPerValue)
+   {
+      int allocated = size == 0 ? 0 : ((size - 1) >>> CHUNK_SHIFT) + 1;
+      return 16 + 8L * chunkCount + allocated * (16 + (long) CHUNK_SIZE * bytesPerValue);
+   }
+}
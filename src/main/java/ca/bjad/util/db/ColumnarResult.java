@@ -0,0 +1,190 @@
+package ca.bjad.util.db;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Locale;
+
+/**
+ * Query result held column by column in primitive arrays rather than 
+ * as a list of row objects, for analytical queries that pull a large
+ * number of numeric rows. Integer columns are held as int or long 
+ * arrays, floating point columns as double arrays, decimal columns as 
+ * unscaled longs and everything else as dictionary encoded strings, 
+ * each with a NULL bitmap.
+ *
+ * <pre>
+ * ColumnarResult result = db.executeColumnarQuery();
+ * LongColumn ids = (LongColumn) result.getColumn("id");
+ * DoubleColumn prices = (DoubleColumn) result.getColumn("price");
+ * for (int row = 0; row != result.getRowCount(); ++row)
+ * {
+ *    total += prices.getDouble(row);
+ * }
+ * </pre>
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class ColumnarResult
+{
+   private final Column[] columns;
+   private int            rowCount = 0;
+
+   /**
+    * Constructor, setting the columns the result will be read into.
+    *
+    * @param columns
+    *    The columns, in result set order.
+    */
+   private ColumnarResult(Column[] columns)
+   {
+      this.columns = columns;
+   }
+
+   /**
+    * Reads every remaining row of the result set into column vectors.
+    * The column types are picked from the result set's meta data once 
+    * the first row has been read, as some drivers only know the type 
+    * of a column once they have a value for it.
+    *
+    * @param rs
+    *    The result set, positioned before the first row.
+    * @return
+    *    The result held by column.
+    * @throws SQLException
+    *    Any exception reading the result set.
+    */
+   static ColumnarResult read(ResultSet rs) throws SQLException
+   {
+      boolean hasRow = rs.next();
+
+      ResultSetMetaData metaData = rs.getMetaData();
+      Column[] columns = new Column[metaData.getColumnCount()];
+      for (int i = 0; i < columns.length; i++)
+      {
+         columns[i] = createColumn(metaData, i + 1);
+      }
+
+      ColumnarResult result = new ColumnarResult(columns);
+      while (hasRow)
+      {
+         for (int i = 0; i < columns.length; i++)
+         {
+            columns[i].append(rs, i + 1);
+         }
+         result.rowCount++;
+         hasRow = rs.next();
+      }
+      return result;
+   }
+
+   /**
+    * @return
+    *    The number of rows in the result.
+    */
+   public int getRowCount()
+   {
+      return rowCount;
+   }
+
+   /**
+    * @return
+    *    The number of columns in the result.
+    */
+   public int getColumnCount()
+   {
+      return columns.length;
+   }
+
+   /**
+    * @param columnIndex
+    *    The column index, starting at 1 like the JDBC result set.
+    * @return
+    *    The column.
+    */
+   public Column getColumn(int columnIndex)
+   {
+      return columns[columnIndex - 1];
+   }
+
+   /**
+    * @param label
+    *    The column label, ignoring case.
+    * @return
+    *    The column.
+    * @throws IllegalArgumentException
+    *    If there is no column with the label.
+    */
+   public Column getColumn(String label)
+   {
+      for (Column column : columns)
+      {
+         if (column.getName().equalsIgnoreCase(label))
+         {
+            return column;
+         }
+      }
+      throw new IllegalArgumentException("No column labelled " + label);
+   }
+
+   /**
+    * @return
+    *    The estimated number of bytes of heap used by the result.
+    */
+   public long getEstimatedBytes()
+   {
+      long bytes = 32 + 8L * columns.length;
+      for (Column column : columns)
+      {
+         bytes += column.getEstimatedBytes();
+      }
+      return bytes;
+   }
+
+   /**
+    * Creates the column vector best suited to the type of the column.
+    *
+    * @param metaData
+    *    The result set meta data.
+    * @param columnIndex
+    *    The index of the column.
+    * @return
+    *    The empty column.
+    * @throws SQLException
+    *    Any exception reading the meta data.
+    */
+   private static Column createColumn(ResultSetMetaData metaData, int columnIndex) throws SQLException
+   {
+      String label = metaData.getColumnLabel(columnIndex);
+      int sqlType = metaData.getColumnType(columnIndex);
+
+      // Check the declared type name first, as loosely typed drivers 
+      // report decimal columns by the type of the value in the row.
+      String typeName = metaData.getColumnTypeName(columnIndex);
+      typeName = typeName == null ? "" : typeName.toUpperCase(Locale.ROOT);
+      if (sqlType == Types.DECIMAL || sqlType == Types.NUMERIC 
+            || typeName.startsWith("DECIMAL") || typeName.startsWith("NUMERIC"))
+      {
+         return new DecimalColumn(label, sqlType, metaData.getScale(columnIndex));
+      }
+
+      switch (sqlType)
+      {
+      case Types.TINYINT:
+      case Types.SMALLINT:
+      case Types.INTEGER:
+         return new IntColumn(label, sqlType);
+      case Types.BIGINT:
+         return new LongColumn(label, sqlType);
+      case Types.REAL:
+      case Types.FLOAT:
+      case Types.DOUBLE:
+         return new DoubleColumn(label, sqlType);
+      default:
+         break;
+      }
+      return new StringColumn(label, sqlType);
+   }
+}
@@ -0,0 +1,668 @@
+package ca.bjad.util.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded pool of physical database connections for a single
+ * connection string. The database wrapper borrows connections from
+ * the pool when it is created and hands them back when it is closed,
+ * so the cost of opening a connection is only paid when the pool
+ * needs to grow.
+ *
+ * <br><br>
+ * Pools are created on demand, one per connection string, through
+ * {@link #getPool(String)}. Idle connections are evicted lazily when
+ * the pool is used, or explicitly by calling
+ * {@link #evictIdleConnections()}.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class ConnectionPool implements AutoCloseable
+{
+   /**
+    * Default maximum number of connections (borrowed plus idle) a pool
+    * will hold open at once.
+    */
+   public static final int DEFAULT_MAX_SIZE = 10;
+
+   /**
+    * Default number of milliseconds a caller will wait for a connection
+    * before giving up.
+    */
+   public static final long DEFAULT_MAX_WAIT_MILLIS = 30000L;
+
+   /**
+    * Default number of milliseconds a connection can sit idle in the
+    * pool before it is closed.
+    */
+   public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 300000L;
+
+   /**
+    * Default number of seconds the driver is given to validate an idle
+    * connection when it is borrowed.
+    */
+   public static final int DEFAULT_VALIDATION_TIMEOUT_SECONDS = 1;
+
+   private static final ConcurrentHashMap<String, ConnectionPool> POOLS = new ConcurrentHashMap<>();
+
+   /**
+    * Gets the pool for the connection string passed, creating it with
+    * the default settings if it does not exist yet.
+    *
+    * @param connectionString
+    *    The connection string the pool opens connections with.
+    * @return
+    *    The pool for the connection string.
+    */
+   public static ConnectionPool getPool(String connectionString)
+   {
+      ConnectionPool pool = POOLS.get(connectionString);
+      if (pool == null)
+      {
+         pool = new ConnectionPool(connectionString);
+         ConnectionPool existing = POOLS.putIfAbsent(connectionString, pool);
+         if (existing != null)
+         {
+            pool = existing;
+         }
+      }
+      return pool;
+   }
+
+   /**
+    * Closes every pool created through {@link #getPool(String)},
+    * closing the idle connections in each. Connections currently
+    * borrowed are closed when they are returned.
+    */
+   public static void closeAllPools()
+   {
+      for (ConnectionPool pool : POOLS.values())
+      {
+         pool.close();
+      }
+   }
+
+   private final String        connectionString;
+
+   private final ReentrantLock lock                     = new ReentrantLock(true);
+   private final Condition     connectionAvailable      = lock.newCondition();
+
+   private final ArrayDeque<PooledConnection> idleConnections = new ArrayDeque<>();
+   private int                 activeCount              = 0;
+   private boolean             closed                   = false;
+
+   private volatile int        maxSize                  = DEFAULT_MAX_SIZE;
+   private volatile long       maxWaitMillis            = DEFAULT_MAX_WAIT_MILLIS;
+   private volatile long       idleTimeoutMillis        = DEFAULT_IDLE_TIMEOUT_MILLIS;
+   private volatile int        validationTimeoutSeconds = DEFAULT_VALIDATION_TIMEOUT_SECONDS;
+   private volatile boolean    validateOnBorrow         = true;
+   private volatile int        statementCacheSize       = StatementCache.DEFAULT_SIZE;
+
+   private long                borrowCount              = 0;
+   private long                totalWaitNanos           = 0;
+   private long                maxWaitNanos             = 0;
+   private long                timeoutCount             = 0;
+   private long                createdCount             = 0;
+   private long                destroyedCount           = 0;
+   private long                validationFailureCount   = 0;
+
+   /**
+    * Constructor, setting the connection string the pool will
+    * open connections with.
+    *
+    * @param connectionString
+    *    The connection string to use when connecting to a
+    *    database.
+    */
+   private ConnectionPool(String connectionString)
+   {
+      this.connectionString = connectionString;
+   }
+
+   /**
+    * @return
+    *    The connection string the pool opens connections with.
+    */
+   public String getConnectionString()
+   {
+      return connectionString;
+   }
+
+   /**
+    * @return
+    *    The maximum number of connections (borrowed plus idle) the
+    *    pool will hold open at once.
+    */
+   public int getMaxSize()
+   {
+      return maxSize;
+   }
+
+   /**
+    * Sets the maximum number of connections (borrowed plus idle) the
+    * pool will hold open at once.
+    *
+    * @param maxSize
+    *    The maximum pool size, must be at least 1.
+    */
+   public void setMaxSize(int maxSize)
+   {
+      if (maxSize < 1)
+      {
+         throw new IllegalArgumentException("Pool size must be at least 1, was " + maxSize);
+      }
+      this.maxSize = maxSize;
+      signalWaiters();
+   }
+
+   /**
+    * Sets the number of milliseconds a caller will wait for a
+    * connection before a SQLTransientConnectionException is thrown.
+    *
+    * @param maxWaitMillis
+    *    The max wait time, 0 to fail immediately when the pool is
+    *    exhausted.
+    */
+   public void setMaxWaitMillis(long maxWaitMillis)
+   {
+      this.maxWaitMillis = Math.max(0, maxWaitMillis);
+   }
+
+   /**
+    * Sets the number of milliseconds a connection can sit idle in the
+    * pool before it is closed.
+    *
+    * @param idleTimeoutMillis
+    *    The idle timeout, 0 or less to keep idle connections open
+    *    until the pool is closed.
+    */
+   public void setIdleTimeoutMillis(long idleTimeoutMillis)
+   {
+      this.idleTimeoutMillis = idleTimeoutMillis;
+   }
+
+   /**
+    * Sets whether idle connections are validated, using
+    * {@link Connection#isValid(int)}, before they are handed out.
+    *
+    * @param validateOnBorrow
+    *    True to validate connections on borrow.
+    */
+   public void setValidateOnBorrow(boolean validateOnBorrow)
+   {
+      this.validateOnBorrow = validateOnBorrow;
+   }
+
+   /**
+    * Sets the number of seconds the driver is given to validate
+    * a connection on borrow.
+    *
+    * @param validationTimeoutSeconds
+    *    The timeout, 0 for no timeout.
+    */
+   public void setValidationTimeoutSeconds(int validationTimeoutSeconds)
+   {
+      this.validationTimeoutSeconds = Math.max(0, validationTimeoutSeconds);
+   }
+
+   /**
+    * Sets the number of prepared statements cached for each connection
+    * opened by the pool after the call.
+    *
+    * @param statementCacheSize
+    *    The number of statements to cache, 0 to turn caching off.
+    */
+   public void setStatementCacheSize(int statementCacheSize)
+   {
+      this.statementCacheSize = Math.max(0, statementCacheSize);
+   }
+
+   /**
+    * Borrows a connection from the pool, opening a new connection if
+    * there are no idle connections and the pool has not reached its
+    * maximum size, otherwise waiting up to the max wait time for a
+    * connection to be returned.
+    *
+    * @return
+    *    The borrowed connection, which must be handed back through
+    *    {@link #release(PooledConnection)}.
+    * @throws SQLException
+    *    SQLTransientConnectionException if no connection became
+    *    available in time, or any exception thrown opening a new
+    *    connection.
+    */
+   PooledConnection borrow() throws SQLException
+   {
+      final long start = System.nanoTime();
+      final long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+
+      while (true)
+      {
+         PooledConnection candidate = reserve(start, deadline);
+         if (candidate == null)
+         {
+            return open();
+         }
+         if (isUsable(candidate))
+         {
+            return candidate;
+         }
+         discard(candidate, true);
+      }
+   }
+
+   /**
+    * Hands a borrowed connection back to the pool. Any open transaction
+    * is rolled back and auto-commit is turned back on before the
+    * connection is made available again.
+    *
+    * @param pooledConnection
+    *    The connection being returned.
+    */
+   void release(PooledConnection pooledConnection)
+   {
+      boolean reusable = resetConnection(pooledConnection.getConnection());
+
+      List<PooledConnection> toClose = new ArrayList<>();
+      lock.lock();
+      try
+      {
+         activeCount--;
+         if (reusable && !closed)
+         {
+            pooledConnection.markReturned(System.nanoTime());
+            idleConnections.addFirst(pooledConnection);
+         }
+         else
+         {
+            toClose.add(pooledConnection);
+         }
+         collectExpired(System.nanoTime(), toClose);
+         connectionAvailable.signal();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+      closeAll(toClose);
+   }
+
+   /**
+    * Removes a borrowed connection from the pool without making it
+    * available again, closing the physical connection. Used when the
+    * connection is known to be broken.
+    *
+    * @param pooledConnection
+    *    The connection to throw away.
+    */
+   void invalidate(PooledConnection pooledConnection)
+   {
+      discard(pooledConnection, false);
+   }
+
+   /**
+    * Closes any connections that have been idle for longer than the
+    * idle timeout.
+    *
+    * @return
+    *    The number of connections closed.
+    */
+   public int evictIdleConnections()
+   {
+      List<PooledConnection> toClose = new ArrayList<>();
+      lock.lock();
+      try
+      {
+         collectExpired(System.nanoTime(), toClose);
+      }
+      finally
+      {
+         lock.unlock();
+      }
+      closeAll(toClose);
+      return toClose.size();
+   }
+
+   /**
+    * @return
+    *    A snapshot of the pool's statistics.
+    */
+   public ConnectionPoolStats getStats()
+   {
+      lock.lock();
+      try
+      {
+         return new ConnectionPoolStats(activeCount, idleConnections.size(), borrowCount,
+               totalWaitNanos, maxWaitNanos, timeoutCount, createdCount, destroyedCount,
+               validationFailureCount);
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Closes the pool, closing all idle connections. Connections
+    * currently borrowed are closed when they are returned, and
+    * any further borrows will fail. The pool is removed from
+    * the registry so the next call to {@link #getPool(String)}
+    * creates a fresh pool.
+    */
+   @Override
+   public void close()
+   {
+      POOLS.remove(connectionString, this);
+
+      List<PooledConnection> toClose;
+      lock.lock();
+      try
+      {
+         closed = true;
+         toClose = new ArrayList<>(idleConnections);
+         idleConnections.clear();
+         connectionAvailable.signalAll();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+      closeAll(toClose);
+   }
+
+   /**
+    * Reserves either an idle connection or a slot to open a new
+    * connection in, waiting until the deadline if the pool is
+    * exhausted.
+    *
+    * @param start
+    *    When the borrow started.
+    * @param deadline
+    *    When the borrow gives up.
+    * @return
+    *    The idle connection reserved, or null if a new connection
+    *    should be opened in the reserved slot.
+    * @throws SQLException
+    *    If the pool is closed, the wait timed out, or the thread
+    *    was interrupted.
+    */
+   private PooledConnection reserve(long start, long deadline) throws SQLException
+   {
+      List<PooledConnection> toClose = new ArrayList<>();
+      lock.lock();
+      try
+      {
+         while (true)
+         {
+            if (closed)
+            {
+               throw new SQLException("Connection pool for " + connectionString + " has been closed.");
+            }
+
+            collectExpired(System.nanoTime(), toClose);
+
+            PooledConnection candidate = idleConnections.pollFirst();
+            if (candidate != null || activeCount + idleConnections.size() < maxSize)
+            {
+               activeCount++;
+               recordBorrow(System.nanoTime() - start);
+               return candidate;
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+            {
+               timeoutCount++;
+               throw new SQLTransientConnectionException("Timed out after " + maxWaitMillis
+                     + "ms waiting for a connection to " + connectionString);
+            }
+            try
+            {
+               connectionAvailable.awaitNanos(remaining);
+            }
+            catch (InterruptedException ex)
+            {
+               Thread.currentThread().interrupt();
+               throw new SQLTransientConnectionException("Interrupted waiting for a connection to " + connectionString, ex);
+            }
+         }
+      }
+      finally
+      {
+         lock.unlock();
+         closeAll(toClose);
+      }
+   }
+
+   /**
+    * Opens a new physical connection in the slot already reserved
+    * for it, giving the slot back if the connection fails to open.
+    *
+    * @return
+    *    The new connection.
+    * @throws SQLException
+    *    Any exception thrown by the driver.
+    */
+   private PooledConnection open() throws SQLException
+   {
+      try
+      {
+         PooledConnection pooledConnection = new PooledConnection(this,
+               DriverManager.getConnection(connectionString), statementCacheSize);
+         lock.lock();
+         try
+         {
+            createdCount++;
+         }
+         finally
+         {
+            lock.unlock();
+         }
+         return pooledConnection;
+      }
+      catch (SQLException | RuntimeException ex)
+      {
+         lock.lock();
+         try
+         {
+            activeCount--;
+            connectionAvailable.signal();
+         }
+         finally
+         {
+            lock.unlock();
+         }
+         throw ex;
+      }
+   }
+
+   /**
+    * Checks that an idle connection is still open and, if validation
+    * is turned on, still valid.
+    *
+    * @param pooledConnection
+    *    The connection to check.
+    * @return
+    *    True if the connection can be handed out.
+    */
+   private boolean isUsable(PooledConnection pooledConnection)
+   {
+      try
+      {
+         Connection connection = pooledConnection.getConnection();
+         if (connection.isClosed())
+         {
+            return false;
+         }
+         return !validateOnBorrow || connection.isValid(validationTimeoutSeconds);
+      }
+      catch (SQLException ex)
+      {
+         return false;
+      }
+   }
+
+   /**
+    * Removes a borrowed connection from the pool, closing it and
+    * freeing its slot.
+    *
+    * @param pooledConnection
+    *    The connection to throw away.
+    * @param validationFailure
+    *    True if the connection is being thrown away because it
+    *    failed validation.
+    */
+   private void discard(PooledConnection pooledConnection, boolean validationFailure)
+   {
+      lock.lock();
+      try
+      {
+         activeCount--;
+         if (validationFailure)
+         {
+            validationFailureCount++;
+         }
+         connectionAvailable.signal();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+      closeAll(Collections.singletonList(pooledConnection));
+   }
+
+   /**
+    * Puts a connection being returned back into its default state.
+    *
+    * @param connection
+    *    The connection being returned.
+    * @return
+    *    True if the connection is still usable.
+    */
+   private boolean resetConnection(Connection connection)
+   {
+      try
+      {
+         if (connection.isClosed())
+         {
+            return false;
+         }
+         if (!connection.getAutoCommit())
+         {
+            connection.rollback();
+            connection.setAutoCommit(true);
+         }
+         return true;
+      }
+      catch (SQLException ex)
+      {
+         return false;
+      }
+   }
+
+   /**
+    * Moves idle connections past the idle timeout into the list
+    * passed. Must be called while holding the lock.
+    *
+    * @param now
+    *    The current System.nanoTime() value.
+    * @param toClose
+    *    The list to add expired connections to.
+    */
+   private void collectExpired(long now, List<PooledConnection> toClose)
+   {
+      long timeout = idleTimeoutMillis;
+      if (timeout <= 0)
+      {
+         return;
+      }
+      long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+
+      // Most recently returned connections are at the front, so the
+      // oldest idle connections are found from the back.
+      Iterator<PooledConnection> it = idleConnections.descendingIterator();
+      while (it.hasNext())
+      {
+         PooledConnection pooledConnection = it.next();
+         if (now - pooledConnection.getLastReturnedAt() < timeoutNanos)
+         {
+            break;
+         }
+         it.remove();
+         toClose.add(pooledConnection);
+      }
+   }
+
+   /**
+    * Records the statistics for a successful borrow. Must be called
+    * while holding the lock.
+    *
+    * @param waitNanos
+    *    The time the caller waited.
+    */
+   private void recordBorrow(long waitNanos)
+   {
+      borrowCount++;
+      totalWaitNanos += waitNanos;
+      maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+   }
+
+   /**
+    * Wakes up every caller waiting on a connection, used when the
+    * pool size changes.
+    */
+   private void signalWaiters()
+   {
+      lock.lock();
+      try
+      {
+         connectionAvailable.signalAll();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Closes the physical connections passed, outside of the pool's
+    * lock, counting them as destroyed.
+    *
+    * @param connections
+    *    The connections to close.
+    */
+   private void closeAll(List<PooledConnection> connections)
+   {
+      if (connections.isEmpty())
+      {
+         return;
+      }
+      for (PooledConnection pooledConnection : connections)
+      {
+         pooledConnection.getStatementCache().close();
+         try { pooledConnection.getConnection().close(); } catch (Exception ex) { ; }
+      }
+      lock.lock();
+      try
+      {
+         destroyedCount += connections.size();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+}
@@ -0,0 +1,161 @@
+package ca.bjad.util.db;
+
+/**
+ * Point in time snapshot of the statistics gathered by a
+ * {@link ConnectionPool}.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class ConnectionPoolStats
+{
+   private final int  activeConnections;
+   private final int  idleConnections;
+   private final long borrowCount;
+   private final long totalWaitNanos;
+   private final long maxWaitNanos;
+   private final long timeoutCount;
+   private final long createdCount;
+   private final long destroyedCount;
+   private final long validationFailureCount;
+
+   /**
+    * Constructor, setting all the values of the snapshot.
+    *
+    * @param activeConnections
+    *    Connections currently borrowed from the pool.
+    * @param idleConnections
+    *    Connections sitting in the pool waiting to be borrowed.
+    * @param borrowCount
+    *    Number of successful borrows.
+    * @param totalWaitNanos
+    *    Total time spent by callers waiting to borrow a connection.
+    * @param maxWaitNanos
+    *    Longest time a single caller waited to borrow a connection.
+    * @param timeoutCount
+    *    Number of borrows that gave up after the max wait time.
+    * @param createdCount
+    *    Number of physical connections opened.
+    * @param destroyedCount
+    *    Number of physical connections closed.
+    * @param validationFailureCount
+    *    Number of idle connections that failed validation on borrow.
+    */
+   ConnectionPoolStats(int activeConnections, int idleConnections, long borrowCount,
+         long totalWaitNanos, long maxWaitNanos, long timeoutCount, long createdCount,
+         long destroyedCount, long validationFailureCount)
+   {
+      this.activeConnections = activeConnections;
+      this.idleConnections = idleConnections;
+      this.borrowCount = borrowCount;
+      this.totalWaitNanos = totalWaitNanos;
+      this.maxWaitNanos = maxWaitNanos;
+      this.timeoutCount = timeoutCount;
+      this.createdCount = createdCount;
+      this.destroyedCount = destroyedCount;
+      this.validationFailureCount = validationFailureCount;
+   }
+
+   /**
+    * @return
+    *    Connections currently borrowed from the pool.
+    */
+   public int getActiveConnections()
+   {
+      return activeConnections;
+   }
+
+   /**
+    * @return
+    *    Connections sitting in the pool waiting to be borrowed.
+    */
+   public int getIdleConnections()
+   {
+      return idleConnections;
+   }
+
+   /**
+    * @return
+    *    Number of successful borrows.
+    */
+   public long getBorrowCount()
+   {
+      return borrowCount;
+   }
+
+   /**
+    * @return
+    *    Total time, in nanoseconds, callers spent waiting to borrow
+    *    a connection.
+    */
+   public long getTotalWaitNanos()
+   {
+      return totalWaitNanos;
+   }
+
+   /**
+    * @return
+    *    Longest time, in nanoseconds, a single caller waited to
+    *    borrow a connection.
+    */
+   public long getMaxWaitNanos()
+   {
+      return maxWaitNanos;
+   }
+
+   /**
+    * @return
+    *    Average time, in nanoseconds, callers waited to borrow
+    *    a connection, or 0 if nothing has been borrowed yet.
+    */
+   public long getAverageWaitNanos()
+   {
+      return borrowCount == 0 ? 0 : totalWaitNanos / borrowCount;
+   }
+
+   /**
+    * @return
+    *    Number of borrows that gave up after the max wait time.
+    */
+   public long getTimeoutCount()
+   {
+      return timeoutCount;
+   }
+
+   /**
+    * @return
+    *    Number of physical connections opened by the pool.
+    */
+   public long getCreatedCount()
+   {
+      return createdCount;
+   }
+
+   /**
+    * @return
+    *    Number of physical connections closed by the pool.
+    */
+   public long getDestroyedCount()
+   {
+      return destroyedCount;
+   }
+
+   /**
+    * @return
+    *    Number of idle connections that failed validation on borrow.
+    */
+   public long getValidationFailureCount()
+   {
+      return validationFailureCount;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "ConnectionPoolStats [active=" + activeConnections + ", idle=" + idleConnections
+            + ", borrows=" + borrowCount + ", avgWaitNanos=" + getAverageWaitNanos()
+            + ", maxWaitNanos=" + maxWaitNanos + ", timeouts=" + timeoutCount
+            + ", created=" + createdCount + ", destroyed=" + destroyedCount
+            + ", validationFailures=" + validationFailureCount + "]";
+   }
+}
@@ -0,0 +1,31 @@
+package ca.bjad.util.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Turns the value of one column of the current row into the text
+ * written to a delimited export by {@link CsvExporter}. A formatter is
+ * picked once per column and then reused for every row, so it should
+ * not hold any per-row state.
+ *
+ * @author
+ *    Ben Dougall
+ */
+@FunctionalInterface
+public interface CsvColumnFormatter
+{
+   /**
+    * Formats a column of the current row.
+    *
+    * @param rs
+    *    The result set, positioned on the row being exported.
+    * @param column
+    *    The 1 based index of the column to format.
+    * @return
+    *    The text for the column, or null if the value is SQL NULL.
+    * @throws SQLException
+    *    Any exception reading the column.
+    */
+   public String format(ResultSet rs, int column) throws SQLException;
+}
@@ -0,0 +1,559 @@
+package ca.bjad.util.db;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams query results straight to a delimited (CSV) file as the rows
+ * are read, rather than collecting them into a list first, so memory
+ * use stays the same however many rows are exported.
+ *
+ * <br><br>
+ * The exporter is a {@link ResultSetProcessor}, so it can be handed to
+ * {@link DatabaseWrapper#executeQuery(ResultSetProcessor)} directly, or
+ * {@link #exportFrom(DatabaseWrapper)} can be used to run the query and
+ * close the file in one call. Fields are quoted following RFC 4180:
+ * fields holding the delimiter, a double quote, a carriage return or a
+ * line feed are wrapped in double quotes, with embedded double quotes
+ * doubled, so lines read back with {@link ca.bjad.util.DelimitedStringParser}
+ * give back the exported values. That parser reads a line at a time
+ * and trims each field, so values holding line breaks or leading and
+ * trailing spaces are written correctly but do not survive the parser.
+ *
+ * <br><br>
+ * By default each value is formatted by the type of the value read,
+ * since some drivers (SQLite for one) report the type of the first
+ * row's value as the column's type. For drivers that report the 
+ * declared column type, {@link #setUseColumnTypes(boolean)} picks each
+ * column's formatter from the meta data once, reading values without
+ * boxing them. The default formatters can be replaced per column 
+ * through {@link #setColumnFormatter(String, CsvColumnFormatter)}.
+ *
+ * <pre>
+ * try (DatabaseWrapper db = new DatabaseWrapper("SELECT * FROM person"))
+ * {
+ *    CsvExporter exporter = new CsvExporter(Paths.get("person.csv.gz"), true);
+ *    exporter.setProgressListener(100000, rows -&gt; log.info(rows + " rows exported"));
+ *    exporter.exportFrom(db);
+ * }
+ * </pre>
+ *
+ * @author
+ *    Ben Dougall
+ */
+public class CsvExporter implements ResultSetProcessor, AutoCloseable
+{
+   /**
+    * Size, in bytes or characters, of the buffers between the exporter
+    * and the file.
+    */
+   public static final int BUFFER_SIZE = 64 * 1024;
+
+   private final Writer                           writer;
+   private final Map<String, CsvColumnFormatter>  namedFormatters   = new HashMap<>();
+   private final Map<Integer, CsvColumnFormatter> indexedFormatters = new HashMap<>();
+   private final StringBuilder                    quoted            = new StringBuilder();
+
+   private char                                   delimiter         = ',';
+   private String                                 lineSeparator     = "\r\n";
+   private String                                 nullText          = "";
+   private boolean                                writeHeader       = true;
+   private boolean                                useColumnTypes    = false;
+   private long                                   progressInterval  = 0;
+   private LongConsumer                           progressListener  = null;
+
+   private CsvColumnFormatter[]                   formatters        = null;
+   private long                                   rowCount          = 0;
+   private boolean                                closed            = false;
+
+   /**
+    * Constructor, creating (or truncating) the file passed and writing
+    * to it through a file channel.
+    *
+    * @param file
+    *    The file to export to.
+    * @param gzip
+    *    True to gzip compress the file.
+    * @throws IOException
+    *    Any exception opening the file.
+    */
+   public CsvExporter(Path file, boolean gzip) throws IOException
+   {
+      FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+      try
+      {
+         OutputStream out = Channels.newOutputStream(channel);
+         if (gzip)
+         {
+            out = new GZIPOutputStream(out, BUFFER_SIZE);
+         }
+         this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+      }
+      catch (IOException | RuntimeException ex)
+      {
+         try { channel.close(); } catch (Exception closeEx) { ; }
+         throw ex;
+      }
+   }
+
+   /**
+    * Constructor, writing to the writer passed, which is closed when the
+    * exporter is closed.
+    *
+    * @param writer
+    *    The writer to export to.
+    */
+   public CsvExporter(Writer writer)
+   {
+      this.writer = writer;
+   }
+
+   /**
+    * Sets the character separating fields.
+    *
+    * @param delimiter
+    *    The delimiter, a comma by default.
+    */
+   public void setDelimiter(char delimiter)
+   {
+      if (delimiter == '"' || delimiter == '\r' || delimiter == '\n')
+      {
+         throw new IllegalArgumentException("Invalid delimiter '" + delimiter + "'");
+      }
+      this.delimiter = delimiter;
+   }
+
+   /**
+    * Sets the text ending each line.
+    *
+    * @param lineSeparator
+    *    The line separator, CRLF by default as RFC 4180 specifies.
+    */
+   public void setLineSeparator(String lineSeparator)
+   {
+      this.lineSeparator = lineSeparator;
+   }
+
+   /**
+    * Sets the text written for SQL NULL values. The text is written as
+    * is, without quoting.
+    *
+    * @param nullText
+    *    The text for NULL values, an empty field by default.
+    */
+   public void setNullText(String nullText)
+   {
+      this.nullText = nullText;
+   }
+
+   /**
+    * Sets whether a header line of column labels is written ahead of
+    * the first row. An export of no rows through 
+    * {@link #exportFrom(DatabaseWrapper)} still writes the header, read
+    * from the query's statement; rows handed to 
+    * {@link #processRow(ResultSet)} directly have no header until the
+    * first row is read.
+    *
+    * @param writeHeader
+    *    True to write the header line.
+    */
+   public void setWriteHeader(boolean writeHeader)
+   {
+      this.writeHeader = writeHeader;
+   }
+
+   /**
+    * Sets whether the default formatter for each column is picked from
+    * the column type in the result set's meta data when the first row
+    * is read, rather than from each value read. Only turn this on for
+    * drivers that report the declared type of a column: SQLite reports
+    * the type of the first row's value, so a NUMERIC column holding 10
+    * and then 10.5 would be written as 10 and 10.
+    *
+    * @param useColumnTypes
+    *    True to pick formatters from the column types, false by default.
+    */
+   public void setUseColumnTypes(boolean useColumnTypes)
+   {
+      this.useColumnTypes = useColumnTypes;
+   }
+
+   /**
+    * Sets the formatter for the column with the label passed, in place
+    * of the default formatter for the column's type.
+    *
+    * @param columnLabel
+    *    The column label, matched ignoring case.
+    * @param formatter
+    *    The formatter.
+    */
+   public void setColumnFormatter(String columnLabel, CsvColumnFormatter formatter)
+   {
+      namedFormatters.put(columnLabel.toLowerCase(), formatter);
+   }
+
+   /**
+    * Sets the formatter for the column at the index passed, in place of
+    * the default formatter for the column's type.
+    *
+    * @param column
+    *    The 1 based column index.
+    * @param formatter
+    *    The formatter.
+    */
+   public void setColumnFormatter(int column, CsvColumnFormatter formatter)
+   {
+      indexedFormatters.put(column, formatter);
+   }
+
+   /**
+    * Sets a listener told the number of rows exported every time that
+    * many more rows have been written, and once more when the exporter
+    * is closed.
+    *
+    * @param interval
+    *    The number of rows between calls.
+    * @param listener
+    *    The listener.
+    */
+   public void setProgressListener(long interval, LongConsumer listener)
+   {
+      if (interval < 1)
+      {
+         throw new IllegalArgumentException("Progress interval must be at least 1, was " + interval);
+      }
+      this.progressInterval = interval;
+      this.progressListener = listener;
+   }
+
+   /**
+    * @return
+    *    The number of rows exported so far.
+    */
+   public long getRowCount()
+   {
+      return rowCount;
+   }
+
+   /**
+    * Runs the wrapper's query, exporting every row, and closes the
+    * exporter. The wrapper is left open.
+    *
+    * @param db
+    *    The wrapper, set up with the query to export.
+    * @return
+    *    The number of rows exported.
+    * @throws SQLException
+    *    Any exception running the query or writing the file.
+    */
+   public long exportFrom(DatabaseWrapper db) throws SQLException
+   {
+      try
+      {
+         db.executeQuery(this);
+         if (formatters == null)
+         {
+            // No rows, the header still gives the column layout.
+            ResultSetMetaData meta = db.getQueryMetaData();
+            if (meta != null)
+            {
+               start(meta);
+            }
+         }
+      }
+      catch (SQLException | RuntimeException ex)
+      {
+         try { writer.close(); } catch (Exception closeEx) { ; }
+         closed = true;
+         throw ex;
+      }
+
+      try
+      {
+         close();
+      }
+      catch (IOException ex)
+      {
+         throw new SQLException("Unable to finish writing export", ex);
+      }
+      return rowCount;
+   }
+
+   /**
+    * Writes the current row, and the header line ahead of the first row.
+    *
+    * @param rs
+    *    The result set, positioned on the row to export.
+    * @throws SQLException
+    *    Any exception reading the row, or writing it (wrapping the
+    *    IOException).
+    */
+   @Override
+   public void processRow(ResultSet rs) throws SQLException
+   {
+      try
+      {
+         if (formatters == null)
+         {
+            start(rs.getMetaData());
+         }
+
+         for (int c = 1; c <= formatters.length; c++)
+         {
+            String value = formatters[c - 1].format(rs, c);
+            if (value == null)
+            {
+               if (c > 1)
+               {
+                  writer.write(delimiter);
+               }
+               writer.write(nullText);
+            }
+            else
+            {
+               writeField(c, value);
+            }
+         }
+         writer.write(lineSeparator);
+      }
+      catch (IOException ex)
+      {
+         throw new SQLException("Unable to write export row " + (rowCount + 1), ex);
+      }
+
+      rowCount++;
+      if (progressListener != null && rowCount % progressInterval == 0)
+      {
+         progressListener.accept(rowCount);
+      }
+   }
+
+   /**
+    * Sets up the column formatters and writes the header line.
+    *
+    * @param meta
+    *    The columns being exported.
+    * @throws SQLException
+    *    Any exception reading the columns, or writing the header 
+    *    (wrapping the IOException).
+    */
+   private void start(ResultSetMetaData meta) throws SQLException
+   {
+      formatters = createFormatters(meta);
+      if (writeHeader)
+      {
+         try
+         {
+            for (int c = 1; c <= formatters.length; c++)
+            {
+               writeField(c, meta.getColumnLabel(c));
+            }
+            writer.write(lineSeparator);
+         }
+         catch (IOException ex)
+         {
+            throw new SQLException("Unable to write export header", ex);
+         }
+      }
+   }
+
+   /**
+    * Flushes and closes the file, telling the progress listener the
+    * final row count.
+    */
+   @Override
+   public void close() throws IOException
+   {
+      if (closed)
+      {
+         return;
+      }
+      closed = true;
+      writer.close();
+      if (progressListener != null && rowCount % progressInterval != 0)
+      {
+         progressListener.accept(rowCount);
+      }
+   }
+
+   /**
+    * Writes a field, preceded by the delimiter if it is not the first
+    * field of the line, quoting it if it needs to be.
+    *
+    * @param column
+    *    The 1 based column index.
+    * @param value
+    *    The field's text.
+    * @throws IOException
+    *    Any exception writing the field.
+    */
+   private void writeField(int column, String value) throws IOException
+   {
+      if (column > 1)
+      {
+         writer.write(delimiter);
+      }
+      if (!needsQuotes(value))
+      {
+         writer.write(value);
+         return;
+      }
+
+      quoted.setLength(0);
+      quoted.append('"');
+      for (int i = 0; i < value.length(); i++)
+      {
+         char c = value.charAt(i);
+         if (c == '"')
+         {
+            quoted.append('"');
+         }
+         quoted.append(c);
+      }
+      quoted.append('"');
+      writer.append(quoted);
+   }
+
+   /**
+    * @param value
+    *    A field's text.
+    * @return
+    *    True if the field holds a character that must be quoted.
+    */
+   private boolean needsQuotes(String value)
+   {
+      for (int i = 0; i < value.length(); i++)
+      {
+         char c = value.charAt(i);
+         if (c == delimiter || c == '"' || c == '\r' || c == '\n')
+         {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Picks the formatter for each column, those set by index first,
+    * then those set by label, then the default for the column's type
+    * if column types are used, otherwise the default for each value.
+    *
+    * @param meta
+    *    The result set's meta data.
+    * @return
+    *    The formatters, in column order.
+    * @throws SQLException
+    *    Any exception reading the meta data.
+    */
+   private CsvColumnFormatter[] createFormatters(ResultSetMetaData meta) throws SQLException
+   {
+      CsvColumnFormatter[] created = new CsvColumnFormatter[meta.getColumnCount()];
+      for (int c = 1; c <= created.length; c++)
+      {
+         CsvColumnFormatter formatter = indexedFormatters.get(c);
+         if (formatter == null)
+         {
+            formatter = namedFormatters.get(meta.getColumnLabel(c).toLowerCase());
+         }
+         if (formatter == null)
+         {
+            formatter = useColumnTypes ? defaultFormatter(meta.getColumnType(c)) : VALUE_FORMATTER;
+         }
+         created[c - 1] = formatter;
+      }
+      return created;
+   }
+
+   /**
+    * Default formatter choosing the format from the type of each value
+    * read, so a column holding whole and fractional numbers keeps both.
+    */
+   static final CsvColumnFormatter VALUE_FORMATTER = (rs, c) ->
+      {
+         Object value = rs.getObject(c);
+         if (value == null)
+         {
+            return null;
+         }
+         else if (value instanceof BigDecimal)
+         {
+            return ((BigDecimal) value).toPlainString();
+         }
+         else if (value instanceof byte[])
+         {
+            return Base64.getEncoder().encodeToString((byte[]) value);
+         }
+         else if (value instanceof Number || value instanceof Boolean)
+         {
+            return value.toString();
+         }
+         return rs.getString(c);
+      };
+
+   /**
+    * @param sqlType
+    *    The column's type from {@link Types}.
+    * @return
+    *    The default formatter for the type.
+    */
+   static CsvColumnFormatter defaultFormatter(int sqlType)
+   {
+      switch (sqlType)
+      {
+         case Types.TINYINT:
+         case Types.SMALLINT:
+         case Types.INTEGER:
+         case Types.BIGINT:
+            return (rs, c) ->
+               {
+                  long value = rs.getLong(c);
+                  return rs.wasNull() ? null : Long.toString(value);
+               };
+         case Types.REAL:
+         case Types.FLOAT:
+         case Types.DOUBLE:
+            return (rs, c) ->
+               {
+                  double value = rs.getDouble(c);
+                  return rs.wasNull() ? null : Double.toString(value);
+               };
+         case Types.DECIMAL:
+         case Types.NUMERIC:
+            return (rs, c) ->
+               {
+                  BigDecimal value = rs.getBigDecimal(c);
+                  return value == null ? null : value.toPlainString();
+               };
+         case Types.BINARY:
+         case Types.VARBINARY:
+         case Types.LONGVARBINARY:
+         case Types.BLOB:
+            return (rs, c) ->
+               {
+                  byte[] value = rs.getBytes(c);
+                  return value == null ? null : Base64.getEncoder().encodeToString(value);
+               };
+         default:
+            return (rs, c) -> rs.getString(c);
+      }
+   }
+}
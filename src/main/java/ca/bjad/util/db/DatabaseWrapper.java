@@ -1,13 +1,22 @@
 package ca.bjad.util.db;
 
-import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Database wrapper used to perform common tasks against a database,
@@ -37,14 +46,127 @@ public class DatabaseWrapper implements AutoCloseable
       globalConnectionString = connectionString;
    }
 
-   private String            connectionString = "";
-   private String            sqlString        = "";
+   /**
+    * Controls whether new wrapper objects borrow their connection from
+    * the {@link ConnectionPool} for their connection string, or open
+    * (and close) a connection of their own.
+    */
+   protected static volatile boolean connectionPoolingEnabled = true;
+
+   /**
+    * Turns connection pooling on or off for wrapper objects created
+    * after the call. Pooling is on by default.
+    * 
+    * @param enabled
+    *           True to borrow connections from the pool, false to open
+    *           a new connection for each wrapper.
+    */
+   public static void setConnectionPoolingEnabled(boolean enabled)
+   {
+      connectionPoolingEnabled = enabled;
+   }
+
+   /**
+    * Listener receiving the timings of every command executed by 
+    * wrapper objects, null when metrics are not being collected.
+    */
+   private static volatile QueryMetricsListener metricsListener = null;
+
+   /**
+    * Sets the listener receiving the timings of every command executed
+    * by wrapper objects. With no listener set the wrapper does not read
+    * the clock at all.
+    * 
+    * @param listener
+    *           The listener, null to stop collecting metrics.
+    */
+   public static void setMetricsListener(QueryMetricsListener listener)
+   {
+      metricsListener = listener;
+   }
+
+   /**
+    * @return
+    *    The listener receiving command timings, null if none is set.
+    */
+   public static QueryMetricsListener getMetricsListener()
+   {
+      return metricsListener;
+   }
+
+   /**
+    * Cache read by executeCachedQuery() and invalidated by the non-query
+    * commands of every wrapper, null when results are not cached.
+    */
+   private static volatile QueryResultCache resultCache = null;
+
+   /**
+    * Sets the cache used by executeCachedQuery(). While a cache is set,
+    * every non-query command that changes a table removes the cached 
+    * results tagged with that table.
+    * 
+    * @param cache
+    *           The cache, null to stop caching results.
+    */
+   public static void setResultCache(QueryResultCache cache)
+   {
+      resultCache = cache;
+   }
 
-   private boolean           batchMode        = false;
+   /**
+    * @return
+    *    The cache used by executeCachedQuery(), null if none is set.
+    */
+   public static QueryResultCache getResultCache()
+   {
+      return resultCache;
+   }
+
+   private static final Object[]      NO_ARGUMENTS     = new Object[0];
+
+   /**
+    * The most parameters a rewritten multi-row insert binds, by default,
+    * which is SQLite's limit before version 3.32.
+    */
+   public static final int            DEFAULT_MAX_PARAMETERS = 999;
+
+   private String                     connectionString = "";
+   private String                     sqlString        = "";
+   private String                     fingerprint      = null;
+   private String                     writtenTable     = null;
+   private Set<String>                dirtyTables      = null;
+   private Object[]                   arguments        = NO_ARGUMENTS;
+
+   private boolean                    batchMode        = false;
+   private boolean                    argumentsPending = false;
+   private boolean                    rowBinding       = false;
+   private boolean                    returnKeys       = false;
+   private String                     returningColumns = null;
+   private Boolean                    batchKeysOk      = null;
+   private List<Object[]>             keyRows          = null;
+   private boolean                    rewriteInserts   = false;
+   private int                        maxParameters    = DEFAULT_MAX_PARAMETERS;
+   private boolean                    insertChecked    = false;
+   private MultiRowInsert             insertTemplate   = null;
+   private List<Object[]>             rewriteRows      = null;
+   private int                        fetchSize        = 0;
+   private int                        queryTimeout     = 0;
+   private int                        previousTimeout  = -1;
+   private boolean                    inTransaction    = false;
+
+   private AdmissionController.Permit admissionPermit  = null;
+   private PooledConnection           pooledConnection = null;
+   private Connection                 dbConnection     = null;
+   private StatementCache             statementCache   = null;
+   private PreparedStatement          statement        = null;
+   private ResultSet                  resultSet        = null;
+   private BindingPlan                bindingPlan      = null;
+   private RowBinder                  rowBinder        = null;
 
-   private Connection        dbConnection     = null;
-   private PreparedStatement statement        = null;
-   private ResultSet         resultSet        = null;
+   private final Object               runLock          = new Object();
+   private PreparedStatement          running          = null;
+   private long                       runNumber        = 0;
+   private long                       cancelledRun     = 0;
 
    /**
     * Constructor, accepting the sql statement that will be executed
@@ -84,18 +206,66 @@ public class DatabaseWrapper implements AutoCloseable
       this.connectionString = connectionString;
       this.sqlString = sqlString;
       
-      dbConnection = DriverManager.getConnection(this.connectionString);
-      statement = dbConnection.prepareStatement(this.sqlString);
+      if (this.connectionString == null)
+      {
+         throw new SQLException("No connection string was provided and no global connection string has been set.");
+      }
+      
+      QueryMetricsListener listener = metricsListener;
+      long start = listener == null ? 0 : System.nanoTime();
+      AdmissionController admission = AdmissionController.lookup(this.connectionString);
+      if (admission != null)
+      {
+         admissionPermit = admission.acquire();
+      }
+      try
+      {
+         if (connectionPoolingEnabled)
+         {
+            pooledConnection = ConnectionPool.getPool(this.connectionString).borrow();
+            dbConnection = pooledConnection.getConnection();
+            statementCache = pooledConnection.getStatementCache();
+         }
+         else
+         {
+            dbConnection = DriverManager.getConnection(this.connectionString);
+            statementCache = new StatementCache(dbConnection, StatementCache.DEFAULT_SIZE);
+         }
+      }
+      catch (SQLException | RuntimeException ex)
+      {
+         releaseAdmission();
+         throw ex;
+      }
+      if (listener != null)
+      {
+         listener.phaseCompleted(fingerprint(), QueryPhase.CONNECT, System.nanoTime() - start, 0);
+      }
+      
+      try
+      {
+         prepareStatement(listener);
 
-      if (arguments.length > 0)
+         if (arguments.length > 0)
+         {
+            setArguments(arguments);
+            argumentsPending = true;
+         }
+      }
+      catch (SQLException | RuntimeException ex)
       {
-         setArguments(arguments);
+         // The caller never gets the wrapper to close, so give the 
+         // connection back before passing the exception along.
+         close();
+         throw ex;
       }
    }
 
    /**
     * Adds another set of arguments to the cmd so it
-    * will execute in one batch.
+    * will execute in one batch. Arguments passed to the 
+    * constructor or newCommand() are added to the batch 
+    * first, ahead of the arguments passed here. 
     * 
     * @param args
     *    the arguments for the sql statement.
@@ -104,9 +274,218 @@ public class DatabaseWrapper implements AutoCloseable
     */
    public void addToBatch(Object... args) throws SQLException
    {
-      statement.addBatch();
+      if (rewriteActive())
+      {
+         if (rewriteRows == null)
+         {
+            rewriteRows = new ArrayList<>();
+         }
+         if (argumentsPending)
+         {
+            rewriteRows.add(arguments);
+            argumentsPending = false;
+         }
+         arguments = args;
+         rewriteRows.add(args.clone());
+         batchMode = true;
+         return;
+      }
+      
+      if (argumentsPending)
+      {
+         statement.addBatch();
+         rememberKeyRow(arguments);
+         argumentsPending = false;
+      }
       setArguments(args);
+      statement.addBatch();
+      rememberKeyRow(args);
       batchMode = true;
+      rowBinding = false;
+   }
+
+   /**
+    * Turns on rewriting of batched simple inserts, 
+    * <code>INSERT INTO t (a, b) VALUES (?, ?)</code>, into statements 
+    * inserting many rows at once, 
+    * <code>VALUES (?, ?), (?, ?), ...</code>, when the batch is 
+    * executed. Rewriting is off unless turned on here. Drivers such as
+    * SQLite run every row of a JDBC batch as a statement of its own; 
+    * with the bundled SQLite driver the rewrite inserted about 50 times
+    * faster outside a transaction, where each row otherwise commits on
+    * its own, and 1.5 to 2 times faster inside one. Drivers that 
+    * already rewrite or pipeline batches gain little.
+    * 
+    * <br><br>
+    * The rows are held as argument arrays until the batch is executed,
+    * and every row is checked against the insert's parameter count 
+    * before any of them runs.
+    * 
+    * <br><br>
+    * Each statement binds at most the parameter limit set with 
+    * setMaxBoundParameters(), and statement sizes are picked so only a 
+    * few distinct statements are prepared and cached. Rows must be 
+    * added with addToBatch() rather than the row binder. Commands that
+    * are not simple inserts, or that return generated keys, are batched
+    * as usual. Like a JDBC batch outside of a transaction, each 
+    * statement commits on its own, so run the batch in a transaction 
+    * to insert all or nothing.
+    * 
+    * @param rewrite
+    *    True to rewrite batched inserts.
+    */
+   public void setRewriteBatchedInserts(boolean rewrite)
+   {
+      if (batchMode)
+      {
+         throw new IllegalStateException("Insert rewriting must be set before rows are added.");
+      }
+      this.rewriteInserts = rewrite;
+   }
+
+   /**
+    * Sets the most parameters one rewritten multi-row insert binds, 
+    * which must be within the database's limit on bound parameters.
+    * 
+    * @param maxParameters
+    *    The parameter limit.
+    */
+   public void setMaxBoundParameters(int maxParameters)
+   {
+      if (maxParameters < 1)
+      {
+         throw new IllegalArgumentException("Parameter limit must be at least 1, was " + maxParameters);
+      }
+      this.maxParameters = maxParameters;
+   }
+
+   /**
+    * Asks for the keys the database generates for rows inserted by the
+    * current command, read with executeInsert(). The statement is 
+    * prepared again with RETURN_GENERATED_KEYS (and cached apart from 
+    * the plain statement), keeping any arguments already set. The 
+    * request lasts until the wrapper moves on to a new command. 
+    * 
+    * <br><br>
+    * Drivers that only return the key of the last row of a batch 
+    * (SQLite for one) have batched rows executed one at a time, 
+    * reading each row's key, rather than an extra query afterwards.
+    * 
+    * @param returnGeneratedKeys
+    *    True to return generated keys.
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   public void setReturnGeneratedKeys(boolean returnGeneratedKeys) throws SQLException
+   {
+      if (returnGeneratedKeys == returnKeys)
+      {
+         return;
+      }
+      if (batchMode || rowBinding)
+      {
+         throw new IllegalStateException("Generated keys must be requested before rows are added or bound.");
+      }
+
+      Object[] pending = argumentsPending ? arguments : null;
+      releaseStatement();
+      returnKeys = returnGeneratedKeys;
+      prepareStatement(metricsListener);
+      if (pending != null)
+      {
+         setArguments(pending);
+      }
+   }
+
+   /**
+    * Asks for the columns passed to be returned for each row inserted 
+    * by the current command, for drivers that do not support 
+    * getGeneratedKeys() but do support a RETURNING clause. executeInsert()
+    * then runs the command with the clause appended, once per row, and
+    * reads the returned columns. The request lasts until the wrapper 
+    * moves on to a new command.
+    * 
+    * @param columns
+    *    The columns to return, such as "id", null to stop returning 
+    *    columns.
+    */
+   public void setReturningColumns(String columns)
+   {
+      if (batchMode)
+      {
+         throw new IllegalStateException("Returning columns must be set before rows are added.");
+      }
+      this.returningColumns = columns;
+   }
+
+   /**
+    * Executes the current insert command, with its batch if rows have
+    * been added, and returns the first generated key column of every 
+    * inserted row, in insert order. 
+    * 
+    * @return
+    *    The generated keys.
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   public long[] executeInsert() throws SQLException
+   {
+      KeyCollector keys = new KeyCollector();
+      runInsert(keys);
+      return keys.toArray();
+   }
+
+   /**
+    * Executes the current insert command, with its batch if rows have
+    * been added, and maps the generated keys (or returned columns) of 
+    * every inserted row, in insert order. 
+    * 
+    * @param mapper
+    *    The mapper creating an object from each row of keys.
+    * @param <T>
+    *    The type of object the mapper will create.
+    * @return
+    *    The mapped keys.
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   public <T> List<T> executeInsert(ResultSetMapper<T> mapper) throws SQLException
+   {
+      List<T> keys = new ArrayList<>();
+      runInsert(rs -> { keys.add(mapper.processRow(rs)); });
+      return keys;
+   }
+
+   /**
+    * Returns the typed binder for the wrapper's current command, which
+    * sets parameter values without boxing them or allocating an 
+    * argument array, for bulk loads where that cost adds up. The same
+    * binder is returned for every command the wrapper runs.
+    * 
+    * @return
+    *    The row binder.
+    */
+   public RowBinder getRowBinder()
+   {
+      if (rowBinder == null)
+      {
+         rowBinder = new RowBinder(this);
+      }
+      return rowBinder;
+   }
+
+   /**
+    * Sets the binding plan used to bind the arguments of the current 
+    * command, in place of the plan the wrapper would otherwise learn 
+    * from the first row of arguments. The plan is dropped when the 
+    * wrapper moves on to a new command. 
+    * 
+    * @param plan
+    *    The plan, null to learn the plan from the arguments.
+    */
+   public void setBindingPlan(BindingPlan plan)
+   {
+      this.bindingPlan = plan;
    }
 
    /**
@@ -125,13 +504,27 @@ public class DatabaseWrapper implements AutoCloseable
    {
       int totalRows = 0;
       
-      resultSet = statement.executeQuery();
-      while (resultSet.next())
+      QueryMetricsListener listener = commandListener();
+      long start = listener == null ? 0 : System.nanoTime();
+      openResultSet(listener, start);
+      long fetchStart = listener == null ? 0 : System.nanoTime();
+      try
+      {
+         while (resultSet.next())
+         {
+            totalRows++;
+            processor.processRow(resultSet);
+         }
+      }
+      finally
       {
-         totalRows++;
-         processor.processRow(resultSet);
+         endRun();
       }
       
+      if (listener != null)
+      {
+         recordFetch(listener, start, fetchStart, totalRows);
+      }
       return totalRows;
    }
    
@@ -156,130 +549,1394 @@ public class DatabaseWrapper implements AutoCloseable
    {
       ArrayList<T> results = new ArrayList<>();
      
-      resultSet = statement.executeQuery();
-      while (resultSet.next())
+      QueryMetricsListener listener = commandListener();
+      long start = listener == null ? 0 : System.nanoTime();
+      openResultSet(listener, start);
+      long fetchStart = listener == null ? 0 : System.nanoTime();
+      try
+      {
+         while (resultSet.next())
+         {
+            results.add(mapper.processRow(resultSet));
+         }
+      }
+      finally
       {
-         results.add(mapper.processRow(resultSet));
+         endRun();
       }
     
+      if (listener != null)
+      {
+         recordFetch(listener, start, fetchStart, results.size());
+      }
       return results;
    }
-
+   
    /**
-    * Executes a non-query operation against the database. 
+    * Executes a query through the result cache set with 
+    * setResultCache(), returning the cached rows when the same SQL, 
+    * arguments and mapper have been read before and the result is still
+    * valid. A lambda mapper only matches the same mapper instance, so 
+    * keep it in a field rather than capturing values in a new lambda 
+    * for each call; mappers from BeanMapperFactory match any other 
+    * mapper for the same class. The database is queried directly, and nothing is cached, 
+    * when no cache is set, inside a transaction, or when the arguments 
+    * were bound through the row binder or include LOBs.
     * 
+    * @param mapper
+    *    The result set mapper that will create objects 
+    *    based on the row the result set passed to the mapper
+    *    represents.
+    * @param tags
+    *    The tables the cached result depends on, when none are passed
+    *    the tables named in the query's FROM and JOIN clauses are used.
+    * @param <T>
+    *    The type of object the row mapper will create.
     * @return
-    *    The number of rows affected by the statement
-    *    executed.
-    *    
+    *    The rows of the query, an unmodifiable list shared with other 
+    *    callers when read through the cache.
     * @throws SQLException
     *    Any exceptions will be thrown.
     */
-   public int executeNonQuery() throws SQLException
+   @SuppressWarnings("unchecked")
+   public <T> List<T> executeCachedQuery(ResultSetMapper<T> mapper, String... tags) throws SQLException
    {
-      if (!batchMode)
+      QueryResultCache cache = resultCache;
+      if (cache == null || inTransaction || batchMode || !isCacheable(arguments))
       {
-         return statement.executeUpdate();
+         return executeQuery(mapper);
       }
 
-      int resultCount = 0;
-      statement.addBatch();
-      int[] results = statement.executeBatch();
-      for (int i : results)
+      QueryResultCache.CacheKey key = new QueryResultCache.CacheKey(connectionString, sqlString, arguments, mapper);
+      List<?> cached = cache.get(key);
+      if (cached != null)
       {
-         resultCount += i;
+         return (List<T>) cached;
       }
-      return resultCount;     
-   }
-
 
+      long epoch = cache.getInvalidationEpoch();
+      List<T> rows = executeQuery(mapper);
+      return cache.put(key, rows, tags.length > 0 ? Arrays.asList(tags) : SqlTables.readTables(sqlString), epoch);
+   }
+   
    /**
-    * Implementation of the auto close option, allowing for the
-    * database objects to be used and closed using the
-    * try-with-resources statement.
+    * Executes a query against the database, reading the whole result 
+    * into primitive column vectors rather than a list of row objects. 
+    * Numeric columns are held without boxing, decimal columns as 
+    * unscaled longs and text columns dictionary encoded, which uses 
+    * far less memory than mapping each row to an object for large 
+    * analytical results.
+    * 
+    * @return
+    *    The result of the query, held by column.
+    * @throws SQLException
+    *    Any exceptions will be thrown.
     */
-   public void close() throws Exception
-   {      
-      try {dbConnection.close(); } catch (Exception ex) { ; }
-      try {statement.close(); } catch (Exception ex) { ; }  
+   public ColumnarResult executeColumnarQuery() throws SQLException
+   {
+      QueryMetricsListener listener = commandListener();
+      long start = listener == null ? 0 : System.nanoTime();
+      openResultSet(listener, start);
+      long fetchStart = listener == null ? 0 : System.nanoTime();
+      ColumnarResult result;
+      try
+      {
+         result = ColumnarResult.read(resultSet);
+      }
+      finally
+      {
+         endRun();
+      }
       
-      if (resultSet != null) 
+      if (listener != null)
       {
-         try {resultSet.close(); } catch (Exception ex) { ; }
+         recordFetch(listener, start, fetchStart, result.getRowCount());
       }
-       
+      return result;
    }
-
+   
    /**
-    * Resets the SQL command to execute within the wrapper, so the 
-    * connection can remain open but a new statement can be executed
+    * Executes a query against the database, returning an iterator
+    * that maps each row with the mapper passed as it is asked for, 
+    * rather than reading every row into memory up front. The result
+    * set is closed when the last row has been read, when the iterator
+    * is closed, or when the wrapper is closed or moves on to a new 
+    * command.
     * 
-    * @param sqlString
-    *    The SQL statement to execute.
-    * @param arguments
-    *    The parameters for the sql statement.
-    * @throws java.sql.SQLException
-    *    Any SQL Exceptions will be thrown back to 
-    *    the calling function. 
+    * @param mapper
+    *    The result set mapper that will create objects 
+    *    based on the row the result set passed to the mapper
+    *    represents.
+    * @param <T>
+    *    The type of object the row mapper will create.
+    * @return
+    *    Iterator over the mapped rows of the query.
+    * @throws SQLException
+    *    Any exceptions executing the query will be thrown, 
+    *    exceptions reading rows are wrapped in an 
+    *    UncheckedSQLException.
     */
-   public void newCommand(String sqlString, Object... arguments) throws SQLException
+   public <T> QueryResultIterator<T> iterateQuery(ResultSetMapper<T> mapper) throws SQLException
    {
-      if (resultSet != null)
+      QueryMetricsListener listener = commandListener();
+      long start = listener == null ? 0 : System.nanoTime();
+      openResultSet(listener, start);
+      if (listener != null)
       {
-         try { resultSet.close(); } catch (Exception ex) { ; }
+         listener.commandCompleted(sqlString, fingerprint(), arguments, System.nanoTime() - start, -1);
       }
-      try { statement.close(); } catch (Exception ex) { ; }
-      
-      statement = dbConnection.prepareStatement(this.sqlString);
-
-      if (arguments.length > 0)
+      return new QueryResultIterator<>(resultSet, mapper);
+   }
+   
+   /**
+    * Executes a query against the database, returning a sequential 
+    * stream that maps each row with the mapper passed as the stream
+    * pulls it from the result set. Short circuiting operations such
+    * as limit() or findFirst() stop reading rows as soon as they 
+    * have what they need. 
+    * 
+    * <br><br>
+    * <i>Note: the stream should be closed, ideally with a 
+    * try-with-resources statement, to close the result set when the 
+    * stream is not read to the end.</i> 
+    * 
+    * @param mapper
+    *    The result set mapper that will create objects 
+    *    based on the row the result set passed to the mapper
+    *    represents.
+    * @param <T>
+    *    The type of object the row mapper will create.
+    * @return
+    *    Stream over the mapped rows of the query.
+    * @throws SQLException
+    *    Any exceptions executing the query will be thrown, 
+    *    exceptions reading rows are wrapped in an 
+    *    UncheckedSQLException.
+    */
+   public <T> Stream<T> streamQuery(ResultSetMapper<T> mapper) throws SQLException
+   {
+      QueryResultIterator<T> iterator = iterateQuery(mapper);
+      return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false)
+               .onClose(iterator::close);
+   }
+   
+   /**
+    * Sets the number of rows the driver should fetch from the database
+    * at a time when reading the results of queries executed by the 
+    * wrapper.
+    * 
+    * @param fetchSize
+    *    The number of rows per fetch, 0 to let the driver decide.
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   public void setFetchSize(int fetchSize) throws SQLException
+   {
+      if (fetchSize < 0)
       {
-         setArguments(arguments);
+         throw new IllegalArgumentException("Fetch size cannot be negative, was " + fetchSize);
       }
+      this.fetchSize = fetchSize;
    }
    
    /**
-    * Sets the arguments for the database command
+    * Sets the number of seconds the driver will wait for a command 
+    * executed by the wrapper to finish before cancelling it and 
+    * throwing a SQLTimeoutException. 
     * 
-    * @param values
-    *    The argument values
-    * @throws java.sql.SQLException
-    *    Any SQL Exceptions will be thrown back to 
-    *    the calling function. 
+    * @param seconds
+    *    The timeout in seconds, 0 for no timeout.
     */
-   private void setArguments(Object[] values) throws SQLException
+   public void setQueryTimeout(int seconds)
    {
-      for (int index = 0; index != values.length; ++index)
+      if (seconds < 0)
       {
-         if (values[index] instanceof Integer)
+         throw new IllegalArgumentException("Query timeout cannot be negative, was " + seconds);
+      }
+      this.queryTimeout = seconds;
+   }
+   
+   /**
+    * Asks the driver to cancel the command the wrapper is currently 
+    * executing, doing nothing if no command is executing. Unlike the 
+    * rest of the wrapper, this can be called from a different thread 
+    * than the one executing the command.
+    * 
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   public void cancel() throws SQLException
+   {
+      synchronized (runLock)
+      {
+         if (running != null)
+         {
+            running.cancel();
+         }
+      }
+   }
+
+   /**
+    * @return
+    *    The token of the next command the wrapper executes, which can be
+    *    passed to cancel(long) from another thread.
+    */
+   long nextRunToken()
+   {
+      synchronized (runLock)
+      {
+         return runNumber + 1;
+      }
+   }
+
+   /**
+    * Cancels the command execution the token passed was taken for. If 
+    * that execution has not started yet it fails as soon as it starts,
+    * and if it has already finished nothing is cancelled, so a late 
+    * cancel never reaches a statement that has since been given back 
+    * to the cache and reused, or a later command on the connection.
+    * 
+    * @param token
+    *    The token from nextRunToken().
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   void cancel(long token) throws SQLException
+   {
+      synchronized (runLock)
+      {
+         if (token < runNumber)
+         {
+            return;
+         }
+         cancelledRun = token;
+         if (token == runNumber && running != null)
+         {
+            running.cancel();
+         }
+      }
+   }
+
+   /**
+    * Executes a non-query operation against the database. 
+    * 
+    * @return
+    *    The number of rows affected by the statement
+    *    executed.
+    *    
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   public int executeNonQuery() throws SQLException
+   {
+      QueryMetricsListener listener = commandListener();
+      long start = listener == null ? 0 : System.nanoTime();
+      applyQueryTimeout();
+      rowBinding = false;
+      keyRows = null;
+      if (rewriteRows != null)
+      {
+         return executeRewrittenInserts(listener, start);
+      }
+      if (!batchMode)
+      {
+         int affected;
+         beginRun(statement);
+         try
+         {
+            affected = statement.executeUpdate();
+         }
+         finally
+         {
+            endRun();
+         }
+         if (listener != null)
+         {
+            recordExecute(listener, start, affected);
+         }
+         invalidateCachedResults();
+         return affected;
+      }
+
+      if (argumentsPending)
+      {
+         statement.addBatch();
+      }
+      batchMode = false;
+      argumentsPending = false;
+      
+      int resultCount = 0;
+      int[] results;
+      beginRun(statement);
+      try
+      {
+         results = statement.executeBatch();
+      }
+      finally
+      {
+         endRun();
+      }
+      for (int i : results)
+      {
+         resultCount += i;
+      }
+      if (listener != null)
+      {
+         recordExecute(listener, start, resultCount);
+      }
+      invalidateCachedResults();
+      return resultCount;     
+   }
+
+
+   /**
+    * Starts a transaction on the wrapper's connection by turning 
+    * auto-commit off. Every command executed through the wrapper,
+    * including new commands set with newCommand(), is part of the
+    * transaction until commit() or rollback() is called. Closing the 
+    * wrapper with the transaction still open rolls it back.
+    * 
+    * <br><br>
+    * Running many commands in one transaction saves committing, and
+    * with SQLite syncing the journal, after each one. The 
+    * TransactionInsertBenchmark in the test sources measures it: 2000 
+    * single row inserts into SQLite on a local temp directory ran at
+    * about 1,500 to 2,000 rows a second with auto-commit, against about
+    * 90,000 rows a second in one transaction on a cold JVM and 400,000 
+    * once warmed up. The gain depends mostly on how long the file system
+    * takes to sync.
+    * 
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   public void beginTransaction() throws SQLException
+   {
+      if (inTransaction)
+      {
+         throw new IllegalStateException("A transaction is already open on this wrapper.");
+      }
+      dbConnection.setAutoCommit(false);
+      inTransaction = true;
+   }
+   
+   /**
+    * Commits the open transaction and turns auto-commit back on.
+    * 
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   public void commit() throws SQLException
+   {
+      checkInTransaction();
+      dbConnection.commit();
+      endTransaction();
+   }
+   
+   /**
+    * Rolls back the open transaction and turns auto-commit back on.
+    * 
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   public void rollback() throws SQLException
+   {
+      checkInTransaction();
+      try
+      {
+         dbConnection.rollback();
+      }
+      finally
+      {
+         endTransaction();
+      }
+   }
+   
+   /**
+    * Sets a savepoint within the open transaction, which the 
+    * transaction can be rolled back to without losing the work done
+    * before it.
+    * 
+    * @param name
+    *    The name of the savepoint.
+    * @return
+    *    The savepoint created. 
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   public Savepoint setSavepoint(String name) throws SQLException
+   {
+      checkInTransaction();
+      return dbConnection.setSavepoint(name);
+   }
+   
+   /**
+    * Undoes the work done in the open transaction since the savepoint 
+    * passed was set, leaving the transaction open.
+    * 
+    * @param savepoint
+    *    The savepoint to roll back to.
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   public void rollbackToSavepoint(Savepoint savepoint) throws SQLException
+   {
+      checkInTransaction();
+      dbConnection.rollback(savepoint);
+   }
+   
+   /**
+    * Releases a savepoint that is no longer needed, keeping the work 
+    * done since it was set as part of the open transaction.
+    * 
+    * @param savepoint
+    *    The savepoint to release.
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   public void releaseSavepoint(Savepoint savepoint) throws SQLException
+   {
+      checkInTransaction();
+      dbConnection.releaseSavepoint(savepoint);
+   }
+   
+   /**
+    * @return
+    *    True if a transaction has been started and not yet committed
+    *    or rolled back.
+    */
+   public boolean isInTransaction()
+   {
+      return inTransaction;
+   }
+   
+   /**
+    * Runs the work passed in a transaction, committing it if the work
+    * completes and rolling it back if the work throws an exception.
+    * If a transaction is already open, the work runs within a savepoint
+    * of that transaction instead, so only the work passed is undone 
+    * if it fails.
+    * 
+    * <pre>
+    * int moved = db.inTransaction(tx -&gt; 
+    *    {
+    *       tx.newCommand("UPDATE account SET amount = amount - ? WHERE id = ?", 10, 1);
+    *       int rows = tx.executeNonQuery();
+    *       tx.newCommand("UPDATE account SET amount = amount + ? WHERE id = ?", 10, 2);
+    *       return rows + tx.executeNonQuery();
+    *    });
+    * </pre>
+    * 
+    * @param work
+    *    The work to perform in the transaction.
+    * @param <T>
+    *    The type of result the work returns.
+    * @return
+    *    The result of the work.
+    * @throws SQLException
+    *    Any exceptions will be thrown once the work has been 
+    *    rolled back.
+    */
+   public <T> T inTransaction(TransactionCallback<T> work) throws SQLException
+   {
+      if (inTransaction)
+      {
+         Savepoint savepoint = setSavepoint("bjad_tx_" + System.nanoTime());
+         try
+         {
+            T result = work.execute(this);
+            releaseSavepoint(savepoint);
+            return result;
+         }
+         catch (SQLException | RuntimeException ex)
+         {
+            try { rollbackToSavepoint(savepoint); } catch (Exception rollbackEx) { ex.addSuppressed(rollbackEx); }
+            throw ex;
+         }
+      }
+      
+      beginTransaction();
+      try
+      {
+         T result = work.execute(this);
+         commit();
+         return result;
+      }
+      catch (SQLException | RuntimeException ex)
+      {
+         if (inTransaction)
+         {
+            try { rollback(); } catch (Exception rollbackEx) { ex.addSuppressed(rollbackEx); }
+         }
+         throw ex;
+      }
+   }
+
+   /**
+    * Implementation of the auto close option, allowing for the
+    * database objects to be used and closed using the
+    * try-with-resources statement. Pooled connections are 
+    * handed back to their pool rather than being closed. 
+    */
+   public void close()
+   {      
+      releaseStatement();
+      
+      if (inTransaction)
+      {
+         try { rollback(); } catch (Exception ex) { ; }
+      }
+      
+      if (pooledConnection != null)
+      {
+         pooledConnection.getPool().release(pooledConnection);
+         pooledConnection = null;
+      }
+      else if (dbConnection != null)
+      {
+         statementCache.close();
+         try {dbConnection.close(); } catch (Exception ex) { ; }
+      }
+      dbConnection = null;
+      releaseAdmission();
+   }
+
+   /**
+    * Resets the SQL command to execute within the wrapper, so the 
+    * connection can remain open but a new statement can be executed.
+    * Statements are cached per connection, so issuing the same SQL 
+    * again reuses the statement already prepared for it.
+    * 
+    * @param sqlString
+    *    The SQL statement to execute.
+    * @param arguments
+    *    The parameters for the sql statement.
+    * @throws java.sql.SQLException
+    *    Any SQL Exceptions will be thrown back to 
+    *    the calling function. 
+    */
+   public void newCommand(String sqlString, Object... arguments) throws SQLException
+   {
+      releaseStatement();
+      batchMode = false;
+      argumentsPending = false;
+      rowBinding = false;
+      returnKeys = false;
+      returningColumns = null;
+      keyRows = null;
+      insertChecked = false;
+      insertTemplate = null;
+      rewriteRows = null;
+      
+      this.sqlString = sqlString;
+      this.fingerprint = null;
+      this.writtenTable = null;
+      this.arguments = NO_ARGUMENTS;
+      this.bindingPlan = null;
+      prepareStatement(metricsListener);
+
+      if (arguments.length > 0)
+      {
+         setArguments(arguments);
+         argumentsPending = true;
+      }
+   }
+   
+   /**
+    * Returns the current statement for the row binder to set values on.
+    * The first value of a row pushes any arguments still pending from 
+    * the constructor or newCommand() into the batch ahead of it. 
+    * 
+    * @return
+    *    The current statement.
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   PreparedStatement bindStatement() throws SQLException
+   {
+      if (rewriteActive())
+      {
+         throw new IllegalStateException(
+               "Rows cannot be bound with the row binder while batched inserts are rewritten, use addToBatch().");
+      }
+      if (!rowBinding)
+      {
+         if (argumentsPending)
+         {
+            statement.addBatch();
+            rememberKeyRow(arguments);
+            batchMode = true;
+         }
+         rowBinding = true;
+         argumentsPending = true;
+         arguments = null;
+      }
+      return statement;
+   }
+   
+   /**
+    * Adds the row bound through the row binder to the batch.
+    * 
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   void addBoundRow() throws SQLException
+   {
+      if (!rowBinding)
+      {
+         throw new IllegalStateException("No values have been bound for the row.");
+      }
+      statement.addBatch();
+      rememberKeyRow(null);
+      batchMode = true;
+      argumentsPending = false;
+      rowBinding = false;
+   }
+   
+   /**
+    * @return
+    *    The connection the wrapper is executing commands against.
+    */
+   Connection getConnection()
+   {
+      return dbConnection;
+   }
+   
+   /**
+    * @return
+    *    The columns of the query last executed, read from its statement
+    *    so they are known even when the query returned no rows, or null 
+    *    if there is no current statement or the driver cannot tell.
+    * @throws SQLException
+    *    Any exception reading the columns.
+    */
+   ResultSetMetaData getQueryMetaData() throws SQLException
+   {
+      return statement == null ? null : statement.getMetaData();
+   }
+   
+   /**
+    * @return
+    *    The prepared statement cache for the wrapper's connection, 
+    *    used to check the cache's hit and miss counts.
+    */
+   public StatementCache getStatementCache()
+   {
+      return statementCache;
+   }
+   
+   /**
+    * Hands the admission permit back, if the wrapper was given one.
+    */
+   private void releaseAdmission()
+   {
+      if (admissionPermit != null)
+      {
+         admissionPermit.close();
+         admissionPermit = null;
+      }
+   }
+
+   /**
+    * Throws an IllegalStateException if no transaction is open. 
+    */
+   private void checkInTransaction()
+   {
+      if (!inTransaction)
+      {
+         throw new IllegalStateException("No transaction is open on this wrapper, call beginTransaction() first.");
+      }
+   }
+   
+   /**
+    * Marks the transaction as finished and turns auto-commit back on.
+    * 
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   private void endTransaction() throws SQLException
+   {
+      inTransaction = false;
+      dbConnection.setAutoCommit(true);
+      
+      // Results read by other connections while the transaction was 
+      // open may have been cached from the old rows.
+      QueryResultCache cache = resultCache;
+      if (dirtyTables != null && cache != null)
+      {
+         for (String table : dirtyTables)
+         {
+            cache.invalidateTag(table);
+         }
+      }
+      dirtyTables = null;
+   }
+   
+   /**
+    * @return
+    *    True if batched rows of the current command are collected and
+    *    inserted with multi-row statements.
+    */
+   private boolean rewriteActive()
+   {
+      if (!rewriteInserts || returnKeys || returningColumns != null)
+      {
+         return false;
+      }
+      if (!insertChecked)
+      {
+         // Parsed once per command, left null if not a simple insert.
+         insertTemplate = MultiRowInsert.parse(sqlString);
+         insertChecked = true;
+      }
+      return insertTemplate != null;
+   }
+
+   /**
+    * Inserts the collected rows of the batch with multi-row statements.
+    * 
+    * @param listener
+    *    The metrics listener, null if none is set.
+    * @param start
+    *    The time execution started, if a listener is set.
+    * @return
+    *    The number of rows inserted.
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   private int executeRewrittenInserts(QueryMetricsListener listener, long start) throws SQLException
+   {
+      List<Object[]> rows = rewriteRows;
+      if (argumentsPending)
+      {
+         rows.add(arguments);
+      }
+      rewriteRows = null;
+      batchMode = false;
+      argumentsPending = false;
+      if (bindingPlan == null && !rows.isEmpty())
+      {
+         bindingPlan = BindingPlan.forValues(rows.get(0));
+      }
+
+      // Every row is checked before anything runs, so a bad row cannot
+      // leave the earlier chunks inserted.
+      int columns = insertTemplate.getParameterCount();
+      for (int row = 0; row < rows.size(); row++)
+      {
+         if (rows.get(row).length != columns)
+         {
+            throw new SQLException("Row " + row + " has " + rows.get(row).length 
+                  + " values but the insert has " + columns + " parameters.");
+         }
+      }
+
+      int affected = 0;
+      int offset = 0;
+      while (offset < rows.size())
+      {
+         int count = insertTemplate.nextChunkSize(rows.size() - offset, maxParameters);
+         String chunkSql = insertTemplate.sqlFor(count);
+         PreparedStatement chunk = statementCache.prepare(chunkSql);
+         int chunkTimeout = queryTimeout > 0 ? chunk.getQueryTimeout() : -1;
+         try
+         {
+            if (offset == 0)
+            {
+               beginRun(chunk);
+            }
+            else
+            {
+               runOn(chunk);
+            }
+            if (queryTimeout > 0)
+            {
+               chunk.setQueryTimeout(queryTimeout);
+            }
+            for (int row = 0; row < count; row++)
+            {
+               bindingPlan.bind(chunk, rows.get(offset + row), row * columns + 1);
+            }
+            affected += chunk.executeUpdate();
+         }
+         finally
+         {
+            endRun();
+            if (chunkTimeout >= 0)
+            {
+               try { chunk.setQueryTimeout(chunkTimeout); } catch (Exception ex) { ; }
+            }
+            statementCache.release(chunkSql, chunk);
+         }
+         offset += count;
+      }
+
+      if (listener != null)
+      {
+         recordExecute(listener, start, affected);
+      }
+      invalidateCachedResults();
+      return affected;
+   }
+
+   /**
+    * Executes the current insert command and reads the keys of the 
+    * inserted rows.
+    * 
+    * @param keyReader
+    *    Processor reading each row of keys.
+    * @return
+    *    The number of rows inserted.
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   private int runInsert(ResultSetProcessor keyReader) throws SQLException
+   {
+      if (!returnKeys && returningColumns == null)
+      {
+         throw new IllegalStateException(
+               "Keys have not been requested, call setReturnGeneratedKeys(true) or setReturningColumns() first.");
+      }
+
+      QueryMetricsListener listener = commandListener();
+      long start = listener == null ? 0 : System.nanoTime();
+      applyQueryTimeout();
+      rowBinding = false;
+
+      List<Object[]> rows = batchMode && keyRows != null ? keyRows : new ArrayList<>();
+      if (!batchMode || argumentsPending)
+      {
+         rows.add(arguments);
+      }
+
+      int affected = 0;
+      try
+      {
+         if (returningColumns != null)
          {
-            statement.setInt(index + 1, ((Integer) values[index]).intValue());
+            statement.clearBatch();
+            statement.clearParameters();
+            affected = insertReturning(rows, keyReader);
          }
-         else if (values[index] instanceof Long)
+         else if (!batchMode)
          {
-            statement.setLong(index + 1, (Long) values[index]);
+            beginRun(statement);
+            affected = statement.executeUpdate();
+            readGeneratedKeys(keyReader);
          }
-         else if (values[index] instanceof BigDecimal)
+         else if (batchKeysSupported())
          {
-            statement.setBigDecimal(index + 1, (BigDecimal) values[index]);
+            if (argumentsPending)
+            {
+               statement.addBatch();
+            }
+            beginRun(statement);
+            for (int i : statement.executeBatch())
+            {
+               affected += i;
+            }
+            readGeneratedKeys(keyReader);
          }
-         else if (values[index] instanceof String)
+         else
          {
-            statement.setString(index + 1, (String) values[index]);
+            statement.clearBatch();
+            statement.clearParameters();
+            beginRun(statement);
+            for (Object[] row : rows)
+            {
+               setArguments(checkReplayable(row));
+               affected += statement.executeUpdate();
+               readGeneratedKeys(keyReader);
+            }
          }
-         else if (values[index] instanceof java.util.Date)
+      }
+      finally
+      {
+         endRun();
+         batchMode = false;
+         argumentsPending = false;
+         keyRows = null;
+      }
+
+      if (listener != null)
+      {
+         recordExecute(listener, start, affected);
+      }
+      invalidateCachedResults();
+      return affected;
+   }
+
+   /**
+    * Runs each row with the RETURNING clause appended, reading the 
+    * returned columns.
+    * 
+    * @param rows
+    *    The arguments of each row.
+    * @param keyReader
+    *    Processor reading each row of returned columns.
+    * @return
+    *    The number of rows inserted.
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   private int insertReturning(List<Object[]> rows, ResultSetProcessor keyReader) throws SQLException
+   {
+      String returningSql = sqlString + " RETURNING " + returningColumns;
+      PreparedStatement returning = statementCache.prepare(returningSql);
+      try
+      {
+         beginRun(returning);
+         int affected = 0;
+         for (Object[] row : rows)
          {
-            statement.setDate(index + 1, new java.sql.Date(((java.util.Date) values[index]).getTime()));
+            checkReplayable(row);
+            (bindingPlan == null ? BindingPlan.forValues(row) : bindingPlan).bind(returning, row);
+            try (ResultSet keys = returning.executeQuery())
+            {
+               while (keys.next())
+               {
+                  affected++;
+                  keyReader.processRow(keys);
+               }
+            }
          }
-         else if (values[index] instanceof Boolean)
+         return affected;
+      }
+      finally
+      {
+         endRun();
+         statementCache.release(returningSql, returning);
+      }
+   }
+
+   /**
+    * Reads the generated keys of the last execution.
+    * 
+    * @param keyReader
+    *    Processor reading each row of keys.
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   private void readGeneratedKeys(ResultSetProcessor keyReader) throws SQLException
+   {
+      try (ResultSet keys = statement.getGeneratedKeys())
+      {
+         while (keys.next())
          {
-            statement.setBoolean(index + 1, (Boolean) values[index]);
+            keyReader.processRow(keys);
          }
-         else
+      }
+   }
+
+   /**
+    * @return
+    *    True if the driver returns the keys of every row of a batch, 
+    *    false for drivers known to only return the last row's key.
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   private boolean batchKeysSupported() throws SQLException
+   {
+      if (batchKeysOk == null)
+      {
+         String product = dbConnection.getMetaData().getDatabaseProductName();
+         batchKeysOk = product == null || !product.toLowerCase(Locale.ROOT).contains("sqlite");
+      }
+      return batchKeysOk;
+   }
+
+   /**
+    * Keeps a copy of a batched row's arguments while keys are requested,
+    * so the row can be run again on its own.
+    * 
+    * @param row
+    *    The row's arguments, null if bound through the row binder.
+    */
+   private void rememberKeyRow(Object[] row)
+   {
+      if (returnKeys || returningColumns != null)
+      {
+         if (keyRows == null)
+         {
+            keyRows = new ArrayList<>();
+         }
+         keyRows.add(row == null ? null : row.clone());
+      }
+   }
+
+   /**
+    * @param row
+    *    A batched row's arguments.
+    * @return
+    *    The arguments.
+    * @throws IllegalStateException
+    *    If the row was bound through the row binder, so its values are
+    *    not known to the wrapper.
+    */
+   private static Object[] checkReplayable(Object[] row)
+   {
+      if (row == null)
+      {
+         throw new IllegalStateException(
+               "Rows bound through the row binder cannot be run one at a time to read their keys.");
+      }
+      return row;
+   }
+
+   /**
+    * Removes the cached results tagged with the table the current 
+    * command changes, if a result cache is set. Inside a transaction 
+    * the table is remembered and invalidated again when the 
+    * transaction ends.
+    */
+   private void invalidateCachedResults()
+   {
+      QueryResultCache cache = resultCache;
+      if (cache == null)
+      {
+         return;
+      }
+      if (writtenTable == null)
+      {
+         String table = SqlTables.writtenTable(sqlString);
+         writtenTable = table == null ? "" : table;
+      }
+      if (!writtenTable.isEmpty())
+      {
+         cache.invalidateTag(writtenTable);
+         if (inTransaction)
+         {
+            if (dirtyTables == null)
+            {
+               dirtyTables = new HashSet<>();
+            }
+            dirtyTables.add(writtenTable);
+         }
+      }
+   }
+   
+   /**
+    * @param values
+    *    The arguments bound to the current command, null if they were
+    *    bound through the row binder.
+    * @return
+    *    True if the arguments can be part of a result cache key.
+    */
+   private static boolean isCacheable(Object[] values)
+   {
+      if (values == null)
+      {
+         return false;
+      }
+      for (Object value : values)
+      {
+         if (value instanceof java.io.InputStream || value instanceof java.io.Reader 
+               || value instanceof java.sql.Blob || value instanceof java.sql.Clob)
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+   
+   /**
+    * @return
+    *    The fingerprint of the current command's SQL, worked out the 
+    *    first time it is needed.
+    */
+   private String fingerprint()
+   {
+      if (fingerprint == null)
+      {
+         fingerprint = SqlFingerprint.of(sqlString);
+      }
+      return fingerprint;
+   }
+   
+   /**
+    * @return
+    *    The listener the current command reports its timings to: the 
+    *    metrics listener, fronted by a feed of command latencies to the
+    *    wrapper's admission permit when its adaptive limit is on. Null 
+    *    if neither wants the timings.
+    */
+   private QueryMetricsListener commandListener()
+   {
+      QueryMetricsListener listener = metricsListener;
+      if (admissionPermit != null && admissionPermit.isAdaptive())
+      {
+         return new LatencyFeed(admissionPermit, listener);
+      }
+      return listener;
+   }
+   
+   /**
+    * Prepares (or takes from the cache) the statement for the current 
+    * SQL, timing it if a listener is set.
+    * 
+    * @param listener
+    *    The metrics listener, null if none is set.
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   private void prepareStatement(QueryMetricsListener listener) throws SQLException
+   {
+      long start = listener == null ? 0 : System.nanoTime();
+      statement = statementCache.prepare(sqlString, returnKeys);
+      if (listener != null)
+      {
+         listener.phaseCompleted(fingerprint(), QueryPhase.PREPARE, System.nanoTime() - start, 0);
+      }
+   }
+   
+   /**
+    * Executes the current statement as a query, closing the result 
+    * set of any earlier execution first.
+    * 
+    * @param listener
+    *    The metrics listener, null if none is set.
+    * @param start
+    *    The time execution started, if a listener is set.
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   private void openResultSet(QueryMetricsListener listener, long start) throws SQLException
+   {
+      if (resultSet != null)
+      {
+         try { resultSet.close(); } catch (Exception ex) { ; }
+         resultSet = null;
+      }
+      statement.setFetchSize(fetchSize);
+      applyQueryTimeout();
+      rowBinding = false;
+      beginRun(statement);
+      try
+      {
+         resultSet = statement.executeQuery();
+      }
+      catch (SQLException | RuntimeException ex)
+      {
+         endRun();
+         throw ex;
+      }
+      if (listener != null)
+      {
+         listener.phaseCompleted(fingerprint(), QueryPhase.EXECUTE, System.nanoTime() - start, 0);
+      }
+   }
+   
+   /**
+    * Reports the execute phase and completion of a non-query command.
+    * 
+    * @param listener
+    *    The metrics listener.
+    * @param start
+    *    The time execution started.
+    * @param affected
+    *    The number of rows affected.
+    */
+   private void recordExecute(QueryMetricsListener listener, long start, long affected)
+   {
+      long elapsed = System.nanoTime() - start;
+      listener.phaseCompleted(fingerprint(), QueryPhase.EXECUTE, elapsed, 0);
+      listener.commandCompleted(sqlString, fingerprint(), arguments, elapsed, affected);
+   }
+   
+   /**
+    * Reports the fetch phase and completion of a query.
+    * 
+    * @param listener
+    *    The metrics listener.
+    * @param start
+    *    The time execution started.
+    * @param fetchStart
+    *    The time the first row was asked for.
+    * @param rows
+    *    The number of rows read.
+    */
+   private void recordFetch(QueryMetricsListener listener, long start, long fetchStart, long rows)
+   {
+      long end = System.nanoTime();
+      listener.phaseCompleted(fingerprint(), QueryPhase.FETCH, end - fetchStart, rows);
+      listener.commandCompleted(sqlString, fingerprint(), arguments, end - start, rows);
+   }
+   
+   /**
+    * Applies the wrapper's query timeout to the current statement, 
+    * remembering the statement's original timeout so it can be put 
+    * back when the statement is returned to the cache. Some drivers
+    * (SQLite for one) tie the query timeout to connection wide 
+    * settings, so the timeout is only touched when one has been set.
+    * 
+    * @throws SQLException
+    *    Any exceptions will be thrown.
+    */
+   private void applyQueryTimeout() throws SQLException
+   {
+      if (queryTimeout > 0)
+      {
+         if (previousTimeout < 0)
+         {
+            previousTimeout = statement.getQueryTimeout();
+         }
+         statement.setQueryTimeout(queryTimeout);
+      }
+   }
+   
+   /**
+    * Starts a new command execution on the statement passed, which 
+    * cancel() and cancel(long) act on until endRun() is called.
+    * 
+    * @param target
+    *    The statement being executed.
+    * @throws SQLException
+    *    If the execution was cancelled before it started.
+    */
+   private void beginRun(PreparedStatement target) throws SQLException
+   {
+      synchronized (runLock)
+      {
+         runNumber++;
+      }
+      runOn(target);
+   }
+
+   /**
+    * Moves the current command execution on to the statement passed, 
+    * for executions that run more than one statement.
+    * 
+    * @param target
+    *    The statement being executed.
+    * @throws SQLException
+    *    If the execution has been cancelled.
+    */
+   private void runOn(PreparedStatement target) throws SQLException
+   {
+      synchronized (runLock)
+      {
+         if (cancelledRun == runNumber)
+         {
+            throw new SQLException("The command was cancelled.");
+         }
+         running = target;
+      }
+   }
+
+   /**
+    * Ends the current statement's part in the command execution, after
+    * which cancelling no longer reaches the statement. 
+    */
+   private void endRun()
+   {
+      synchronized (runLock)
+      {
+         running = null;
+      }
+   }
+   
+   /**
+    * Closes the open result set, if any, and checks the current
+    * statement back into the statement cache.
+    */
+   private void releaseStatement()
+   {
+      endRun();
+      if (resultSet != null)
+      {
+         try { resultSet.close(); } catch (Exception ex) { ; }
+         resultSet = null;
+      }
+      if (statement != null)
+      {
+         if (previousTimeout >= 0)
+         {
+            try { statement.setQueryTimeout(previousTimeout); } catch (Exception ex) { ; }
+            previousTimeout = -1;
+         }
+         statementCache.release(sqlString, returnKeys, statement);
+         statement = null;
+      }
+   }
+   
+   /**
+    * Sets the arguments for the database command, through the binding
+    * plan for the command. Nulls, numbers, text, bytes, dates and times
+    * (java.util, java.sql and java.time) and LOBs are supported, streams
+    * and readers are bound through the row binder. 
+    * 
+    * @param values
+    *    The argument values
+    * @throws java.sql.SQLException
+    *    Any SQL Exceptions will be thrown back to 
+    *    the calling function. 
+    */
+   private void setArguments(Object[] values) throws SQLException
+   {
+      arguments = values;
+      if (bindingPlan == null)
+      {
+         bindingPlan = BindingPlan.forValues(values);
+      }
+      bindingPlan.bind(statement, values);
+   }
+
+   /**
+    * Listener passing the time each command takes to an admission 
+    * permit, and every event on to the metrics listener if one is set.
+    */
+   private static final class LatencyFeed implements QueryMetricsListener
+   {
+      private final AdmissionController.Permit permit;
+      private final QueryMetricsListener       delegate;
+
+      private LatencyFeed(AdmissionController.Permit permit, QueryMetricsListener delegate)
+      {
+         this.permit = permit;
+         this.delegate = delegate;
+      }
+
+      @Override
+      public void phaseCompleted(String fingerprint, QueryPhase phase, long elapsedNanos, long rowCount)
+      {
+         if (delegate != null)
+         {
+            delegate.phaseCompleted(fingerprint, phase, elapsedNanos, rowCount);
+         }
+      }
+
+      @Override
+      public void commandCompleted(String sql, String fingerprint, Object[] arguments, long elapsedNanos, long rowCount)
+      {
+         permit.recordLatency(elapsedNanos);
+         if (delegate != null)
+         {
+            delegate.commandCompleted(sql, fingerprint, arguments, elapsedNanos, rowCount);
+         }
+      }
+   }
+
+   /**
+    * Collects the first column of each row of keys as a long.
+    */
+   private static final class KeyCollector implements ResultSetProcessor
+   {
+      private long[] keys = new long[16];
+      private int    size = 0;
+
+      @Override
+      public void processRow(ResultSet rs) throws SQLException
+      {
+         if (size == keys.length)
          {
-            throw new IllegalArgumentException(
-                  "Index " + index + " contains a class that is not support (" + values[index].getClass().getCanonicalName());
+            keys = Arrays.copyOf(keys, size * 2);
          }
+         keys[size++] = rs.getLong(1);
+      }
+
+      private long[] toArray()
+      {
+         return Arrays.copyOf(keys, size);
       }
    }
 }
@@ -0,0 +1,180 @@
+package ca.bjad.util.db;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+
+/**
+ * Column of decimal values stored as unscaled longs sharing a single
+ * scale, so <code>12.34</code> is held as <code>1234</code> with a scale
+ * of 2. The column's scale grows to fit the most precise value read.
+ * The rare value that cannot be held as an unscaled long at the
+ * column's scale is kept as a BigDecimal on the side.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class DecimalColumn extends Column
+{
+   private long[][]                           chunks   = new long[4][];
+   private int                                scale    = 0;
+   private final HashMap<Integer, BigDecimal> overflow = new HashMap<>();
+
+   /**
+    * Constructor, setting the column's label, SQL type and the scale
+    * the database reported for the column.
+    *
+    * @param name
+    *    The column label.
+    * @param sqlType
+    *    The java.sql.Types value reported for the column.
+    * @param scale
+    *    The scale reported for the column, 0 if unknown.
+    */
+   DecimalColumn(String name, int sqlType, int scale)
+   {
+      super(name, sqlType);
+      this.scale = Math.max(0, scale);
+   }
+
+   /**
+    * @return
+    *    The scale the unscaled values are stored at.
+    */
+   public int getScale()
+   {
+      return scale;
+   }
+
+   /**
+    * @param row
+    *    The row number, starting at 0.
+    * @return
+    *    True if the row's value is held as an unscaled long, false if 
+    *    it is NULL or too large and only available through 
+    *    {@link #getBigDecimal(int)}.
+    */
+   public boolean hasUnscaledValue(int row)
+   {
+      return !isNull(row) && !overflow.containsKey(row);
+   }
+
+   /**
+    * @param row
+    *    The row number, starting at 0.
+    * @return
+    *    The value of the row multiplied by 10 to the power of the
+    *    column's scale, 0 if the row is NULL or does not have an 
+    *    unscaled value.
+    */
+   public long getUnscaled(int row)
+   {
+      checkRow(row);
+      return chunks[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+   }
+
+   /**
+    * @param row
+    *    The row number, starting at 0.
+    * @return
+    *    The value of the row, null if the column is NULL in the row.
+    */
+   public BigDecimal getBigDecimal(int row)
+   {
+      if (isNull(row))
+      {
+         return null;
+      }
+      BigDecimal large = overflow.get(row);
+      return large != null ? large : BigDecimal.valueOf(getUnscaled(row), scale);
+   }
+
+   @Override
+   public Object getObject(int row)
+   {
+      return getBigDecimal(row);
+   }
+
+   @Override
+   public long getEstimatedBytes()
+   {
+      return super.getEstimatedBytes() + chunkBytes(chunks.length, 8) + overflow.size() * 96L;
+   }
+
+   @Override
+   void append(ResultSet rs, int columnIndex) throws SQLException
+   {
+      BigDecimal value = rs.getBigDecimal(columnIndex);
+      long unscaled = 0;
+      if (value == null)
+      {
+         markNull(size);
+      }
+      else
+      {
+         if (value.scale() > scale)
+         {
+            BigDecimal stripped = value.stripTrailingZeros();
+            if (stripped.scale() > scale && !rescale(stripped.scale()))
+            {
+               overflow.put(size, value);
+            }
+         }
+         if (!overflow.containsKey(size))
+         {
+            BigInteger scaled = value.setScale(scale).unscaledValue();
+            if (scaled.bitLength() < 64)
+            {
+               unscaled = scaled.longValue();
+            }
+            else
+            {
+               overflow.put(size, value);
+            }
+         }
+      }
+
+      int chunk = size >>> CHUNK_SHIFT;
+      chunks = ensureChunks(chunks, chunk);
+      if (chunks[chunk] == null)
+      {
+         chunks[chunk] = new long[CHUNK_SIZE];
+      }
+      chunks[chunk][size & CHUNK_MASK] = unscaled;
+      size++;
+   }
+
+   /**
+    * Moves every value already read to a larger scale, if all of them
+    * still fit in a long at the new scale.
+    *
+    * @param newScale
+    *    The scale needed.
+    * @return
+    *    True if the column was moved to the new scale.
+    */
+   private boolean rescale(int newScale)
+   {
+      if (newScale > 18)
+      {
+         return false;
+      }
+      long factor = BigInteger.TEN.pow(newScale - scale).longValueExact();
+      for (int row = 0; row < size; row++)
+      {
+         long value = chunks[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+         if (value != 0 && Math.abs(value) > Long.MAX_VALUE / factor)
+         {
+            return false;
+         }
+      }
+      for (int row = 0; row < size; row++)
+      {
+         chunks[row >>> CHUNK_SHIFT][row & CHUNK_MASK] *= factor;
+      }
+      scale = newScale;
+      return true;
+   }
+}
@@ -0,0 +1,228 @@
+package ca.bjad.util.db;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics listener keeping, in memory, latency histograms for each 
+ * phase of each SQL fingerprint, row counts and a log of the most 
+ * recent slow commands.
+ * 
+ * <pre>
+ * InMemoryQueryMetrics metrics = new InMemoryQueryMetrics(500, 100);
+ * DatabaseWrapper.setMetricsListener(metrics);
+ * ...
+ * long p99 = metrics.getHistogram(fingerprint, QueryPhase.EXECUTE).getValueAtPercentile(99);
+ * </pre>
+ *
+ * @author
+ *    Ben Dougall
+ */
+public class InMemoryQueryMetrics implements QueryMetricsListener
+{
+   /**
+    * The slow query threshold used by the default constructor.
+    */
+   public static final long DEFAULT_SLOW_QUERY_MILLIS = 1000;
+   
+   /**
+    * The number of slow queries kept by the default constructor.
+    */
+   public static final int  DEFAULT_SLOW_QUERY_LOG_SIZE = 100;
+
+   private final long                    slowQueryThresholdNanos;
+   private final int                     slowQueryLogSize;
+   private final ArrayDeque<SlowQuery>   slowQueries  = new ArrayDeque<>();
+   private final ConcurrentHashMap<String, FingerprintMetrics> metrics = new ConcurrentHashMap<>();
+
+   /**
+    * Default constructor, logging commands taking over a second and 
+    * keeping the last 100 of them.
+    */
+   public InMemoryQueryMetrics()
+   {
+      this(DEFAULT_SLOW_QUERY_MILLIS, DEFAULT_SLOW_QUERY_LOG_SIZE);
+   }
+
+   /**
+    * Constructor, setting the slow query threshold and log size.
+    * 
+    * @param slowQueryThresholdMillis
+    *    Commands taking at least this long are logged as slow.
+    * @param slowQueryLogSize
+    *    The number of slow queries kept, the oldest are dropped first.
+    */
+   public InMemoryQueryMetrics(long slowQueryThresholdMillis, int slowQueryLogSize)
+   {
+      this.slowQueryThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowQueryThresholdMillis);
+      this.slowQueryLogSize = slowQueryLogSize;
+   }
+
+   @Override
+   public void phaseCompleted(String fingerprint, QueryPhase phase, long elapsedNanos, long rowCount)
+   {
+      FingerprintMetrics entry = metricsFor(fingerprint);
+      entry.phases[phase.ordinal()].record(elapsedNanos);
+      if (phase == QueryPhase.FETCH)
+      {
+         entry.rows.addAndGet(rowCount);
+         entry.fetchNanos.addAndGet(elapsedNanos);
+      }
+   }
+
+   @Override
+   public void commandCompleted(String sql, String fingerprint, Object[] arguments, long elapsedNanos, long rowCount)
+   {
+      metricsFor(fingerprint).commands.record(elapsedNanos);
+      if (elapsedNanos >= slowQueryThresholdNanos && slowQueryLogSize > 0)
+      {
+         List<String> types = new ArrayList<>();
+         if (arguments != null)
+         {
+            for (Object arg : arguments)
+            {
+               types.add(arg == null ? "null" : arg.getClass().getSimpleName());
+            }
+         }
+         SlowQuery slow = new SlowQuery(sql, fingerprint, types, elapsedNanos, rowCount, System.currentTimeMillis());
+         synchronized (slowQueries)
+         {
+            if (slowQueries.size() >= slowQueryLogSize)
+            {
+               slowQueries.pollFirst();
+            }
+            slowQueries.addLast(slow);
+         }
+      }
+   }
+
+   /**
+    * @return
+    *    The fingerprints that have been reported.
+    */
+   public Set<String> getFingerprints()
+   {
+      return Collections.unmodifiableSet(metrics.keySet());
+   }
+
+   /**
+    * @param fingerprint
+    *    The SQL fingerprint.
+    * @param phase
+    *    The phase.
+    * @return
+    *    The latency histogram for the phase of the fingerprint, null if 
+    *    the fingerprint has not been reported.
+    */
+   public LatencyHistogram getHistogram(String fingerprint, QueryPhase phase)
+   {
+      FingerprintMetrics entry = metrics.get(fingerprint);
+      return entry == null ? null : entry.phases[phase.ordinal()];
+   }
+
+   /**
+    * @param fingerprint
+    *    The SQL fingerprint.
+    * @return
+    *    The latency histogram of whole commands (execute and fetch) for 
+    *    the fingerprint, null if the fingerprint has not been reported.
+    */
+   public LatencyHistogram getCommandHistogram(String fingerprint)
+   {
+      FingerprintMetrics entry = metrics.get(fingerprint);
+      return entry == null ? null : entry.commands;
+   }
+
+   /**
+    * @param fingerprint
+    *    The SQL fingerprint.
+    * @return
+    *    The number of rows fetched for the fingerprint.
+    */
+   public long getRowCount(String fingerprint)
+   {
+      FingerprintMetrics entry = metrics.get(fingerprint);
+      return entry == null ? 0 : entry.rows.get();
+   }
+
+   /**
+    * @param fingerprint
+    *    The SQL fingerprint.
+    * @return
+    *    The rows fetched per second of fetch time for the fingerprint.
+    */
+   public double getRowsPerSecond(String fingerprint)
+   {
+      FingerprintMetrics entry = metrics.get(fingerprint);
+      if (entry == null || entry.fetchNanos.get() == 0)
+      {
+         return 0;
+      }
+      return entry.rows.get() * 1_000_000_000.0 / entry.fetchNanos.get();
+   }
+
+   /**
+    * @return
+    *    The logged slow queries, oldest first.
+    */
+   public List<SlowQuery> getSlowQueries()
+   {
+      synchronized (slowQueries)
+      {
+         return new ArrayList<>(slowQueries);
+      }
+   }
+
+   /**
+    * Clears all the metrics and the slow query log.
+    */
+   public void reset()
+   {
+      metrics.clear();
+      synchronized (slowQueries)
+      {
+         slowQueries.clear();
+      }
+   }
+
+   /**
+    * @param fingerprint
+    *    The SQL fingerprint.
+    * @return
+    *    The metrics of the fingerprint, created if needed.
+    */
+   private FingerprintMetrics metricsFor(String fingerprint)
+   {
+      FingerprintMetrics entry = metrics.get(fingerprint);
+      if (entry == null)
+      {
+         entry = metrics.computeIfAbsent(fingerprint, key -> new FingerprintMetrics());
+      }
+      return entry;
+   }
+
+   /**
+    * The metrics kept for one fingerprint.
+    */
+   private static final class FingerprintMetrics
+   {
+      private final LatencyHistogram[] phases     = new LatencyHistogram[QueryPhase.values().length];
+      private final LatencyHistogram   commands   = new LatencyHistogram();
+      private final AtomicLong         rows       = new AtomicLong();
+      private final AtomicLong         fetchNanos = new AtomicLong();
+
+      private FingerprintMetrics()
+      {
+         for (int i = 0; i < phases.length; i++)
+         {
+            phases[i] = new LatencyHistogram();
+         }
+      }
+   }
+}
@@ -0,0 +1,68 @@
+package ca.bjad.util.db;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of rows read by a {@link KeysetPager}, along with the token
+ * to pass back to the pager to read the page after it.
+ *
+ * @param <T>
+ *    The type of object each row is mapped to.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class KeysetPage<T>
+{
+   private final List<T> items;
+   private final String  nextToken;
+
+   /**
+    * Constructor, setting the rows and continuation token of the page.
+    *
+    * @param items
+    *    The mapped rows of the page.
+    * @param nextToken
+    *    The token for the next page, null if this is the last page.
+    */
+   KeysetPage(List<T> items, String nextToken)
+   {
+      this.items = Collections.unmodifiableList(items);
+      this.nextToken = nextToken;
+   }
+
+   /**
+    * @return
+    *    The mapped rows of the page, in key order.
+    */
+   public List<T> getItems()
+   {
+      return items;
+   }
+
+   /**
+    * @return
+    *    The opaque token to pass to {@link KeysetPager#fetch(String)}
+    *    to read the next page, or null if this is the last page.
+    */
+   public String getNextToken()
+   {
+      return nextToken;
+   }
+
+   /**
+    * @return
+    *    True if there is a page after this one.
+    */
+   public boolean hasNext()
+   {
+      return nextToken != null;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "KeysetPage [items=" + items.size() + ", hasNext=" + hasNext() + "]";
+   }
+}
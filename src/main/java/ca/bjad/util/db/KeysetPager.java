@@ -0,0 +1,699 @@
+package ca.bjad.util.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Pages through the rows of a query using keyset (seek method)
+ * pagination rather than LIMIT/OFFSET. Each page is read with a
+ * predicate that starts just after the last key of the previous page,
+ * so with an index on the key columns the database seeks straight to
+ * the page instead of reading and throwing away every row before it,
+ * and a page deep into the table costs the same as the first.
+ *
+ * <br><br>
+ * The base query is wrapped in a sub-select, ordered by the key
+ * columns and limited to one row more than the page size, which is how
+ * the pager knows whether another page follows. The key columns must
+ * be columns of the base query's result, must be non-null and together
+ * must be unique, otherwise rows sharing a key with the end of a page
+ * would be skipped.
+ *
+ * <br><br>
+ * The position between pages is handed out as an opaque, URL safe
+ * continuation token holding the last key values read, so it can be
+ * sent to a UI and back without the caller keeping any state. Key
+ * values must be numbers, decimals, text, dates or booleans; other
+ * types, such as bytes, are rejected when the page is read. With
+ * prefetching turned on, the next page is read on a background thread
+ * as soon as a page is returned.
+ *
+ * <pre>
+ * KeysetPager&lt;Person&gt; pager = new KeysetPager&lt;&gt;(connectionString,
+ *       "SELECT id, name FROM person WHERE active = ?", mapper, 100, "id").withArguments(1);
+ * KeysetPage&lt;Person&gt; page = pager.fetch(request.getParameter("page"));
+ * response.setNextLink(page.getNextToken());
+ * </pre>
+ *
+ * @param <T>
+ *    The type of object each row is mapped to.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public class KeysetPager<T> implements AutoCloseable
+{
+   private static final String ALIAS          = "bjad_page";
+   private static final byte   TOKEN_VERSION  = 2;
+
+   private static final byte   TYPE_INTEGER   = 1;
+   private static final byte   TYPE_LONG      = 2;
+   private static final byte   TYPE_DOUBLE    = 3;
+   private static final byte   TYPE_STRING    = 4;
+   private static final byte   TYPE_DECIMAL   = 5;
+   private static final byte   TYPE_TIMESTAMP = 6;
+   private static final byte   TYPE_BOOLEAN   = 7;
+
+   private final String                     connectionString;
+   private final String                     baseSql;
+   private final ResultSetMapper<T>         mapper;
+   private final int                        pageSize;
+   private final String[]                   keyColumns;
+
+   private Object[]                         arguments     = new Object[0];
+   private boolean                          descending    = false;
+   private boolean                          prefetch      = false;
+
+   private AsyncDatabaseExecutor            async         = null;
+   private String                           prefetchToken = null;
+   private CompletableFuture<Integer>       prefetchQuery = null;
+   private CompletableFuture<KeysetPage<T>> prefetched    = null;
+
+   /**
+    * Constructor, setting the query to page through and how it is
+    * split into pages.
+    *
+    * @param connectionString
+    *    The connection string, null to use the global connection string.
+    * @param baseSql
+    *    The query to page through, without an ORDER BY.
+    * @param mapper
+    *    The mapper creating an object for each row.
+    * @param pageSize
+    *    The number of rows per page.
+    * @param keyColumns
+    *    The columns of the base query that uniquely order its rows,
+    *    most significant first.
+    */
+   public KeysetPager(String connectionString, String baseSql, ResultSetMapper<T> mapper, int pageSize,
+         String... keyColumns)
+   {
+      if (pageSize < 1)
+      {
+         throw new IllegalArgumentException("Page size must be at least 1, was " + pageSize);
+      }
+      if (keyColumns.length == 0)
+      {
+         throw new IllegalArgumentException("At least one key column is required");
+      }
+      this.connectionString = connectionString;
+      this.baseSql = baseSql;
+      this.mapper = mapper;
+      this.pageSize = pageSize;
+      this.keyColumns = keyColumns.clone();
+   }
+
+   /**
+    * Sets the parameters for the base query.
+    *
+    * @param arguments
+    *    The parameters.
+    * @return
+    *    This pager.
+    */
+   public KeysetPager<T> withArguments(Object... arguments)
+   {
+      this.arguments = arguments == null ? new Object[0] : arguments;
+      return this;
+   }
+
+   /**
+    * Sets whether pages run from the highest key to the lowest.
+    *
+    * @param descending
+    *    True to page in descending key order.
+    * @return
+    *    This pager.
+    */
+   public KeysetPager<T> withDescendingOrder(boolean descending)
+   {
+      this.descending = descending;
+      return this;
+   }
+
+   /**
+    * Sets whether the page after each page returned is read ahead on a
+    * background thread, overlapping the database read with whatever
+    * the caller does with the current page.
+    *
+    * @param prefetch
+    *    True to read the next page ahead.
+    * @return
+    *    This pager.
+    */
+   public KeysetPager<T> withPrefetch(boolean prefetch)
+   {
+      this.prefetch = prefetch;
+      return this;
+   }
+
+   /**
+    * Reads the first page.
+    *
+    * @return
+    *    The first page.
+    * @throws SQLException
+    *    Any exception reading the page.
+    */
+   public KeysetPage<T> firstPage() throws SQLException
+   {
+      return fetch(null);
+   }
+
+   /**
+    * Reads the page following the token passed.
+    *
+    * @param token
+    *    A token from {@link KeysetPage#getNextToken()} of this pager (or
+    *    an equivalent one), null or empty for the first page.
+    * @return
+    *    The page.
+    * @throws SQLException
+    *    Any exception reading the page.
+    * @throws IllegalArgumentException
+    *    If the token is not a valid token for this pager.
+    */
+   public KeysetPage<T> fetch(String token) throws SQLException
+   {
+      Object[] after = token == null || token.isEmpty() ? null : decodeToken(token);
+
+      KeysetPage<T> page = takePrefetched(token);
+      if (page == null)
+      {
+         PageCollector collector = new PageCollector();
+         try (DatabaseWrapper db = new DatabaseWrapper(resolveConnectionString(), pageSql(after != null),
+               pageArguments(after)))
+         {
+            db.executeQuery(collector);
+         }
+         page = collector.toPage();
+      }
+
+      if (prefetch && page.hasNext())
+      {
+         startPrefetch(page.getNextToken());
+      }
+      return page;
+   }
+
+   /**
+    * Reads every page from the start, handing each row to the consumer
+    * passed in key order.
+    *
+    * @param consumer
+    *    The consumer receiving each row.
+    * @return
+    *    The number of rows read.
+    * @throws SQLException
+    *    Any exception reading a page.
+    */
+   public long forEach(Consumer<? super T> consumer) throws SQLException
+   {
+      long rows = 0;
+      KeysetPage<T> page = firstPage();
+      while (true)
+      {
+         page.getItems().forEach(consumer);
+         rows += page.getItems().size();
+         if (!page.hasNext())
+         {
+            return rows;
+         }
+         page = fetch(page.getNextToken());
+      }
+   }
+
+   /**
+    * Cancels any page being read ahead and shuts down the background
+    * thread.
+    */
+   @Override
+   public synchronized void close()
+   {
+      cancelPrefetch();
+      if (async != null)
+      {
+         async.close();
+         async = null;
+      }
+   }
+
+   /**
+    * Builds the SQL for a page.
+    *
+    * @param seek
+    *    True if the page follows another page and so needs the seek
+    *    predicate.
+    * @return
+    *    The SQL statement.
+    */
+   String pageSql(boolean seek)
+   {
+      String comparison = descending ? " < ?" : " > ?";
+      StringBuilder sql = new StringBuilder("SELECT * FROM (").append(baseSql).append(") ").append(ALIAS);
+      if (seek)
+      {
+         // (k1 > ?) OR (k1 = ? AND k2 > ?) OR ..., led by a plain bound
+         // on the first key so the database can seek on its index.
+         sql.append(" WHERE ");
+         if (keyColumns.length > 1)
+         {
+            sql.append(key(0)).append(descending ? " <= ?" : " >= ?").append(" AND (");
+         }
+         for (int k = 0; k < keyColumns.length; k++)
+         {
+            if (k > 0)
+            {
+               sql.append(" OR ");
+            }
+            sql.append('(');
+            for (int e = 0; e < k; e++)
+            {
+               sql.append(key(e)).append(" = ? AND ");
+            }
+            sql.append(key(k)).append(comparison).append(')');
+         }
+         if (keyColumns.length > 1)
+         {
+            sql.append(')');
+         }
+      }
+      sql.append(" ORDER BY ");
+      for (int k = 0; k < keyColumns.length; k++)
+      {
+         sql.append(k == 0 ? "" : ", ").append(key(k)).append(descending ? " DESC" : "");
+      }
+      return sql.append(" LIMIT ?").toString();
+   }
+
+   /**
+    * Builds the parameters for a page, the base query's parameters
+    * followed by the seek predicate's and the row limit.
+    *
+    * @param after
+    *    The key values of the last row of the previous page, null for
+    *    the first page.
+    * @return
+    *    The parameters.
+    */
+   Object[] pageArguments(Object[] after)
+   {
+      List<Object> all = new ArrayList<>(Arrays.asList(arguments));
+      if (after != null)
+      {
+         if (keyColumns.length > 1)
+         {
+            all.add(after[0]);
+         }
+         for (int k = 0; k < keyColumns.length; k++)
+         {
+            for (int e = 0; e <= k; e++)
+            {
+               all.add(after[e]);
+            }
+         }
+      }
+      all.add(pageSize + 1);
+      return all.toArray();
+   }
+
+   /**
+    * Encodes key values as a continuation token.
+    *
+    * @param keys
+    *    The key values of the last row of a page.
+    * @return
+    *    The token.
+    */
+   String encodeToken(Object[] keys)
+   {
+      try
+      {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         DataOutputStream out = new DataOutputStream(bytes);
+         out.writeByte(TOKEN_VERSION);
+         out.writeInt(queryHash());
+         out.writeByte(keys.length);
+         for (Object key : keys)
+         {
+            writeKey(out, key);
+         }
+         out.flush();
+         return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+      }
+      catch (IOException ex)
+      {
+         throw new IllegalStateException("Unable to encode page token", ex);
+      }
+   }
+
+   /**
+    * Decodes a continuation token back into key values.
+    *
+    * @param token
+    *    The token.
+    * @return
+    *    The key values of the last row of the previous page.
+    */
+   Object[] decodeToken(String token)
+   {
+      Object[] keys = null;
+      boolean matches;
+      try
+      {
+         DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(token)));
+         matches = in.readByte() == TOKEN_VERSION && in.readInt() == queryHash() && in.readByte() == keyColumns.length;
+         if (matches)
+         {
+            keys = new Object[keyColumns.length];
+            for (int k = 0; k < keys.length; k++)
+            {
+               keys[k] = readKey(in);
+            }
+            if (in.available() > 0)
+            {
+               throw new IOException("Unexpected bytes after the last key");
+            }
+         }
+      }
+      catch (IOException | IllegalArgumentException ex)
+      {
+         throw new IllegalArgumentException("Malformed page token: " + token, ex);
+      }
+
+      if (!matches)
+      {
+         throw new IllegalArgumentException("Page token does not belong to this query: " + token);
+      }
+      return keys;
+   }
+
+   /**
+    * @return
+    *    Hash of the query, its parameters and key columns, stored in 
+    *    tokens so a token from one query, or the same query with other 
+    *    parameters, is not accepted by another.
+    */
+   private int queryHash()
+   {
+      int hash = (baseSql + '\u0000' + String.join(",", keyColumns) + '\u0000' + descending).hashCode();
+      return 31 * hash + Arrays.deepHashCode(arguments);
+   }
+
+   /**
+    * Writes one key value to a token.
+    *
+    * @param out
+    *    The token output.
+    * @param key
+    *    The key value.
+    * @throws IOException
+    *    Any exception writing the value.
+    */
+   private static void writeKey(DataOutputStream out, Object key) throws IOException
+   {
+      if (!isSupportedKey(key))
+      {
+         throw new IllegalArgumentException("Key value of type " + key.getClass().getName() 
+               + " cannot be held in a page token");
+      }
+      if (key instanceof Integer || key instanceof Short || key instanceof Byte)
+      {
+         out.writeByte(TYPE_INTEGER);
+         out.writeInt(((Number) key).intValue());
+      }
+      else if (key instanceof Long)
+      {
+         out.writeByte(TYPE_LONG);
+         out.writeLong((Long) key);
+      }
+      else if (key instanceof Double || key instanceof Float)
+      {
+         out.writeByte(TYPE_DOUBLE);
+         out.writeDouble(((Number) key).doubleValue());
+      }
+      else if (key instanceof BigDecimal)
+      {
+         BigDecimal decimal = (BigDecimal) key;
+         byte[] unscaled = decimal.unscaledValue().toByteArray();
+         out.writeByte(TYPE_DECIMAL);
+         out.writeInt(decimal.scale());
+         out.writeInt(unscaled.length);
+         out.write(unscaled);
+      }
+      else if (key instanceof java.util.Date)
+      {
+         out.writeByte(TYPE_TIMESTAMP);
+         out.writeLong(((java.util.Date) key).getTime());
+         out.writeInt(key instanceof Timestamp ? ((Timestamp) key).getNanos() : 0);
+      }
+      else if (key instanceof Boolean)
+      {
+         out.writeByte(TYPE_BOOLEAN);
+         out.writeBoolean((Boolean) key);
+      }
+      else
+      {
+         byte[] text = ((String) key).getBytes(StandardCharsets.UTF_8);
+         out.writeByte(TYPE_STRING);
+         out.writeInt(text.length);
+         out.write(text);
+      }
+   }
+
+   /**
+    * @param key
+    *    A key value read from a row.
+    * @return
+    *    True if the value's type can be written to a token and read 
+    *    back as the same type.
+    */
+   private static boolean isSupportedKey(Object key)
+   {
+      return key instanceof Integer || key instanceof Short || key instanceof Byte || key instanceof Long
+            || key instanceof Double || key instanceof Float || key instanceof BigDecimal 
+            || key instanceof java.util.Date || key instanceof Boolean || key instanceof String;
+   }
+
+   /**
+    * Reads one key value from a token.
+    *
+    * @param in
+    *    The token input.
+    * @return
+    *    The key value.
+    * @throws IOException
+    *    Any exception reading the value.
+    */
+   private static Object readKey(DataInputStream in) throws IOException
+   {
+      byte type = in.readByte();
+      switch (type)
+      {
+         case TYPE_INTEGER:
+            return in.readInt();
+         case TYPE_LONG:
+            return in.readLong();
+         case TYPE_DOUBLE:
+            return in.readDouble();
+         case TYPE_DECIMAL:
+            int scale = in.readInt();
+            int size = in.readInt();
+            if (size < 1 || size > in.available())
+            {
+               throw new IOException("Bad decimal key length " + size);
+            }
+            byte[] unscaled = new byte[size];
+            in.readFully(unscaled);
+            return new BigDecimal(new BigInteger(unscaled), scale);
+         case TYPE_TIMESTAMP:
+            Timestamp timestamp = new Timestamp(in.readLong());
+            timestamp.setNanos(in.readInt());
+            return timestamp;
+         case TYPE_BOOLEAN:
+            return in.readBoolean();
+         case TYPE_STRING:
+            int length = in.readInt();
+            if (length < 0 || length > in.available())
+            {
+               throw new IOException("Bad text key length " + length);
+            }
+            byte[] text = new byte[length];
+            in.readFully(text);
+            return new String(text, StandardCharsets.UTF_8);
+         default:
+            throw new IOException("Unknown key type " + type);
+      }
+   }
+
+   /**
+    * @param index
+    *    The key column index.
+    * @return
+    *    The key column qualified with the sub-select alias.
+    */
+   private String key(int index)
+   {
+      return ALIAS + "." + keyColumns[index];
+   }
+
+   /**
+    * @return
+    *    The connection string pages are read with.
+    */
+   private String resolveConnectionString()
+   {
+      return connectionString == null ? DatabaseWrapper.globalConnectionString : connectionString;
+   }
+
+   /**
+    * Starts reading the page following the token passed in the
+    * background, replacing any page already being read ahead.
+    *
+    * @param token
+    *    The token of the page to read.
+    */
+   private synchronized void startPrefetch(String token)
+   {
+      cancelPrefetch();
+      if (async == null)
+      {
+         async = new AsyncDatabaseExecutor(connectionString);
+      }
+      PageCollector collector = new PageCollector();
+      prefetchToken = token;
+      prefetchQuery = async.processQuery(pageSql(true), collector, pageArguments(decodeToken(token)));
+      prefetched = prefetchQuery.thenApply(rows -> collector.toPage());
+   }
+
+   /**
+    * Cancels the query reading a page ahead, if any. The query's own
+    * future is cancelled, rather than the page derived from it, so the
+    * statement is stopped instead of left to run. Must be called 
+    * holding the pager's lock.
+    */
+   private void cancelPrefetch()
+   {
+      if (prefetchQuery != null)
+      {
+         prefetchQuery.cancel(true);
+      }
+      prefetchQuery = null;
+      prefetched = null;
+      prefetchToken = null;
+   }
+
+   /**
+    * Takes the page read ahead for the token passed, waiting for it to
+    * finish if it is still being read.
+    *
+    * @param token
+    *    The token of the page wanted.
+    * @return
+    *    The page, or null if that page was not being read ahead.
+    * @throws SQLException
+    *    Any exception reading the page.
+    */
+   private KeysetPage<T> takePrefetched(String token) throws SQLException
+   {
+      CompletableFuture<KeysetPage<T>> future;
+      synchronized (this)
+      {
+         if (prefetched == null || token == null || !token.equals(prefetchToken))
+         {
+            return null;
+         }
+         future = prefetched;
+         prefetchQuery = null;
+         prefetched = null;
+         prefetchToken = null;
+      }
+
+      try
+      {
+         return future.get();
+      }
+      catch (InterruptedException ex)
+      {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted waiting for prefetched page", ex);
+      }
+      catch (ExecutionException | CancellationException ex)
+      {
+         Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+         if (cause instanceof CompletionException && cause.getCause() != null)
+         {
+            cause = cause.getCause();
+         }
+         if (cause instanceof SQLException)
+         {
+            throw (SQLException) cause;
+         }
+         throw new SQLException("Prefetching page failed: " + cause, cause);
+      }
+   }
+
+   /**
+    * Maps the rows of a page, keeping the key values of the last row
+    * that belongs to the page.
+    */
+   private final class PageCollector implements ResultSetProcessor
+   {
+      private final List<T> items    = new ArrayList<>();
+      private Object[]      lastKeys = null;
+      private boolean       more     = false;
+
+      @Override
+      public void processRow(ResultSet rs) throws SQLException
+      {
+         if (items.size() == pageSize)
+         {
+            // The extra row only says there is another page.
+            more = true;
+            return;
+         }
+         items.add(mapper.processRow(rs));
+         lastKeys = new Object[keyColumns.length];
+         for (int k = 0; k < keyColumns.length; k++)
+         {
+            lastKeys[k] = rs.getObject(keyColumns[k]);
+            if (lastKeys[k] == null)
+            {
+               throw new SQLException("Key column " + keyColumns[k] + " is null, keyset paging needs non-null keys");
+            }
+            if (!isSupportedKey(lastKeys[k]))
+            {
+               throw new SQLException("Key column " + keyColumns[k] + " is a " + lastKeys[k].getClass().getName()
+                     + ", keyset paging needs number, decimal, text, date or boolean keys");
+            }
+         }
+      }
+
+      /**
+       * @return
+       *    The page read.
+       */
+      private KeysetPage<T> toPage()
+      {
+         return new KeysetPage<>(items, more ? encodeToken(lastKeys) : null);
+      }
+   }
+}
@@ -0,0 +1,151 @@
+package ca.bjad.util.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies, in nanoseconds, with log-linear 
+ * buckets in the style of HdrHistogram: each power of two range is 
+ * split into 32 equal buckets, so any recorded value is reported 
+ * within about 3% while the histogram stays a fixed, small size no
+ * matter how many values are recorded.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class LatencyHistogram
+{
+   private static final int SUB_BUCKET_BITS  = 5;
+   private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+   private static final int BUCKET_COUNT     = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+   private final AtomicLong      count  = new AtomicLong();
+   private final AtomicLong      total  = new AtomicLong();
+   private final AtomicLong      max    = new AtomicLong();
+
+   /**
+    * Records a value.
+    * 
+    * @param nanos
+    *    The latency in nanoseconds, negative values are recorded as 0.
+    */
+   public void record(long nanos)
+   {
+      long value = Math.max(0, nanos);
+      counts.incrementAndGet(bucketIndex(value));
+      count.incrementAndGet();
+      total.addAndGet(value);
+      max.accumulateAndGet(value, Math::max);
+   }
+
+   /**
+    * @return
+    *    The number of values recorded.
+    */
+   public long getCount()
+   {
+      return count.get();
+   }
+
+   /**
+    * @return
+    *    The largest value recorded, exactly.
+    */
+   public long getMax()
+   {
+      return max.get();
+   }
+
+   /**
+    * @return
+    *    The sum of the values recorded.
+    */
+   public long getTotal()
+   {
+      return total.get();
+   }
+
+   /**
+    * @return
+    *    The mean of the values recorded, 0 if none have been.
+    */
+   public double getMean()
+   {
+      long n = count.get();
+      return n == 0 ? 0 : (double) total.get() / n;
+   }
+
+   /**
+    * Returns the value at the percentile passed, as the highest value 
+    * that falls in the same bucket, capped at the largest value recorded. 
+    * 
+    * @param percentile
+    *    The percentile, from 0 to 100.
+    * @return
+    *    The value at the percentile, 0 if no values have been recorded.
+    */
+   public long getValueAtPercentile(double percentile)
+   {
+      long[] snapshot = new long[BUCKET_COUNT];
+      long recorded = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++)
+      {
+         snapshot[i] = counts.get(i);
+         recorded += snapshot[i];
+      }
+      if (recorded == 0)
+      {
+         return 0;
+      }
+
+      double clamped = Math.min(100, Math.max(0, percentile));
+      long target = Math.max(1, (long) Math.ceil(clamped / 100.0 * recorded));
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++)
+      {
+         seen += snapshot[i];
+         if (seen >= target)
+         {
+            return Math.min(highestValueInBucket(i), max.get());
+         }
+      }
+      return max.get();
+   }
+
+   /**
+    * @param value
+    *    A non-negative value.
+    * @return
+    *    The bucket the value is counted in.
+    */
+   static int bucketIndex(long value)
+   {
+      if (value < SUB_BUCKET_COUNT)
+      {
+         return (int) value;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int shift = exponent - SUB_BUCKET_BITS;
+      int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+      return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+   }
+
+   /**
+    * @param index
+    *    A bucket index.
+    * @return
+    *    The highest value counted in the bucket.
+    */
+   static long highestValueInBucket(int index)
+   {
+      if (index < SUB_BUCKET_COUNT)
+      {
+         return index;
+      }
+      int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+      int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+      long lowest = (long) (SUB_BUCKET_COUNT + subBucket) << shift;
+      return lowest + (1L << shift) - 1;
+   }
+}
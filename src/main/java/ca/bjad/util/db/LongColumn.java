@@ -0,0 +1,70 @@
+package ca.bjad.util.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Column of 64 bit integer values stored in primitive long arrays.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class LongColumn extends Column
+{
+   private long[][] chunks = new long[4][];
+
+   /**
+    * Constructor, setting the column's label and SQL type.
+    *
+    * @param name
+    *    The column label.
+    * @param sqlType
+    *    The java.sql.Types value reported for the column.
+    */
+   LongColumn(String name, int sqlType)
+   {
+      super(name, sqlType);
+   }
+
+   /**
+    * @param row
+    *    The row number, starting at 0.
+    * @return
+    *    The value of the row, 0 if the column is NULL in the row.
+    */
+   public long getLong(int row)
+   {
+      checkRow(row);
+      return chunks[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+   }
+
+   @Override
+   public Object getObject(int row)
+   {
+      return isNull(row) ? null : Long.valueOf(getLong(row));
+   }
+
+   @Override
+   public long getEstimatedBytes()
+   {
+      return super.getEstimatedBytes() + chunkBytes(chunks.length, 8);
+   }
+
+   @Override
+   void append(ResultSet rs, int columnIndex) throws SQLException
+   {
+      long value = rs.getLong(columnIndex);
+      if (rs.wasNull())
+      {
+         markNull(size);
+      }
+      int chunk = size >>> CHUNK_SHIFT;
+      chunks = ensureChunks(chunks, chunk);
+      if (chunks[chunk] == null)
+      {
+         chunks[chunk] = new long[CHUNK_SIZE];
+      }
+      chunks[chunk][size & CHUNK_MASK] = value;
+      size++;
+   }
+}
@@ -0,0 +1,119 @@
+package ca.bjad.util.db;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Template for rewriting a simple single row insert, 
+ * <code>INSERT INTO t (a, b) VALUES (?, ?)</code>, into one statement
+ * inserting many rows, <code>INSERT INTO t (a, b) VALUES (?, ?), (?, ?), ...</code>.
+ * Only inserts whose VALUES list is made up of nothing but parameter
+ * markers, with nothing after it, are rewritten.
+ *
+ * @author
+ *    Ben Dougall
+ */
+final class MultiRowInsert
+{
+   private static final Pattern SIMPLE_INSERT = Pattern.compile(
+         "^\\s*(insert\\s+(?:or\\s+\\w+\\s+)?into\\s+[^;]+?\\s+values)\\s*(\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\))\\s*;?\\s*$",
+         Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+   private final String prefix;
+   private final String rowSql;
+   private final int    parameterCount;
+
+   /**
+    * Constructor, setting the parts of the insert.
+    *
+    * @param prefix
+    *    The insert up to and including VALUES.
+    * @param rowSql
+    *    The parameter list of one row.
+    * @param parameterCount
+    *    The number of parameters in one row.
+    */
+   private MultiRowInsert(String prefix, String rowSql, int parameterCount)
+   {
+      this.prefix = prefix;
+      this.rowSql = rowSql;
+      this.parameterCount = parameterCount;
+   }
+
+   /**
+    * @param sql
+    *    A SQL command.
+    * @return
+    *    The template for the command, null if it is not a simple insert.
+    */
+   static MultiRowInsert parse(String sql)
+   {
+      Matcher matcher = SIMPLE_INSERT.matcher(sql);
+      if (!matcher.matches())
+      {
+         return null;
+      }
+      String row = matcher.group(2).replaceAll("\\s+", "");
+      int parameters = 0;
+      for (int i = 0; i < row.length(); i++)
+      {
+         if (row.charAt(i) == '?')
+         {
+            parameters++;
+         }
+      }
+      return new MultiRowInsert(matcher.group(1), row, parameters);
+   }
+
+   /**
+    * @return
+    *    The number of parameters in one row.
+    */
+   int getParameterCount()
+   {
+      return parameterCount;
+   }
+
+   /**
+    * @param rows
+    *    The number of rows.
+    * @return
+    *    The insert for the number of rows passed.
+    */
+   String sqlFor(int rows)
+   {
+      StringBuilder sql = new StringBuilder(prefix.length() + rows * (rowSql.length() + 1) + 1);
+      sql.append(prefix).append(' ');
+      for (int i = 0; i < rows; i++)
+      {
+         if (i > 0)
+         {
+            sql.append(',');
+         }
+         sql.append(rowSql);
+      }
+      return sql.toString();
+   }
+
+   /**
+    * Works out the number of rows for the next statement: full chunks
+    * of the most rows the parameter limit allows, then powers of two, 
+    * so only a handful of statement sizes are ever prepared and cached.
+    *
+    * @param remaining
+    *    The rows left to insert.
+    * @param maxParameters
+    *    The most parameters one statement may bind.
+    * @return
+    *    The number of rows for the next statement.
+    */
+   int nextChunkSize(int remaining, int maxParameters)
+   {
+      int maxRows = Math.max(1, maxParameters / parameterCount);
+      if (remaining >= maxRows)
+      {
+         return maxRows;
+      }
+      return Integer.highestOneBit(remaining);
+   }
+}
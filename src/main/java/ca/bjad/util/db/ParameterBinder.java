@@ -0,0 +1,273 @@
+package ca.bjad.util.db;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binds parameter values of one Java type to a prepared statement. The
+ * binder for a class is looked up once per class and cached, so binding
+ * a value costs a class lookup rather than a chain of instanceof checks.
+ *
+ * <br><br>
+ * Streams and readers are not bound from values: their length is not 
+ * known, and some drivers (SQLite for one) silently ignore the JDBC 4 
+ * stream setters that take no length, so the only choice would be 
+ * reading the whole value onto the heap. They are bound with a length 
+ * through the row binder instead.
+ *
+ * @author
+ *    Ben Dougall
+ */
+final class ParameterBinder
+{
+   /**
+    * Sets a value on a prepared statement.
+    */
+   @FunctionalInterface
+   interface Setter
+   {
+      /**
+       * @param statement
+       *    The statement.
+       * @param index
+       *    The parameter index, starting at 1.
+       * @param value
+       *    The non-null value.
+       * @throws SQLException
+       *    Any exception setting the value.
+       */
+      void set(PreparedStatement statement, int index, Object value) throws SQLException;
+   }
+
+   /**
+    * The binders in the order they are matched against a value's class, 
+    * most specific first (java.sql.Timestamp before java.util.Date).
+    */
+   private static final List<ParameterBinder> BINDERS = Arrays.asList(
+         new ParameterBinder(Integer.class, Types.INTEGER, (ps, i, v) -> ps.setInt(i, (Integer) v)),
+         new ParameterBinder(Long.class, Types.BIGINT, (ps, i, v) -> ps.setLong(i, (Long) v)),
+         new ParameterBinder(Double.class, Types.DOUBLE, (ps, i, v) -> ps.setDouble(i, (Double) v)),
+         new ParameterBinder(Float.class, Types.REAL, (ps, i, v) -> ps.setFloat(i, (Float) v)),
+         new ParameterBinder(Short.class, Types.SMALLINT, (ps, i, v) -> ps.setShort(i, (Short) v)),
+         new ParameterBinder(Byte.class, Types.TINYINT, (ps, i, v) -> ps.setByte(i, (Byte) v)),
+         new ParameterBinder(Boolean.class, Types.BOOLEAN, (ps, i, v) -> ps.setBoolean(i, (Boolean) v)),
+         new ParameterBinder(BigDecimal.class, Types.DECIMAL, (ps, i, v) -> ps.setBigDecimal(i, (BigDecimal) v)),
+         new ParameterBinder(BigInteger.class, Types.NUMERIC, 
+               (ps, i, v) -> ps.setBigDecimal(i, new BigDecimal((BigInteger) v))),
+         new ParameterBinder(String.class, Types.VARCHAR, (ps, i, v) -> ps.setString(i, (String) v)),
+         new ParameterBinder(Character.class, Types.CHAR, (ps, i, v) -> ps.setString(i, v.toString())),
+         new ParameterBinder(byte[].class, Types.VARBINARY, (ps, i, v) -> ps.setBytes(i, (byte[]) v)),
+         new ParameterBinder(Timestamp.class, Types.TIMESTAMP, (ps, i, v) -> ps.setTimestamp(i, (Timestamp) v)),
+         new ParameterBinder(Time.class, Types.TIME, (ps, i, v) -> ps.setTime(i, (Time) v)),
+         new ParameterBinder(java.sql.Date.class, Types.DATE, (ps, i, v) -> ps.setDate(i, (java.sql.Date) v)),
+         new ParameterBinder(java.util.Date.class, Types.DATE, 
+               (ps, i, v) -> ps.setDate(i, new java.sql.Date(((java.util.Date) v).getTime()))),
+         new ParameterBinder(LocalDate.class, Types.DATE, 
+               (ps, i, v) -> ps.setDate(i, java.sql.Date.valueOf((LocalDate) v))),
+         new ParameterBinder(LocalDateTime.class, Types.TIMESTAMP, 
+               (ps, i, v) -> ps.setTimestamp(i, Timestamp.valueOf((LocalDateTime) v))),
+         new ParameterBinder(LocalTime.class, Types.TIME, (ps, i, v) -> ps.setTime(i, Time.valueOf((LocalTime) v))),
+         new ParameterBinder(Instant.class, Types.TIMESTAMP, 
+               (ps, i, v) -> ps.setTimestamp(i, Timestamp.from((Instant) v))),
+         new ParameterBinder(OffsetDateTime.class, Types.TIMESTAMP, 
+               (ps, i, v) -> ps.setTimestamp(i, Timestamp.from(((OffsetDateTime) v).toInstant()))),
+         new ParameterBinder(ZonedDateTime.class, Types.TIMESTAMP, 
+               (ps, i, v) -> ps.setTimestamp(i, Timestamp.from(((ZonedDateTime) v).toInstant()))),
+         new ParameterBinder(Blob.class, Types.BLOB, (ps, i, v) -> ps.setBlob(i, (Blob) v)),
+         new ParameterBinder(Clob.class, Types.CLOB, (ps, i, v) -> ps.setClob(i, (Clob) v)));
+
+   private static final ClassValue<ParameterBinder> BY_CLASS = new ClassValue<ParameterBinder>()
+      {
+         @Override
+         protected ParameterBinder computeValue(Class<?> type)
+         {
+            for (ParameterBinder binder : BINDERS)
+            {
+               if (binder.type.isAssignableFrom(type))
+               {
+                  return binder;
+               }
+            }
+            return null;
+         }
+      };
+
+   private final Class<?> type;
+   private final int      sqlType;
+   private final Setter   setter;
+
+   /**
+    * Constructor, setting the type bound and how it is bound.
+    *
+    * @param type
+    *    The Java type bound.
+    * @param sqlType
+    *    The java.sql.Types code used to bind nulls of the type.
+    * @param setter
+    *    Sets a value of the type on a statement.
+    */
+   private ParameterBinder(Class<?> type, int sqlType, Setter setter)
+   {
+      this.type = type;
+      this.sqlType = sqlType;
+      this.setter = setter;
+   }
+
+   /**
+    * @param type
+    *    A Java type, primitive types are treated as their wrappers.
+    * @return
+    *    The binder for the type, null if the type is not supported.
+    */
+   static ParameterBinder forClass(Class<?> type)
+   {
+      return BY_CLASS.get(wrap(type));
+   }
+
+   /**
+    * Binds a value of any supported type, nulls as an untyped null.
+    *
+    * @param statement
+    *    The statement.
+    * @param index
+    *    The parameter index, starting at 1.
+    * @param value
+    *    The value, may be null.
+    * @throws SQLException
+    *    Any exception setting the value.
+    */
+   static void bind(PreparedStatement statement, int index, Object value) throws SQLException
+   {
+      if (value == null)
+      {
+         statement.setNull(index, Types.NULL);
+         return;
+      }
+      ParameterBinder binder = BY_CLASS.get(value.getClass());
+      if (binder == null)
+      {
+         throw unsupported(index - 1, value.getClass());
+      }
+      binder.setter.set(statement, index, value);
+   }
+
+   /**
+    * @return
+    *    The Java type bound.
+    */
+   Class<?> getType()
+   {
+      return type;
+   }
+
+   /**
+    * @return
+    *    The java.sql.Types code used to bind nulls of the type.
+    */
+   int getSqlType()
+   {
+      return sqlType;
+   }
+
+   /**
+    * Sets a value of this binder's type.
+    *
+    * @param statement
+    *    The statement.
+    * @param index
+    *    The parameter index, starting at 1.
+    * @param value
+    *    The non-null value.
+    * @throws SQLException
+    *    Any exception setting the value.
+    */
+   void set(PreparedStatement statement, int index, Object value) throws SQLException
+   {
+      setter.set(statement, index, value);
+   }
+
+   /**
+    * @param type
+    *    A Java type.
+    * @return
+    *    The wrapper type for a primitive type, otherwise the type.
+    */
+   private static Class<?> wrap(Class<?> type)
+   {
+      if (!type.isPrimitive())
+      {
+         return type;
+      }
+      if (type == int.class)
+      {
+         return Integer.class;
+      }
+      else if (type == long.class)
+      {
+         return Long.class;
+      }
+      else if (type == double.class)
+      {
+         return Double.class;
+      }
+      else if (type == float.class)
+      {
+         return Float.class;
+      }
+      else if (type == short.class)
+      {
+         return Short.class;
+      }
+      else if (type == byte.class)
+      {
+         return Byte.class;
+      }
+      else if (type == boolean.class)
+      {
+         return Boolean.class;
+      }
+      else if (type == char.class)
+      {
+         return Character.class;
+      }
+      return type;
+   }
+
+   /**
+    * @param index
+    *    The index of the argument, starting at 0.
+    * @param type
+    *    The argument's type, which has no binder.
+    * @return
+    *    The exception to throw for the argument, pointing streams and 
+    *    readers at the row binder.
+    */
+   static IllegalArgumentException unsupported(int index, Class<?> type)
+   {
+      if (InputStream.class.isAssignableFrom(type) || Reader.class.isAssignableFrom(type))
+      {
+         return new IllegalArgumentException("Index " + index + " is a stream (" + type.getCanonicalName() 
+               + "), which must be bound with its length through getRowBinder().setBinaryStream() or "
+               + "setCharacterStream() rather than passed as an argument.");
+      }
+      return new IllegalArgumentException(
+            "Index " + index + " contains a class that is not support (" + type.getCanonicalName());
+   }
+}
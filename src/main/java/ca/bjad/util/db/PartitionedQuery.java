@@ -0,0 +1,736 @@
+package ca.bjad.util.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Splits a query into partitions over a numeric key column and runs
+ * the partitions at the same time, each on its own pooled connection,
+ * so a large scan can use more than one thread and connection.
+ *
+ * <br><br>
+ * The base query is wrapped in a sub-select and each partition adds a
+ * predicate on the key column, either a half open range of key values
+ * ({@link #byRange byRange}) or a modulo bucket ({@link #byModulo
+ * byModulo}). The key column must be a column of the base query's
+ * result. The number of partitions running at once is capped by the
+ * size of the connection pool, see {@link AsyncDatabaseExecutor}.
+ *
+ * <br><br>
+ * Rows can be handed to:
+ * <ul>
+ * <li>one thread safe processor shared by every partition, in no
+ *     particular order ({@link #execute(ResultSetProcessor)}),</li>
+ * <li>a processor per partition, in no particular order across
+ *     partitions ({@link #executePerPartition(IntFunction)}), or</li>
+ * <li>a single consumer on the calling thread, in key order, merged
+ *     from the partitions as they stream in
+ *     ({@link #executeOrdered(ResultSetMapper, Consumer)}).</li>
+ * </ul>
+ *
+ * <pre>
+ * PartitionedQuery query = PartitionedQuery.byRange(connectionString,
+ *       "SELECT id, name FROM person WHERE active = ?", "id", 0, 1_000_000, 8, 1);
+ * query.executePerPartition(p -&gt; rs -&gt; writers[p].write(rs.getString("name")));
+ * </pre>
+ *
+ * @author
+ *    Ben Dougall
+ */
+public class PartitionedQuery
+{
+   /**
+    * How rows are split between partitions.
+    */
+   public enum PartitionMode
+   {
+      /** Each partition covers a contiguous range of key values. */
+      RANGE,
+      /** Each partition covers the keys in one modulo bucket. */
+      MODULO
+   }
+
+   /**
+    * The number of rows each partition may read ahead of the merge
+    * in ordered mode, by default.
+    */
+   public static final int DEFAULT_MERGE_BUFFER_SIZE = 1024;
+
+   /**
+    * How long, in milliseconds, every partition may take to start on an
+    * executor set with {@link #setExecutor(Executor)} in ordered mode, 
+    * by default.
+    */
+   public static final long DEFAULT_START_TIMEOUT_MILLIS = 30000;
+
+   private static final String ALIAS = "bjad_part";
+
+   private final String        connectionString;
+   private final String        baseSql;
+   private final String        keyColumn;
+   private final Object[]      arguments;
+   private final PartitionMode mode;
+   private final long          lowerBound;
+   private final long          upperBound;
+   private final int           partitionCount;
+
+   private Executor            executor           = null;
+   private int                 mergeBufferSize    = DEFAULT_MERGE_BUFFER_SIZE;
+   private long                startTimeoutMillis = DEFAULT_START_TIMEOUT_MILLIS;
+
+   /**
+    * Constructor, setting all the values of the partitioned query.
+    *
+    * @param connectionString
+    *    The connection string, null to use the global connection string.
+    * @param baseSql
+    *    The query to partition.
+    * @param keyColumn
+    *    The numeric key column of the base query to partition on.
+    * @param arguments
+    *    The parameters for the base query.
+    * @param mode
+    *    How rows are split between partitions.
+    * @param lowerBound
+    *    The lowest key value, inclusive, for range partitions.
+    * @param upperBound
+    *    The highest key value, exclusive, for range partitions.
+    * @param partitionCount
+    *    The number of partitions.
+    */
+   private PartitionedQuery(String connectionString, String baseSql, String keyColumn, Object[] arguments,
+         PartitionMode mode, long lowerBound, long upperBound, int partitionCount)
+   {
+      if (partitionCount < 1)
+      {
+         throw new IllegalArgumentException("Partition count must be at least 1, was " + partitionCount);
+      }
+      this.connectionString = connectionString;
+      this.baseSql = baseSql;
+      this.keyColumn = keyColumn;
+      this.arguments = arguments == null ? new Object[0] : arguments;
+      this.mode = mode;
+      this.lowerBound = lowerBound;
+      this.upperBound = upperBound;
+      this.partitionCount = partitionCount;
+   }
+
+   /**
+    * Creates a query split into contiguous key ranges of (nearly) equal
+    * width between the bounds passed. Rows with keys outside the bounds
+    * are not read.
+    *
+    * @param connectionString
+    *    The connection string, null to use the global connection string.
+    * @param baseSql
+    *    The query to partition.
+    * @param keyColumn
+    *    The numeric key column of the base query to partition on.
+    * @param lowerBound
+    *    The lowest key value, inclusive.
+    * @param upperBound
+    *    The highest key value, exclusive.
+    * @param partitionCount
+    *    The number of partitions.
+    * @param arguments
+    *    The parameters for the base query.
+    * @return
+    *    The partitioned query.
+    */
+   public static PartitionedQuery byRange(String connectionString, String baseSql, String keyColumn,
+         long lowerBound, long upperBound, int partitionCount, Object... arguments)
+   {
+      if (upperBound <= lowerBound)
+      {
+         throw new IllegalArgumentException("Upper bound " + upperBound + " must be above lower bound " + lowerBound);
+      }
+      if (upperBound - lowerBound < 0)
+      {
+         throw new IllegalArgumentException("Key range " + lowerBound + " to " + upperBound + " is too wide");
+      }
+      return new PartitionedQuery(connectionString, baseSql, keyColumn, arguments, PartitionMode.RANGE,
+            lowerBound, upperBound, partitionCount);
+   }
+
+   /**
+    * Creates a query split into buckets by the key value modulo the
+    * partition count, which spreads rows evenly when the key values are
+    * not evenly spread over a known range.
+    *
+    * @param connectionString
+    *    The connection string, null to use the global connection string.
+    * @param baseSql
+    *    The query to partition.
+    * @param keyColumn
+    *    The integer key column of the base query to partition on.
+    * @param partitionCount
+    *    The number of partitions.
+    * @param arguments
+    *    The parameters for the base query.
+    * @return
+    *    The partitioned query.
+    */
+   public static PartitionedQuery byModulo(String connectionString, String baseSql, String keyColumn,
+         int partitionCount, Object... arguments)
+   {
+      return new PartitionedQuery(connectionString, baseSql, keyColumn, arguments, PartitionMode.MODULO,
+            0, 0, partitionCount);
+   }
+
+   /**
+    * Sets the executor the partitions run on. By default a new executor
+    * from {@link AsyncDatabaseExecutor#newDefaultExecutor(int)} is used
+    * for each execution.
+    *
+    * <br><br>
+    * In ordered mode the executor must be able to run every partition at
+    * the same time, as the merge waits on each partition in turn while 
+    * the others wait for room in their buffers. If any partition has not
+    * started within the start timeout, see 
+    * {@link #setStartTimeout(long, TimeUnit)}, the merge fails rather 
+    * than waiting forever.
+    *
+    * @param executor
+    *    The executor, null to use the default.
+    */
+   public void setExecutor(Executor executor)
+   {
+      this.executor = executor;
+   }
+
+   /**
+    * Sets the number of rows each partition may read ahead of the merge
+    * in ordered mode.
+    *
+    * @param mergeBufferSize
+    *    The number of rows buffered per partition.
+    */
+   public void setMergeBufferSize(int mergeBufferSize)
+   {
+      if (mergeBufferSize < 1)
+      {
+         throw new IllegalArgumentException("Merge buffer size must be at least 1, was " + mergeBufferSize);
+      }
+      this.mergeBufferSize = mergeBufferSize;
+   }
+
+   /**
+    * Sets how long every partition may take to start on an executor set
+    * with {@link #setExecutor(Executor)} in ordered mode, before the 
+    * merge fails. 
+    *
+    * @param timeout
+    *    The time allowed, at least 1 millisecond.
+    * @param unit
+    *    The unit of the time allowed.
+    */
+   public void setStartTimeout(long timeout, TimeUnit unit)
+   {
+      long millis = unit.toMillis(timeout);
+      if (millis < 1)
+      {
+         throw new IllegalArgumentException("Start timeout must be at least 1 millisecond, was " + timeout + " " + unit);
+      }
+      this.startTimeoutMillis = millis;
+   }
+
+   /**
+    * @return
+    *    How rows are split between partitions.
+    */
+   public PartitionMode getMode()
+   {
+      return mode;
+   }
+
+   /**
+    * @return
+    *    The number of partitions.
+    */
+   public int getPartitionCount()
+   {
+      return partitionCount;
+   }
+
+   /**
+    * Runs the partitions, sending every row to the processor passed. The
+    * processor is called from several threads at once and must be
+    * thread safe.
+    *
+    * @param processor
+    *    The thread safe processor handling each row.
+    * @return
+    *    The number of rows processed.
+    * @throws SQLException
+    *    Any exception thrown by a partition.
+    */
+   public int execute(ResultSetProcessor processor) throws SQLException
+   {
+      return executePerPartition(partition -> processor);
+   }
+
+   /**
+    * Runs the partitions, sending the rows of each partition to the
+    * processor created for it. Each processor is only called from one
+    * thread at a time.
+    *
+    * @param processorFactory
+    *    Creates the processor for a partition, given its index.
+    * @return
+    *    The number of rows processed.
+    * @throws SQLException
+    *    Any exception thrown by a partition.
+    */
+   public int executePerPartition(IntFunction<? extends ResultSetProcessor> processorFactory) throws SQLException
+   {
+      try (AsyncDatabaseExecutor async = createExecutor())
+      {
+         List<CompletableFuture<Integer>> futures = new ArrayList<>();
+         for (int p = 0; p < partitionCount; p++)
+         {
+            futures.add(async.processQuery(partitionSql(p, false), processorFactory.apply(p), partitionArguments(p)));
+         }
+
+         int total = 0;
+         for (CompletableFuture<Integer> future : futures)
+         {
+            total += await(future, futures);
+         }
+         return total;
+      }
+   }
+
+   /**
+    * Runs the partitions, each ordered by the key column, and merges
+    * their rows so the consumer receives every row in key order on the
+    * calling thread. Rows with equal keys in different partitions are
+    * given in partition order.
+    *
+    * <br><br>
+    * Every partition must be able to run at once, so the partition count
+    * cannot be more than the connection pool's maximum size, and an 
+    * executor set with {@link #setExecutor(Executor)} must have a thread
+    * for every partition.
+    *
+    * @param mapper
+    *    The mapper creating an object for each row, called on the
+    *    partitions' threads.
+    * @param consumer
+    *    The consumer receiving the rows in key order.
+    * @param <T>
+    *    The type of object the row mapper will create.
+    * @return
+    *    The number of rows merged.
+    * @throws SQLException
+    *    Any exception thrown by a partition, or if a partition did not
+    *    start on the executor set within the start timeout.
+    */
+   public <T> int executeOrdered(ResultSetMapper<T> mapper, Consumer<? super T> consumer) throws SQLException
+   {
+      int poolSize = ConnectionPool.getPool(resolveConnectionString()).getMaxSize();
+      if (partitionCount > poolSize)
+      {
+         throw new IllegalStateException("Ordered merge needs all " + partitionCount
+               + " partitions running at once but the pool only allows " + poolSize);
+      }
+
+      List<BlockingQueue<Object>> queues = new ArrayList<>();
+      List<CompletableFuture<Integer>> futures = new ArrayList<>();
+      AtomicBoolean aborted = new AtomicBoolean();
+      // The default executor has a thread for every connection.
+      CountDownLatch started = new CountDownLatch(executor == null ? 0 : partitionCount);
+      try (AsyncDatabaseExecutor async = createExecutor(started))
+      {
+         for (int p = 0; p < partitionCount; p++)
+         {
+            BlockingQueue<Object> queue = new ArrayBlockingQueue<>(mergeBufferSize);
+            queues.add(queue);
+            ResultSetProcessor feed = rs ->
+               {
+                  MergeRow row = new MergeRow(rs.getLong(keyColumn), mapper.processRow(rs));
+                  if (!offer(queue, row, aborted))
+                  {
+                     throw new SQLException("Ordered merge aborted");
+                  }
+               };
+            CompletableFuture<Integer> future = async.processQuery(partitionSql(p, true), feed, partitionArguments(p));
+            future.whenComplete((rows, ex) -> offer(queue, ex == null ? END : new MergeFailure(ex), aborted));
+            futures.add(future);
+         }
+
+         try
+         {
+            awaitStart(started);
+            return merge(queues, consumer);
+         }
+         catch (SQLException | RuntimeException ex)
+         {
+            aborted.set(true);
+            for (CompletableFuture<Integer> future : futures)
+            {
+               future.cancel(true);
+            }
+            throw ex;
+         }
+      }
+   }
+
+   /**
+    * Waits for every partition to start on the executor set, so an 
+    * executor with too few threads fails the merge instead of leaving 
+    * it waiting on a partition that cannot start.
+    *
+    * @param started
+    *    Counted down as each partition starts.
+    * @throws SQLException
+    *    If a partition did not start within the start timeout, or the 
+    *    wait was interrupted.
+    */
+   private void awaitStart(CountDownLatch started) throws SQLException
+   {
+      try
+      {
+         if (!started.await(startTimeoutMillis, TimeUnit.MILLISECONDS))
+         {
+            throw new SQLException("Ordered merge needs all " + partitionCount + " partitions running at once but only "
+                  + (partitionCount - started.getCount()) + " started within " + startTimeoutMillis 
+                  + " ms, the executor must be able to run every partition at the same time");
+         }
+      }
+      catch (InterruptedException ex)
+      {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted waiting for partitions to start", ex);
+      }
+   }
+
+   /**
+    * Merges the partition queues in key order.
+    *
+    * @param queues
+    *    The queue of rows for each partition.
+    * @param consumer
+    *    The consumer receiving the rows in key order.
+    * @param <T>
+    *    The type of object the row mapper creates.
+    * @return
+    *    The number of rows merged.
+    * @throws SQLException
+    *    Any exception thrown by a partition.
+    */
+   @SuppressWarnings("unchecked")
+   private <T> int merge(List<BlockingQueue<Object>> queues, Consumer<? super T> consumer) throws SQLException
+   {
+      PriorityQueue<MergeHead> heads = new PriorityQueue<>();
+      for (int p = 0; p < queues.size(); p++)
+      {
+         MergeRow row = take(queues.get(p));
+         if (row != null)
+         {
+            heads.add(new MergeHead(p, row));
+         }
+      }
+
+      int rows = 0;
+      while (!heads.isEmpty())
+      {
+         MergeHead head = heads.poll();
+         consumer.accept((T) head.row.value);
+         rows++;
+
+         MergeRow next = take(queues.get(head.partition));
+         if (next != null)
+         {
+            head.row = next;
+            heads.add(head);
+         }
+      }
+      return rows;
+   }
+
+   /**
+    * Takes the next row from a partition queue.
+    *
+    * @param queue
+    *    The partition queue.
+    * @return
+    *    The next row, null once the partition has finished.
+    * @throws SQLException
+    *    The partition's failure, or an interruption while waiting.
+    */
+   private static MergeRow take(BlockingQueue<Object> queue) throws SQLException
+   {
+      Object item;
+      try
+      {
+         item = queue.take();
+      }
+      catch (InterruptedException ex)
+      {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted waiting for partition rows", ex);
+      }
+
+      if (item == END)
+      {
+         return null;
+      }
+      else if (item instanceof MergeFailure)
+      {
+         throw toSQLException(((MergeFailure) item).cause);
+      }
+      return (MergeRow) item;
+   }
+
+   /**
+    * Puts an item on a partition queue, waiting for room until the merge
+    * is aborted.
+    *
+    * @param queue
+    *    The partition queue.
+    * @param item
+    *    The item to queue.
+    * @param aborted
+    *    The flag set when the merge is abandoned.
+    * @return
+    *    False if the merge was aborted before the item could be queued.
+    */
+   private static boolean offer(BlockingQueue<Object> queue, Object item, AtomicBoolean aborted)
+   {
+      try
+      {
+         while (!queue.offer(item, 50, TimeUnit.MILLISECONDS))
+         {
+            if (aborted.get())
+            {
+               return false;
+            }
+         }
+         return true;
+      }
+      catch (InterruptedException ex)
+      {
+         Thread.currentThread().interrupt();
+         return false;
+      }
+   }
+
+   /**
+    * Waits for a partition to finish, cancelling the rest if it failed.
+    *
+    * @param future
+    *    The partition's future.
+    * @param all
+    *    The futures of every partition.
+    * @return
+    *    The number of rows the partition processed.
+    * @throws SQLException
+    *    The partition's failure.
+    */
+   private static int await(CompletableFuture<Integer> future, List<CompletableFuture<Integer>> all) throws SQLException
+   {
+      try
+      {
+         return future.get();
+      }
+      catch (InterruptedException ex)
+      {
+         Thread.currentThread().interrupt();
+         all.forEach(f -> f.cancel(true));
+         throw new SQLException("Interrupted waiting for partition", ex);
+      }
+      catch (ExecutionException | CancellationException ex)
+      {
+         all.forEach(f -> f.cancel(true));
+         throw toSQLException(ex instanceof ExecutionException ? ex.getCause() : ex);
+      }
+   }
+
+   /**
+    * @param ex
+    *    A partition's failure.
+    * @return
+    *    The failure as an SQLException.
+    */
+   private static SQLException toSQLException(Throwable ex)
+   {
+      if (ex instanceof CompletionException && ex.getCause() != null)
+      {
+         ex = ex.getCause();
+      }
+      if (ex instanceof SQLException)
+      {
+         return (SQLException) ex;
+      }
+      return new SQLException("Partition failed: " + ex, ex);
+   }
+
+   /**
+    * Builds the SQL for one partition.
+    *
+    * @param partition
+    *    The partition index.
+    * @param ordered
+    *    True to order the partition's rows by the key column.
+    * @return
+    *    The SQL statement.
+    */
+   String partitionSql(int partition, boolean ordered)
+   {
+      StringBuilder sql = new StringBuilder("SELECT * FROM (").append(baseSql).append(") ").append(ALIAS)
+            .append(" WHERE ");
+      String key = ALIAS + "." + keyColumn;
+      if (mode == PartitionMode.RANGE)
+      {
+         sql.append(key).append(" >= ? AND ").append(key).append(" < ?");
+      }
+      else
+      {
+         sql.append("((").append(key).append(" % ?) + ?) % ? = ?");
+      }
+      if (ordered)
+      {
+         sql.append(" ORDER BY ").append(key);
+      }
+      return sql.toString();
+   }
+
+   /**
+    * Builds the parameters for one partition, the base query's
+    * parameters followed by the partition predicate's.
+    *
+    * @param partition
+    *    The partition index.
+    * @return
+    *    The parameters.
+    */
+   Object[] partitionArguments(int partition)
+   {
+      Object[] partitionArgs;
+      if (mode == PartitionMode.RANGE)
+      {
+         long width = (upperBound - lowerBound) / partitionCount;
+         long remainder = (upperBound - lowerBound) % partitionCount;
+         long from = lowerBound + width * partition + Math.min(partition, remainder);
+         long to = from + width + (partition < remainder ? 1 : 0);
+         partitionArgs = new Object[] { from, to };
+      }
+      else
+      {
+         partitionArgs = new Object[] { partitionCount, partitionCount, partitionCount, partition };
+      }
+
+      Object[] all = Arrays.copyOf(arguments, arguments.length + partitionArgs.length);
+      System.arraycopy(partitionArgs, 0, all, arguments.length, partitionArgs.length);
+      return all;
+   }
+
+   /**
+    * @return
+    *    The executor to run the partitions with.
+    */
+   private AsyncDatabaseExecutor createExecutor()
+   {
+      if (executor == null)
+      {
+         return new AsyncDatabaseExecutor(connectionString);
+      }
+      return new AsyncDatabaseExecutor(connectionString, executor);
+   }
+
+   /**
+    * @param started
+    *    Counted down as each partition starts on an executor set with
+    *    {@link #setExecutor(Executor)}.
+    * @return
+    *    The executor to run the partitions with.
+    */
+   private AsyncDatabaseExecutor createExecutor(CountDownLatch started)
+   {
+      if (executor == null)
+      {
+         return createExecutor();
+      }
+      return new AsyncDatabaseExecutor(connectionString, command -> executor.execute(() ->
+         {
+            started.countDown();
+            command.run();
+         }));
+   }
+
+   /**
+    * @return
+    *    The connection string the partitions run against.
+    */
+   private String resolveConnectionString()
+   {
+      return connectionString == null ? DatabaseWrapper.globalConnectionString : connectionString;
+   }
+
+   private static final Object END = new Object();
+
+   /**
+    * A mapped row waiting to be merged.
+    */
+   private static final class MergeRow
+   {
+      private final long   key;
+      private final Object value;
+
+      private MergeRow(long key, Object value)
+      {
+         this.key = key;
+         this.value = value;
+      }
+   }
+
+   /**
+    * A partition's failure, passed through its queue.
+    */
+   private static final class MergeFailure
+   {
+      private final Throwable cause;
+
+      private MergeFailure(Throwable cause)
+      {
+         this.cause = cause;
+      }
+   }
+
+   /**
+    * The current row of a partition during the merge.
+    */
+   private static final class MergeHead implements Comparable<MergeHead>
+   {
+      private final int partition;
+      private MergeRow  row;
+
+      private MergeHead(int partition, MergeRow row)
+      {
+         this.partition = partition;
+         this.row = row;
+      }
+
+      @Override
+      public int compareTo(MergeHead other)
+      {
+         int result = Long.compare(row.key, other.row.key);
+         return result != 0 ? result : Integer.compare(partition, other.partition);
+      }
+   }
+}
@@ -0,0 +1,96 @@
+package ca.bjad.util.db;
+
+import java.sql.Connection;
+
+/**
+ * Holder for a physical connection managed by a {@link ConnectionPool},
+ * tracking when the connection was created and last handed back to the
+ * pool so idle connections can be evicted.
+ *
+ * @author
+ *    Ben Dougall
+ */
+class PooledConnection
+{
+   private final ConnectionPool pool;
+   private final Connection     connection;
+   private final StatementCache statementCache;
+   private final long           createdAt;
+   private long                 lastReturnedAt;
+
+   /**
+    * Constructor, wrapping the physical connection opened by the pool.
+    *
+    * @param pool
+    *    The pool the connection belongs to.
+    * @param connection
+    *    The physical connection.
+    * @param statementCacheSize
+    *    The number of prepared statements to cache for the connection.
+    */
+   PooledConnection(ConnectionPool pool, Connection connection, int statementCacheSize)
+   {
+      this.pool = pool;
+      this.connection = connection;
+      this.statementCache = new StatementCache(connection, statementCacheSize);
+      this.createdAt = System.nanoTime();
+      this.lastReturnedAt = this.createdAt;
+   }
+
+   /**
+    * @return
+    *    The pool the connection belongs to.
+    */
+   ConnectionPool getPool()
+   {
+      return pool;
+   }
+
+   /**
+    * @return
+    *    The physical connection.
+    */
+   Connection getConnection()
+   {
+      return connection;
+   }
+
+   /**
+    * @return
+    *    The prepared statement cache for the connection.
+    */
+   StatementCache getStatementCache()
+   {
+      return statementCache;
+   }
+
+   /**
+    * @return
+    *    The System.nanoTime() value when the connection was opened.
+    */
+   long getCreatedAt()
+   {
+      return createdAt;
+   }
+
+   /**
+    * @return
+    *    The System.nanoTime() value when the connection was last
+    *    returned to the pool.
+    */
+   long getLastReturnedAt()
+   {
+      return lastReturnedAt;
+   }
+
+   /**
+    * Marks the connection as returned to the pool at the time passed.
+    *
+    * @param nanoTime
+    *    The System.nanoTime() value of the return.
+    */
+   void markReturned(long nanoTime)
+   {
+      this.lastReturnedAt = nanoTime;
+   }
+}
@@ -0,0 +1,57 @@
+package ca.bjad.util.db;
+
+/**
+ * Listener receiving timings for the commands executed by every
+ * database wrapper, registered through 
+ * {@link DatabaseWrapper#setMetricsListener(QueryMetricsListener)}.
+ * 
+ * <br><br>
+ * Events are tagged by the fingerprint of the command's SQL (see 
+ * {@link SqlFingerprint}), so the timings of the same statement with
+ * different literals or parameters are grouped together. Listeners are
+ * called on the thread executing the command, from many threads at 
+ * once, so implementations must be thread safe and quick. 
+ *
+ * @author
+ *    Ben Dougall
+ */
+public interface QueryMetricsListener
+{
+   /**
+    * Called when a phase of a command has finished.
+    * 
+    * @param fingerprint
+    *    The fingerprint of the command's SQL.
+    * @param phase
+    *    The phase that finished.
+    * @param elapsedNanos
+    *    The time the phase took, in nanoseconds.
+    * @param rowCount
+    *    The number of rows read, for the fetch phase, otherwise 0.
+    */
+   public void phaseCompleted(String fingerprint, QueryPhase phase, long elapsedNanos, long rowCount);
+
+   /**
+    * Called when a command has finished executing (and, for queries 
+    * read by the wrapper, fetching). Commands that throw an exception
+    * are not reported.
+    * 
+    * @param sql
+    *    The SQL of the command.
+    * @param fingerprint
+    *    The fingerprint of the command's SQL.
+    * @param arguments
+    *    The last arguments bound to the command, which must not be 
+    *    changed or kept by the listener, null if they were bound 
+    *    through the row binder.
+    * @param elapsedNanos
+    *    The time from the start of execution to the last row read.
+    * @param rowCount
+    *    The number of rows read or affected, -1 if the rows are read
+    *    lazily after the command has returned.
+    */
+   public default void commandCompleted(String sql, String fingerprint, Object[] arguments, 
+         long elapsedNanos, long rowCount)
+   {
+   }
+}
@@ -0,0 +1,20 @@
+package ca.bjad.util.db;
+
+/**
+ * The phases of a command executed by the database wrapper that are
+ * timed and reported to a {@link QueryMetricsListener}.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public enum QueryPhase
+{
+   /** Getting a connection, from the pool or the driver. */
+   CONNECT,
+   /** Preparing (or fetching from the cache) the statement. */
+   PREPARE,
+   /** Executing the statement, up to the first row of a query. */
+   EXECUTE,
+   /** Reading the rows of a query's result. */
+   FETCH
+}
@@ -0,0 +1,480 @@
+package ca.bjad.util.db;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Least recently used, read-through cache of mapped query results,
+ * keyed by connection string, SQL, bound arguments and mapper. The 
+ * cache is bounded by entry count and by the estimated size of the 
+ * cached rows, and entries expire after a set time to live.
+ *
+ * <br><br>
+ * Each entry is tagged with the tables its query reads (or the tags 
+ * passed when it was cached). Results are invalidated explicitly with
+ * {@link #invalidateTag(String)}, and automatically when any database
+ * wrapper executes a non-query command that changes a tagged table, 
+ * once the cache is registered with 
+ * {@link DatabaseWrapper#setResultCache(QueryResultCache)}. Queries are 
+ * read through the cache with 
+ * {@link DatabaseWrapper#executeCachedQuery(ResultSetMapper, String...)}.
+ *
+ * <br><br>
+ * Cached lists are unmodifiable and shared between callers, so the 
+ * objects the mapper creates should be treated as read only.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class QueryResultCache
+{
+   private final int  maxEntries;
+   private final long maxBytes;
+   private final long ttlNanos;
+
+   private final LinkedHashMap<CacheKey, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+   private long estimatedBytes    = 0;
+   private long invalidationEpoch = 0;
+
+   private long hitCount          = 0;
+   private long missCount         = 0;
+   private long evictionCount     = 0;
+   private long expiredCount      = 0;
+   private long invalidationCount = 0;
+
+   /**
+    * Constructor, setting the bounds of the cache.
+    *
+    * @param maxEntries
+    *    The number of results to keep.
+    * @param maxBytes
+    *    The estimated number of bytes of rows to keep.
+    * @param ttlMillis
+    *    How long a result is kept, 0 or less to keep results until they
+    *    are evicted or invalidated.
+    */
+   public QueryResultCache(int maxEntries, long maxBytes, long ttlMillis)
+   {
+      if (maxEntries < 1 || maxBytes < 1)
+      {
+         throw new IllegalArgumentException("Cache bounds must be at least 1, were " + maxEntries + " entries and "
+               + maxBytes + " bytes");
+      }
+      this.maxEntries = maxEntries;
+      this.maxBytes = maxBytes;
+      this.ttlNanos = ttlMillis <= 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+   }
+
+   /**
+    * Removes every result tagged with the table passed.
+    *
+    * @param tag
+    *    The table name or tag, case insensitive.
+    * @return
+    *    The number of results removed.
+    */
+   public synchronized int invalidateTag(String tag)
+   {
+      String normalized = SqlTables.normalize(tag);
+      invalidationEpoch++;
+      int removed = 0;
+      Iterator<CacheEntry> it = entries.values().iterator();
+      while (it.hasNext())
+      {
+         CacheEntry entry = it.next();
+         if (entry.tags.contains(normalized))
+         {
+            it.remove();
+            estimatedBytes -= entry.bytes;
+            removed++;
+         }
+      }
+      invalidationCount += removed;
+      return removed;
+   }
+
+   /**
+    * Removes every cached result.
+    */
+   public synchronized void invalidateAll()
+   {
+      invalidationEpoch++;
+      invalidationCount += entries.size();
+      entries.clear();
+      estimatedBytes = 0;
+   }
+
+   /**
+    * @return
+    *    The number of results cached.
+    */
+   public synchronized int size()
+   {
+      return entries.size();
+   }
+
+   /**
+    * @return
+    *    The estimated number of bytes of the cached rows.
+    */
+   public synchronized long getEstimatedBytes()
+   {
+      return estimatedBytes;
+   }
+
+   /**
+    * @return
+    *    The number of lookups answered from the cache.
+    */
+   public synchronized long getHitCount()
+   {
+      return hitCount;
+   }
+
+   /**
+    * @return
+    *    The number of lookups that had to query the database.
+    */
+   public synchronized long getMissCount()
+   {
+      return missCount;
+   }
+
+   /**
+    * @return
+    *    The fraction of lookups answered from the cache, 0 if there 
+    *    have been no lookups.
+    */
+   public synchronized double getHitRate()
+   {
+      long lookups = hitCount + missCount;
+      return lookups == 0 ? 0 : (double) hitCount / lookups;
+   }
+
+   /**
+    * @return
+    *    The number of results removed to keep the cache within bounds.
+    */
+   public synchronized long getEvictionCount()
+   {
+      return evictionCount;
+   }
+
+   /**
+    * @return
+    *    The number of results removed because they had expired.
+    */
+   public synchronized long getExpiredCount()
+   {
+      return expiredCount;
+   }
+
+   /**
+    * @return
+    *    The number of results removed by invalidation.
+    */
+   public synchronized long getInvalidationCount()
+   {
+      return invalidationCount;
+   }
+
+   /**
+    * Looks up a cached result.
+    *
+    * @param key
+    *    The key of the query.
+    * @return
+    *    The cached rows, null if not cached or expired.
+    */
+   synchronized List<?> get(CacheKey key)
+   {
+      CacheEntry entry = entries.get(key);
+      if (entry != null && System.nanoTime() - entry.loadedAt >= ttlNanos)
+      {
+         entries.remove(key);
+         estimatedBytes -= entry.bytes;
+         expiredCount++;
+         entry = null;
+      }
+      if (entry == null)
+      {
+         missCount++;
+         return null;
+      }
+      hitCount++;
+      return entry.rows;
+   }
+
+   /**
+    * @return
+    *    The invalidation epoch, taken before a query is run so a result
+    *    loaded while tables were being changed is not cached.
+    */
+   synchronized long getInvalidationEpoch()
+   {
+      return invalidationEpoch;
+   }
+
+   /**
+    * Caches the rows of a query, unless an invalidation happened while
+    * the query ran or the rows alone are bigger than the cache.
+    *
+    * @param key
+    *    The key of the query.
+    * @param rows
+    *    The rows, which are copied into an unmodifiable list.
+    * @param tags
+    *    The tables the query reads.
+    * @param epoch
+    *    The invalidation epoch taken before the query ran.
+    * @param <T>
+    *    The type of the rows.
+    * @return
+    *    The unmodifiable rows.
+    */
+   <T> List<T> put(CacheKey key, List<T> rows, Collection<String> tags, long epoch)
+   {
+      List<T> cached = Collections.unmodifiableList(new ArrayList<>(rows));
+      long bytes = 64;
+      for (T row : cached)
+      {
+         bytes += estimateSize(row);
+      }
+
+      Set<String> normalizedTags = new HashSet<>();
+      for (String tag : tags)
+      {
+         normalizedTags.add(SqlTables.normalize(tag));
+      }
+
+      synchronized (this)
+      {
+         if (epoch != invalidationEpoch || bytes > maxBytes)
+         {
+            return cached;
+         }
+         CacheEntry previous = entries.put(key, new CacheEntry(cached, normalizedTags, bytes, System.nanoTime()));
+         if (previous != null)
+         {
+            estimatedBytes -= previous.bytes;
+         }
+         estimatedBytes += bytes;
+
+         Iterator<CacheEntry> it = entries.values().iterator();
+         while ((entries.size() > maxEntries || estimatedBytes > maxBytes) && it.hasNext())
+         {
+            CacheEntry eldest = it.next();
+            it.remove();
+            estimatedBytes -= eldest.bytes;
+            evictionCount++;
+         }
+      }
+      return cached;
+   }
+
+   /**
+    * Estimates the memory used by a mapped row: simple values by their
+    * content, arrays and collections by their elements, and other 
+    * objects by their fields, one level deep.
+    *
+    * @param row
+    *    The row.
+    * @return
+    *    The estimated size in bytes.
+    */
+   static long estimateSize(Object row)
+   {
+      if (row == null)
+      {
+         return 8;
+      }
+      if (isSimple(row))
+      {
+         return 16 + BatchWriter.estimateSize(row);
+      }
+      if (row instanceof Object[])
+      {
+         long size = 16;
+         for (Object value : (Object[]) row)
+         {
+            size += 8 + (value == null ? 0 : 16 + BatchWriter.estimateSize(value));
+         }
+         return size;
+      }
+      if (row instanceof Collection)
+      {
+         long size = 32;
+         for (Object value : (Collection<?>) row)
+         {
+            size += 8 + (value == null ? 0 : 16 + BatchWriter.estimateSize(value));
+         }
+         return size;
+      }
+
+      long size = 16;
+      for (Field field : FIELDS.get(row.getClass()))
+      {
+         Class<?> type = field.getType();
+         if (type == long.class || type == double.class)
+         {
+            size += 8;
+         }
+         else if (type.isPrimitive())
+         {
+            size += 4;
+         }
+         else
+         {
+            size += 8;
+            try
+            {
+               Object value = field.get(row);
+               if (value != null && isSimple(value))
+               {
+                  size += 16 + BatchWriter.estimateSize(value);
+               }
+               else if (value != null)
+               {
+                  size += 16;
+               }
+            }
+            catch (ReflectiveOperationException | RuntimeException ex)
+            {
+               size += 16;
+            }
+         }
+      }
+      return size;
+   }
+
+   /**
+    * @param value
+    *    A non-null value.
+    * @return
+    *    True if the value is a number, text, date or byte array.
+    */
+   private static boolean isSimple(Object value)
+   {
+      return value instanceof Number || value instanceof CharSequence || value instanceof java.util.Date
+            || value instanceof Boolean || value instanceof byte[] || value instanceof java.time.temporal.Temporal;
+   }
+
+   /**
+    * The instance fields of each class, made accessible where allowed,
+    * used to estimate the size of mapped objects.
+    */
+   private static final ClassValue<List<Field>> FIELDS = new ClassValue<List<Field>>()
+      {
+         @Override
+         protected List<Field> computeValue(Class<?> type)
+         {
+            List<Field> fields = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass())
+            {
+               for (Field field : c.getDeclaredFields())
+               {
+                  if (!Modifier.isStatic(field.getModifiers()))
+                  {
+                     try { field.setAccessible(true); } catch (RuntimeException ex) { ; }
+                     fields.add(field);
+                  }
+               }
+            }
+            return fields;
+         }
+      };
+
+   /**
+    * Key of a cached query result.
+    */
+   static final class CacheKey
+   {
+      private final String   connectionString;
+      private final String   sql;
+      private final Object[] arguments;
+      private final Object   mapper;
+      private final int      hash;
+
+      /**
+       * Constructor, setting everything that identifies a result.
+       *
+       * @param connectionString
+       *    The connection string the query runs against.
+       * @param sql
+       *    The SQL of the query.
+       * @param arguments
+       *    The arguments bound to the query, copied.
+       * @param mapper
+       *    The mapper creating the rows, compared with equals(), so 
+       *    lambdas only match themselves and bean mappers match other 
+       *    mappers for the same class.
+       */
+      CacheKey(String connectionString, String sql, Object[] arguments, Object mapper)
+      {
+         this.connectionString = connectionString;
+         this.sql = sql;
+         this.arguments = arguments.clone();
+         this.mapper = mapper;
+         this.hash = ((connectionString.hashCode() * 31 + sql.hashCode()) * 31 
+               + Arrays.deepHashCode(this.arguments)) * 31 + mapper.hashCode();
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return hash;
+      }
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         if (this == obj)
+         {
+            return true;
+         }
+         if (!(obj instanceof CacheKey))
+         {
+            return false;
+         }
+         CacheKey other = (CacheKey) obj;
+         return hash == other.hash && mapper.equals(other.mapper) && sql.equals(other.sql)
+               && connectionString.equals(other.connectionString) && Arrays.deepEquals(arguments, other.arguments);
+      }
+
+      @Override
+      public String toString()
+      {
+         return "CacheKey [" + sql + ", " + Arrays.deepToString(arguments) + "]";
+      }
+   }
+
+   /**
+    * A cached result.
+    */
+   private static final class CacheEntry
+   {
+      private final List<?>     rows;
+      private final Set<String> tags;
+      private final long        bytes;
+      private final long        loadedAt;
+
+      private CacheEntry(List<?> rows, Set<String> tags, long bytes, long loadedAt)
+      {
+         this.rows = rows;
+         this.tags = tags;
+         this.bytes = bytes;
+         this.loadedAt = loadedAt;
+      }
+   }
+}
@@ -0,0 +1,111 @@
+package ca.bjad.util.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator that maps the rows of a result set one at a time, as they
+ * are asked for, rather than reading the whole result set up front.
+ * The result set is closed once the last row has been read or the
+ * iterator is closed, whichever comes first.
+ *
+ * <br><br>
+ * SQLExceptions thrown while moving through the result set or by the
+ * mapper are wrapped in an {@link UncheckedSQLException}.
+ *
+ * @author
+ *    Ben Dougall
+ * @param <T>
+ *    The type of object the row mapper will create.
+ */
+public class QueryResultIterator<T> implements Iterator<T>, AutoCloseable
+{
+   private final ResultSet          resultSet;
+   private final ResultSetMapper<T> mapper;
+
+   private boolean rowReady = false;
+   private boolean finished = false;
+
+   /**
+    * Constructor, setting the result set to walk through and the mapper
+    * used to create an object for each row.
+    *
+    * @param resultSet
+    *    The result set of the executed query.
+    * @param mapper
+    *    The mapper creating an object for each row.
+    */
+   QueryResultIterator(ResultSet resultSet, ResultSetMapper<T> mapper)
+   {
+      this.resultSet = resultSet;
+      this.mapper = mapper;
+   }
+
+   /**
+    * Moves the result set on to the next row if the current row
+    * has already been handed out.
+    */
+   @Override
+   public boolean hasNext()
+   {
+      if (!rowReady && !finished)
+      {
+         try
+         {
+            if (resultSet.next())
+            {
+               rowReady = true;
+            }
+            else
+            {
+               close();
+            }
+         }
+         catch (SQLException ex)
+         {
+            close();
+            throw new UncheckedSQLException(ex);
+         }
+      }
+      return rowReady;
+   }
+
+   /**
+    * Maps the current row of the result set.
+    */
+   @Override
+   public T next()
+   {
+      if (!hasNext())
+      {
+         throw new NoSuchElementException();
+      }
+
+      rowReady = false;
+      try
+      {
+         return mapper.processRow(resultSet);
+      }
+      catch (SQLException ex)
+      {
+         close();
+         throw new UncheckedSQLException(ex);
+      }
+   }
+
+   /**
+    * Closes the result set, leaving any remaining rows unread.
+    */
+   @Override
+   public void close()
+   {
+      if (!finished)
+      {
+         finished = true;
+         rowReady = false;
+         try { resultSet.close(); } catch (Exception ex) { ; }
+      }
+   }
+}
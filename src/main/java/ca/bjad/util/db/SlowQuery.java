@@ -0,0 +1,110 @@
+package ca.bjad.util.db;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A command that took longer than the slow query threshold of an 
+ * {@link InMemoryQueryMetrics}. Only the types of the parameters are 
+ * kept, never their values.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class SlowQuery
+{
+   private final String       sql;
+   private final String       fingerprint;
+   private final List<String> parameterTypes;
+   private final long         elapsedNanos;
+   private final long         rowCount;
+   private final long         timestamp;
+
+   /**
+    * Constructor, setting all the values of the slow query.
+    *
+    * @param sql
+    *    The SQL of the command.
+    * @param fingerprint
+    *    The fingerprint of the command's SQL.
+    * @param parameterTypes
+    *    The simple class names of the parameters, "null" for nulls.
+    * @param elapsedNanos
+    *    The time the command took.
+    * @param rowCount
+    *    The number of rows read or affected.
+    * @param timestamp
+    *    When the command finished, in milliseconds since the epoch.
+    */
+   SlowQuery(String sql, String fingerprint, List<String> parameterTypes, long elapsedNanos, long rowCount,
+         long timestamp)
+   {
+      this.sql = sql;
+      this.fingerprint = fingerprint;
+      this.parameterTypes = Collections.unmodifiableList(parameterTypes);
+      this.elapsedNanos = elapsedNanos;
+      this.rowCount = rowCount;
+      this.timestamp = timestamp;
+   }
+
+   /**
+    * @return
+    *    The SQL of the command.
+    */
+   public String getSql()
+   {
+      return sql;
+   }
+
+   /**
+    * @return
+    *    The fingerprint of the command's SQL.
+    */
+   public String getFingerprint()
+   {
+      return fingerprint;
+   }
+
+   /**
+    * @return
+    *    The simple class names of the parameters, "null" for nulls.
+    */
+   public List<String> getParameterTypes()
+   {
+      return parameterTypes;
+   }
+
+   /**
+    * @return
+    *    The time the command took, in nanoseconds.
+    */
+   public long getElapsedNanos()
+   {
+      return elapsedNanos;
+   }
+
+   /**
+    * @return
+    *    The number of rows read or affected, -1 if read lazily.
+    */
+   public long getRowCount()
+   {
+      return rowCount;
+   }
+
+   /**
+    * @return
+    *    When the command finished, in milliseconds since the epoch.
+    */
+   public long getTimestamp()
+   {
+      return timestamp;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "SlowQuery [elapsedMillis=" + elapsedNanos / 1_000_000 + ", rows=" + rowCount + ", sql=" + sql 
+            + ", parameterTypes=" + parameterTypes + "]";
+   }
+}
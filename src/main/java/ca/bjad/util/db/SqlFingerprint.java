@@ -0,0 +1,148 @@
+package ca.bjad.util.db;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Creates normalized fingerprints of SQL statements, so statements that
+ * only differ in their literal values, parameter list lengths, case or 
+ * white space are reported as the same statement. 
+ * 
+ * <br><br>
+ * For example, <code>SELECT * FROM t WHERE id IN (1, 2, 3) AND name = 'x'</code>
+ * becomes <code>select * from t where id in (?+) and name = ?</code>.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class SqlFingerprint
+{
+   private static final int MAX_CACHED = 1024;
+   
+   private static final Pattern PARAMETER_LIST = Pattern.compile("\\?(\\s*,\\s*\\?)+");
+   private static final Pattern TUPLE_LIST     = Pattern.compile("\\(\\?\\+?\\)(\\s*,\\s*\\(\\?\\+?\\))+");
+
+   private static final ConcurrentHashMap<String, String> cache = new ConcurrentHashMap<>();
+
+   /**
+    * Static methods only.
+    */
+   private SqlFingerprint()
+   {
+   }
+
+   /**
+    * Returns the fingerprint of the SQL statement passed. Fingerprints
+    * of recently seen statements are cached. 
+    * 
+    * @param sql
+    *    The SQL statement.
+    * @return
+    *    The fingerprint.
+    */
+   public static String of(String sql)
+   {
+      if (sql == null)
+      {
+         return "";
+      }
+      String fingerprint = cache.get(sql);
+      if (fingerprint == null)
+      {
+         fingerprint = normalize(sql);
+         if (cache.size() < MAX_CACHED)
+         {
+            cache.put(sql, fingerprint);
+         }
+      }
+      return fingerprint;
+   }
+
+   /**
+    * Normalizes the SQL statement: string and numeric literals are 
+    * replaced with ?, white space is collapsed, the statement is lower 
+    * cased and lists of parameters are collapsed to (?+).
+    * 
+    * @param sql
+    *    The SQL statement.
+    * @return
+    *    The fingerprint.
+    */
+   static String normalize(String sql)
+   {
+      StringBuilder out = new StringBuilder(sql.length());
+      int length = sql.length();
+      int i = 0;
+      while (i < length)
+      {
+         char c = sql.charAt(i);
+         if (c == '\'')
+         {
+            // String literal, '' is an escaped quote inside it.
+            i++;
+            while (i < length)
+            {
+               if (sql.charAt(i) == '\'')
+               {
+                  if (i + 1 < length && sql.charAt(i + 1) == '\'')
+                  {
+                     i += 2;
+                     continue;
+                  }
+                  break;
+               }
+               i++;
+            }
+            i++;
+            out.append('?');
+         }
+         else if (Character.isDigit(c) && !isIdentifierPart(out))
+         {
+            while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.'))
+            {
+               i++;
+            }
+            out.append('?');
+         }
+         else if (Character.isWhitespace(c))
+         {
+            while (i < length && Character.isWhitespace(sql.charAt(i)))
+            {
+               i++;
+            }
+            if (out.length() > 0)
+            {
+               out.append(' ');
+            }
+         }
+         else
+         {
+            out.append(Character.toLowerCase(c));
+            i++;
+         }
+      }
+
+      String fingerprint = out.toString().trim().toLowerCase(Locale.ROOT);
+      fingerprint = PARAMETER_LIST.matcher(fingerprint).replaceAll("?+");
+      fingerprint = TUPLE_LIST.matcher(fingerprint).replaceAll("(?+)+");
+      return fingerprint;
+   }
+
+   /**
+    * @param out
+    *    The fingerprint built so far.
+    * @return
+    *    True if the last character is part of an identifier, so a 
+    *    digit following it is not the start of a numeric literal.
+    */
+   private static boolean isIdentifierPart(StringBuilder out)
+   {
+      if (out.length() == 0)
+      {
+         return false;
+      }
+      char last = out.charAt(out.length() - 1);
+      return Character.isLetterOrDigit(last) || last == '_' || last == '"' || last == '`';
+   }
+}
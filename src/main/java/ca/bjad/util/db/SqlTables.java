@@ -0,0 +1,102 @@
+package ca.bjad.util.db;
+
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the tables a SQL statement reads from or writes to, well enough
+ * to tag and invalidate cached query results. Sub-queries, joins and 
+ * comma separated FROM lists are covered; table names are lower cased 
+ * with any schema prefix and quoting removed.
+ *
+ * @author
+ *    Ben Dougall
+ */
+final class SqlTables
+{
+   private static final String NAME = "([\\w$]+|\"[^\"]+\"|`[^`]+`|\\[[^\\]]+\\])";
+   private static final String QUALIFIED_NAME = NAME + "(?:\\s*\\.\\s*" + NAME + ")*";
+
+   private static final String ALIAS = "(?:\\s+(?:as\\s+)?(?!(?:where|join|inner|left|right|full|cross|outer|natural"
+         + "|on|using|group|order|limit|offset|union|intersect|except|having|window|set|values)\\b)[\\w$]+)?";
+
+   private static final Pattern READ = Pattern.compile(
+         "\\b(?:from|join)\\s+(" + QUALIFIED_NAME + ALIAS + "(?:\\s*,\\s*" + QUALIFIED_NAME + ALIAS + ")*)", 
+         Pattern.CASE_INSENSITIVE);
+
+   private static final Pattern WRITE = Pattern.compile(
+         "^\\s*(?:insert\\s+(?:or\\s+\\w+\\s+)?into|replace\\s+into|merge\\s+into|update(?:\\s+or\\s+\\w+)?"
+         + "|delete\\s+from|truncate(?:\\s+table)?|drop\\s+table(?:\\s+if\\s+exists)?|alter\\s+table)\\s+(" 
+         + QUALIFIED_NAME + ")", Pattern.CASE_INSENSITIVE);
+
+   private static final Pattern NAME_PATTERN = Pattern.compile(QUALIFIED_NAME);
+   private static final Pattern NAME_PART    = Pattern.compile(NAME);
+
+   /**
+    * Static methods only.
+    */
+   private SqlTables()
+   {
+   }
+
+   /**
+    * @param sql
+    *    A query.
+    * @return
+    *    The tables the query reads from.
+    */
+   static Set<String> readTables(String sql)
+   {
+      Set<String> tables = new LinkedHashSet<>();
+      Matcher matcher = READ.matcher(sql);
+      while (matcher.find())
+      {
+         for (String item : matcher.group(1).split(","))
+         {
+            Matcher name = NAME_PATTERN.matcher(item.trim());
+            if (name.lookingAt())
+            {
+               tables.add(normalize(name.group()));
+            }
+         }
+      }
+      return tables;
+   }
+
+   /**
+    * @param sql
+    *    A command.
+    * @return
+    *    The table the command changes, null if it is not a DML or table
+    *    DDL command.
+    */
+   static String writtenTable(String sql)
+   {
+      Matcher matcher = WRITE.matcher(sql);
+      return matcher.find() ? normalize(matcher.group(1)) : null;
+   }
+
+   /**
+    * @param table
+    *    A table name, possibly quoted and schema qualified.
+    * @return
+    *    The table name, lower cased, unquoted and without its schema.
+    */
+   static String normalize(String table)
+   {
+      String name = table.trim();
+      Matcher part = NAME_PART.matcher(name);
+      while (part.find())
+      {
+         name = part.group();
+      }
+      if (name.length() > 1 && "\"`[".indexOf(name.charAt(0)) >= 0)
+      {
+         name = name.substring(1, name.length() - 1);
+      }
+      return name.toLowerCase(Locale.ROOT);
+   }
+}
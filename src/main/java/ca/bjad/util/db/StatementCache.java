@@ -0,0 +1,277 @@
+package ca.bjad.util.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of prepared statements for a single
+ * connection, keyed by SQL text, so repeated commands against the
+ * same connection do not need to be parsed by the database again.
+ *
+ * <br><br>
+ * Statements are checked out with {@link #prepare(String)} and must be
+ * checked back in with {@link #release(String, PreparedStatement)}
+ * once the caller is finished with them. A statement that is checked
+ * out is never handed to a second caller; if the same SQL is prepared
+ * while the cached statement is in use, a statement outside of the
+ * cache is prepared instead and closed when it is released.
+ *
+ * <br><br>
+ * <i>Note: like the connection it belongs to, the cache is not
+ * thread safe.</i>
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class StatementCache
+{
+   /**
+    * The number of statements cached per connection when no size
+    * has been configured.
+    */
+   public static final int DEFAULT_SIZE = 32;
+
+   /**
+    * Prefix of the cache key of statements prepared to return generated
+    * keys, which cannot be shared with plain statements for the same SQL.
+    */
+   private static final String GENERATED_KEYS_PREFIX = "\u0000keys:";
+
+   private final Connection connection;
+   private final int        maxSize;
+
+   private final LinkedHashMap<String, CachedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+
+   private long hitCount      = 0;
+   private long missCount     = 0;
+   private long evictionCount = 0;
+
+   /**
+    * Constructor, setting the connection statements are prepared on
+    * and the number of statements to keep.
+    *
+    * @param connection
+    *    The connection to prepare statements with.
+    * @param maxSize
+    *    The number of statements to keep, 0 to turn caching off.
+    */
+   StatementCache(Connection connection, int maxSize)
+   {
+      this.connection = connection;
+      this.maxSize = Math.max(0, maxSize);
+   }
+
+   /**
+    * Gets a prepared statement for the SQL passed, reusing the cached
+    * statement if there is one that is not already in use.
+    *
+    * @param sql
+    *    The SQL statement to prepare.
+    * @return
+    *    The prepared statement, with no parameters or batches set.
+    * @throws SQLException
+    *    Any exception thrown preparing the statement.
+    */
+   PreparedStatement prepare(String sql) throws SQLException
+   {
+      return prepare(sql, false);
+   }
+
+   /**
+    * Gets a prepared statement for the SQL passed, reusing the cached
+    * statement if there is one that is not already in use. Statements 
+    * that return generated keys are cached apart from those that don't.
+    *
+    * @param sql
+    *    The SQL statement to prepare.
+    * @param returnGeneratedKeys
+    *    True to prepare the statement with RETURN_GENERATED_KEYS.
+    * @return
+    *    The prepared statement, with no parameters or batches set.
+    * @throws SQLException
+    *    Any exception thrown preparing the statement.
+    */
+   PreparedStatement prepare(String sql, boolean returnGeneratedKeys) throws SQLException
+   {
+      String key = returnGeneratedKeys ? GENERATED_KEYS_PREFIX + sql : sql;
+      CachedStatement cached = statements.get(key);
+      if (cached != null && !cached.inUse)
+      {
+         hitCount++;
+         cached.inUse = true;
+         return cached.statement;
+      }
+
+      missCount++;
+      PreparedStatement statement = returnGeneratedKeys 
+            ? connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+            : connection.prepareStatement(sql);
+      if (cached == null && maxSize > 0)
+      {
+         cached = new CachedStatement(statement);
+         cached.inUse = true;
+         statements.put(key, cached);
+         evictOverflow();
+      }
+      return statement;
+   }
+
+   /**
+    * Checks a statement back in, clearing its parameters and batch so
+    * it is ready to be reused, or closing it if it is not cached.
+    *
+    * @param sql
+    *    The SQL the statement was prepared with.
+    * @param statement
+    *    The statement being returned.
+    */
+   void release(String sql, PreparedStatement statement)
+   {
+      release(sql, false, statement);
+   }
+
+   /**
+    * Checks a statement back in, clearing its parameters and batch so
+    * it is ready to be reused, or closing it if it is not cached.
+    *
+    * @param sql
+    *    The SQL the statement was prepared with.
+    * @param returnGeneratedKeys
+    *    True if the statement was prepared to return generated keys.
+    * @param statement
+    *    The statement being returned.
+    */
+   void release(String sql, boolean returnGeneratedKeys, PreparedStatement statement)
+   {
+      String key = returnGeneratedKeys ? GENERATED_KEYS_PREFIX + sql : sql;
+      CachedStatement cached = statements.get(key);
+      if (cached == null || cached.statement != statement)
+      {
+         closeQuietly(statement);
+         return;
+      }
+
+      try
+      {
+         statement.clearParameters();
+         statement.clearBatch();
+         cached.inUse = false;
+         evictOverflow();
+      }
+      catch (SQLException ex)
+      {
+         statements.remove(key);
+         closeQuietly(statement);
+      }
+   }
+
+   /**
+    * Closes and removes every cached statement.
+    */
+   void close()
+   {
+      for (CachedStatement cached : statements.values())
+      {
+         closeQuietly(cached.statement);
+      }
+      statements.clear();
+   }
+
+   /**
+    * @return
+    *    The number of statements the cache will keep.
+    */
+   public int getMaxSize()
+   {
+      return maxSize;
+   }
+
+   /**
+    * @return
+    *    The number of statements currently cached.
+    */
+   public int size()
+   {
+      return statements.size();
+   }
+
+   /**
+    * @return
+    *    The number of prepares answered from the cache.
+    */
+   public long getHitCount()
+   {
+      return hitCount;
+   }
+
+   /**
+    * @return
+    *    The number of prepares that had to go to the database.
+    */
+   public long getMissCount()
+   {
+      return missCount;
+   }
+
+   /**
+    * @return
+    *    The number of statements closed to make room for others.
+    */
+   public long getEvictionCount()
+   {
+      return evictionCount;
+   }
+
+   /**
+    * Closes the least recently used statements that are not in use
+    * until the cache is back within its maximum size.
+    */
+   private void evictOverflow()
+   {
+      Iterator<Map.Entry<String, CachedStatement>> it = statements.entrySet().iterator();
+      while (statements.size() > maxSize && it.hasNext())
+      {
+         CachedStatement cached = it.next().getValue();
+         if (!cached.inUse)
+         {
+            it.remove();
+            closeQuietly(cached.statement);
+            evictionCount++;
+         }
+      }
+   }
+
+   /**
+    * Closes a statement, ignoring any exception.
+    *
+    * @param statement
+    *    The statement to close.
+    */
+   private static void closeQuietly(PreparedStatement statement)
+   {
+      try { statement.close(); } catch (Exception ex) { ; }
+   }
+
+   /**
+    * Cache entry holding a statement and whether it is checked out.
+    */
+   private static final class CachedStatement
+   {
+      private final PreparedStatement statement;
+      private boolean                 inUse = false;
+
+      /**
+       * @param statement
+       *    The cached statement.
+       */
+      private CachedStatement(PreparedStatement statement)
+      {
+         this.statement = statement;
+      }
+   }
+}
@@ -0,0 +1,119 @@
+package ca.bjad.util.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Column of text values, dictionary encoded so each distinct string is
+ * only held once and each row stores an int code into the dictionary.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class StringColumn extends Column
+{
+   private int[][]                        codes           = new int[4][];
+   private final List<String>             dictionary      = new ArrayList<>();
+   private final HashMap<String, Integer> codeLookup      = new HashMap<>();
+   private long                           dictionaryChars = 0;
+
+   /**
+    * Constructor, setting the column's label and SQL type.
+    *
+    * @param name
+    *    The column label.
+    * @param sqlType
+    *    The java.sql.Types value reported for the column.
+    */
+   StringColumn(String name, int sqlType)
+   {
+      super(name, sqlType);
+   }
+
+   /**
+    * @param row
+    *    The row number, starting at 0.
+    * @return
+    *    The value of the row, null if the column is NULL in the row.
+    */
+   public String getString(int row)
+   {
+      int code = getCode(row);
+      return code < 0 ? null : dictionary.get(code);
+   }
+
+   /**
+    * @param row
+    *    The row number, starting at 0.
+    * @return
+    *    The dictionary code of the row's value, -1 if the column is
+    *    NULL in the row.
+    */
+   public int getCode(int row)
+   {
+      checkRow(row);
+      return codes[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+   }
+
+   /**
+    * @return
+    *    The distinct values of the column, indexed by dictionary code.
+    */
+   public List<String> getDictionary()
+   {
+      return Collections.unmodifiableList(dictionary);
+   }
+
+   @Override
+   public Object getObject(int row)
+   {
+      return getString(row);
+   }
+
+   @Override
+   public long getEstimatedBytes()
+   {
+      // Each dictionary entry costs the string itself plus its map entry.
+      return super.getEstimatedBytes() + chunkBytes(codes.length, 4)
+            + dictionary.size() * (40L + 32L + 16L) + 2 * dictionaryChars;
+   }
+
+   @Override
+   void append(ResultSet rs, int columnIndex) throws SQLException
+   {
+      String value = rs.getString(columnIndex);
+      int code = -1;
+      if (value == null)
+      {
+         markNull(size);
+      }
+      else
+      {
+         Integer existing = codeLookup.get(value);
+         if (existing == null)
+         {
+            code = dictionary.size();
+            dictionary.add(value);
+            codeLookup.put(value, code);
+            dictionaryChars += value.length();
+         }
+         else
+         {
+            code = existing;
+         }
+      }
+
+      int chunk = size >>> CHUNK_SHIFT;
+      codes = ensureChunks(codes, chunk);
+      if (codes[chunk] == null)
+      {
+         codes[chunk] = new int[CHUNK_SIZE];
+      }
+      codes[chunk][size & CHUNK_MASK] = code;
+      size++;
+   }
+}
@@ -0,0 +1,31 @@
+package ca.bjad.util.db;
+
+import java.sql.SQLException;
+
+/**
+ * Unit of work run by {@link DatabaseWrapper#inTransaction(TransactionCallback)},
+ * which commits the work if it returns normally and rolls it back if it 
+ * throws. Commands issued through the wrapper passed in, including new 
+ * commands set with newCommand(), all share the same transaction.
+ *
+ * @author 
+ *    Ben Dougall
+ * @param <T> 
+ *    The type of result the unit of work returns.
+ */
+@FunctionalInterface
+public interface TransactionCallback<T>
+{
+   /**
+    * Performs the work that makes up the transaction. 
+    * 
+    * @param db
+    *    The wrapper whose connection the transaction is open on.
+    * @return
+    *    Any result the caller of inTransaction() needs. 
+    * @throws SQLException
+    *    Any exceptions will cause the transaction to be rolled back,
+    *    and then be thrown.
+    */
+   public T execute(DatabaseWrapper db) throws SQLException;
+}
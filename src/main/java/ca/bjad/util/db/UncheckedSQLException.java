@@ -0,0 +1,37 @@
+package ca.bjad.util.db;
+
+import java.sql.SQLException;
+
+/**
+ * Wraps a SQLException thrown while walking a result set through an
+ * iterator or stream, neither of which allow checked exceptions to be
+ * thrown.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public class UncheckedSQLException extends RuntimeException
+{
+   private static final long serialVersionUID = 1L;
+
+   /**
+    * Constructor, wrapping the exception passed.
+    *
+    * @param cause
+    *    The SQL exception being wrapped.
+    */
+   public UncheckedSQLException(SQLException cause)
+   {
+      super(cause.getMessage(), cause);
+   }
+
+   /**
+    * @return
+    *    The SQL exception that was wrapped.
+    */
+   @Override
+   public synchronized SQLException getCause()
+   {
+      return (SQLException) super.getCause();
+   }
+}
@@ -46,8 +46,9 @@ public class URLStreamFactoryTest
          fail(CP_TEST_FILE_NAME + " without the classpath url prefix should have returned something");
       }
       
-      try (InputStream is = URLStreamFactory.getStream("classpath:///superfakefile.classpathfailure"))
+      try
       {    
+         URLStreamFactory.getStream("classpath:///superfakefile.classpathfailure").close();
          fail("classpath:///superfakefile.classpathfailure should have caused an IOException.");
       }
       catch(IOException ex)
@@ -99,8 +100,9 @@ public class URLStreamFactoryTest
    @Test
    public void testHTTPConnection()
    {
-      try (InputStream is = URLStreamFactory.getStream("http://www.google.com"))
+      try
       {         
+         URLStreamFactory.getStream("http://www.google.com").close();
       }
       catch (IOException ex)
       {
@@ -108,8 +110,9 @@ public class URLStreamFactoryTest
          ex.printStackTrace();
       }
       
-      try (InputStream is = URLStreamFactory.getStream("http://localhost:34567"))
+      try
       {   
+         URLStreamFactory.getStream("http://localhost:34567").close();
          fail("Stream to localhost, port 34567 should fail.");
       }
       catch (IOException ex)
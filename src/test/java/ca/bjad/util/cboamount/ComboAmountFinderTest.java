@@ -3,8 +3,15 @@ package ca.bjad.util.cboamount;
 import static org.junit.Assert.*;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import org.junit.Test;
 
@@ -62,6 +69,996 @@ public class ComboAmountFinderTest
       List<FoundComboResultList> results = new ComboFinder(smallSampleData, new BigDecimal("10.00")).findCombinationsForAmount();
       assertEquals("Searching for 10.00 should have 2 result.", 2, results.size());
    }
+   
+   @Test
+   public void testMatchesOriginalEnumeration()
+   {
+      Random random = new Random(42);
+      for (int run = 0; run != 200; ++run)
+      {
+         List<ComboFinderElement> data = new ArrayList<>();
+         int size = 1 + random.nextInt(14);
+         for (int i = 0; i != size; ++i)
+         {
+            // Small ranges so there are plenty of duplicates and matches, 
+            // with the odd negative and zero amount thrown in.
+            data.add(new SampleAmountBean(new BigDecimal(random.nextInt(14) - 2).movePointLeft(random.nextInt(3))));
+         }
+         BigDecimal target = new BigDecimal(random.nextInt(30) - 3).movePointLeft(random.nextInt(2));
+         
+         List<FoundComboResultList> expected = originalEnumeration(data, target);
+         assertSameResults("Run " + run, expected, new ComboFinder(data, target).findCombinationsForAmount());
+         
+         ComboFinder meetInTheMiddle = new ComboFinder(data, target);
+         meetInTheMiddle.setStrategy(ComboFinderStrategy.MEET_IN_THE_MIDDLE);
+         assertSameResults("Run " + run + " meet in the middle", expected, meetInTheMiddle.findCombinationsForAmount());
+         
+         // Small enough that most of the elements are streamed.
+         meetInTheMiddle.setMaxTableBytes(512);
+         assertSameResults("Run " + run + " streamed", expected, meetInTheMiddle.findCombinationsForAmount());
+         
+         ComboFinder parallel = new ComboFinder(data, target);
+         parallel.setParallel(true);
+         assertSameResults("Run " + run + " parallel", expected, parallel.findCombinationsForAmount());
+         assertEquals("Run " + run + " parallel count", expected.size(), parallel.countCombinations());
+      }
+   }
+   
+   @Test(timeout = 20000)
+   public void testParallelMatchesSequential()
+   {
+      Random random = new Random(19);
+      ForkJoinPool pool = new ForkJoinPool(4);
+      try
+      {
+         for (int run = 0; run != 20; ++run)
+         {
+            List<ComboFinderElement> data = new ArrayList<>();
+            for (int i = 0; i != 24; ++i)
+            {
+               data.add(new SampleAmountBean(new BigDecimal(1 + random.nextInt(2000)).movePointLeft(2)));
+            }
+            BigDecimal target = new BigDecimal(1000 + random.nextInt(4000)).movePointLeft(2);
+            
+            ComboFinder sequential = new ComboFinder(data, target);
+            List<FoundComboResultList> expected = sequential.findCombinationsForAmount();
+            
+            // Both with and without the table steering each subtree.
+            ComboFinder parallel = new ComboFinder(data, target);
+            parallel.setParallelPool(pool);
+            assertSameResults("Run " + run, expected, parallel.findCombinationsForAmount());
+            assertEquals("Run " + run, expected.size(), parallel.countCombinations());
+            assertSameResults("Run " + run + " first ten", expected.subList(0, Math.min(10, expected.size())), 
+                  parallel.findCombinationsForAmount(10));
+            
+            parallel.setStrategy(ComboFinderStrategy.DEPTH_FIRST);
+            assertSameResults("Run " + run + " depth first", expected, parallel.findCombinationsForAmount());
+            assertEquals("Run " + run + " depth first", expected.size(), parallel.countCombinations());
+            assertEquals("Run " + run, !expected.isEmpty(), parallel.hasCombination());
+         }
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+   }
+   
+   @Test(timeout = 20000)
+   public void testParallelKeepsFirstResults()
+   {
+      // Over a hundred billion matches, of which only the first few are 
+      // kept and searched for.
+      List<ComboFinderElement> ones = new ArrayList<>();
+      for (int i = 0; i != 40; ++i)
+      {
+         ones.add(new SampleAmountBean(BigDecimal.ONE));
+      }
+      ForkJoinPool pool = new ForkJoinPool(4);
+      try
+      {
+         for (int maxResults : new int[] { 1, 3, 100 })
+         {
+            ComboFinder sequential = new ComboFinder(ones, new BigDecimal(20));
+            sequential.setStrategy(ComboFinderStrategy.DEPTH_FIRST);
+            ComboFinder parallel = new ComboFinder(ones, new BigDecimal(20));
+            parallel.setStrategy(ComboFinderStrategy.DEPTH_FIRST);
+            parallel.setParallelPool(pool);
+            assertSameResults("First " + maxResults, sequential.findCombinationsForAmount(maxResults), 
+                  parallel.findCombinationsForAmount(maxResults));
+         }
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+   }
+   
+   @Test(timeout = 20000)
+   public void testSixtyElements()
+   {
+      Random random = new Random(7);
+      List<ComboFinderElement> data = new ArrayList<>();
+      for (int i = 0; i != 60; ++i)
+      {
+         data.add(new SampleAmountBean(new BigDecimal(100 + random.nextInt(99900)).movePointLeft(2)));
+      }
+      BigDecimal target = data.get(3).getComboAmount().add(data.get(17).getComboAmount()).add(data.get(42).getComboAmount());
+      
+      List<FoundComboResultList> results = new ComboFinder(data, target).findCombinationsForAmount();
+      assertFalse("Searching for the sum of three elements should find them", results.isEmpty());
+      for (FoundComboResultList result : results)
+      {
+         BigDecimal total = BigDecimal.ZERO;
+         for (ComboFinderElement element : result.getComboElements())
+         {
+            total = total.add(element.getComboAmount());
+         }
+         assertEquals(0, total.compareTo(target));
+      }
+   }
+   
+   @Test
+   public void testTableMatchesSearch()
+   {
+      Random random = new Random(11);
+      for (int run = 0; run != 100; ++run)
+      {
+         List<ComboFinderElement> data = new ArrayList<>();
+         int size = 1 + random.nextInt(16);
+         for (int i = 0; i != size; ++i)
+         {
+            data.add(new SampleAmountBean(new BigDecimal(1 + random.nextInt(600)).movePointLeft(2)));
+         }
+         BigDecimal target = new BigDecimal(1 + random.nextInt(1500)).movePointLeft(2);
+         
+         List<FoundComboResultList> expected = originalEnumeration(data, target);
+         ComboFinder finder = new ComboFinder(data, target);
+         ComboFinder searchOnly = new ComboFinder(data, target);
+         searchOnly.setMaxTableBytes(0);
+         
+         assertEquals("Run " + run, expected.size(), finder.countCombinations());
+         assertEquals("Run " + run, expected.size(), searchOnly.countCombinations());
+         assertEquals("Run " + run, !expected.isEmpty(), finder.hasCombination());
+         assertEquals("Run " + run, !expected.isEmpty(), searchOnly.hasCombination());
+         
+         List<FoundComboResultList> firstThree = finder.findCombinationsForAmount(3);
+         assertEquals("Run " + run, Math.min(3, expected.size()), firstThree.size());
+         for (int i = 0; i != firstThree.size(); ++i)
+         {
+            assertEquals("Run " + run + " result " + i, expected.get(i).getComboElements(), firstThree.get(i).getComboElements());
+         }
+      }
+   }
+   
+   @Test(timeout = 20000)
+   public void testHundredsOfElements()
+   {
+      Random random = new Random(3);
+      List<ComboFinderElement> data = new ArrayList<>();
+      for (int i = 0; i != 400; ++i)
+      {
+         data.add(new SampleAmountBean(new BigDecimal(100 + random.nextInt(20000)).movePointLeft(2)));
+      }
+      
+      // Far more combinations than a long can count, but the first few
+      // come straight out of the table.
+      ComboFinder finder = new ComboFinder(data, new BigDecimal("2500.00"));
+      assertTrue(finder.hasCombination());
+      assertEquals(Long.MAX_VALUE, finder.countCombinations());
+      
+      List<FoundComboResultList> results = finder.findCombinationsForAmount(5);
+      assertEquals(5, results.size());
+      for (FoundComboResultList result : results)
+      {
+         BigDecimal total = BigDecimal.ZERO;
+         for (ComboFinderElement element : result.getComboElements())
+         {
+            total = total.add(element.getComboAmount());
+         }
+         assertEquals(0, total.compareTo(new BigDecimal("2500.00")));
+      }
+      
+      // An odd target out of reach of even amounts.
+      List<ComboFinderElement> evens = new ArrayList<>();
+      for (int i = 0; i != 300; ++i)
+      {
+         evens.add(new SampleAmountBean(new BigDecimal(2 * (50 + random.nextInt(10000))).movePointLeft(2)));
+      }
+      ComboFinder odd = new ComboFinder(evens, new BigDecimal("1234.57"));
+      assertFalse(odd.hasCombination());
+      assertEquals(0, odd.countCombinations());
+      assertTrue(odd.findCombinationsForAmount(1).isEmpty());
+   }
+   
+   @Test(timeout = 20000)
+   public void testMeetInTheMiddleLargeTarget()
+   {
+      Random random = new Random(5);
+      List<ComboFinderElement> data = new ArrayList<>();
+      for (int i = 0; i != 44; ++i)
+      {
+         data.add(new SampleAmountBean(new BigDecimal(1000000 + random.nextInt(900000000)).movePointLeft(2)));
+      }
+      BigDecimal target = BigDecimal.ZERO;
+      for (int i = 0; i < 44; i += 2)
+      {
+         target = target.add(data.get(i).getComboAmount());
+      }
+      
+      ComboFinder finder = new ComboFinder(data, target);
+      finder.setStrategy(ComboFinderStrategy.MEET_IN_THE_MIDDLE);
+      finder.setMaxTableBytes(256L * 1024 * 1024);
+      List<FoundComboResultList> results = finder.findCombinationsForAmount();
+      assertFalse(results.isEmpty());
+      for (FoundComboResultList result : results)
+      {
+         BigDecimal total = BigDecimal.ZERO;
+         for (ComboFinderElement element : result.getComboElements())
+         {
+            total = total.add(element.getComboAmount());
+         }
+         assertEquals(0, total.compareTo(target));
+      }
+      assertEquals(results.size(), finder.countCombinations());
+      
+      List<ComboFinderElement> smaller = data.subList(0, 22);
+      BigDecimal smallerTarget = target.subtract(data.get(22).getComboAmount()).subtract(data.get(24).getComboAmount());
+      ComboFinder depthFirst = new ComboFinder(smaller, smallerTarget);
+      depthFirst.setStrategy(ComboFinderStrategy.DEPTH_FIRST);
+      ComboFinder meetInTheMiddle = new ComboFinder(smaller, smallerTarget);
+      meetInTheMiddle.setStrategy(ComboFinderStrategy.MEET_IN_THE_MIDDLE);
+      assertSameResults("22 elements", depthFirst.findCombinationsForAmount(), meetInTheMiddle.findCombinationsForAmount());
+   }
+   
+   @Test(timeout = 20000)
+   public void testMeetInTheMiddleKeepsFirstResults()
+   {
+      // Millions of matches, of which only the first few are kept.
+      List<ComboFinderElement> ones = new ArrayList<>();
+      for (int i = 0; i != 24; ++i)
+      {
+         ones.add(new SampleAmountBean(BigDecimal.ONE));
+      }
+      ComboFinder depthFirst = new ComboFinder(ones, new BigDecimal(12));
+      depthFirst.setStrategy(ComboFinderStrategy.DEPTH_FIRST);
+      ComboFinder meetInTheMiddle = new ComboFinder(ones, new BigDecimal(12));
+      meetInTheMiddle.setStrategy(ComboFinderStrategy.MEET_IN_THE_MIDDLE);
+      assertSameResults("24 elements", depthFirst.findCombinationsForAmount(3), 
+            meetInTheMiddle.findCombinationsForAmount(3));
+      assertEquals(2704156, meetInTheMiddle.countCombinations());
+      
+      // Far too many matches to ever hold, stopped by the time limit.
+      List<ComboFinderElement> sixty = new ArrayList<>();
+      for (int i = 0; i != 60; ++i)
+      {
+         sixty.add(new SampleAmountBean(BigDecimal.ONE));
+      }
+      ComboFinder finder = new ComboFinder(sixty, new BigDecimal(30));
+      finder.setStrategy(ComboFinderStrategy.MEET_IN_THE_MIDDLE);
+      finder.setMaxTableBytes(16L * 1024 * 1024);
+      finder.setMaxResults(1);
+      finder.setTimeLimit(500, TimeUnit.MILLISECONDS);
+      List<FoundComboResultList> results = finder.findCombinationsForAmount();
+      assertEquals(1, results.size());
+      assertEquals(30, results.get(0).getComboElements().size());
+   }
+   
+   @Test
+   public void testStreamedResults()
+   {
+      Random random = new Random(23);
+      for (int run = 0; run != 50; ++run)
+      {
+         List<ComboFinderElement> data = new ArrayList<>();
+         for (int i = 0; i != 14; ++i)
+         {
+            data.add(new SampleAmountBean(new BigDecimal(1 + random.nextInt(900)).movePointLeft(2)));
+         }
+         BigDecimal target = new BigDecimal(500 + random.nextInt(2000)).movePointLeft(2);
+         List<FoundComboResultList> expected = new ComboFinder(data, target).findCombinationsForAmount();
+         
+         for (ComboFinderStrategy strategy : ComboFinderStrategy.values())
+         {
+            ComboFinder finder = new ComboFinder(data, target);
+            finder.setStrategy(strategy);
+            String message = "Run " + run + " " + strategy;
+            
+            assertSameResults(message + " stream", expected, finder.streamCombinations().collect(Collectors.toList()));
+            
+            ComboResultIterator iterator = finder.iterateCombinations();
+            List<FoundComboResultList> iterated = new ArrayList<>();
+            iterator.forEachRemaining(iterated::add);
+            assertSameResults(message + " iterator", expected, iterated);
+            assertEquals(message, ComboSearchOutcome.COMPLETED, iterator.getOutcome());
+            
+            List<FoundComboResultList> consumed = new ArrayList<>();
+            assertEquals(message, ComboSearchOutcome.COMPLETED, finder.findCombinations(consumed::add));
+            assertSameResults(message + " consumer", expected, consumed);
+            
+            if (expected.size() > 2)
+            {
+               List<FoundComboResultList> firstTwo = new ArrayList<>();
+               assertEquals(message, ComboSearchOutcome.STOPPED_BY_CONSUMER, 
+                     finder.findCombinations(result -> firstTwo.add(result) && firstTwo.size() < 2));
+               assertSameResults(message + " first two", expected.subList(0, 2), firstTwo);
+               
+               finder.setMaxResults(2);
+               List<FoundComboResultList> capped = new ArrayList<>();
+               assertEquals(message, ComboSearchOutcome.MAX_RESULTS, finder.findCombinations(capped::add));
+               assertSameResults(message + " capped", expected.subList(0, 2), capped);
+               assertSameResults(message + " capped list", expected.subList(0, 2), finder.findCombinationsForAmount());
+               
+               iterator = finder.iterateCombinations();
+               iterator.next();
+               assertEquals(message, ComboSearchOutcome.STOPPED_BY_CONSUMER, iterator.getOutcome());
+               iterator.next();
+               assertFalse(message, iterator.hasNext());
+               assertEquals(message, ComboSearchOutcome.MAX_RESULTS, iterator.getOutcome());
+            }
+
+            if (!expected.isEmpty())
+            {
+               // Exactly as many matches as allowed is not cut short.
+               finder = new ComboFinder(data, target);
+               finder.setStrategy(strategy);
+               finder.setMaxResults(expected.size());
+               List<FoundComboResultList> all = new ArrayList<>();
+               assertEquals(message, ComboSearchOutcome.COMPLETED, finder.findCombinations(all::add));
+               assertSameResults(message + " exact cap", expected, all);
+
+               iterator = finder.iterateCombinations();
+               iterator.forEachRemaining(result -> {});
+               assertEquals(message, ComboSearchOutcome.COMPLETED, iterator.getOutcome());
+            }
+         }
+      }
+
+      try
+      {
+         new ComboFinder(new ArrayList<>(), BigDecimal.ONE).setMaxResults(0);
+         fail("Most results of 0 should be rejected");
+      }
+      catch (IllegalArgumentException e)
+      {
+      }
+   }
+   
+   @Test(timeout = 20000)
+   public void testTimeLimitAndCancel() throws Exception
+   {
+      // An odd target out of reach of even amounts, with too many elements
+      // for the search to ever finish.
+      Random random = new Random(29);
+      List<ComboFinderElement> evens = new ArrayList<>();
+      BigDecimal total = BigDecimal.ZERO;
+      for (int i = 0; i != 60; ++i)
+      {
+         evens.add(new SampleAmountBean(new BigDecimal(2 * (50000 + random.nextInt(50000000))).movePointLeft(2)));
+         total = total.add(evens.get(i).getComboAmount());
+      }
+      BigDecimal target = total.divide(new BigDecimal(3), 2, RoundingMode.DOWN);
+      if (!target.unscaledValue().testBit(0))
+      {
+         target = target.add(new BigDecimal("0.01"));
+      }
+      
+      for (ComboFinderStrategy strategy : ComboFinderStrategy.values())
+      {
+         ComboFinder finder = new ComboFinder(evens, target);
+         finder.setStrategy(strategy);
+         finder.setTimeLimit(100, TimeUnit.MILLISECONDS);
+         assertEquals(strategy.toString(), ComboSearchOutcome.TIME_LIMIT, finder.findCombinations(result -> true));
+         assertTrue(finder.findCombinationsForAmount().isEmpty());
+         
+         ComboResultIterator iterator = finder.iterateCombinations();
+         assertFalse(iterator.hasNext());
+         assertEquals(strategy.toString(), ComboSearchOutcome.TIME_LIMIT, iterator.getOutcome());
+      }
+      
+      ComboFinder finder = new ComboFinder(evens, target);
+      finder.setParallel(true);
+      finder.setTimeLimit(100, TimeUnit.MILLISECONDS);
+      assertEquals(ComboSearchOutcome.TIME_LIMIT, finder.findCombinations(result -> true));
+      
+      ComboFinder cancelled = new ComboFinder(evens, target);
+      Thread canceller = new Thread(() ->
+         {
+            try { Thread.sleep(100); } catch (InterruptedException ex) { ; }
+            cancelled.cancel();
+         });
+      canceller.start();
+      assertEquals(ComboSearchOutcome.CANCELLED, cancelled.findCombinations(result -> true));
+      canceller.join();
+      assertTrue(cancelled.isCancelled());
+      assertEquals(ComboSearchOutcome.CANCELLED, cancelled.findCombinations(result -> true));
+   }
+   
+   @Test
+   public void testToleranceMatchesEnumeration()
+   {
+      Random random = new Random(31);
+      for (int run = 0; run != 150; ++run)
+      {
+         List<ComboFinderElement> data = new ArrayList<>();
+         int size = 1 + random.nextInt(13);
+         boolean withNegatives = random.nextBoolean();
+         for (int i = 0; i != size; ++i)
+         {
+            int cents = withNegatives ? random.nextInt(1200) - 200 : 1 + random.nextInt(1000);
+            data.add(new SampleAmountBean(new BigDecimal(cents).movePointLeft(2)));
+         }
+         BigDecimal target = new BigDecimal(random.nextInt(3000)).movePointLeft(2);
+         BigDecimal tolerance = new BigDecimal(random.nextInt(60)).movePointLeft(2);
+         List<FoundComboResultList> expected = windowEnumeration(data, target.subtract(tolerance), target.add(tolerance));
+         
+         for (ComboFinderStrategy strategy : ComboFinderStrategy.values())
+         {
+            String message = "Run " + run + " " + strategy;
+            ComboFinder finder = new ComboFinder(data, target);
+            finder.setTolerance(tolerance);
+            finder.setStrategy(strategy);
+            assertSameResults(message, expected, finder.findCombinationsForAmount());
+            assertEquals(message, expected.size(), finder.countCombinations());
+            assertEquals(message, !expected.isEmpty(), finder.hasCombination());
+         }
+      }
+   }
+   
+   @Test
+   public void testClosestCombinations()
+   {
+      Random random = new Random(37);
+      for (int run = 0; run != 100; ++run)
+      {
+         List<ComboFinderElement> data = new ArrayList<>();
+         int size = 1 + random.nextInt(13);
+         boolean withNegatives = random.nextBoolean();
+         for (int i = 0; i != size; ++i)
+         {
+            int cents = withNegatives ? random.nextInt(1200) - 200 : 1 + random.nextInt(1000);
+            data.add(new SampleAmountBean(new BigDecimal(cents).movePointLeft(2)));
+         }
+         BigDecimal target = new BigDecimal(random.nextInt(3000)).movePointLeft(2);
+         BigDecimal tolerance = new BigDecimal(random.nextInt(200)).movePointLeft(2);
+         int count = 1 + random.nextInt(6);
+         
+         // Stable sort of the matches in search order, by distance then size.
+         List<FoundComboResultList> expected = new ArrayList<>(windowEnumeration(data, target.subtract(tolerance), target.add(tolerance)));
+         Collections.sort(expected, (a, b) ->
+            {
+               int byDistance = distance(a, target).compareTo(distance(b, target));
+               return byDistance != 0 ? byDistance : Integer.compare(a.getComboElements().size(), b.getComboElements().size());
+            });
+         expected = expected.subList(0, Math.min(count, expected.size()));
+         
+         for (ComboFinderStrategy strategy : ComboFinderStrategy.values())
+         {
+            ComboFinder finder = new ComboFinder(data, target);
+            finder.setTolerance(tolerance);
+            finder.setStrategy(strategy);
+            assertSameResults("Run " + run + " " + strategy, expected, finder.findClosestCombinations(count));
+         }
+         
+         ComboFinder parallel = new ComboFinder(data, target);
+         parallel.setTolerance(tolerance);
+         parallel.setParallel(true);
+         assertSameResults("Run " + run + " parallel", expected, parallel.findClosestCombinations(count));
+      }
+      
+      // A closer match found after the window narrows, reached by going
+      // over the narrower window and coming back down.
+      List<ComboFinderElement> data = new ArrayList<>();
+      for (int amount : new int[] { 7, 4, 6, 2, 7, 4, 5, 0, 4, -1 })
+      {
+         data.add(new SampleAmountBean(new BigDecimal(amount)));
+      }
+      ComboFinder finder = new ComboFinder(data, new BigDecimal(5));
+      finder.setTolerance(new BigDecimal(2));
+      finder.setCombinationSize(2, Integer.MAX_VALUE);
+      List<FoundComboResultList> closest = finder.findClosestCombinations(1);
+      assertEquals(1, closest.size());
+      List<BigDecimal> amounts = new ArrayList<>();
+      for (ComboFinderElement element : closest.get(0).getComboElements())
+      {
+         amounts.add(element.getComboAmount());
+      }
+      assertEquals(Arrays.asList(new BigDecimal(6), new BigDecimal(-1)), amounts);
+   }
+   
+   @Test
+   public void testAmountsBeyondLongScale()
+   {
+      // The exact value of the double 0.1, 55 decimal places.
+      BigDecimal tenth = new BigDecimal(0.1);
+      List<ComboFinderElement> data = new ArrayList<>();
+      for (String amount : new String[] { "0.05", "0.05", "0.1", "0.15" })
+      {
+         data.add(new SampleAmountBean(new BigDecimal(amount)));
+      }
+      data.add(new SampleAmountBean(tenth));
+      BigDecimal target = tenth.add(new BigDecimal("0.05"));
+      List<FoundComboResultList> results = new ComboFinder(data, target).findCombinationsForAmount();
+      assertSameResults("0.1 as a double", windowEnumeration(data, target, target), results);
+      assertEquals(2, results.size());
+      
+      // Trailing zeros need no decimal places.
+      data = new ArrayList<>();
+      for (String amount : new String[] { "1.000000000000000000000", "2", "3", "1" })
+      {
+         data.add(new SampleAmountBean(new BigDecimal(amount)));
+      }
+      results = new ComboFinder(data, new BigDecimal(3)).findCombinationsForAmount();
+      assertSameResults("Trailing zeros", windowEnumeration(data, new BigDecimal(3), new BigDecimal(3)), results);
+      assertEquals(3, results.size());
+      
+      // Thirty digits before the point, alone and next to small amounts.
+      data = new ArrayList<>();
+      for (String amount : new String[] { "1E+30", "2E+30", "3E+30" })
+      {
+         data.add(new SampleAmountBean(new BigDecimal(amount)));
+      }
+      results = new ComboFinder(data, new BigDecimal("3E+30")).findCombinationsForAmount();
+      assertEquals(2, results.size());
+      data.add(new SampleAmountBean(new BigDecimal("0.5")));
+      data.add(new SampleAmountBean(new BigDecimal("1")));
+      target = new BigDecimal("3000000000000000000000000000001.5");
+      results = new ComboFinder(data, target).findCombinationsForAmount();
+      assertSameResults("1E+30", windowEnumeration(data, target, target), results);
+      assertEquals(2, results.size());
+      
+      // Every kind of search over amounts that must be searched as they are.
+      Random random = new Random(59);
+      for (int run = 0; run != 100; ++run)
+      {
+         data = new ArrayList<>();
+         int size = 1 + random.nextInt(12);
+         for (int i = 0; i != size; ++i)
+         {
+            BigDecimal amount = new BigDecimal(1 + random.nextInt(20)).movePointLeft(1);
+            data.add(new SampleAmountBean(random.nextInt(4) == 0 ? amount.add(tenth) : amount));
+         }
+         data.add(new SampleAmountBean(tenth));
+         BigDecimal sought = new BigDecimal(random.nextInt(60)).movePointLeft(1).add(random.nextBoolean() ? tenth : BigDecimal.ZERO);
+         BigDecimal tolerance = new BigDecimal(random.nextInt(3)).movePointLeft(1);
+         List<FoundComboResultList> expected = windowEnumeration(data, sought.subtract(tolerance), sought.add(tolerance));
+         
+         String message = "Run " + run;
+         for (ComboFinderStrategy strategy : ComboFinderStrategy.values())
+         {
+            ComboFinder finder = new ComboFinder(data, sought);
+            finder.setTolerance(tolerance);
+            finder.setStrategy(strategy);
+            finder.setParallel(strategy == ComboFinderStrategy.DEPTH_FIRST);
+            assertSameResults(message + " " + strategy, expected, finder.findCombinationsForAmount());
+            assertSameResults(message + " " + strategy + " iterator", expected, 
+                  finder.streamCombinations().collect(Collectors.toList()));
+            assertEquals(message, expected.size(), finder.countCombinations());
+            assertEquals(message, !expected.isEmpty(), finder.hasCombination());
+         }
+         
+         ComboFinder finder = new ComboFinder(data, sought);
+         finder.setTolerance(tolerance);
+         List<FoundComboResultList> closest = new ArrayList<>(expected);
+         Collections.sort(closest, (a, b) ->
+            {
+               int byDistance = distance(a, sought).compareTo(distance(b, sought));
+               return byDistance != 0 ? byDistance : Integer.compare(a.getComboElements().size(), b.getComboElements().size());
+            });
+         assertSameResults(message + " closest", closest.subList(0, Math.min(3, closest.size())), 
+               finder.findClosestCombinations(3));
+         
+         long grouped = 0;
+         for (GroupedComboResult result : finder.findGroupedCombinations())
+         {
+            grouped += result.getCombinationCount();
+         }
+         assertEquals(message + " grouped", expected.size(), grouped);
+      }
+   }
+   
+   @Test(expected = IllegalArgumentException.class)
+   public void testNegativeTolerance()
+   {
+      new ComboFinder(smallSampleData, BigDecimal.TEN).setTolerance(new BigDecimal("-0.01"));
+   }
+   
+   @Test
+   public void testNettingMatchesEveryCombination()
+   {
+      Random random = new Random(41);
+      for (int run = 0; run != 150; ++run)
+      {
+         List<ComboFinderElement> data = new ArrayList<>();
+         int size = 1 + random.nextInt(12);
+         for (int i = 0; i != size; ++i)
+         {
+            data.add(new SampleAmountBean(new BigDecimal(random.nextInt(1600) - 800).movePointLeft(2)));
+         }
+         BigDecimal target = new BigDecimal(random.nextInt(1200) - 400).movePointLeft(2);
+         BigDecimal tolerance = new BigDecimal(random.nextInt(3) == 0 ? random.nextInt(40) : 0).movePointLeft(2);
+         int minElements = 1 + random.nextInt(3);
+         int maxElements = random.nextBoolean() ? Integer.MAX_VALUE : minElements + random.nextInt(4);
+         
+         List<String> expected = new ArrayList<>();
+         for (long mask = 1; mask < (1L << size); ++mask)
+         {
+            BigDecimal total = BigDecimal.ZERO;
+            List<ComboFinderElement> combination = new ArrayList<>();
+            for (int i = 0; i != size; ++i)
+            {
+               if ((mask & (1L << i)) != 0 && data.get(i).getComboAmount().signum() != 0)
+               {
+                  combination.add(data.get(i));
+                  total = total.add(data.get(i).getComboAmount());
+               }
+            }
+            // Masks differing only in zero amounts are the same combination.
+            boolean onlyNonZero = combination.size() == Long.bitCount(mask);
+            if (onlyNonZero && total.subtract(target).abs().compareTo(tolerance) <= 0
+                  && combination.size() >= minElements && combination.size() <= maxElements)
+            {
+               expected.add(key(data, combination));
+            }
+         }
+         Collections.sort(expected);
+         
+         List<FoundComboResultList> first = null;
+         for (ComboFinderStrategy strategy : ComboFinderStrategy.values())
+         {
+            String message = "Run " + run + " " + strategy;
+            ComboFinder finder = new ComboFinder(data, target);
+            finder.setNetting(true);
+            finder.setTolerance(tolerance);
+            finder.setCombinationSize(minElements, maxElements);
+            finder.setStrategy(strategy);
+            
+            List<FoundComboResultList> results = finder.findCombinationsForAmount();
+            assertEquals(message, expected, keys(data, results));
+            assertEquals(message, expected.size(), finder.countCombinations());
+            assertEquals(message, !expected.isEmpty(), finder.hasCombination());
+            if (first == null)
+            {
+               first = results;
+            }
+            else
+            {
+               assertSameResults(message + " order", first, results);
+            }
+         }
+         
+         ComboFinder parallel = new ComboFinder(data, target);
+         parallel.setNetting(true);
+         parallel.setTolerance(tolerance);
+         parallel.setCombinationSize(minElements, maxElements);
+         parallel.setStrategy(ComboFinderStrategy.DEPTH_FIRST);
+         parallel.setParallel(true);
+         assertSameResults("Run " + run + " parallel", first, parallel.findCombinationsForAmount());
+         assertEquals("Run " + run + " parallel", expected.size(), parallel.countCombinations());
+      }
+   }
+   
+   @Test
+   public void testCombinationSizeLimits()
+   {
+      Random random = new Random(43);
+      for (int run = 0; run != 100; ++run)
+      {
+         List<ComboFinderElement> data = new ArrayList<>();
+         int size = 1 + random.nextInt(14);
+         for (int i = 0; i != size; ++i)
+         {
+            data.add(new SampleAmountBean(new BigDecimal(1 + random.nextInt(500)).movePointLeft(2)));
+         }
+         BigDecimal target = new BigDecimal(1 + random.nextInt(1500)).movePointLeft(2);
+         int minElements = 1 + random.nextInt(4);
+         int maxElements = minElements + random.nextInt(3);
+         
+         List<FoundComboResultList> expected = new ArrayList<>();
+         for (FoundComboResultList result : originalEnumeration(data, target))
+         {
+            if (result.getComboElements().size() >= minElements && result.getComboElements().size() <= maxElements)
+            {
+               expected.add(result);
+            }
+         }
+         
+         for (ComboFinderStrategy strategy : ComboFinderStrategy.values())
+         {
+            String message = "Run " + run + " " + strategy;
+            ComboFinder finder = new ComboFinder(data, target);
+            finder.setCombinationSize(minElements, maxElements);
+            finder.setStrategy(strategy);
+            assertSameResults(message, expected, finder.findCombinationsForAmount());
+            assertEquals(message, expected.size(), finder.countCombinations());
+            assertEquals(message, !expected.isEmpty(), finder.hasCombination());
+         }
+      }
+   }
+   
+   @Test(timeout = 20000)
+   public void testNettingLargeLedger()
+   {
+      Random random = new Random(47);
+      List<ComboFinderElement> ledger = new ArrayList<>();
+      for (int i = 0; i != 400; ++i)
+      {
+         int cents = 100 + random.nextInt(50000);
+         ledger.add(new SampleAmountBean(new BigDecimal(random.nextInt(3) == 0 ? -cents : cents).movePointLeft(2)));
+      }
+      BigDecimal target = ledger.get(10).getComboAmount().add(ledger.get(200).getComboAmount()).add(ledger.get(333).getComboAmount());
+      
+      ComboFinder finder = new ComboFinder(ledger, target);
+      finder.setNetting(true);
+      finder.setCombinationSize(2, 4);
+      assertTrue(finder.hasCombination());
+      List<FoundComboResultList> results = finder.findCombinationsForAmount(20);
+      assertEquals(20, results.size());
+      for (FoundComboResultList result : results)
+      {
+         assertTrue(result.getComboElements().size() >= 2 && result.getComboElements().size() <= 4);
+         BigDecimal total = BigDecimal.ZERO;
+         for (ComboFinderElement element : result.getComboElements())
+         {
+            total = total.add(element.getComboAmount());
+         }
+         assertEquals(0, total.compareTo(target));
+      }
+      
+      // Every combination of up to three elements, searched through in full.
+      ComboFinder upToThree = new ComboFinder(ledger, target);
+      upToThree.setNetting(true);
+      upToThree.setCombinationSize(1, 3);
+      assertTrue(upToThree.countCombinations() >= 1);
+   }
+   
+   @Test(expected = IllegalArgumentException.class)
+   public void testInvalidCombinationSize()
+   {
+      new ComboFinder(smallSampleData, BigDecimal.TEN).setCombinationSize(3, 2);
+   }
+   
+   @Test
+   public void testGroupedMatchesExpanded()
+   {
+      Random random = new Random(53);
+      for (int run = 0; run != 150; ++run)
+      {
+         // Few distinct amounts, so most of them repeat.
+         int[] values = new int[1 + random.nextInt(4)];
+         for (int i = 0; i != values.length; ++i)
+         {
+            values[i] = random.nextInt(900) - 200;
+         }
+         List<ComboFinderElement> data = new ArrayList<>();
+         int size = 1 + random.nextInt(14);
+         for (int i = 0; i != size; ++i)
+         {
+            data.add(new SampleAmountBean(new BigDecimal(values[random.nextInt(values.length)]).movePointLeft(2)));
+         }
+         // Every third run looks for a negative total without netting.
+         boolean negativeTarget = run % 3 == 0;
+         BigDecimal target = new BigDecimal(negativeTarget ? -1 - random.nextInt(300) : random.nextInt(2000) - 300)
+               .movePointLeft(2);
+         
+         String message = "Run " + run;
+         ComboFinder finder = new ComboFinder(data, target);
+         finder.setNetting(!negativeTarget && random.nextBoolean());
+         finder.setTolerance(new BigDecimal(random.nextInt(3) == 0 ? random.nextInt(60) : 0).movePointLeft(2));
+         if (random.nextBoolean())
+         {
+            int minElements = 1 + random.nextInt(3);
+            finder.setCombinationSize(minElements, minElements + random.nextInt(4));
+         }
+         
+         List<FoundComboResultList> plain = finder.findCombinationsForAmount();
+         List<GroupedComboResult> grouped = finder.findGroupedCombinations();
+         
+         List<FoundComboResultList> canonical = new ArrayList<>();
+         for (FoundComboResultList result : plain)
+         {
+            if (isCanonical(data, result))
+            {
+               canonical.add(result);
+            }
+         }
+         assertSameResults(message + " canonical", canonical, new ArrayList<>(grouped));
+         
+         List<FoundComboResultList> expanded = new ArrayList<>();
+         long count = 0;
+         for (GroupedComboResult result : grouped)
+         {
+            List<FoundComboResultList> choices = new ArrayList<>();
+            result.expand().forEachRemaining(choices::add);
+            assertEquals(message, result.getCombinationCount(), choices.size());
+            assertEquals(message, result.getComboElements(), choices.get(0).getComboElements());
+            expanded.addAll(choices);
+            count += result.getCombinationCount();
+         }
+         assertEquals(message, keys(data, plain), keys(data, expanded));
+         assertEquals(message, plain.size(), count);
+      }
+      
+      List<ComboFinderElement> data = new ArrayList<>();
+      for (int amount : new int[] { 3, 6, -3, -1 })
+      {
+         data.add(new SampleAmountBean(new BigDecimal(amount)));
+      }
+      List<GroupedComboResult> grouped = new ComboFinder(data, new BigDecimal(-1)).findGroupedCombinations();
+      assertEquals(1, grouped.size());
+      assertEquals(1, grouped.get(0).getComboElements().size());
+      assertEquals(0, grouped.get(0).getComboElements().get(0).getComboAmount().compareTo(new BigDecimal(-1)));
+   }
+   
+   @Test(timeout = 5000)
+   public void testGroupedDuplicateFees()
+   {
+      List<ComboFinderElement> data = new ArrayList<>();
+      for (int i = 0; i != 200; ++i)
+      {
+         data.add(new SampleAmountBean(new BigDecimal("25.00")));
+      }
+      data.add(new SampleAmountBean(new BigDecimal("40.00")));
+      data.add(new SampleAmountBean(new BigDecimal("15.00")));
+      data.add(new SampleAmountBean(new BigDecimal("10.00")));
+      
+      ComboFinder finder = new ComboFinder(data, new BigDecimal("100.00"));
+      List<GroupedComboResult> grouped = finder.findGroupedCombinations();
+      assertEquals(3, grouped.size());
+      
+      // 25 * 3 + 15 + 10, then 25 * 4, then 40 + 25 * 2 + 10
+      assertEquals(3, grouped.get(0).getGroups().size());
+      assertEquals(1313400, grouped.get(0).getCombinationCount());
+      assertEquals(1, grouped.get(1).getGroups().size());
+      assertEquals(64684950, grouped.get(1).getCombinationCount());
+      assertEquals(19900, grouped.get(2).getCombinationCount());
+      assertEquals(4, grouped.get(2).getComboElements().size());
+      assertEquals(0, new BigDecimal("40").compareTo(grouped.get(2).getGroups().get(0).getAmount()));
+      assertEquals(2, grouped.get(2).getGroups().get(1).getCount());
+      assertEquals(200, grouped.get(2).getGroups().get(1).getElements().size());
+      
+      assertEquals(1, finder.findGroupedCombinations(1).size());
+      
+      // Every choice of fees is a different combination of elements.
+      finder = new ComboFinder(data, new BigDecimal("2500.00"));
+      grouped = finder.findGroupedCombinations();
+      assertEquals(3, grouped.size());
+      for (GroupedComboResult result : grouped)
+      {
+         assertEquals(Long.MAX_VALUE, result.getCombinationCount());
+      }
+   }
+   
+   /**
+    * Checks a combination takes the first elements in the data of each
+    * amount it uses, as the finder's stable sort keeps them in data order.
+    */
+   static boolean isCanonical(List<ComboFinderElement> data, FoundComboResultList result)
+   {
+      for (ComboFinderElement element : result.getComboElements())
+      {
+         int taken = 0;
+         for (ComboFinderElement other : result.getComboElements())
+         {
+            if (other.getComboAmount().compareTo(element.getComboAmount()) == 0)
+            {
+               ++taken;
+            }
+         }
+         for (ComboFinderElement other : data)
+         {
+            if (other == element)
+            {
+               break;
+            }
+            if (other.getComboAmount().compareTo(element.getComboAmount()) == 0 && --taken == 0)
+            {
+               return false;
+            }
+         }
+      }
+      return true;
+   }
+   
+   static List<String> keys(List<ComboFinderElement> data, List<FoundComboResultList> results)
+   {
+      List<String> keys = new ArrayList<>();
+      for (FoundComboResultList result : results)
+      {
+         keys.add(key(data, result.getComboElements()));
+      }
+      Collections.sort(keys);
+      return keys;
+   }
+   
+   /**
+    * Identifies a combination by the positions of its elements in the 
+    * data, whatever order it holds them in.
+    */
+   static String key(List<ComboFinderElement> data, List<ComboFinderElement> combination)
+   {
+      List<Integer> positions = new ArrayList<>();
+      for (ComboFinderElement element : combination)
+      {
+         for (int i = 0; i != data.size(); ++i)
+         {
+            if (data.get(i) == element)
+            {
+               positions.add(i);
+            }
+         }
+      }
+      Collections.sort(positions);
+      return positions.toString();
+   }
+   
+   static BigDecimal distance(FoundComboResultList result, BigDecimal target)
+   {
+      BigDecimal total = BigDecimal.ZERO;
+      for (ComboFinderElement element : result.getComboElements())
+      {
+         total = total.add(element.getComboAmount());
+      }
+      return total.subtract(target).abs();
+   }
+   
+   static void assertSameResults(String message, List<FoundComboResultList> expected, List<FoundComboResultList> actual)
+   {
+      assertEquals(message + " result count", expected.size(), actual.size());
+      for (int i = 0; i != expected.size(); ++i)
+      {
+         assertEquals(message + " result " + i, expected.get(i).getComboElements(), actual.get(i).getComboElements());
+      }
+   }
+   
+   /**
+    * The search as it was first written: every bit pattern from 1 up, 
+    * with the largest element as the most significant bit, adding the 
+    * amounts until the total goes over the target.
+    */
+   static List<FoundComboResultList> originalEnumeration(List<ComboFinderElement> data, BigDecimal target)
+   {
+      return windowEnumeration(data, target, target);
+   }
+   
+   /**
+    * The original search with a window of totals: the running total may
+    * go up to the top of the window, and any total in the window matches.
+    */
+   static List<FoundComboResultList> windowEnumeration(List<ComboFinderElement> data, BigDecimal minTotal, BigDecimal maxTotal)
+   {
+      List<ComboFinderElement> filtered = new ArrayList<>();
+      for (ComboFinderElement element : data)
+      {
+         if (element.getComboAmount().compareTo(maxTotal) < 1 && element.getComboAmount().compareTo(BigDecimal.ZERO) != 0)
+         {
+            filtered.add(element);
+         }
+      }
+      Collections.sort(filtered, (o1, o2) -> o2.getComboAmount().compareTo(o1.getComboAmount()));
+      
+      List<FoundComboResultList> results = new ArrayList<>();
+      int n = filtered.size();
+      for (long mask = 1; mask < (1L << n); ++mask)
+      {
+         TestingFoundComboResult result = new TestingFoundComboResult();
+         BigDecimal total = BigDecimal.ZERO;
+         boolean over = false;
+         for (int i = 0; i != n && !over; ++i)
+         {
+            if ((mask & (1L << (n - 1 - i))) != 0)
+            {
+               result.getComboElements().add(filtered.get(i));
+               total = total.add(filtered.get(i).getComboAmount());
+               over = total.compareTo(maxTotal) > 0;
+            }
+         }
+         if (!over && total.compareTo(minTotal) >= 0)
+         {
+            results.add(result);
+         }
+      }
+      return results;
+   }
 }
 
 class TestingFoundComboResult extends FoundComboResultList
@@ -0,0 +1,206 @@
+package ca.bjad.util.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.sql.SQLTransientException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+/**
+ * Tests for the admission controller.
+ *
+ * @author
+ *  Ben Dougall
+ */
+@SuppressWarnings("javadoc")
+public class AdmissionControllerTest
+{
+   private static String FILE_NAME = System.getenv("TEMP") + "\\bjadUtilAdmissionTest.sqlLite";
+   private static String connectionString = "jdbc:sqlite:" + FILE_NAME;
+   private static String fakeConnectionString = "admission:test";
+
+   @After
+   public void removeControllers()
+   {
+      AdmissionController.removeController(connectionString);
+      AdmissionController.removeController(fakeConnectionString);
+   }
+
+   @AfterClass
+   public static void eraseDB() throws Exception
+   {
+      ConnectionPool.getPool(connectionString).close();
+      new File(FILE_NAME).delete();
+   }
+
+   @Test
+   public void testWrapperHoldsPermitUntilClosed() throws Exception
+   {
+      AdmissionController controller = AdmissionController.getController(connectionString);
+      controller.setMaxConcurrent(1);
+      controller.setMaxQueueWaitMillis(0);
+
+      DatabaseWrapper first = new DatabaseWrapper(connectionString, "SELECT 1");
+      try
+      {
+         assertEquals(1, controller.getStats().getInFlight());
+         new DatabaseWrapper(connectionString, "SELECT 1").close();
+         fail("Second wrapper should not have been admitted");
+      }
+      catch (SQLTransientException ex)
+      {
+         assertEquals(1, controller.getStats().getTimeoutCount());
+      }
+      finally
+      {
+         first.close();
+      }
+
+      assertEquals(0, controller.getStats().getInFlight());
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT 1"))
+      {
+         assertEquals(1, (int) db.executeQuery((ResultSetMapper<Integer>) rs -> rs.getInt(1)).get(0));
+      }
+      assertEquals(2, controller.getStats().getAdmittedCount());
+   }
+
+   @Test
+   public void testQueuedCallerAdmittedOnRelease() throws Exception
+   {
+      AdmissionController controller = AdmissionController.getController(fakeConnectionString);
+      controller.setMaxConcurrent(1);
+
+      AdmissionController.Permit first = controller.acquire();
+      CountDownLatch admitted = new CountDownLatch(1);
+      AtomicReference<Exception> failure = new AtomicReference<>();
+      Thread waiter = new Thread(() ->
+         {
+            try
+            {
+               AdmissionController.Permit permit = controller.acquire();
+               admitted.countDown();
+               permit.close();
+            }
+            catch (Exception ex)
+            {
+               failure.set(ex);
+            }
+         });
+      waiter.start();
+
+      long deadline = System.currentTimeMillis() + 5000;
+      while (controller.getStats().getQueued() == 0 && System.currentTimeMillis() < deadline)
+      {
+         Thread.sleep(5);
+      }
+      assertEquals(1, controller.getStats().getQueued());
+      assertFalse(admitted.await(50, TimeUnit.MILLISECONDS));
+
+      first.close();
+      first.close();
+      assertTrue(admitted.await(5, TimeUnit.SECONDS));
+      waiter.join();
+      assertNull(failure.get());
+
+      AdmissionStats stats = controller.getStats();
+      assertEquals(0, stats.getInFlight());
+      assertEquals(0, stats.getQueued());
+      assertEquals(2, stats.getAdmittedCount());
+      assertTrue(stats.getMaxQueueNanos() > 0);
+   }
+
+   @Test
+   public void testFullQueueRejects() throws Exception
+   {
+      AdmissionController controller = AdmissionController.getController(fakeConnectionString);
+      controller.setMaxConcurrent(1);
+      controller.setMaxQueueLength(0);
+
+      AdmissionController.Permit permit = controller.acquire();
+      try
+      {
+         controller.acquire();
+         fail("Caller should have been rejected");
+      }
+      catch (SQLTransientException ex)
+      {
+         assertEquals(1, controller.getStats().getRejectedCount());
+         assertEquals(0, controller.getStats().getTimeoutCount());
+      }
+      finally
+      {
+         permit.close();
+      }
+   }
+
+   @Test
+   public void testRateLimit() throws Exception
+   {
+      AdmissionController controller = AdmissionController.getController(fakeConnectionString);
+      controller.setRateLimit(20, 1);
+
+      long start = System.nanoTime();
+      for (int i = 0; i < 4; i++)
+      {
+         controller.acquire().close();
+      }
+      long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+      // The first permit comes from the burst, the other three wait
+      // 50ms each for a token.
+      assertTrue("Elapsed " + elapsedMillis, elapsedMillis >= 140);
+   }
+
+   @Test
+   public void testAdaptiveLimit() throws Exception
+   {
+      AdmissionController controller = AdmissionController.getController(fakeConnectionString);
+      controller.setMaxConcurrent(2);
+      controller.setAdaptiveLimit(1, 4, 2.0, 0.5);
+
+      for (int i = 0; i < 20; i++)
+      {
+         try (AdmissionController.Permit permit = controller.acquire())
+         {
+            permit.recordLatency(TimeUnit.MILLISECONDS.toNanos(5));
+         }
+      }
+      assertEquals(4, controller.getLimit());
+      assertEquals(2, controller.getStats().getLimitIncreases());
+
+      for (int i = 0; i < 8; i++)
+      {
+         try (AdmissionController.Permit permit = controller.acquire())
+         {
+            permit.recordLatency(TimeUnit.MILLISECONDS.toNanos(20));
+         }
+      }
+      assertEquals(1, controller.getLimit());
+      assertEquals(2, controller.getStats().getLimitDecreases());
+   }
+
+   @Test
+   public void testAdaptiveLimitIgnoresThinkTime() throws Exception
+   {
+      AdmissionController controller = AdmissionController.getController(connectionString);
+      controller.setMaxConcurrent(2);
+      controller.setAdaptiveLimit(1, 4, 2.0, 0.5);
+
+      for (int i = 0; i < 10; i++)
+      {
+         try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT 1"))
+         {
+            db.executeQuery((ResultSetMapper<Integer>) rs -> rs.getInt(1));
+            Thread.sleep(i < 5 ? 0 : 20);
+         }
+      }
+      assertEquals("Time held open between commands is not latency", 0, controller.getStats().getLimitDecreases());
+      assertTrue(controller.getLimit() > 2);
+   }
+}
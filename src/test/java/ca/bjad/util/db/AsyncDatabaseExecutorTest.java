@@ -0,0 +1,185 @@
+package ca.bjad.util.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the asynchronous database executor.
+ *
+ * @author
+ *  Ben Dougall
+ */
+@SuppressWarnings("javadoc")
+public class AsyncDatabaseExecutorTest
+{
+   private static String FILE_NAME = System.getenv("TEMP") + "\\bjadUtilAsyncTest.sqlLite";
+   private static String connectionString = "jdbc:sqlite:" + FILE_NAME;
+
+   @BeforeClass
+   public static void createDB() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "CREATE TABLE IF NOT EXISTS num (id INTEGER)"))
+      {
+         db.executeNonQuery();
+         db.newCommand("INSERT INTO num VALUES (?)");
+         for (int i = 1; i <= 20; i++)
+         {
+            db.addToBatch(i);
+         }
+         db.executeNonQuery();
+      }
+   }
+
+   @AfterClass
+   public static void eraseDB() throws Exception
+   {
+      ConnectionPool.getPool(connectionString).close();
+      new File(FILE_NAME).delete();
+   }
+
+   @Test
+   public void testFanOutQueries() throws Exception
+   {
+      try (AsyncDatabaseExecutor async = new AsyncDatabaseExecutor(connectionString))
+      {
+         List<CompletableFuture<List<Integer>>> futures = new ArrayList<>();
+         for (int i = 1; i <= 10; i++)
+         {
+            futures.add(async.executeQuery("SELECT id FROM num WHERE id <= ?", rs -> rs.getInt(1), i));
+         }
+         CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+         for (int i = 1; i <= 10; i++)
+         {
+            assertEquals("Rows for query " + i, i, futures.get(i - 1).get().size());
+         }
+         assertEquals("Nothing left running", 0, async.getInFlightCount());
+      }
+   }
+
+   @Test
+   public void testProcessorAndNonQuery() throws Exception
+   {
+      try (AsyncDatabaseExecutor async = new AsyncDatabaseExecutor(connectionString))
+      {
+         int updated = async.executeNonQuery("UPDATE num SET id = id WHERE id > ?", 15).get(10, TimeUnit.SECONDS);
+         assertEquals("Rows updated", 5, updated);
+
+         AtomicInteger sum = new AtomicInteger();
+         int rows = async.processQuery("SELECT id FROM num", 
+               rs -> { sum.addAndGet(rs.getInt(1)); }).get(10, TimeUnit.SECONDS);
+         assertEquals("Rows processed", 20, rows);
+         assertEquals("Sum of ids", 210, sum.get());
+      }
+   }
+
+   @Test
+   public void testFailureCompletesExceptionally() throws Exception
+   {
+      try (AsyncDatabaseExecutor async = new AsyncDatabaseExecutor(connectionString))
+      {
+         CompletableFuture<Integer> future = async.executeNonQuery("UPDATE no_such_table SET x = 1");
+         try
+         {
+            future.get(10, TimeUnit.SECONDS);
+            fail("Bad command should fail");
+         }
+         catch (java.util.concurrent.ExecutionException ex)
+         {
+            assertTrue("SQLException cause", ex.getCause() instanceof java.sql.SQLException);
+         }
+      }
+   }
+
+   @Test
+   public void testConcurrencyLimit() throws Exception
+   {
+      ExecutorService executor = AsyncDatabaseExecutor.newDefaultExecutor(8);
+      try (AsyncDatabaseExecutor async = new AsyncDatabaseExecutor(connectionString, executor, 2))
+      {
+         AtomicInteger running = new AtomicInteger();
+         AtomicInteger maxRunning = new AtomicInteger();
+         List<CompletableFuture<Integer>> futures = new ArrayList<>();
+         for (int i = 0; i < 6; i++)
+         {
+            futures.add(async.processQuery("SELECT id FROM num WHERE id = 1", rs -> 
+               {
+                  int now = running.incrementAndGet();
+                  maxRunning.accumulateAndGet(now, Math::max);
+                  try { Thread.sleep(50); } catch (InterruptedException ex) { ; }
+                  running.decrementAndGet();
+               }));
+         }
+         CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+         assertTrue("No more than two commands at once, was " + maxRunning.get(), maxRunning.get() <= 2);
+      }
+      finally
+      {
+         executor.shutdown();
+      }
+   }
+
+   @Test
+   public void testCancelRunningQuery() throws Exception
+   {
+      try (AsyncDatabaseExecutor async = new AsyncDatabaseExecutor(connectionString))
+      {
+         AtomicInteger started = new AtomicInteger();
+         CompletableFuture<Integer> future = async.processQuery(
+               "WITH RECURSIVE c(x) AS (SELECT 1 UNION ALL SELECT x + 1 FROM c WHERE x < 100000000) "
+               + "SELECT SUM(x) FROM c",
+               rs -> { started.incrementAndGet(); });
+
+         long deadline = System.currentTimeMillis() + 5000;
+         while (async.getInFlightCount() == 0 && System.currentTimeMillis() < deadline)
+         {
+            Thread.sleep(5);
+         }
+         Thread.sleep(50);
+         assertTrue("Future cancelled", future.cancel(true));
+
+         deadline = System.currentTimeMillis() + 5000;
+         while (async.getInFlightCount() > 0 && System.currentTimeMillis() < deadline)
+         {
+            Thread.sleep(5);
+         }
+         assertEquals("Cancelled query stopped", 0, async.getInFlightCount());
+         assertEquals("Query never produced its row", 0, started.get());
+      }
+   }
+
+   @Test
+   public void testCancelTiedToRun() throws Exception
+   {
+      ResultSetProcessor ignore = rs -> { };
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT id FROM num"))
+      {
+         long first = db.nextRunToken();
+         assertEquals(20, db.executeQuery(ignore));
+         db.cancel(first);
+         assertEquals("Late cancel does not reach the next run", 20, db.executeQuery(ignore));
+
+         db.cancel(db.nextRunToken());
+         try
+         {
+            db.executeQuery(ignore);
+            fail("Run cancelled before it started");
+         }
+         catch (java.sql.SQLException ex)
+         {
+         }
+         assertEquals("Later runs are not cancelled", 20, db.executeQuery(ignore));
+      }
+   }
+}
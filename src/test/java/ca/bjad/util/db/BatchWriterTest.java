@@ -0,0 +1,101 @@
+package ca.bjad.util.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the chunked batch writer.
+ *
+ * @author
+ *  Ben Dougall
+ */
+@SuppressWarnings("javadoc")
+public class BatchWriterTest
+{
+   private static String FILE_NAME = System.getenv("TEMP") + "\\bjadUtilBatchWriterTest.sqlLite";
+   private static String connectionString = "jdbc:sqlite:" + FILE_NAME;
+
+   @Before
+   public void setupTable() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "drop table if exists load_test"))
+      {
+         db.executeNonQuery();
+         db.newCommand("create table load_test (id integer, name string)");
+         db.executeNonQuery();
+      }
+   }
+
+   @AfterClass
+   public static void eraseDB() throws Exception
+   {
+      ConnectionPool.getPool(connectionString).close();
+      new File(FILE_NAME).delete();
+   }
+
+   @Test
+   public void testFlushByRowCount() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "INSERT INTO load_test VALUES (?, ?)"))
+      {
+         BatchWriter writer = new BatchWriter(db, 10, 0);
+         writer.setCommitPerChunk(true);
+         for (int i = 0; i < 25; i++)
+         {
+            writer.add(i, "name" + i);
+         }
+         assertEquals("Two full chunks sent before close", 2, writer.getChunkResults().size());
+         writer.close();
+
+         List<BatchChunkResult> chunks = writer.getChunkResults();
+         assertEquals("Remaining rows sent on close", 3, chunks.size());
+         assertEquals("First chunk is full", 10, chunks.get(0).getRowCount());
+         assertEquals("Last chunk has the remainder", 5, chunks.get(2).getRowCount());
+         assertEquals("All rows affected", 25, writer.getTotalAffected());
+         assertTrue("Auto-commit restored", db.getConnection().getAutoCommit());
+      }
+      assertEquals("All rows loaded", 25, countRows());
+   }
+
+   @Test
+   public void testFlushByBytes() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "INSERT INTO load_test VALUES (?, ?)");
+           BatchWriter writer = new BatchWriter(db, 1000, 100))
+      {
+         for (int i = 0; i < 3; i++)
+         {
+            writer.add(i, "abcdefghijklmnopqrstuvwxyz");
+         }
+         assertEquals("Byte limit sends the chunk early", 1, writer.getChunkResults().size());
+         assertEquals("Chunk holds the rows up to the limit", 2, writer.getChunkResults().get(0).getRowCount());
+      }
+      assertEquals("All rows loaded", 3, countRows());
+   }
+
+   @Test
+   public void testAddToBatchWithoutConstructorArguments() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "INSERT INTO load_test VALUES (?, ?)"))
+      {
+         db.addToBatch(1, "one");
+         db.addToBatch(2, "two");
+         assertEquals("Only the rows added are sent", 2, db.executeNonQuery());
+      }
+      assertEquals("No empty row added ahead of the batch", 2, countRows());
+   }
+
+   private int countRows() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT COUNT(*) FROM load_test WHERE id IS NOT NULL"))
+      {
+         return db.executeQuery((ResultSetMapper<Integer>) rs -> rs.getInt(1)).get(0);
+      }
+   }
+}
@@ -0,0 +1,172 @@
+package ca.bjad.util.db;
+
+import static org.junit.Assert.*;
+
+import java.beans.ConstructorProperties;
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the generated bean result set mappers.
+ *
+ * @author
+ *  Ben Dougall
+ */
+@SuppressWarnings("javadoc")
+public class BeanMapperFactoryTest
+{
+   private static String FILE_NAME = System.getenv("TEMP") + "\\bjadUtilBeanMapperTest.sqlLite";
+   private static String connectionString = "jdbc:sqlite:" + FILE_NAME;
+
+   @BeforeClass
+   public static void setupDB() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "drop table if exists employee"))
+      {
+         db.executeNonQuery();
+         db.newCommand("create table employee (id integer, first_name text, salary decimal(10,2), manager_id integer)");
+         db.executeNonQuery();
+         db.newCommand("INSERT INTO employee VALUES (?, ?, ?, ?)", 1, "mike", new BigDecimal("100.50"), 2);
+         db.addToBatch(2, "leo", new BigDecimal("200.25"), 2);
+         db.executeNonQuery();
+         db.newCommand("INSERT INTO employee (id, first_name) VALUES (?, ?)", 3, "raph");
+         db.executeNonQuery();
+      }
+   }
+
+   @AfterClass
+   public static void eraseDB() throws Exception
+   {
+      ConnectionPool.getPool(connectionString).close();
+      new File(FILE_NAME).delete();
+   }
+
+   @Test
+   public void testSetterMapping() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT * FROM employee ORDER BY id"))
+      {
+         List<Employee> employees = db.executeQuery(BeanMapperFactory.forClass(Employee.class));
+         assertEquals("Three employees", 3, employees.size());
+         assertEquals("Snake case column mapped to camel case setter", "mike", employees.get(0).getFirstName());
+         assertEquals("Decimal column mapped", 0, new BigDecimal("200.25").compareTo(employees.get(1).getSalary()));
+         assertEquals("Primitive property set", 2, employees.get(1).getManagerId());
+         assertEquals("NULL leaves primitive property at its default", -1, employees.get(2).getManagerId());
+         assertNull("NULL sets object property to null", employees.get(2).getSalary());
+      }
+   }
+
+   @Test
+   public void testFieldMapping() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT id, first_name AS name FROM employee ORDER BY id"))
+      {
+         List<EmployeeFields> people = db.executeQuery(BeanMapperFactory.forClass(EmployeeFields.class));
+         assertEquals("Public field set on a package private class", "leo", people.get(1).name);
+         assertEquals("Id field set", 2, people.get(1).id);
+      }
+   }
+
+   @Test
+   public void testConstructorMapping() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT first_name, id FROM employee WHERE id = ?", 3))
+      {
+         List<EmployeeName> names = db.executeQuery(BeanMapperFactory.forClass(EmployeeName.class));
+         assertEquals("One row", 1, names.size());
+         assertEquals("Constructor parameter bound by name, not position", 3, names.get(0).id);
+         assertEquals("Name bound", "raph", names.get(0).firstName);
+      }
+   }
+
+   @Test
+   public void testBindingCachedPerShape() throws Exception
+   {
+      ResultSetMapper<Employee> mapper = BeanMapperFactory.forClass(Employee.class);
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT id, first_name FROM employee"))
+      {
+         db.executeQuery(mapper);
+         int cached = BeanMapperFactory.cachedBindingCount();
+
+         db.newCommand("SELECT id, first_name FROM employee WHERE id > ?", 1);
+         db.executeQuery(BeanMapperFactory.forClass(Employee.class));
+         assertEquals("Same class and columns reuse the binding", cached, BeanMapperFactory.cachedBindingCount());
+
+         db.newCommand("SELECT id FROM employee");
+         db.executeQuery(mapper);
+         assertEquals("New column layout compiles a new binding", cached + 1, BeanMapperFactory.cachedBindingCount());
+      }
+   }
+
+   public static class Employee
+   {
+      private int        id;
+      private String     firstName;
+      private BigDecimal salary;
+      private int        managerId = -1;
+
+      public int getId()
+      {
+         return id;
+      }
+
+      public void setId(int id)
+      {
+         this.id = id;
+      }
+
+      public String getFirstName()
+      {
+         return firstName;
+      }
+
+      public void setFirstName(String firstName)
+      {
+         this.firstName = firstName;
+      }
+
+      public BigDecimal getSalary()
+      {
+         return salary;
+      }
+
+      public void setSalary(BigDecimal salary)
+      {
+         this.salary = salary;
+      }
+
+      public int getManagerId()
+      {
+         return managerId;
+      }
+
+      public void setManagerId(int managerId)
+      {
+         this.managerId = managerId;
+      }
+   }
+
+   public static class EmployeeName
+   {
+      private final int    id;
+      private final String firstName;
+
+      @ConstructorProperties({ "id", "firstName" })
+      public EmployeeName(int id, String firstName)
+      {
+         this.id = id;
+         this.firstName = firstName;
+      }
+   }
+
+   static class EmployeeFields
+   {
+      public int    id   = 0;
+      public String name = "";
+   }
+}
@@ -0,0 +1,106 @@
+package ca.bjad.util.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.math.BigDecimal;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the column vector query results.
+ *
+ * @author
+ *  Ben Dougall
+ */
+@SuppressWarnings("javadoc")
+public class ColumnarResultTest
+{
+   private static String FILE_NAME = System.getenv("TEMP") + "\\bjadUtilColumnarTest.sqlLite";
+   private static String connectionString = "jdbc:sqlite:" + FILE_NAME;
+   private static final int ROWS = 10000;
+   private static final String[] REGIONS = { "north", "south", "east", "west" };
+
+   @BeforeClass
+   public static void setupDB() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "drop table if exists sale"))
+      {
+         db.executeNonQuery();
+         db.newCommand("create table sale (id bigint, qty integer, price double, amount decimal(10,2), region text)");
+         db.executeNonQuery();
+
+         db.newCommand("INSERT INTO sale VALUES (?, ?, ?, ?, ?)");
+         db.beginTransaction();
+         try (BatchWriter writer = new BatchWriter(db, 1000, 0))
+         {
+            for (int i = 0; i < ROWS; i++)
+            {
+               writer.add(5000000000L + i, i % 100, BigDecimal.valueOf(i * 0.5), new BigDecimal(i).movePointLeft(2),
+                     REGIONS[i % REGIONS.length]);
+            }
+         }
+         db.newCommand("INSERT INTO sale (id) VALUES (?)", 1L);
+         db.executeNonQuery();
+         db.commit();
+      }
+   }
+
+   @AfterClass
+   public static void eraseDB() throws Exception
+   {
+      ConnectionPool.getPool(connectionString).close();
+      new File(FILE_NAME).delete();
+   }
+
+   @Test
+   public void testColumnTypesAndValues() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT * FROM sale ORDER BY rowid"))
+      {
+         ColumnarResult result = db.executeColumnarQuery();
+         assertEquals("All rows read", ROWS + 1, result.getRowCount());
+
+         LongColumn ids = (LongColumn) result.getColumn("id");
+         IntColumn qty = (IntColumn) result.getColumn(2);
+         DoubleColumn price = (DoubleColumn) result.getColumn("price");
+         DecimalColumn amount = (DecimalColumn) result.getColumn("amount");
+         StringColumn region = (StringColumn) result.getColumn("region");
+
+         assertEquals("Big id held as long", 5000000123L, ids.getLong(123));
+         assertEquals("Int value", 23, qty.getInt(123));
+         assertEquals("Double value", 61.5, price.getDouble(123), 0.0);
+         assertEquals("Decimal scale grows to fit values", 2, amount.getScale());
+         assertEquals("Decimal held unscaled", 123, amount.getUnscaled(123));
+         assertEquals("Decimal value", new BigDecimal("1.23"), amount.getBigDecimal(123));
+         assertEquals("Strings dictionary encoded", REGIONS.length, region.getDictionary().size());
+         assertEquals("String value", "west", region.getString(123));
+
+         assertFalse("Value present", qty.isNull(ROWS - 1));
+         assertTrue("NULL int tracked", qty.isNull(ROWS));
+         assertNull("NULL boxed as null", qty.getObject(ROWS));
+         assertNull("NULL decimal", amount.getBigDecimal(ROWS));
+         assertNull("NULL string", region.getString(ROWS));
+         assertEquals("One NULL per nullable column", 1, price.getNullCount());
+      }
+   }
+
+   @Test
+   public void testMemoryLowerThanBoxedRows() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT * FROM sale"))
+      {
+         ColumnarResult result = db.executeColumnarQuery();
+
+         // Conservative estimate of a row object holding five boxed values: 
+         // object header plus references, Long, Integer, Double, a small
+         // BigDecimal, a shared String reference and the list slot.
+         long boxedBytesPerRow = (16 + 5 * 4) + 16 + 16 + 16 + 40 + 4;
+         long columnarBytesPerRow = result.getEstimatedBytes() / result.getRowCount();
+         assertTrue("Columnar rows (" + columnarBytesPerRow + " bytes) smaller than boxed rows ("
+               + boxedBytesPerRow + " bytes)", columnarBytesPerRow * 3 < boxedBytesPerRow);
+      }
+   }
+}
@@ -0,0 +1,138 @@
+package ca.bjad.util.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLTransientConnectionException;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+/**
+ * Tests for the connection pool used by the database wrapper.
+ *
+ * @author
+ *  Ben Dougall
+ */
+@SuppressWarnings("javadoc")
+public class ConnectionPoolTest
+{
+   private static String FILE_NAME = System.getenv("TEMP") + "\\bjadUtilPoolTest.sqlLite";
+   private static String connectionString = "jdbc:sqlite:" + FILE_NAME;
+
+   @After
+   public void closePool()
+   {
+      ConnectionPool.getPool(connectionString).close();
+   }
+
+   @AfterClass
+   public static void eraseDB() throws Exception
+   {
+      new File(FILE_NAME).delete();
+   }
+
+   @Test
+   public void testConnectionReused() throws Exception
+   {
+      Connection first;
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT 1"))
+      {
+         first = db.getConnection();
+      }
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT 1"))
+      {
+         assertSame("Second wrapper should reuse the pooled connection", first, db.getConnection());
+
+         ConnectionPoolStats stats = ConnectionPool.getPool(connectionString).getStats();
+         assertEquals("One connection borrowed", 1, stats.getActiveConnections());
+         assertEquals("No connections idle", 0, stats.getIdleConnections());
+      }
+
+      ConnectionPoolStats stats = ConnectionPool.getPool(connectionString).getStats();
+      assertEquals("Only one physical connection opened", 1, stats.getCreatedCount());
+      assertEquals("Two borrows recorded", 2, stats.getBorrowCount());
+      assertEquals("Connection returned to the pool", 1, stats.getIdleConnections());
+   }
+
+   @Test
+   public void testMaxWaitTimeout() throws Exception
+   {
+      ConnectionPool pool = ConnectionPool.getPool(connectionString);
+      pool.setMaxSize(1);
+      pool.setMaxWaitMillis(50);
+
+      DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT 1");
+      try
+      {
+         new DatabaseWrapper(connectionString, "SELECT 1").close();
+         fail("Pool of one should not hand out a second connection");
+      }
+      catch (SQLTransientConnectionException ex)
+      {
+      }
+      finally
+      {
+         db.close();
+      }
+      assertEquals("Timeout recorded", 1, pool.getStats().getTimeoutCount());
+
+      try (DatabaseWrapper again = new DatabaseWrapper(connectionString, "SELECT 1"))
+      {
+         assertNotNull("Connection available again once returned", again.getConnection());
+      }
+   }
+
+   @Test
+   public void testIdleEviction() throws Exception
+   {
+      ConnectionPool pool = ConnectionPool.getPool(connectionString);
+      pool.setIdleTimeoutMillis(1);
+
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT 1"))
+      {
+         assertEquals("Query runs on the pooled connection", 1, db.executeQuery(rs -> { }));
+      }
+      Thread.sleep(10);
+
+      assertEquals("Idle connection evicted", 1, pool.evictIdleConnections());
+      assertEquals("Nothing left idle", 0, pool.getStats().getIdleConnections());
+   }
+
+   @Test
+   public void testValidationOnBorrow() throws Exception
+   {
+      Connection first;
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT 1"))
+      {
+         first = db.getConnection();
+      }
+      first.close();
+
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT 1"))
+      {
+         assertNotSame("Closed connection should not be handed out", first, db.getConnection());
+      }
+      assertEquals("Validation failure recorded", 1,
+            ConnectionPool.getPool(connectionString).getStats().getValidationFailureCount());
+   }
+
+   @Test
+   public void testFailedConstructorReturnsConnection() throws Exception
+   {
+      try
+      {
+         new DatabaseWrapper(connectionString, "SELECT * FROM no_such_table").close();
+         fail("Bad SQL should throw");
+      }
+      catch (Exception ex)
+      {
+      }
+
+      ConnectionPoolStats stats = ConnectionPool.getPool(connectionString).getStats();
+      assertEquals("Connection handed back after failure", 0, stats.getActiveConnections());
+      assertEquals("Connection still usable", 1, stats.getIdleConnections());
+   }
+}
@@ -0,0 +1,183 @@
+package ca.bjad.util.db;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ca.bjad.util.DelimitedStringParser;
+
+/**
+ * Tests for the streaming CSV exporter.
+ *
+ * @author
+ *  Ben Dougall
+ */
+@SuppressWarnings("javadoc")
+public class CsvExporterTest
+{
+   private static String FILE_NAME = System.getenv("TEMP") + "\\bjadUtilCsvExportTest.sqlLite";
+   private static String connectionString = "jdbc:sqlite:" + FILE_NAME;
+
+   private static final String[] NAMES = { "plain", "has,comma", "has \"quotes\"", "\"", "", "trailing," };
+
+   @BeforeClass
+   public static void createDB() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString,
+            "CREATE TABLE IF NOT EXISTS export (id INTEGER, name TEXT, amount REAL)"))
+      {
+         db.executeNonQuery();
+         db.newCommand("DELETE FROM export");
+         db.executeNonQuery();
+         db.newCommand("INSERT INTO export VALUES (?, ?, ?)");
+         for (int i = 0; i < NAMES.length; i++)
+         {
+            db.addToBatch(i + 1, NAMES[i], i * 1.5);
+         }
+         db.addToBatch(NAMES.length + 1, null, null);
+         db.executeNonQuery();
+      }
+   }
+
+   @AfterClass
+   public static void eraseDB() throws Exception
+   {
+      ConnectionPool.getPool(connectionString).close();
+      new File(FILE_NAME).delete();
+   }
+
+   @Test
+   public void testRoundTripThroughParser() throws Exception
+   {
+      Path file = Files.createTempFile("bjadExport", ".csv");
+      try
+      {
+         List<Long> progress = new ArrayList<>();
+         try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT id, name, amount FROM export ORDER BY id"))
+         {
+            CsvExporter exporter = new CsvExporter(file, false);
+            exporter.setProgressListener(3, progress::add);
+            assertEquals(NAMES.length + 1, exporter.exportFrom(db));
+         }
+         assertEquals("[3, 6, 7]", progress.toString());
+
+         List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+         assertEquals(NAMES.length + 2, lines.size());
+         assertEquals("id,name,amount", lines.get(0));
+         assertEquals("3,\"has \"\"quotes\"\"\",3.0", lines.get(3));
+         for (int i = 0; i < NAMES.length; i++)
+         {
+            DelimitedStringParser parser = new DelimitedStringParser(lines.get(i + 1), ',');
+            assertEquals(3, parser.getNumberOfSections());
+            assertEquals(String.valueOf(i + 1), parser.section(0));
+            assertEquals(NAMES[i], parser.section(1));
+            assertEquals(String.valueOf(i * 1.5), parser.section(2));
+         }
+         assertEquals("7,,", lines.get(NAMES.length + 1));
+      }
+      finally
+      {
+         Files.delete(file);
+      }
+   }
+
+   @Test
+   public void testGzipWithFormatters() throws Exception
+   {
+      Path file = Files.createTempFile("bjadExport", ".csv.gz");
+      try
+      {
+         try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT id, amount FROM export WHERE id <= 3 ORDER BY id"))
+         {
+            CsvExporter exporter = new CsvExporter(file, true);
+            exporter.setWriteHeader(false);
+            exporter.setDelimiter(';');
+            exporter.setLineSeparator("\n");
+            exporter.setColumnFormatter("AMOUNT", (rs, c) -> String.format("%.2f", rs.getDouble(c)));
+            exporter.setColumnFormatter(1, (rs, c) -> "#" + rs.getInt(c));
+            exporter.exportFrom(db);
+         }
+
+         List<String> lines = new ArrayList<>();
+         try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+               new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8)))
+         {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+               lines.add(line);
+            }
+         }
+         assertEquals(3, lines.size());
+         assertEquals("#1;0.00", lines.get(0));
+         assertEquals("#3;3.00", lines.get(2));
+      }
+      finally
+      {
+         Files.delete(file);
+      }
+   }
+
+   @Test
+   public void testMixedNumericColumn() throws Exception
+   {
+      StringWriter out = new StringWriter();
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "CREATE TABLE IF NOT EXISTS mixed (id INTEGER, n NUMERIC)"))
+      {
+         db.executeNonQuery();
+         db.newCommand("DELETE FROM mixed");
+         db.executeNonQuery();
+         db.newCommand("INSERT INTO mixed VALUES (?, ?)");
+         db.addToBatch(1, 10);
+         db.addToBatch(2, new java.math.BigDecimal("10.5"));
+         db.addToBatch(3, null);
+         db.addToBatch(4, -3);
+         db.executeNonQuery();
+
+         db.newCommand("SELECT n FROM mixed ORDER BY id");
+         CsvExporter exporter = new CsvExporter(out);
+         exporter.setLineSeparator("\n");
+         exporter.exportFrom(db);
+      }
+      assertEquals("Whole and fractional values in one column", "n\n10\n10.5\n\n-3\n", out.toString());
+   }
+
+   @Test
+   public void testEmptyResultKeepsHeader() throws Exception
+   {
+      StringWriter out = new StringWriter();
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT id, name FROM export WHERE id < ?", 0))
+      {
+         CsvExporter exporter = new CsvExporter(out);
+         assertEquals(0, exporter.exportFrom(db));
+      }
+      assertEquals("Column layout with no rows", "id,name\r\n", out.toString());
+   }
+
+   @Test
+   public void testLineBreaksQuoted() throws Exception
+   {
+      StringWriter out = new StringWriter();
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT 'a' || char(13) || char(10) || 'b' AS v, NULL AS n"))
+      {
+         CsvExporter exporter = new CsvExporter(out);
+         exporter.setNullText("NULL");
+         db.executeQuery(exporter);
+         exporter.close();
+      }
+      assertEquals("v,n\r\n\"a\r\nb\",NULL\r\n", out.toString());
+   }
+}
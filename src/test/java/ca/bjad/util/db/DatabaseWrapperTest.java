@@ -8,6 +8,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Date;
 import java.util.List;
+import java.util.stream.Stream;
 
 import org.junit.BeforeClass;
 import org.junit.AfterClass;
@@ -135,6 +136,52 @@ public class DatabaseWrapperTest
       }
    }
    
+   @Test
+   public void testStreamQuery() throws Exception
+   {
+      final int[] rowsMapped = new int[1];
+      try (DatabaseWrapper db = new DatabaseWrapper("SELECT * FROM person ORDER BY id"))
+      {
+         db.setFetchSize(1);
+         try (Stream<Person> people = db.streamQuery(new ResultSetMapper<Person>()
+            {
+               @Override
+               public Person processRow(ResultSet rs) throws SQLException
+               {
+                  rowsMapped[0]++;
+                  Person temp = new Person();
+                  temp.id = rs.getInt("id");
+                  temp.name = rs.getString("name");
+                  return temp;
+               }
+            }))
+         {
+            Person first = people.findFirst().get();
+            assertEquals("First person is mike", "mike", first.name);
+            assertEquals("Only the first row should be mapped", 1, rowsMapped[0]);
+         }
+         
+         db.newCommand("SELECT id FROM person WHERE id IN (1, 2) ORDER BY id");
+         QueryResultIterator<Integer> ids = db.iterateQuery(rs -> rs.getInt(1));
+         assertEquals("First id", Integer.valueOf(1), ids.next());
+         assertEquals("Second id", Integer.valueOf(2), ids.next());
+         assertFalse("Iterator exhausted", ids.hasNext());
+         ids.close();
+      }
+   }
+   
+   @Test(expected=UncheckedSQLException.class)
+   public void testBadQueryWithStream() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper("SELECT * FROM person"))
+      {
+         try (Stream<String> names = db.streamQuery(rs -> rs.getString("bad_column")))
+         {
+            names.count();
+         }
+      }
+   }
+   
    @Test(expected=SQLException.class)
    public void testBadQueryWithMapper() throws Exception
    {
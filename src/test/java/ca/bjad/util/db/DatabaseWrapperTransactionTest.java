@@ -0,0 +1,175 @@
+package ca.bjad.util.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the transaction support of the database wrapper.
+ *
+ * @author
+ *  Ben Dougall
+ */
+@SuppressWarnings("javadoc")
+public class DatabaseWrapperTransactionTest
+{
+   private static String FILE_NAME = System.getenv("TEMP") + "\\bjadUtilTransactionTest.sqlLite";
+   private static String connectionString = "jdbc:sqlite:" + FILE_NAME;
+   private static String INSERT = "INSERT INTO account VALUES (?, ?)";
+
+   @Before
+   public void setupTable() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "drop table if exists account"))
+      {
+         db.executeNonQuery();
+         db.newCommand("create table account (id integer, amount integer)");
+         db.executeNonQuery();
+      }
+   }
+
+   @AfterClass
+   public static void eraseDB() throws Exception
+   {
+      ConnectionPool.getPool(connectionString).close();
+      new File(FILE_NAME).delete();
+   }
+
+   @Test
+   public void testCommitSharedAcrossCommands() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, INSERT, 1, 100))
+      {
+         db.beginTransaction();
+         db.executeNonQuery();
+         db.newCommand(INSERT, 2, 200);
+         db.executeNonQuery();
+         assertEquals("Uncommitted rows not visible elsewhere", 0, countRows());
+         db.commit();
+         assertFalse("Transaction finished", db.isInTransaction());
+      }
+      assertEquals("Both rows committed", 2, countRows());
+   }
+
+   @Test
+   public void testRollbackAndSavepoint() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, INSERT, 1, 100))
+      {
+         db.beginTransaction();
+         db.executeNonQuery();
+         Savepoint savepoint = db.setSavepoint("second_row");
+         db.newCommand(INSERT, 2, 200);
+         db.executeNonQuery();
+         db.rollbackToSavepoint(savepoint);
+         db.commit();
+      }
+      assertEquals("Work after the savepoint undone", 1, countRows());
+
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, INSERT, 3, 300))
+      {
+         db.beginTransaction();
+         db.executeNonQuery();
+         db.rollback();
+      }
+      assertEquals("Rolled back row not saved", 1, countRows());
+
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, INSERT, 4, 400))
+      {
+         db.beginTransaction();
+         db.executeNonQuery();
+      }
+      assertEquals("Closing with an open transaction rolls it back", 1, countRows());
+   }
+
+   @Test
+   public void testInTransaction() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, INSERT))
+      {
+         int rows = db.inTransaction(tx ->
+            {
+               tx.newCommand(INSERT, 1, 100);
+               int count = tx.executeNonQuery();
+               try
+               {
+                  tx.inTransaction(inner ->
+                     {
+                        inner.newCommand(INSERT, 2, 200);
+                        inner.executeNonQuery();
+                        throw new SQLException("Inner work fails");
+                     });
+                  fail("Inner exception should be thrown");
+               }
+               catch (SQLException ex)
+               {
+               }
+               tx.newCommand(INSERT, 3, 300);
+               return count + tx.executeNonQuery();
+            });
+         assertEquals("Outer work returns its result", 2, rows);
+
+         try
+         {
+            db.inTransaction(tx ->
+               {
+                  tx.newCommand(INSERT, 5, 500);
+                  tx.executeNonQuery();
+                  throw new IllegalStateException("Outer work fails");
+               });
+            fail("Exception should be thrown");
+         }
+         catch (IllegalStateException ex)
+         {
+         }
+      }
+      assertEquals("Only the successful work is kept", 2, countRows());
+   }
+
+   /**
+    * The same inserts committed one at a time and in a single transaction
+    * both land every row.
+    */
+   @Test
+   public void testAutoCommitAndTransactionInserts() throws Exception
+   {
+      final int rowCount = 500;
+
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, INSERT))
+      {
+         for (int i = 0; i < rowCount; i++)
+         {
+            db.newCommand(INSERT, i, i);
+            db.executeNonQuery();
+         }
+      }
+
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, INSERT))
+      {
+         db.inTransaction(tx ->
+            {
+               for (int i = 0; i < rowCount; i++)
+               {
+                  tx.newCommand(INSERT, i, i);
+                  tx.executeNonQuery();
+               }
+               return null;
+            });
+      }
+      assertEquals("All rows inserted", rowCount * 2, countRows());
+   }
+
+   private int countRows() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT COUNT(*) FROM account"))
+      {
+         return db.executeQuery((ResultSetMapper<Integer>) rs -> rs.getInt(1)).get(0);
+      }
+   }
+}
@@ -0,0 +1,107 @@
+package ca.bjad.util.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for reading generated keys of inserted rows.
+ *
+ * @author
+ *  Ben Dougall
+ */
+@SuppressWarnings("javadoc")
+public class GeneratedKeysTest
+{
+   private static String FILE_NAME = System.getenv("TEMP") + "\\bjadUtilKeysTest.sqlLite";
+   private static String connectionString = "jdbc:sqlite:" + FILE_NAME;
+
+   @Before
+   public void createTable() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "DROP TABLE IF EXISTS keyed"))
+      {
+         db.executeNonQuery();
+         db.newCommand("CREATE TABLE keyed (id INTEGER PRIMARY KEY AUTOINCREMENT, name VARCHAR(20))");
+         db.executeNonQuery();
+      }
+   }
+
+   @AfterClass
+   public static void eraseDB() throws Exception
+   {
+      ConnectionPool.getPool(connectionString).close();
+      new File(FILE_NAME).delete();
+   }
+
+   @Test
+   public void testSingleInsert() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "INSERT INTO keyed (name) VALUES (?)", "first"))
+      {
+         long misses = db.getStatementCache().getMissCount();
+         long hits = db.getStatementCache().getHitCount();
+         db.setReturnGeneratedKeys(true);
+         assertArrayEquals("Arguments kept when re-prepared", new long[] { 1 }, db.executeInsert());
+
+         db.newCommand("INSERT INTO keyed (name) VALUES (?)", "second");
+         db.setReturnGeneratedKeys(true);
+         assertArrayEquals(new long[] { 2 }, db.executeInsert());
+         assertEquals("Keyed statement cached apart from the plain one", misses + 1, db.getStatementCache().getMissCount());
+         assertEquals(hits + 2, db.getStatementCache().getHitCount());
+      }
+   }
+
+   @Test
+   public void testBatchInsert() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "INSERT INTO keyed (name) VALUES (?)", "a"))
+      {
+         db.setReturnGeneratedKeys(true);
+         db.addToBatch("b");
+         db.addToBatch("c");
+         assertArrayEquals("Every row's key, in order", new long[] { 1, 2, 3 }, db.executeInsert());
+
+         db.addToBatch("d");
+         db.addToBatch("e");
+         List<String> keys = db.executeInsert(rs -> "key" + rs.getLong(1));
+         assertEquals("[key4, key5]", keys.toString());
+
+         db.newCommand("SELECT name FROM keyed WHERE id = ?", 5);
+         assertEquals("e", db.executeQuery((ResultSetMapper<String>) rs -> rs.getString(1)).get(0));
+      }
+   }
+
+   @Test
+   public void testKeysNotRequested() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "INSERT INTO keyed (name) VALUES (?)", "x"))
+      {
+         db.executeInsert();
+         fail("Keys must be requested first");
+      }
+      catch (IllegalStateException ex)
+      {
+      }
+   }
+
+   @Test
+   public void testReturningNotSupportedBySQLite() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "INSERT INTO keyed (name) VALUES (?)", "x"))
+      {
+         db.setReturningColumns("id");
+         db.executeInsert();
+         fail("This SQLite version has no RETURNING clause");
+      }
+      catch (SQLException ex)
+      {
+      }
+   }
+}
@@ -0,0 +1,214 @@
+package ca.bjad.util.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for keyset pagination.
+ *
+ * @author
+ *  Ben Dougall
+ */
+@SuppressWarnings("javadoc")
+public class KeysetPagerTest
+{
+   private static String FILE_NAME = System.getenv("TEMP") + "\\bjadUtilKeysetTest.sqlLite";
+   private static String connectionString = "jdbc:sqlite:" + FILE_NAME;
+
+   private static final ResultSetMapper<Integer> ID_MAPPER = rs -> rs.getInt("id");
+
+   @BeforeClass
+   public static void createDB() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString,
+            "CREATE TABLE IF NOT EXISTS item (id INTEGER PRIMARY KEY, grp INTEGER, active INTEGER)"))
+      {
+         db.executeNonQuery();
+         db.newCommand("DELETE FROM item");
+         db.executeNonQuery();
+         db.newCommand("INSERT INTO item VALUES (?, ?, ?)");
+         for (int i = 1; i <= 250; i++)
+         {
+            db.addToBatch(i, i % 7, i % 2);
+         }
+         db.executeNonQuery();
+      }
+   }
+
+   @AfterClass
+   public static void eraseDB() throws Exception
+   {
+      ConnectionPool.getPool(connectionString).close();
+      new File(FILE_NAME).delete();
+   }
+
+   @Test
+   public void testPagesInKeyOrder() throws Exception
+   {
+      try (KeysetPager<Integer> pager = new KeysetPager<>(connectionString, "SELECT id FROM item", ID_MAPPER, 100, "id"))
+      {
+         KeysetPage<Integer> page = pager.firstPage();
+         assertEquals(100, page.getItems().size());
+         assertEquals(1, (int) page.getItems().get(0));
+         assertTrue(page.hasNext());
+
+         page = pager.fetch(page.getNextToken());
+         assertEquals(101, (int) page.getItems().get(0));
+         assertEquals(200, (int) page.getItems().get(99));
+
+         page = pager.fetch(page.getNextToken());
+         assertEquals(50, page.getItems().size());
+         assertEquals(250, (int) page.getItems().get(49));
+         assertFalse(page.hasNext());
+      }
+   }
+
+   @Test
+   public void testExactMultipleHasNoEmptyLastPage() throws Exception
+   {
+      try (KeysetPager<Integer> pager = new KeysetPager<>(connectionString, "SELECT id FROM item", ID_MAPPER, 125, "id"))
+      {
+         KeysetPage<Integer> page = pager.firstPage();
+         page = pager.fetch(page.getNextToken());
+         assertEquals(125, page.getItems().size());
+         assertNull(page.getNextToken());
+      }
+   }
+
+   @Test
+   public void testCompositeKeyWithArgumentsAndDescending() throws Exception
+   {
+      List<Integer> expected = new ArrayList<>();
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString,
+            "SELECT id FROM item WHERE active = ? ORDER BY grp DESC, id DESC", 1))
+      {
+         expected.addAll(db.executeQuery(ID_MAPPER));
+      }
+
+      try (KeysetPager<Integer> pager = new KeysetPager<>(connectionString, "SELECT id, grp FROM item WHERE active = ?",
+            ID_MAPPER, 7, "grp", "id").withArguments(1).withDescendingOrder(true))
+      {
+         List<Integer> read = new ArrayList<>();
+         assertEquals(125, pager.forEach(read::add));
+         assertEquals(expected, read);
+      }
+   }
+
+   @Test
+   public void testPrefetch() throws Exception
+   {
+      try (KeysetPager<Integer> pager = new KeysetPager<>(connectionString, "SELECT id FROM item", ID_MAPPER, 30, "id")
+            .withPrefetch(true))
+      {
+         List<Integer> read = new ArrayList<>();
+         assertEquals(250, pager.forEach(read::add));
+         for (int i = 0; i < 250; i++)
+         {
+            assertEquals(i + 1, (int) read.get(i));
+         }
+
+         // A token handed out earlier still reads the right page.
+         KeysetPage<Integer> first = pager.firstPage();
+         KeysetPage<Integer> second = pager.fetch(first.getNextToken());
+         assertEquals(31, (int) second.getItems().get(0));
+         assertEquals(31, (int) pager.fetch(first.getNextToken()).getItems().get(0));
+      }
+   }
+
+   @Test
+   public void testSeekPredicate()
+   {
+      KeysetPager<Integer> pager = new KeysetPager<>(connectionString, "SELECT * FROM item", ID_MAPPER, 10, "grp", "id");
+      String sql = pager.pageSql(true);
+      assertTrue(sql, sql.contains("bjad_page.grp >= ? AND ((bjad_page.grp > ?) OR (bjad_page.grp = ? AND bjad_page.id > ?))"));
+      assertTrue(sql, sql.endsWith("ORDER BY bjad_page.grp, bjad_page.id LIMIT ?"));
+      assertFalse(sql, sql.contains("OFFSET"));
+      assertArrayEquals(new Object[] { 3, 3, 3, 40, 11 }, pager.pageArguments(new Object[] { 3, 40 }));
+   }
+
+   @Test
+   public void testTokenRoundTrip()
+   {
+      KeysetPager<Integer> pager = new KeysetPager<>(connectionString, "SELECT * FROM item", ID_MAPPER, 10,
+            "a", "b", "c", "d", "e", "f");
+      Object[] keys = { 5, 7000000000L, 1.5, "name", new BigDecimal("-12.345"), new Timestamp(1234567890123L) };
+      assertArrayEquals(keys, pager.decodeToken(pager.encodeToken(keys)));
+
+      StringBuilder longText = new StringBuilder();
+      while (longText.length() < 70000)
+      {
+         longText.append("k\u00e9y ");
+      }
+      Object[] longKey = { 1, 2L, 3.0, longText.toString(), BigDecimal.ONE, new Timestamp(0) };
+      assertArrayEquals("Text keys over 64KB", longKey, pager.decodeToken(pager.encodeToken(longKey)));
+   }
+
+   @Test
+   public void testUnsupportedKeyTypeRejected() throws Exception
+   {
+      KeysetPager<Integer> pager = new KeysetPager<>(connectionString, "SELECT id FROM item", ID_MAPPER, 10, "id");
+      try
+      {
+         pager.encodeToken(new Object[] { java.util.UUID.randomUUID() });
+         fail("UUID keys cannot be held in a token");
+      }
+      catch (IllegalArgumentException ex)
+      {
+      }
+
+      try (KeysetPager<Integer> blobs = new KeysetPager<>(connectionString, 
+            "SELECT id, CAST(id AS BLOB) AS raw FROM item", ID_MAPPER, 10, "raw"))
+      {
+         blobs.firstPage();
+         fail("Byte array keys are rejected when read");
+      }
+      catch (java.sql.SQLException ex)
+      {
+         assertTrue(ex.getMessage(), ex.getMessage().contains("raw"));
+      }
+   }
+
+   @Test
+   public void testForeignTokenRejected() throws Exception
+   {
+      KeysetPager<Integer> pager = new KeysetPager<>(connectionString, "SELECT id FROM item", ID_MAPPER, 10, "id");
+      KeysetPager<Integer> other = new KeysetPager<>(connectionString, "SELECT id FROM item WHERE grp = 1", ID_MAPPER, 10, "id");
+      String token = pager.encodeToken(new Object[] { 10 });
+      try
+      {
+         other.fetch(token);
+         fail("Token from another query should be rejected");
+      }
+      catch (IllegalArgumentException ex)
+      {
+      }
+      KeysetPager<Integer> grouped = new KeysetPager<>(connectionString, "SELECT id FROM item WHERE grp = ?", ID_MAPPER, 10, "id");
+      token = grouped.withArguments(1).encodeToken(new Object[] { 10 });
+      assertArrayEquals(new Object[] { 10 }, grouped.decodeToken(token));
+      try
+      {
+         grouped.withArguments(2).fetch(token);
+         fail("Token from the query with other parameters should be rejected");
+      }
+      catch (IllegalArgumentException ex)
+      {
+      }
+      try
+      {
+         pager.fetch("not a token!");
+         fail("Malformed token should be rejected");
+      }
+      catch (IllegalArgumentException ex)
+      {
+      }
+   }
+}
@@ -0,0 +1,148 @@
+package ca.bjad.util.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for rewriting batched inserts into multi-row inserts.
+ *
+ * @author
+ *  Ben Dougall
+ */
+@SuppressWarnings("javadoc")
+public class MultiRowInsertTest
+{
+   private static String FILE_NAME = System.getenv("TEMP") + "\\bjadUtilMultiRowTest.sqlLite";
+   private static String connectionString = "jdbc:sqlite:" + FILE_NAME;
+
+   private static final int ROWS = 20000;
+
+   @Before
+   public void createTable() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "DROP TABLE IF EXISTS bulk"))
+      {
+         db.executeNonQuery();
+         db.newCommand("CREATE TABLE bulk (id INTEGER, name VARCHAR(20), amount DECIMAL(10,2))");
+         db.executeNonQuery();
+      }
+   }
+
+   @AfterClass
+   public static void eraseDB() throws Exception
+   {
+      ConnectionPool.getPool(connectionString).close();
+      new File(FILE_NAME).delete();
+   }
+
+   @Test
+   public void testParse()
+   {
+      MultiRowInsert insert = MultiRowInsert.parse("insert into bulk (id, name)\n values ( ?, ? );");
+      assertNotNull(insert);
+      assertEquals(2, insert.getParameterCount());
+      assertEquals("insert into bulk (id, name)\n values (?,?),(?,?),(?,?)", insert.sqlFor(3));
+
+      assertNotNull(MultiRowInsert.parse("INSERT OR REPLACE INTO bulk VALUES (?, ?, ?)"));
+      assertNull("Literals are not rewritten", MultiRowInsert.parse("INSERT INTO bulk VALUES (?, 'x', ?)"));
+      assertNull(MultiRowInsert.parse("INSERT INTO bulk SELECT * FROM other"));
+      assertNull(MultiRowInsert.parse("UPDATE bulk SET id = ?"));
+
+      assertEquals("Full chunks of 499 rows", 499, insert.nextChunkSize(1000, 999));
+      assertEquals("Remainder in powers of two", 64, insert.nextChunkSize(100, 999));
+   }
+
+   @Test
+   public void testRewrittenBatch() throws Exception
+   {
+      load();
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT COUNT(*), SUM(id), COUNT(DISTINCT name) FROM bulk"))
+      {
+         db.executeQuery(rs -> 
+            {
+               assertEquals(ROWS, rs.getInt(1));
+               assertEquals((long) ROWS * (ROWS - 1) / 2, rs.getLong(2));
+               assertEquals(ROWS, rs.getInt(3));
+            });
+         db.newCommand("SELECT amount FROM bulk WHERE id = ?", 7);
+         assertNull("Nulls survive the rewrite", 
+               db.executeQuery((ResultSetMapper<Object>) rs -> rs.getObject(1)).get(0));
+      }
+   }
+
+   @Test
+   public void testConstructorArgumentsAndSmallLimit() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "INSERT INTO bulk (id, name) VALUES (?, ?)", 0, "zero"))
+      {
+         db.setRewriteBatchedInserts(true);
+         db.setMaxBoundParameters(4);
+         for (int i = 1; i <= 6; i++)
+         {
+            db.addToBatch(i, "n" + i);
+         }
+         assertEquals(7, db.executeNonQuery());
+
+         int expectedHits = (int) db.getStatementCache().getHitCount();
+         db.addToBatch(7, "n7");
+         db.addToBatch(8, "n8");
+         assertEquals(2, db.executeNonQuery());
+         assertTrue("Chunk statement reused", db.getStatementCache().getHitCount() > expectedHits);
+
+         try
+         {
+            db.getRowBinder().setInt(1, 9);
+            fail("Row binder cannot be used with the rewrite");
+         }
+         catch (IllegalStateException ex)
+         {
+         }
+      }
+   }
+
+   @Test
+   public void testBadRowRejectedBeforeInserting() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "INSERT INTO bulk (id, name) VALUES (?, ?)"))
+      {
+         db.setRewriteBatchedInserts(true);
+         db.setMaxBoundParameters(4);
+         for (int i = 1; i <= 6; i++)
+         {
+            db.addToBatch(i, "n" + i);
+         }
+         db.addToBatch(7);
+         try
+         {
+            db.executeNonQuery();
+            fail("Short row should be rejected");
+         }
+         catch (java.sql.SQLException ex)
+         {
+         }
+
+         db.newCommand("SELECT COUNT(*) FROM bulk");
+         assertEquals("No chunk ran", 0, (int) db.executeQuery((ResultSetMapper<Integer>) rs -> rs.getInt(1)).get(0));
+      }
+   }
+
+   private void load() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "INSERT INTO bulk (id, name, amount) VALUES (?, ?, ?)"))
+      {
+         db.setRewriteBatchedInserts(true);
+         db.beginTransaction();
+         for (int i = 0; i < ROWS; i++)
+         {
+            db.addToBatch(i, "name" + i, i % 7 == 0 ? null : new java.math.BigDecimal(i).movePointLeft(2));
+         }
+         assertEquals(ROWS, db.executeNonQuery());
+         db.commit();
+      }
+   }
+}
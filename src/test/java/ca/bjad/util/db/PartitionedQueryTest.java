@@ -0,0 +1,169 @@
+package ca.bjad.util.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for partitioned query execution.
+ *
+ * @author
+ *  Ben Dougall
+ */
+@SuppressWarnings("javadoc")
+public class PartitionedQueryTest
+{
+   private static String FILE_NAME = System.getenv("TEMP") + "\\bjadUtilPartitionTest.sqlLite";
+   private static String connectionString = "jdbc:sqlite:" + FILE_NAME;
+
+   private static final int ROWS = 1000;
+
+   @BeforeClass
+   public static void createDB() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "CREATE TABLE IF NOT EXISTS item (id INTEGER, grp INTEGER)"))
+      {
+         db.executeNonQuery();
+         db.newCommand("DELETE FROM item");
+         db.executeNonQuery();
+         db.newCommand("INSERT INTO item VALUES (?, ?)");
+         db.beginTransaction();
+         for (int i = 0; i < ROWS; i++)
+         {
+            db.addToBatch(i, i % 3);
+         }
+         db.executeNonQuery();
+         db.commit();
+      }
+   }
+
+   @AfterClass
+   public static void eraseDB() throws Exception
+   {
+      ConnectionPool.getPool(connectionString).close();
+      new File(FILE_NAME).delete();
+   }
+
+   @Test
+   public void testRangeSharedProcessor() throws Exception
+   {
+      PartitionedQuery query = PartitionedQuery.byRange(connectionString, "SELECT id, grp FROM item", "id", 0, ROWS, 7);
+      AtomicLong sum = new AtomicLong();
+      int rows = query.execute(rs -> { sum.addAndGet(rs.getLong("id")); });
+
+      assertEquals("Every row read once", ROWS, rows);
+      assertEquals("Sum of ids", (long) ROWS * (ROWS - 1) / 2, sum.get());
+   }
+
+   @Test
+   public void testModuloPerPartition() throws Exception
+   {
+      PartitionedQuery query = PartitionedQuery.byModulo(connectionString, "SELECT id FROM item WHERE grp = ?", "id", 4, 0);
+      ConcurrentHashMap<Integer, List<Integer>> byPartition = new ConcurrentHashMap<>();
+      int rows = query.executePerPartition(p -> 
+         {
+            List<Integer> ids = new ArrayList<>();
+            byPartition.put(p, ids);
+            return rs -> { ids.add(rs.getInt("id")); };
+         });
+
+      assertEquals("Rows in group 0", 334, rows);
+      for (int p = 0; p < 4; p++)
+      {
+         for (int id : byPartition.get(p))
+         {
+            assertEquals("Id " + id + " in bucket " + p, p, id % 4);
+         }
+      }
+   }
+
+   @Test
+   public void testOrderedMerge() throws Exception
+   {
+      PartitionedQuery query = PartitionedQuery.byModulo(connectionString, "SELECT id FROM item", "id", 5);
+      query.setMergeBufferSize(8);
+      List<Integer> ids = new ArrayList<>();
+      int rows = query.executeOrdered(rs -> rs.getInt("id"), ids::add);
+
+      assertEquals("Every row merged", ROWS, rows);
+      for (int i = 0; i < ROWS; i++)
+      {
+         assertEquals("Row " + i + " in key order", i, ids.get(i).intValue());
+      }
+   }
+
+   @Test(timeout = 10000)
+   public void testOrderedMergeNeedsThreadPerPartition() throws Exception
+   {
+      ExecutorService single = Executors.newSingleThreadExecutor();
+      try
+      {
+         PartitionedQuery query = PartitionedQuery.byModulo(connectionString, "SELECT id FROM item", "id", 3);
+         query.setMergeBufferSize(8);
+         query.setExecutor(single);
+         query.setStartTimeout(200, TimeUnit.MILLISECONDS);
+         try
+         {
+            query.executeOrdered(rs -> rs.getInt("id"), id -> { });
+            fail("One thread cannot run three partitions at once");
+         }
+         catch (SQLException ex)
+         {
+         }
+         
+         // Rows that fit in the buffers let each partition finish in turn.
+         query.setMergeBufferSize(ROWS);
+         List<Integer> ids = new ArrayList<>();
+         assertEquals(ROWS, query.executeOrdered(rs -> rs.getInt("id"), ids::add));
+         assertEquals(ROWS - 1, ids.get(ROWS - 1).intValue());
+      }
+      finally
+      {
+         single.shutdownNow();
+      }
+   }
+
+   @Test
+   public void testPartitionFailure() throws Exception
+   {
+      PartitionedQuery query = PartitionedQuery.byRange(connectionString, "SELECT id FROM no_such_table", "id", 0, 10, 3);
+      try
+      {
+         query.execute(rs -> { });
+         fail("Bad query should fail");
+      }
+      catch (SQLException ex)
+      {
+      }
+
+      try
+      {
+         query.executeOrdered(rs -> rs.getInt("id"), id -> { });
+         fail("Bad query should fail in ordered mode");
+      }
+      catch (SQLException ex)
+      {
+      }
+   }
+
+   @Test
+   public void testRangeBounds() throws Exception
+   {
+      PartitionedQuery query = PartitionedQuery.byRange(connectionString, "SELECT id FROM item", "id", 0, 10, 3);
+      assertArrayEquals(new Object[] { 0L, 4L }, query.partitionArguments(0));
+      assertArrayEquals(new Object[] { 4L, 7L }, query.partitionArguments(1));
+      assertArrayEquals(new Object[] { 7L, 10L }, query.partitionArguments(2));
+   }
+}
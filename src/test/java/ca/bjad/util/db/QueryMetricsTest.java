@@ -0,0 +1,118 @@
+package ca.bjad.util.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+/**
+ * Tests for the query metrics listener, fingerprints and histograms.
+ *
+ * @author
+ *  Ben Dougall
+ */
+@SuppressWarnings("javadoc")
+public class QueryMetricsTest
+{
+   private static String FILE_NAME = System.getenv("TEMP") + "\\bjadUtilMetricsTest.sqlLite";
+   private static String connectionString = "jdbc:sqlite:" + FILE_NAME;
+
+   @After
+   public void removeListener()
+   {
+      DatabaseWrapper.setMetricsListener(null);
+   }
+
+   @AfterClass
+   public static void eraseDB() throws Exception
+   {
+      ConnectionPool.getPool(connectionString).close();
+      new File(FILE_NAME).delete();
+   }
+
+   @Test
+   public void testFingerprint()
+   {
+      assertEquals("select * from t where id in (?+) and name = ?", 
+            SqlFingerprint.of("SELECT *  FROM t\n WHERE id IN (1, 2, 3) AND name = 'it''s'"));
+      assertEquals("Parameters and literals share a fingerprint", 
+            SqlFingerprint.of("select a1 from t2 where x = ?"), SqlFingerprint.of("SELECT a1 FROM t2 WHERE x = 42"));
+      assertEquals("insert into t values (?+)+", SqlFingerprint.of("INSERT INTO t VALUES (?, ?), (?, ?), (?, ?)"));
+   }
+
+   @Test
+   public void testHistogramPercentiles()
+   {
+      LatencyHistogram histogram = new LatencyHistogram();
+      for (long i = 1; i <= 10_000; i++)
+      {
+         histogram.record(i * 1000);
+      }
+      assertEquals(10_000, histogram.getCount());
+      assertEquals(10_000_000, histogram.getMax());
+
+      long p50 = histogram.getValueAtPercentile(50);
+      long p99 = histogram.getValueAtPercentile(99);
+      assertEquals("p50 within 4%", 5_000_000, p50, 5_000_000 * 0.04);
+      assertEquals("p99 within 4%", 9_900_000, p99, 9_900_000 * 0.04);
+      assertEquals("p100 is the max", 10_000_000, histogram.getValueAtPercentile(100));
+      assertEquals("Empty histogram", 0, new LatencyHistogram().getValueAtPercentile(99));
+   }
+
+   @Test
+   public void testWrapperReportsPhases() throws Exception
+   {
+      InMemoryQueryMetrics metrics = new InMemoryQueryMetrics(0, 10);
+      DatabaseWrapper.setMetricsListener(metrics);
+
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "CREATE TABLE IF NOT EXISTS m (id INTEGER, name VARCHAR(20))"))
+      {
+         db.executeNonQuery();
+         db.newCommand("INSERT INTO m VALUES (?, ?)");
+         for (int i = 0; i < 50; i++)
+         {
+            db.addToBatch(i, "name" + i);
+         }
+         db.executeNonQuery();
+
+         db.newCommand("SELECT id FROM m WHERE id < ?", 20);
+         List<Integer> ids = db.executeQuery((ResultSetMapper<Integer>) rs -> rs.getInt(1));
+         assertEquals(20, ids.size());
+      }
+
+      String select = SqlFingerprint.of("SELECT id FROM m WHERE id < ?");
+      assertTrue(metrics.getFingerprints().contains(select));
+      assertEquals(1, metrics.getHistogram(select, QueryPhase.PREPARE).getCount());
+      assertEquals(1, metrics.getHistogram(select, QueryPhase.EXECUTE).getCount());
+      assertEquals(1, metrics.getHistogram(select, QueryPhase.FETCH).getCount());
+      assertEquals(20, metrics.getRowCount(select));
+      assertTrue(metrics.getRowsPerSecond(select) > 0);
+
+      String create = SqlFingerprint.of("CREATE TABLE IF NOT EXISTS m (id INTEGER, name VARCHAR(20))");
+      assertEquals(1, metrics.getHistogram(create, QueryPhase.CONNECT).getCount());
+
+      List<SlowQuery> slow = metrics.getSlowQueries();
+      assertEquals("Every command is slow with a 0 threshold", 3, slow.size());
+      assertEquals(Arrays.asList("Integer", "String"), slow.get(1).getParameterTypes());
+      assertEquals(50, slow.get(1).getRowCount());
+      assertEquals("SELECT id FROM m WHERE id < ?", slow.get(2).getSql());
+   }
+
+   @Test
+   public void testNoListener() throws Exception
+   {
+      InMemoryQueryMetrics metrics = new InMemoryQueryMetrics();
+      DatabaseWrapper.setMetricsListener(metrics);
+      DatabaseWrapper.setMetricsListener(null);
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT 1"))
+      {
+         db.executeQuery((ResultSetMapper<Integer>) rs -> rs.getInt(1));
+      }
+      assertTrue("Nothing reported without a listener", metrics.getFingerprints().isEmpty());
+   }
+}
@@ -0,0 +1,214 @@
+package ca.bjad.util.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the query result cache.
+ *
+ * @author
+ *  Ben Dougall
+ */
+@SuppressWarnings("javadoc")
+public class QueryResultCacheTest
+{
+   private static String FILE_NAME = System.getenv("TEMP") + "\\bjadUtilResultCacheTest.sqlLite";
+   private static String connectionString = "jdbc:sqlite:" + FILE_NAME;
+
+   private static final ResultSetMapper<String> NAME_MAPPER = rs -> rs.getString(1);
+
+   private QueryResultCache cache;
+
+   @Before
+   public void createTable() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "DROP TABLE IF EXISTS country"))
+      {
+         db.executeNonQuery();
+         db.newCommand("CREATE TABLE country (code VARCHAR(2), name VARCHAR(50))");
+         db.executeNonQuery();
+         db.newCommand("INSERT INTO country VALUES (?, ?)");
+         db.addToBatch("CA", "Canada");
+         db.addToBatch("US", "United States");
+         db.addToBatch("MX", "Mexico");
+         db.executeNonQuery();
+      }
+      cache = new QueryResultCache(100, 1024 * 1024, 0);
+      DatabaseWrapper.setResultCache(cache);
+   }
+
+   @After
+   public void removeCache()
+   {
+      DatabaseWrapper.setResultCache(null);
+   }
+
+   @AfterClass
+   public static void eraseDB() throws Exception
+   {
+      ConnectionPool.getPool(connectionString).close();
+      new File(FILE_NAME).delete();
+   }
+
+   private List<String> names(String code) throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT name FROM country WHERE code = ?", code))
+      {
+         return db.executeCachedQuery(NAME_MAPPER);
+      }
+   }
+
+   @Test
+   public void testReadThrough() throws Exception
+   {
+      assertEquals(Arrays.asList("Canada"), names("CA"));
+      assertEquals(Arrays.asList("Canada"), names("CA"));
+      assertEquals(Arrays.asList("Mexico"), names("MX"));
+
+      assertEquals("Second read of CA is a hit", 1, cache.getHitCount());
+      assertEquals(2, cache.getMissCount());
+      assertEquals(1.0 / 3, cache.getHitRate(), 0.0001);
+      assertEquals(2, cache.size());
+      assertTrue(cache.getEstimatedBytes() > 0);
+   }
+
+   @Test
+   public void testKeyedByMapper() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT code, name FROM country WHERE code = ?", "CA"))
+      {
+         List<Country> countries = db.executeCachedQuery(BeanMapperFactory.forClass(Country.class));
+         List<CountryName> countryNames = db.executeCachedQuery(BeanMapperFactory.forClass(CountryName.class));
+         assertEquals("CA", countries.get(0).getCode());
+         assertEquals("Each bean class has its own result", CountryName.class, countryNames.get(0).getClass());
+         assertEquals("Canada", countryNames.get(0).getName());
+         assertEquals(0, cache.getHitCount());
+
+         db.executeCachedQuery(BeanMapperFactory.forClass(Country.class));
+         assertEquals("Mappers for the same bean class share a result", 1, cache.getHitCount());
+
+         for (String prefix : new String[] { "a:", "b:" })
+         {
+            List<String> prefixed = db.executeCachedQuery(rs -> prefix + rs.getString(2));
+            assertEquals("Capturing lambdas are told apart", prefix + "Canada", prefixed.get(0));
+         }
+         assertEquals(4, cache.size());
+      }
+   }
+
+   @Test
+   public void testInvalidatedByDml() throws Exception
+   {
+      assertEquals(Arrays.asList("Canada"), names("CA"));
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "UPDATE country SET name = ? WHERE code = ?", "Kanada", "CA"))
+      {
+         db.executeNonQuery();
+      }
+      assertEquals("Update removed the cached result", 0, cache.size());
+      assertEquals(Arrays.asList("Kanada"), names("CA"));
+   }
+
+   @Test
+   public void testInvalidatedOnCommit() throws Exception
+   {
+      assertEquals(Arrays.asList("Canada"), names("CA"));
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "DELETE FROM country WHERE code = ?", "CA"))
+      {
+         db.beginTransaction();
+         db.executeNonQuery();
+         db.newCommand("SELECT name FROM country WHERE code = ?", "CA");
+         assertTrue("Cached reads bypass the cache in a transaction", db.executeCachedQuery(NAME_MAPPER).isEmpty());
+         db.commit();
+      }
+      assertTrue(names("CA").isEmpty());
+   }
+
+   @Test
+   public void testExplicitTagAndBounds() throws Exception
+   {
+      QueryResultCache small = new QueryResultCache(2, 1024 * 1024, 0);
+      DatabaseWrapper.setResultCache(small);
+      names("CA");
+      names("US");
+      names("MX");
+      assertEquals("Bounded to two entries", 2, small.size());
+      assertEquals(1, small.getEvictionCount());
+
+      assertEquals(2, small.invalidateTag("COUNTRY"));
+      assertEquals(0, small.size());
+      assertEquals(0, small.getEstimatedBytes());
+   }
+
+   @Test
+   public void testTimeToLive() throws Exception
+   {
+      QueryResultCache shortLived = new QueryResultCache(10, 1024 * 1024, 20);
+      DatabaseWrapper.setResultCache(shortLived);
+      names("CA");
+      Thread.sleep(40);
+      names("CA");
+      assertEquals(0, shortLived.getHitCount());
+      assertEquals(1, shortLived.getExpiredCount());
+   }
+
+   @Test
+   public void testTableParsing()
+   {
+      assertEquals(Arrays.asList("a", "b", "c"), 
+            Arrays.asList(SqlTables.readTables("SELECT * FROM a x JOIN b ON x.id = b.id WHERE x.id IN (SELECT id FROM main.\"C\")").toArray()));
+      assertEquals(Arrays.asList("a", "b"), Arrays.asList(SqlTables.readTables("select * from a, b where a.x = b.x").toArray()));
+      assertEquals("country", SqlTables.writtenTable("INSERT OR REPLACE INTO Country VALUES (?, ?)"));
+      assertEquals("country", SqlTables.writtenTable("  update [country] set name = ?"));
+      assertEquals("country", SqlTables.writtenTable("DELETE FROM dbo.country"));
+      assertNull(SqlTables.writtenTable("SELECT * FROM country"));
+   }
+
+   public static class Country
+   {
+      private String code;
+      private String name;
+
+      public String getCode()
+      {
+         return code;
+      }
+
+      public void setCode(String code)
+      {
+         this.code = code;
+      }
+
+      public String getName()
+      {
+         return name;
+      }
+
+      public void setName(String name)
+      {
+         this.name = name;
+      }
+   }
+
+   public static class CountryName
+   {
+      private String name;
+
+      public String getName()
+      {
+         return name;
+      }
+
+      public void setName(String name)
+      {
+         this.name = name;
+      }
+   }
+}
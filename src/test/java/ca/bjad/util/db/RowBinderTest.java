@@ -0,0 +1,163 @@
+package ca.bjad.util.db;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.StringReader;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for typed parameter binding, through the row binder and the 
+ * wider set of argument types.
+ *
+ * @author
+ *  Ben Dougall
+ */
+@SuppressWarnings("javadoc")
+public class RowBinderTest
+{
+   private static String FILE_NAME = System.getenv("TEMP") + "\\bjadUtilBinderTest.sqlLite";
+   private static String connectionString = "jdbc:sqlite:" + FILE_NAME;
+
+   @Before
+   public void createTable() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "DROP TABLE IF EXISTS bound"))
+      {
+         db.executeNonQuery();
+         db.newCommand("CREATE TABLE bound (id INTEGER, amount DOUBLE, note VARCHAR(100), data BLOB)");
+         db.executeNonQuery();
+      }
+   }
+
+   @AfterClass
+   public static void eraseDB() throws Exception
+   {
+      ConnectionPool.getPool(connectionString).close();
+      new File(FILE_NAME).delete();
+   }
+
+   @Test
+   public void testRowBinderBatch() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "INSERT INTO bound VALUES (?, ?, ?, ?)"))
+      {
+         RowBinder row = db.getRowBinder();
+         for (int i = 0; i < 100; i++)
+         {
+            row.setInt(1, i).setDouble(2, i * 1.5);
+            if (i % 10 == 0)
+            {
+               row.setNull(3, Types.VARCHAR);
+            }
+            else
+            {
+               row.setString(3, "note" + i);
+            }
+            row.setBytes(4, new byte[] { (byte) i }).addRow();
+         }
+         assertEquals("Rows inserted", 100, db.executeNonQuery());
+
+         db.newCommand("SELECT COUNT(*), SUM(amount), COUNT(note) FROM bound");
+         db.executeQuery(rs -> 
+            {
+               assertEquals(100, rs.getInt(1));
+               assertEquals(7425.0, rs.getDouble(2), 0.0001);
+               assertEquals("Nulls bound", 90, rs.getInt(3));
+            });
+      }
+   }
+
+   @Test
+   public void testRowBinderAfterConstructorArguments() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "INSERT INTO bound (id) VALUES (?)", 1))
+      {
+         db.getRowBinder().setInt(1, 2).addRow();
+         db.getRowBinder().setInt(1, 3);
+         assertEquals("Constructor row, added row and pending row", 3, db.executeNonQuery());
+      }
+   }
+
+   @Test
+   public void testExtendedArgumentTypes() throws Exception
+   {
+      byte[] blob = { 1, 2, 3 };
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "INSERT INTO bound VALUES (?, ?, ?, ?)"))
+      {
+         db.addToBatch(1, 2.5d, null, blob);
+         try
+         {
+            db.addToBatch(2L, 3.5f, new StringReader("from reader"), new ByteArrayInputStream(blob));
+            fail("Streams are bound through the row binder");
+         }
+         catch (IllegalArgumentException ex)
+         {
+            assertTrue(ex.getMessage().contains("setCharacterStream"));
+         }
+         db.addToBatch(2L, 3.5f, "from reader", blob);
+         db.addToBatch((short) 3, null, LocalDate.of(2020, 1, 2).toString(), null);
+         assertEquals(3, db.executeNonQuery());
+
+         db.newCommand("SELECT id, amount, note, data FROM bound ORDER BY id");
+         List<Object[]> rows = db.executeQuery(
+               (ResultSetMapper<Object[]>) rs -> new Object[] { rs.getInt(1), rs.getObject(2), rs.getString(3), rs.getBytes(4) });
+         assertEquals(2.5, ((Number) rows.get(0)[1]).doubleValue(), 0.0001);
+         assertNull("Null bound", rows.get(0)[2]);
+         assertArrayEquals(blob, (byte[]) rows.get(0)[3]);
+         assertEquals("from reader", rows.get(1)[2]);
+         assertArrayEquals("Stream bound", blob, (byte[]) rows.get(1)[3]);
+         assertNull(rows.get(2)[1]);
+         assertEquals("2020-01-02", rows.get(2)[2]);
+      }
+   }
+
+   @Test
+   public void testStreamsThroughBinder() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "INSERT INTO bound (id, note, data) VALUES (?, ?, ?)"))
+      {
+         db.getRowBinder().setLong(1, 9)
+               .setCharacterStream(2, new StringReader("large text"), 10)
+               .setBinaryStream(3, new ByteArrayInputStream(new byte[] { 9, 8 }), 2);
+         assertEquals(1, db.executeNonQuery());
+
+         db.newCommand("SELECT note, data FROM bound WHERE id = ?", 9);
+         db.executeQuery(rs -> 
+            {
+               assertEquals("large text", rs.getString(1));
+               assertArrayEquals(new byte[] { 9, 8 }, rs.getBytes(2));
+            });
+      }
+   }
+
+   @Test
+   public void testDeclaredPlan() throws Exception
+   {
+      BindingPlan plan = BindingPlan.of(int.class, Double.class, String.class, byte[].class);
+      assertEquals(4, plan.getParameterCount());
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "INSERT INTO bound VALUES (?, ?, ?, ?)"))
+      {
+         db.setBindingPlan(plan);
+         db.addToBatch(1, 1.0d, "a", null);
+         db.addToBatch(2, null, null, new byte[0]);
+         assertEquals(2, db.executeNonQuery());
+      }
+
+      try
+      {
+         BindingPlan.of(Thread.class);
+         fail("Unsupported type should be rejected up front");
+      }
+      catch (IllegalArgumentException ex)
+      {
+      }
+   }
+}
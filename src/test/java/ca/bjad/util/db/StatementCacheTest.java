@@ -0,0 +1,104 @@
+package ca.bjad.util.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+/**
+ * Tests for the per connection prepared statement cache.
+ *
+ * @author
+ *  Ben Dougall
+ */
+@SuppressWarnings("javadoc")
+public class StatementCacheTest
+{
+   private static String FILE_NAME = System.getenv("TEMP") + "\\bjadUtilStatementCacheTest.sqlLite";
+   private static String connectionString = "jdbc:sqlite:" + FILE_NAME;
+
+   @AfterClass
+   public static void eraseDB() throws Exception
+   {
+      ConnectionPool.getPool(connectionString).close();
+      new File(FILE_NAME).delete();
+   }
+
+   @Test
+   public void testNewCommandReusesStatement() throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "SELECT ?", 1))
+      {
+         StatementCache cache = db.getStatementCache();
+         long hits = cache.getHitCount();
+
+         db.newCommand("SELECT ? + 1", 1);
+         db.newCommand("SELECT ?", 2);
+         assertEquals("Second prepare of the same SQL is a cache hit", hits + 1, cache.getHitCount());
+
+         final int[] value = new int[1];
+         db.executeQuery(rs -> { value[0] = rs.getInt(1); });
+         assertEquals("Reused statement has the new argument bound", 2, value[0]);
+      }
+   }
+
+   @Test
+   public void testStatementInUseIsNotShared() throws Exception
+   {
+      try (Connection conn = DriverManager.getConnection(connectionString))
+      {
+         StatementCache cache = new StatementCache(conn, 4);
+         PreparedStatement first = cache.prepare("SELECT 1");
+         PreparedStatement second = cache.prepare("SELECT 1");
+         assertNotSame("Statement in use should not be handed out twice", first, second);
+
+         cache.release("SELECT 1", second);
+         assertTrue("Uncached statement closed on release", isClosed(second));
+         cache.release("SELECT 1", first);
+         assertSame("Cached statement reused once released", first, cache.prepare("SELECT 1"));
+         cache.close();
+      }
+   }
+
+   @Test
+   public void testEvictionClosesStatement() throws Exception
+   {
+      try (Connection conn = DriverManager.getConnection(connectionString))
+      {
+         StatementCache cache = new StatementCache(conn, 2);
+         PreparedStatement one = cache.prepare("SELECT 1");
+         cache.release("SELECT 1", one);
+         cache.release("SELECT 2", cache.prepare("SELECT 2"));
+         cache.release("SELECT 3", cache.prepare("SELECT 3"));
+
+         assertEquals("Cache stays within its size", 2, cache.size());
+         assertEquals("One statement evicted", 1, cache.getEvictionCount());
+         assertTrue("Least recently used statement closed", isClosed(one));
+         assertEquals("Three misses", 3, cache.getMissCount());
+         cache.close();
+      }
+   }
+
+   /**
+    * The SQLite driver does not implement isClosed(), so check by
+    * trying to use the statement.
+    */
+   private static boolean isClosed(PreparedStatement statement)
+   {
+      try
+      {
+         statement.executeQuery().close();
+         return false;
+      }
+      catch (SQLException ex)
+      {
+         return true;
+      }
+   }
+}
@@ -0,0 +1,153 @@
+package ca.bjad.util.db;
+
+import java.io.File;
+
+/**
+ * Measures insert throughput with auto-commit against the same inserts
+ * in one transaction, each insert executed on its own. Not a unit test,
+ * so it is not run by the build; run its main method from the test
+ * class path, e.g.
+ *
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes:&lt;sqlite-jdbc jar&gt; \
+ *       ca.bjad.util.db.TransactionInsertBenchmark 2000
+ * </pre>
+ *
+ * The database file is created in the TEMP directory, or the working
+ * directory if TEMP is not set, and removed afterwards. The figures
+ * depend heavily on the file system, as each auto-commit insert syncs
+ * the journal to disk.
+ *
+ * @author
+ *    Ben Dougall
+ */
+public final class TransactionInsertBenchmark
+{
+   private static final String INSERT = "INSERT INTO account VALUES (?, ?)";
+   private static final int    ROUNDS = 3;
+
+   private TransactionInsertBenchmark()
+   {
+   }
+
+   /**
+    * Runs the benchmark, printing the rows inserted per second each way.
+    *
+    * @param args
+    *    The number of rows to insert each way, 2000 by default.
+    * @throws Exception
+    *    Any exception running the inserts.
+    */
+   public static void main(String[] args) throws Exception
+   {
+      int rowCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+      String directory = System.getenv("TEMP") == null ? "." : System.getenv("TEMP");
+      File file = new File(directory, "bjadUtilTransactionBenchmark.sqlLite");
+      String connectionString = "jdbc:sqlite:" + file.getPath();
+
+      try
+      {
+         for (int round = 1; round <= ROUNDS; round++)
+         {
+            resetTable(connectionString);
+            long autoCommitNanos = insertWithAutoCommit(connectionString, rowCount);
+            resetTable(connectionString);
+            long transactionNanos = insertInTransaction(connectionString, rowCount);
+
+            System.out.printf("Round %d, %d rows: auto-commit %.0f rows/s, transaction %.0f rows/s, %.1fx%n", round,
+                  rowCount, perSecond(rowCount, autoCommitNanos), perSecond(rowCount, transactionNanos),
+                  (double) autoCommitNanos / transactionNanos);
+         }
+      }
+      finally
+      {
+         ConnectionPool.getPool(connectionString).close();
+         file.delete();
+      }
+   }
+
+   /**
+    * Drops and recreates the table inserted into.
+    *
+    * @param connectionString
+    *    The database's connection string.
+    * @throws Exception
+    *    Any exception recreating the table.
+    */
+   private static void resetTable(String connectionString) throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, "drop table if exists account"))
+      {
+         db.executeNonQuery();
+         db.newCommand("create table account (id integer, amount integer)");
+         db.executeNonQuery();
+      }
+   }
+
+   /**
+    * @param connectionString
+    *    The database's connection string.
+    * @param rowCount
+    *    The number of rows to insert.
+    * @return
+    *    The nanoseconds taken to insert the rows, each committed on its
+    *    own.
+    * @throws Exception
+    *    Any exception inserting the rows.
+    */
+   private static long insertWithAutoCommit(String connectionString, int rowCount) throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, INSERT))
+      {
+         long start = System.nanoTime();
+         for (int i = 0; i < rowCount; i++)
+         {
+            db.newCommand(INSERT, i, i);
+            db.executeNonQuery();
+         }
+         return System.nanoTime() - start;
+      }
+   }
+
+   /**
+    * @param connectionString
+    *    The database's connection string.
+    * @param rowCount
+    *    The number of rows to insert.
+    * @return
+    *    The nanoseconds taken to insert the rows in one transaction.
+    * @throws Exception
+    *    Any exception inserting the rows.
+    */
+   private static long insertInTransaction(String connectionString, int rowCount) throws Exception
+   {
+      try (DatabaseWrapper db = new DatabaseWrapper(connectionString, INSERT))
+      {
+         long start = System.nanoTime();
+         db.inTransaction(tx ->
+            {
+               for (int i = 0; i < rowCount; i++)
+               {
+                  tx.newCommand(INSERT, i, i);
+                  tx.executeNonQuery();
+               }
+               return null;
+            });
+         return System.nanoTime() - start;
+      }
+   }
+
+   /**
+    * @param rows
+    *    A number of rows.
+    * @param nanos
+    *    The nanoseconds they took.
+    * @return
+    *    The rows per second.
+    */
+   private static double perSecond(int rows, long nanos)
+   {
+      return rows * 1e9 / nanos;
+   }
+}